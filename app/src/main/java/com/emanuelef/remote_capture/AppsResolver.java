@@ -100,7 +100,8 @@ public class AppsResolver {
         return new AppDescriptor(pm, pinfo);
     }
 
-    public @Nullable AppDescriptor get(int uid, int pm_flags) {
+    // NOTE: can be invoked from multiple threads
+    public synchronized @Nullable AppDescriptor get(int uid, int pm_flags) {
         AppDescriptor app = mApps.get(uid);
         if(app != null)
             return app;
@@ -131,7 +132,7 @@ public class AppsResolver {
         return app;
     }
 
-    public void clear() {
+    public synchronized void clear() {
         mApps.clear();
         initVirtualApps();
     }
@@ -38,19 +38,35 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /* Represents the malware blacklists.
  * The blacklists are hard-coded via the Blacklists.addList calls. Blacklists update is performed
  * as follows:
  *
- * 1. If Blacklists.needsUpdate return true, Blacklists.update downloads the blacklists files
- * 2. The reloadBlacklists native method is called to inform the capture thread
- * 3. The capture thread loads the blacklists in memory
+ * 1. If Blacklists.needsUpdate return true, Blacklists.update downloads the blacklists files.
+ *    The downloads run in parallel and are conditional (ETag/If-Modified-Since), so that the
+ *    unchanged blacklists are not downloaded again.
+ * 2. If any blacklist changed, the reloadBlacklists native method is called to inform the capture thread
+ * 3. The capture thread loads the blacklists in memory. The parsed blacklists are saved into a
+ *    binary snapshot (malware_bl.snapshot), which is mapped in memory on the next loads, until
+ *    any of the blacklists files changes.
  * 4. When the loading is complete, the Blacklists.onNativeLoaded method is called.
  *
  * NOTE: use via PCAPdroid.getInstance().getBlacklists()
@@ -58,6 +74,7 @@ import java.util.Map;
 public class Blacklists {
     public static final String PREF_BLACKLISTS_STATUS = "blacklists_status";
     public static final int BLACKLISTS_UPDATE_SECONDS = 86400; // 1d
+    private static final int MAX_PARALLEL_DOWNLOADS = 3;
     private static final String TAG = "Blacklists";
     private final ArrayList<BlacklistDescriptor> mLists = new ArrayList<>();
     private final ArrayMap<String, BlacklistDescriptor> mListByFname = new ArrayMap<>();
@@ -70,6 +87,12 @@ public class Blacklists {
     private int mNumDomainRules;
     private int mNumIPRules;
 
+    enum DownloadResult {
+        UPDATED,
+        NOT_MODIFIED,
+        FAILED
+    }
+
     public Blacklists(Context ctx) {
         mLastUpdate = 0;
         mNumDomainRules = 0;
@@ -126,6 +149,11 @@ public class Blacklists {
 
                         bl.num_rules = bl_obj.getAsJsonPrimitive("num_rules").getAsInt();
                         bl.setUpdated(bl_obj.getAsJsonPrimitive("last_update").getAsLong());
+
+                        JsonPrimitive etag = bl_obj.getAsJsonPrimitive("etag");
+                        JsonPrimitive last_modified = bl_obj.getAsJsonPrimitive("last_modified");
+                        bl.setHttpValidators((etag != null) ? etag.getAsString() : null,
+                                (last_modified != null) ? last_modified.getAsString() : null);
                     }
                 }
             }
@@ -142,6 +170,10 @@ public class Blacklists {
 
                 bl_obj.add("num_rules", new JsonPrimitive(bl.num_rules));
                 bl_obj.add("last_update", new JsonPrimitive(bl.getLastUpdate()));
+                if(bl.getEtag() != null)
+                    bl_obj.add("etag", new JsonPrimitive(bl.getEtag()));
+                if(bl.getLastModified() != null)
+                    bl_obj.add("last_modified", new JsonPrimitive(bl.getLastModified()));
                 blacklists_obj.add(bl.fname, bl_obj);
             }
 
@@ -207,8 +239,89 @@ public class Blacklists {
                 || (mFirstUpdate && (getNumUpdatedBlacklists() < getNumBlacklists()));
     }
 
-    // NOTE: invoked in a separate thread (CaptureService.mBlacklistsUpdateThread)
-    public void update() {
+    /* Downloads the URL of the blacklist into path. If the file exists, the request is conditional
+     * on the validators of the previous download, so that the server replies with a
+     * "304 Not Modified" if the blacklist did not change. */
+    static DownloadResult downloadIfModified(BlacklistDescriptor bl, String path) {
+        File file = new File(path);
+        File tmp = new File(path + ".tmp");
+        boolean has_contents = false;
+        String etag = null;
+        String last_modified = null;
+
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL(bl.url).openConnection();
+            try {
+                // Necessary otherwise the connection will stay open
+                con.setRequestProperty("Connection", "Close");
+
+                if(file.exists()) {
+                    if(bl.getEtag() != null)
+                        con.setRequestProperty("If-None-Match", bl.getEtag());
+                    if(bl.getLastModified() != null)
+                        con.setRequestProperty("If-Modified-Since", bl.getLastModified());
+                }
+
+                int code = con.getResponseCode();
+                if(code == HttpURLConnection.HTTP_NOT_MODIFIED)
+                    return DownloadResult.NOT_MODIFIED;
+                if(code != HttpURLConnection.HTTP_OK) {
+                    Log.w(TAG, bl.fname + ": HTTP " + code);
+                    return DownloadResult.FAILED;
+                }
+
+                try(InputStream in = new BufferedInputStream(con.getInputStream());
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                    byte[] bytesIn = new byte[4096];
+                    int read;
+                    while((read = in.read(bytesIn)) != -1) {
+                        out.write(bytesIn, 0, read);
+                        has_contents |= (read > 0);
+                    }
+                }
+
+                etag = con.getHeaderField("ETag");
+                last_modified = con.getHeaderField("Last-Modified");
+            } finally {
+                con.disconnect();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            has_contents = false;
+        }
+
+        // Only write the target path if it was successful
+        if(!has_contents || !tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete(); // if exists
+            return DownloadResult.FAILED;
+        }
+
+        bl.setHttpValidators(etag, last_modified);
+        return DownloadResult.UPDATED;
+    }
+
+    // Returns true if the blacklist file changed
+    private boolean updateList(BlacklistDescriptor bl) {
+        Log.d(TAG, "\tupdating " + bl.fname + "...");
+        DownloadResult res = downloadIfModified(bl, getListPath(bl));
+        Log.d(TAG, "\t" + bl.fname + ": " + res.name());
+
+        if(res == DownloadResult.FAILED) {
+            bl.setOutdated();
+            return false;
+        }
+
+        bl.setUpdated(System.currentTimeMillis());
+        return (res == DownloadResult.UPDATED);
+    }
+
+    /* Updates the blacklists, using up to MAX_PARALLEL_DOWNLOADS concurrent downloads.
+     * Returns true if any of the blacklists changed, in which case they must be reloaded.
+     * NOTE: invoked in a separate thread (CaptureService.mBlacklistsUpdateThread) */
+    public boolean update() {
+        boolean changed = false;
+
         mUpdateInProgress = true;
         for(BlacklistDescriptor bl: mLists)
             bl.setUpdating();
@@ -217,17 +330,43 @@ public class Blacklists {
         Log.d(TAG, "Updating " + mLists.size() + " blacklists...");
         mFirstUpdate = false;
 
-        for(BlacklistDescriptor bl: mLists) {
-            Log.d(TAG, "\tupdating " + bl.fname + "...");
+        ExecutorService pool = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS);
+        ArrayList<Future<Boolean>> results = new ArrayList<>();
+
+        try {
+            for(BlacklistDescriptor bl: mLists)
+                results.add(pool.submit(() -> updateList(bl)));
+            pool.shutdown();
+
+            for(int i = 0; i < results.size(); i++) {
+                try {
+                    changed |= results.get(i).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    mLists.get(i).setOutdated();
+                } catch (InterruptedException e) {
+                    // the capture was stopped, the blacklists will not be reloaded
+                    pool.shutdownNow();
+                    for(BlacklistDescriptor bl: mLists) {
+                        if(bl.getStatus() == BlacklistDescriptor.Status.UPDATING)
+                            bl.setOutdated();
+                    }
+                    changed = false;
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
 
-            if(Utils.downloadFile(bl.url, getListPath(bl)))
-                bl.setUpdated(System.currentTimeMillis());
-            else
-                bl.setOutdated();
+            Log.d(TAG, "Blacklists update complete, changed: " + changed);
+            mLastUpdate = System.currentTimeMillis();
+        } finally {
+            // onNativeLoaded will not be called if the blacklists are not reloaded
+            if(!changed)
+                mUpdateInProgress = false;
+            notifyListeners();
         }
 
-        mLastUpdate = System.currentTimeMillis();
-        notifyListeners();
+        return changed;
     }
 
     public static class NativeBlacklistStatus {
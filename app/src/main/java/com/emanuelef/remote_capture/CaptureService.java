@@ -19,6 +19,7 @@
 
 package com.emanuelef.remote_capture;
 
+import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.NotificationChannel;
@@ -28,6 +29,7 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
@@ -82,7 +84,12 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
 
 public class CaptureService extends VpnService implements Runnable {
     private static final String TAG = "CaptureService";
@@ -90,6 +97,8 @@ public class CaptureService extends VpnService implements Runnable {
     private static final String NOTIFY_CHAN_VPNSERVICE = "VPNService";
     private static final String NOTIFY_CHAN_BLACKLISTED = "Blacklisted";
     private static final int NOTIFY_ID_VPNSERVICE = 1;
+    private static final int PREFETCH_APP_NAMES = Integer.MIN_VALUE;
+    private static final int UID_RESOLVER_THREADS = 2;
     private static CaptureService INSTANCE;
     private ParcelFileDescriptor mParcelFileDescriptor;
     private boolean mIsAlwaysOnVPN;
@@ -101,9 +110,12 @@ public class CaptureService extends VpnService implements Runnable {
     private Thread mBlacklistsUpdateThread;
     private Thread mConnUpdateThread;
     private Thread mDumperThread;
+    private Thread mAppNamesThread;
+    private ExecutorService mUidResolver;
     private MitmReceiver mMitmReceiver;
     private final LinkedBlockingDeque<Pair<ConnectionDescriptor[], ConnectionUpdate[]>> mPendingUpdates = new LinkedBlockingDeque<>(32);
     private LinkedBlockingDeque<byte[]> mDumpQueue;
+    private final LinkedBlockingDeque<Integer> mAppNamesQueue = new LinkedBlockingDeque<>();
     private String vpn_ipv4;
     private String vpn_dns;
     private String dns_server;
@@ -120,6 +132,7 @@ public class CaptureService extends VpnService implements Runnable {
     private AppsResolver appsResolver;
     private boolean mMalwareDetectionEnabled;
     private boolean mBlacklistsUpdateRequested;
+    private boolean mBlacklistsLoaded;
     private boolean mBlockPrivateDns;
     private boolean mDnsEncrypted;
     private boolean mStrictDnsNoticeShown;
@@ -406,8 +419,10 @@ public class CaptureService extends VpnService implements Runnable {
 
         mWhitelist = PCAPdroid.getInstance().getMalwareWhitelist();
         mBlacklists = PCAPdroid.getInstance().getBlacklists();
-        if(mMalwareDetectionEnabled && !mBlacklists.needsUpdate())
+        if(mMalwareDetectionEnabled && !mBlacklists.needsUpdate()) {
             reloadBlacklists();
+            mBlacklistsLoaded = true;
+        }
         checkBlacklistsUpdates();
 
         mBlocklist = PCAPdroid.getInstance().getBlocklist();
@@ -415,6 +430,13 @@ public class CaptureService extends VpnService implements Runnable {
         mConnUpdateThread = new Thread(this::connUpdateWork, "UpdateListener");
         mConnUpdateThread.start();
 
+        mAppNamesQueue.clear();
+        mAppNamesThread = new Thread(this::appNamesWork, "AppNamesResolver");
+        mAppNamesThread.start();
+
+        if(!mSettings.root_capture && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q))
+            mUidResolver = Executors.newFixedThreadPool(UID_RESOLVER_THREADS);
+
         if(mDumper != null) {
             mDumperThread = new Thread(this::dumpWork, "DumperThread");
             mDumperThread.start();
@@ -658,6 +680,21 @@ public class CaptureService extends VpnService implements Runnable {
         mDumperThread = null;
         mDumper = null;
 
+        while((mAppNamesThread != null) && (mAppNamesThread.isAlive())) {
+            try {
+                Log.d(TAG, "Joining app names thread...");
+                mAppNamesThread.interrupt();
+                mAppNamesThread.join();
+            } catch (InterruptedException ignored) {}
+        }
+        mAppNamesThread = null;
+
+        if(mUidResolver != null) {
+            Log.d(TAG, "Stopping uid resolver...");
+            mUidResolver.shutdownNow();
+            mUidResolver = null;
+        }
+
         if(mMitmReceiver != null) {
             try {
                 mMitmReceiver.stop();
@@ -708,8 +745,13 @@ public class CaptureService extends VpnService implements Runnable {
 
     private void updateBlacklistsWork() {
         mBlacklistsUpdateRequested = false;
-        mBlacklists.update();
-        reloadBlacklists();
+        boolean changed = mBlacklists.update();
+
+        // the blacklists must be loaded at least once per capture. If interrupted, the capture is stopping
+        if((changed || !mBlacklistsLoaded) && !Thread.currentThread().isInterrupted()) {
+            reloadBlacklists();
+            mBlacklistsLoaded = true;
+        }
         mBlacklistsUpdateThread = null;
     }
 
@@ -974,6 +1016,10 @@ public class CaptureService extends VpnService implements Runnable {
 
     public int getMaxDumpSize() {  return mSettings.max_dump_size; }
 
+    public int getHostLruSize() {  return mSettings.host_lru_size; }
+
+    public int getDpiWorkers() {  return mSettings.dpi_workers; }
+
     public int getPayloadMode() { return getCurPayloadMode().ordinal(); }
 
     public int getOwnAppUid() {
@@ -990,7 +1036,10 @@ public class CaptureService extends VpnService implements Runnable {
         return((mSettings.dump_mode != Prefs.DumpMode.NONE) ? 1 : 0);
     }
 
-    public String getPcapDumperBpf() { return((mDumper != null) ? mDumper.getBpf() : ""); }
+    public String getPcapdBpf() {
+        return Utils.buildCaptureBpf(mSettings.capture_protocols, mSettings.capture_subnets,
+                (mDumper != null) ? mDumper.getBpf() : "");
+    }
 
     @Override
     public boolean protect(int socket) {
@@ -1014,10 +1063,37 @@ public class CaptureService extends VpnService implements Runnable {
         InetSocketAddress local = new InetSocketAddress(saddr, sport);
         InetSocketAddress remote = new InetSocketAddress(daddr, dport);
 
-        Log.d(TAG, "Get uid local=" + local + " remote=" + remote);
         return cm.getConnectionOwnerUid(protocol, local, remote);
     }
 
+    // NOTE: to be invoked only by the native code. The uid is resolved by mUidResolver and
+    // then passed back via setConnectionUid, to avoid blocking the capture thread on the binder call.
+    // Returns false if the request was not queued, so that the native code can drop it.
+    @TargetApi(Build.VERSION_CODES.Q)
+    public boolean requestUidQ(int req_id, int version, int protocol, String saddr, int sport, String daddr, int dport) {
+        ExecutorService resolver = mUidResolver;
+        if(resolver == null)
+            return false;
+
+        try {
+            resolver.execute(() -> {
+                int uid = Utils.UID_UNKNOWN;
+
+                try {
+                    uid = getUidQ(version, protocol, saddr, sport, daddr, dport);
+                } catch (Exception e) {
+                    Log.w(TAG, "getUidQ failed: " + e.getMessage());
+                }
+
+                setConnectionUid(req_id, uid);
+            });
+            return true;
+        } catch (RejectedExecutionException ignored) {
+            // the capture is being stopped
+            return false;
+        }
+    }
+
     public void updateConnections(ConnectionDescriptor[] new_conns, ConnectionUpdate[] conns_updates) {
         if(mQueueFull)
             // if the queue is full, stop receiving updates to avoid inconsistent incr_ids
@@ -1054,20 +1130,56 @@ public class CaptureService extends VpnService implements Runnable {
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
 
         if(cur_status.equals(SERVICE_STATUS_STARTED)) {
+            mAppNamesQueue.offer(PREFETCH_APP_NAMES);
             if(mMalwareDetectionEnabled)
                 reloadMalwareWhitelist();
             reloadBlocklist();
         }
     }
 
-    // NOTE: to be invoked only by the native code
-    public String getApplicationByUid(int uid) {
-        AppDescriptor dsc = appsResolver.get(uid, 0);
+    // NOTE: to be invoked only by the native code. The name is resolved by mAppNamesThread.
+    public void requestAppName(int uid) {
+        mAppNamesQueue.offer(uid);
+    }
 
-        if(dsc == null)
-            return "";
+    private void appNamesWork() {
+        LinkedHashSet<Integer> uids = new LinkedHashSet<>();
+
+        while(true) {
+            try {
+                uids.add(mAppNamesQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            // Batch the requests received in the meantime into a single native call
+            mAppNamesQueue.drainTo(uids);
+
+            if(uids.remove(PREFETCH_APP_NAMES)) {
+                // Resolve all the installed apps, so that the capture thread does not have to wait
+                // for the PackageManager when an app generates its first connections
+                @SuppressLint("QueryPermissionsNeeded")
+                List<PackageInfo> packs = getPackageManager().getInstalledPackages(0);
+
+                for(PackageInfo p: packs)
+                    uids.add(p.applicationInfo.uid);
+            }
+
+            int[] uids_arr = new int[uids.size()];
+            String[] names = new String[uids.size()];
+            int i = 0;
+
+            for(int uid: uids) {
+                AppDescriptor dsc = appsResolver.get(uid, 0);
 
-        return dsc.getName();
+                uids_arr[i] = uid;
+                names[i++] = (dsc != null) ? dsc.getName() : "";
+            }
+
+            Log.d(TAG, "Resolved " + uids_arr.length + " app names");
+            setAppNames(uids_arr, names);
+            uids.clear();
+        }
     }
 
     /* Exports a PCAP data chunk */
@@ -1131,6 +1243,27 @@ public class CaptureService extends VpnService implements Runnable {
         reloadBlocklist(mBlocklist.toListDescriptor());
     }
 
+    /* Applies the change of a single blocklist rule, without reloading the whole blocklist.
+     * Only the rules supported by MatchList.toListDescriptor are applied. */
+    public void updateBlocklistRule(MatchList.RuleType tp, String value, boolean add) {
+        if(!mBilling.isRedeemed(Billing.FIREWALL_SKU) || mSettings.root_capture)
+            return;
+
+        switch(tp) {
+            case APP:
+            case IP:
+            case HOST:
+            case SUBNET:
+            case WILDCARD_HOST:
+                break;
+            default:
+                return;
+        }
+
+        if(!updateBlocklistRule(tp.ordinal(), value, add))
+            reloadBlocklist();
+    }
+
     public static void reloadMalwareWhitelist() {
         if((INSTANCE == null) || !INSTANCE.mMalwareDetectionEnabled)
             return;
@@ -1145,6 +1278,9 @@ public class CaptureService extends VpnService implements Runnable {
     private static native void setDnsServer(String server);
     private static native void reloadBlacklists();
     private static native boolean reloadBlocklist(MatchList.ListDescriptor blocklist);
+    private static native boolean updateBlocklistRule(int ruleType, String value, boolean add);
+    private static native void setAppNames(int[] uids, String[] names);
+    private static native void setConnectionUid(int reqId, int uid);
     private static native boolean reloadMalwareWhitelist(MatchList.ListDescriptor whitelist);
     public static native void askStatsDump();
     public static native byte[] getPcapHeader();
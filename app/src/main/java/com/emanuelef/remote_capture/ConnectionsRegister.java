@@ -229,10 +229,29 @@ public class ConnectionsRegister {
                 // update the app stats
                 long bytes_delta = (update.rcvd_bytes + update.sent_bytes) - (conn.rcvd_bytes + conn.sent_bytes);
                 AppStats stats = mAppsStats.get(conn.uid);
+                boolean uid_changed = ((update.update_type & ConnectionUpdate.UPDATE_INFO) != 0)
+                        && (update.uid != Utils.UID_UNKNOWN) && (update.uid != conn.uid);
+
+                if(uid_changed) {
+                    // the uid was resolved asynchronously, move the connection to the new app
+                    stats.bytes -= conn.rcvd_bytes + conn.sent_bytes;
+                    if(--stats.num_connections <= 0)
+                        mAppsStats.remove(conn.uid);
+
+                    stats = mAppsStats.get(update.uid);
+                    if(stats == null) {
+                        stats = new AppStats(update.uid);
+                        mAppsStats.put(update.uid, stats);
+                    }
+                    stats.num_connections++;
+                    stats.bytes += conn.rcvd_bytes + conn.sent_bytes;
+                }
                 stats.bytes += bytes_delta;
 
                 //Log.d(TAG, "update " + update.incr_id + " -> " + update.update_type);
                 conn.processUpdate(update);
+                if(uid_changed)
+                    conn.setUid(update.uid, mAppsResolver.get(update.uid, 0));
                 processConnectionStatus(conn);
 
                 changed_pos[k++] = (pos + mSize - first_pos) % mSize;
@@ -26,8 +26,11 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
-import android.util.LruCache;
 import android.util.SparseArray;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -46,10 +49,14 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 
 /* A receiver for the mitm addon messages.
  *
@@ -68,18 +75,37 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
     private static final String TAG = "MitmReceiver";
     public static final int TLS_DECRYPTION_PROXY_PORT = 7780;
     public static final String ACTION_MITM_ADDON_STATUS_CHANGED = "addon_status_changed";
+    private static final int PENDING_TIMEOUT_MS = 5000;
+    private static final int WHEEL_TICK_MS = 500;
+    private static final int WHEEL_TIMEOUT_TICKS = PENDING_TIMEOUT_MS / WHEEL_TICK_MS;
+    private static final int WHEEL_SLOTS = WHEEL_TIMEOUT_TICKS + 1;
+    private static final int MAX_QUEUED_SECRETS = 1024;
+    private static final byte[] KEYLOG_STOP = new byte[0]; // compared by identity
     private Thread mThread;
     private final ConnectionsRegister mReg;
     private final Context mContext;
     private final MitmAddon mAddon;
     private final MitmAPI.MitmConfig mConfig;
     private ParcelFileDescriptor mSocketFd;
-    private BufferedOutputStream mKeylog;
+    private LinkedBlockingDeque<byte[]> mKeylogQueue;
+    private Thread mKeylogThread;
     private boolean mProxyRunning;
 
     // Shared state
-    private final LruCache<Integer, Integer> mPortToConnId = new LruCache<>(64);
-    private final SparseArray<ArrayList<PendingMessage>> mPendingMessages = new SparseArray<>();
+    /* Maps a local port to the incr_id of the latest connection using it. Ports are reused, so the
+     * incr_id acts as a generation number, verified in getConnById against the register. */
+    private final int[] mPortToConnId = new int[65536];
+    private final SparseArray<PendingPort> mPendingMessages = new SparseArray<>();
+
+    /* Timer wheel to expire the pending messages. Each slot holds the ports which became pending
+     * during a WHEEL_TICK_MS tick. Ports matched in the meanwhile are lazily skipped on expiration. */
+    private final ArrayList<ArrayList<PendingPort>> mWheel = new ArrayList<>();
+    private long mWheelTick;
+
+    // Stats
+    private long mNumMatched;
+    private long mNumLateMatched;
+    private long mNumDropped;
 
     private enum MsgType {
         UNKNOWN,
@@ -100,18 +126,26 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
         MsgType type;
         byte[] msg;
         int port;
-        long pendingSince;
         long when;
 
         PendingMessage(MsgType _type, byte[] _msg, int _port, long _now) {
             type = _type;
             msg = _msg;
             port = _port;
-            pendingSince = SystemClock.uptimeMillis();
             when = _now;
         }
     }
 
+    // The pending messages for a port whose connection has not been seen yet
+    private static class PendingPort {
+        final int port;
+        final ArrayList<PendingMessage> messages = new ArrayList<>();
+
+        PendingPort(int _port) {
+            port = _port;
+        }
+    }
+
     public MitmReceiver(Context ctx, String proxyAuth) {
         mContext = ctx;
         mReg = CaptureService.requireConnsRegister();
@@ -129,6 +163,11 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
 
         //noinspection ResultOfMethodCallIgnored
         getKeylogFilePath(mContext).delete();
+
+        Arrays.fill(mPortToConnId, -1);
+        for(int i = 0; i < WHEEL_SLOTS; i++)
+            mWheel.add(new ArrayList<>());
+        mWheelTick = SystemClock.uptimeMillis() / WHEEL_TICK_MS;
     }
 
     public static File getKeylogFilePath(Context ctx) {
@@ -172,6 +211,11 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
         }
         mThread = null;
 
+        synchronized(this) {
+            Log.i(TAG, "Messages: " + mNumMatched + " matched, " + mNumLateMatched + " late matched, "
+                    + mNumDropped + " dropped");
+        }
+
         Log.d(TAG, "stop done");
     }
 
@@ -179,8 +223,16 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
     public void run() {
         Log.d(TAG, "Receiving data...");
 
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = mSocketFd.getFileDescriptor();
+        pollfd.events = (short) OsConstants.POLLIN;
+
         try(DataInputStream istream = new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(mSocketFd))) {
             while(mAddon.isConnected()) {
+                // Expire the pending messages also when no messages are received
+                if(!waitForMessage(pollfd))
+                    continue;
+
                 String msg_type;
                 int port;
                 int msg_len;
@@ -231,29 +283,40 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
                     logMasterSecret(msg);
                 else if(type == MsgType.RUNNING)
                     handleProxyRunning();
-                else {
-                    ConnectionDescriptor conn = getConnByLocalPort(port);
-                    //Log.d(TAG, "MSG." + type.name() + "[" + message_len + " B]: port=" + port + ", match=" + (conn != null));
-
-                    if(conn != null)
-                        handleMessage(conn, type, msg, tstamp);
-                    else
-                        // We may receive a message before seeing the connection in connectionsAdded
-                        addPendingMessage(new PendingMessage(type, msg, port, tstamp));
-                }
+                else
+                    handleOrQueueMessage(new PendingMessage(type, msg, port, tstamp));
             }
         } catch (IOException e) {
             if(mSocketFd != null) // ignore termination
                 e.printStackTrace();
         } finally {
-            Utils.safeClose(mKeylog);
-            mKeylog = null;
+            stopKeylogWriter();
         }
 
         mProxyRunning = false;
         Log.d(TAG, "End receiving data");
     }
 
+    // Waits up to WHEEL_TICK_MS for a message, then advances the wheel. Returns true if a message is available.
+    private boolean waitForMessage(StructPollfd pollfd) throws IOException {
+        int rv;
+
+        try {
+            rv = Os.poll(new StructPollfd[]{pollfd}, WHEEL_TICK_MS);
+        } catch (ErrnoException e) {
+            if(e.errno != OsConstants.EINTR)
+                throw new IOException(e);
+            rv = 0;
+        }
+
+        synchronized(this) {
+            advanceWheel();
+        }
+
+        // on close/error, let the read fail
+        return(rv > 0);
+    }
+
     private boolean isSent(MsgType type) {
         switch (type) {
             case HTTP_REQUEST:
@@ -301,31 +364,66 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
             conn.addPayloadChunk(new PayloadChunk(message, getChunkType(type), isSent(type), tstamp));
     }
 
-    private synchronized void addPendingMessage(PendingMessage pending) {
-        // Purge unresolved connections (should not happen, just in case)
-        if(mPendingMessages.size() > 32) {
-            long now = SystemClock.uptimeMillis();
+    // Expires the pending messages older than PENDING_TIMEOUT_MS. Must be called with the lock held.
+    private void advanceWheel() {
+        long now_tick = SystemClock.uptimeMillis() / WHEEL_TICK_MS;
 
-            for(int i = mPendingMessages.size()-1; i>=0; i--) {
-                ArrayList<PendingMessage> pp = mPendingMessages.valueAt(i);
+        // After a long inactivity, all the slots are expired
+        if((now_tick - mWheelTick) > WHEEL_SLOTS)
+            mWheelTick = now_tick - WHEEL_SLOTS;
 
-                if((now - pp.get(0).pendingSince) > 5000 /* 5 sec */) {
-                    Log.w(TAG, "Dropping " + pp.size() + " old messages");
-                    mPendingMessages.remove(mPendingMessages.keyAt(i));
+        while(mWheelTick < now_tick) {
+            mWheelTick++;
+            ArrayList<PendingPort> slot = mWheel.get((int)(mWheelTick % WHEEL_SLOTS));
+
+            for(PendingPort pp: slot) {
+                // Skip the ports which were matched (or expired and re-added) in the meanwhile
+                if(mPendingMessages.get(pp.port) == pp) {
+                    Log.w(TAG, "Dropping " + pp.messages.size() + " old messages for port " + pp.port);
+                    mPendingMessages.remove(pp.port);
+                    mNumDropped += pp.messages.size();
                 }
             }
+
+            slot.clear();
         }
+    }
+
+    /* Handles the message if its connection is known, otherwise queues it until the connection is
+     * seen in connectionsAdded. The register must not be accessed with the lock held, as
+     * connectionsAdded is called with the register lock held. */
+    private void handleOrQueueMessage(PendingMessage pending) {
+        while(true) {
+            int conn_id = getConnIdByLocalPort(pending.port);
+            ConnectionDescriptor conn = getConnById(conn_id, pending.port);
+            //Log.d(TAG, "MSG." + pending.type.name() + "[" + pending.msg.length + " B]: port=" + pending.port + ", match=" + (conn != null));
+
+            if(conn != null) {
+                synchronized(this) {
+                    mNumMatched++;
+                }
+                handleMessage(conn, pending.type, pending.msg, pending.when);
+                return;
+            }
 
-        int idx = mPendingMessages.indexOfKey(pending.port);
-        ArrayList<PendingMessage> pp;
+            synchronized(this) {
+                // The connection may have been added after the lookup, retry
+                if(mPortToConnId[pending.port & 0xFFFF] != conn_id)
+                    continue;
 
-        if(idx < 0) {
-            pp = new ArrayList<>();
-            mPendingMessages.put(pending.port, pp);
-        } else
-            pp = mPendingMessages.valueAt(idx);
+                advanceWheel();
+                PendingPort pp = mPendingMessages.get(pending.port);
 
-        pp.add(pending);
+                if(pp == null) {
+                    pp = new PendingPort(pending.port);
+                    mPendingMessages.put(pending.port, pp);
+                    mWheel.get((int)((mWheelTick + WHEEL_TIMEOUT_TICKS) % WHEEL_SLOTS)).add(pp);
+                }
+
+                pp.messages.add(pending);
+                return;
+            }
+        }
     }
 
     private static MsgType parseMsgType(String str) {
@@ -357,14 +455,87 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
         }
     }
 
-    private void logMasterSecret(byte[] master_secret) throws IOException {
-        if(mKeylog == null)
-            mKeylog = new BufferedOutputStream(
-                    mContext.getContentResolver().openOutputStream(
-                            Uri.fromFile(getKeylogFilePath(mContext)), "rwt"));
+    /* The master secrets are written to the keylog file by a separate thread, so that bursts of
+     * TLS handshakes do not stall the payload processing. */
+    private void logMasterSecret(byte[] master_secret) {
+        if(mKeylogThread == null) {
+            mKeylogQueue = new LinkedBlockingDeque<>(MAX_QUEUED_SECRETS);
+            mKeylogThread = new Thread(this::keylogWork, "KeylogWriter");
+            mKeylogThread.start();
+        }
 
-        mKeylog.write(master_secret);
-        mKeylog.write(0xa);
+        queueKeylog(master_secret);
+    }
+
+    // Blocks while the queue is full, e.g. if the disk write stalls. The writer terminates on I/O errors
+    private boolean queueKeylog(byte[] data) {
+        try {
+            while(mKeylogThread.isAlive()) {
+                if(mKeylogQueue.offer(data, 100, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        } catch (InterruptedException ignored) {}
+
+        return false;
+    }
+
+    private void stopKeylogWriter() {
+        if(mKeylogThread == null)
+            return;
+
+        // termination request. If interrupted while the queue is full, drop the pending secrets
+        if(!queueKeylog(KEYLOG_STOP) && !mKeylogQueue.offer(KEYLOG_STOP)) {
+            mKeylogQueue.clear();
+            mKeylogQueue.offer(KEYLOG_STOP);
+        }
+
+        while(mKeylogThread.isAlive()) {
+            try {
+                mKeylogThread.join();
+            } catch (InterruptedException ignored) {}
+        }
+
+        mKeylogThread = null;
+        mKeylogQueue = null;
+    }
+
+    private void keylogWork() {
+        ArrayList<byte[]> batch = new ArrayList<>();
+        boolean running = true;
+
+        try(OutputStream out = mContext.getContentResolver().openOutputStream(
+                Uri.fromFile(getKeylogFilePath(mContext)), "rwt")) {
+            if(out == null)
+                throw new IOException("Could not open the keylog file");
+
+            BufferedOutputStream keylog = new BufferedOutputStream(out);
+
+            while(running) {
+                try {
+                    batch.add(mKeylogQueue.take());
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                // Write all the secrets queued in the meanwhile with a single flush
+                mKeylogQueue.drainTo(batch);
+
+                for(byte[] secret: batch) {
+                    if(secret == KEYLOG_STOP) {
+                        running = false;
+                        break;
+                    }
+
+                    keylog.write(secret);
+                    keylog.write(0xa);
+                }
+
+                batch.clear();
+                keylog.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public boolean isProxyRunning() {
@@ -381,18 +552,21 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
     @Override
     public void connectionsAdded(int start, ConnectionDescriptor[] conns) {
         synchronized(this) {
+            advanceWheel();
+
             // Save the latest port->ID mapping
             for(ConnectionDescriptor conn: conns) {
                 //Log.d(TAG, "[+] port " + conn.local_port);
-                mPortToConnId.put(conn.local_port, conn.incr_id);
+                mPortToConnId[conn.local_port & 0xFFFF] = conn.incr_id;
 
                 // Check if the message has already been received
                 int pending_idx = mPendingMessages.indexOfKey(conn.local_port);
                 if(pending_idx >= 0) {
-                    ArrayList<PendingMessage> pp = mPendingMessages.valueAt(pending_idx);
+                    PendingPort pp = mPendingMessages.valueAt(pending_idx);
                     mPendingMessages.removeAt(pending_idx);
+                    mNumLateMatched += pp.messages.size();
 
-                    for(PendingMessage pending: pp) {
+                    for(PendingMessage pending: pp.messages) {
                         //Log.d(TAG, "(pending) MSG." + pending.type.name() + "[" + pending.message.length + " B]: port=" + pending.port);
                         handleMessage(conn, pending.type, pending.msg, pending.when);
                     }
@@ -442,13 +616,13 @@ public class MitmReceiver implements Runnable, ConnectionsListener, MitmListener
         CaptureService.stopService();
     }
 
-    ConnectionDescriptor getConnByLocalPort(int local_port) {
-        Integer conn_id;
+    private synchronized int getConnIdByLocalPort(int local_port) {
+        return mPortToConnId[local_port & 0xFFFF];
+    }
 
-        synchronized(this) {
-            conn_id = mPortToConnId.get(local_port);
-        }
-        if(conn_id == null)
+    // NOTE: must be called without the lock held, see handleOrQueueMessage
+    private ConnectionDescriptor getConnById(int conn_id, int local_port) {
+        if(conn_id < 0)
             return null;
 
         ConnectionDescriptor conn = mReg.getConnById(conn_id);
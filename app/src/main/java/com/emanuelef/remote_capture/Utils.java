@@ -106,6 +106,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -113,6 +114,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -121,6 +123,8 @@ import javax.net.ssl.HttpsURLConnection;
 
 public class Utils {
     static final String TAG = "Utils";
+    private static final Pattern IPV4_LITERAL = Pattern.compile("^\\d{1,3}(\\.\\d{1,3}){3}$");
+    private static final Pattern IPV6_LITERAL = Pattern.compile("^[0-9a-fA-F:.]*:[0-9a-fA-F:.]*$");
     public static final int UID_UNKNOWN = -1;
     public static final int UID_NO_FILTER = -2;
     private static Boolean rootAvailable = null;
@@ -416,37 +420,57 @@ public class Utils {
         return new String(hexChars);
     }
 
-    // Adapted from https://gist.github.com/jen20/906db194bd97c14d91df
+    // Lookup tables for the hexdump and the printable checks, indexed by the unsigned byte value
+    private static final char[] HEX_ARRAY_LOWER = "0123456789abcdef".toCharArray();
+    private static final char[] HEXDUMP_ASCII = new char[256];
+    private static final boolean[] PRINTABLE_BYTES = new boolean[256];
+    static {
+        for(int i = 0; i < 256; i++) {
+            HEXDUMP_ASCII[i] = ((i >= 32) && (i <= 126)) ? (char) i : '.';
+            PRINTABLE_BYTES[i] = ((i >= 32) && (i <= 126)) || (i == '\r') || (i == '\n') || (i == '\t');
+        }
+    }
+
+    /* Adapted from https://gist.github.com/jen20/906db194bd97c14d91df
+     * Each row takes exactly 67 characters. The formatting is done via lookup tables, as
+     * String.format and regex replacements are too slow on large payloads. */
     public static String hexdump(byte[] array, int offset, int length) {
         final int width = 16;
         final int half = width / 2;
+        final int rowLen = 67;
+        final int numRows = (length + width - 1) / width;
 
-        StringBuilder builder = new StringBuilder();
+        char[] out = new char[numRows * rowLen];
+        int pos = 0;
 
         for (int rowOffset = offset; rowOffset < offset + length; rowOffset += width) {
             for (int index = 0; index < width; index++) {
                 if(index == half)
-                    builder.append(" ");
+                    out[pos++] = ' ';
 
                 if (rowOffset + index < array.length) {
-                    builder.append(String.format("%02x ", array[rowOffset + index]));
+                    int v = array[rowOffset + index] & 0xFF;
+                    out[pos++] = HEX_ARRAY_LOWER[v >>> 4];
+                    out[pos++] = HEX_ARRAY_LOWER[v & 0x0F];
                 } else {
-                    builder.append("   ");
+                    out[pos++] = ' ';
+                    out[pos++] = ' ';
                 }
+                out[pos++] = ' ';
             }
 
             if (rowOffset < array.length) {
                 int asciiWidth = Math.min(width, array.length - rowOffset);
-                builder.append(" ");
+                out[pos++] = ' ';
 
-                builder.append(new String(array, rowOffset, asciiWidth,
-                        StandardCharsets.US_ASCII).replaceAll("[^ -~]", "."));
+                for(int index = 0; index < asciiWidth; index++)
+                    out[pos++] = HEXDUMP_ASCII[array[rowOffset + index] & 0xFF];
             }
 
-            builder.append("\n");
+            out[pos++] = '\n';
         }
 
-        return builder.toString();
+        return new String(out, 0, pos);
     }
 
     public static String hexdump(byte[] array) {
@@ -1098,15 +1122,38 @@ public class Utils {
         );
     }
 
-    /* Detects and returns the end of the HTTP request/response headers. 0 is returned if not found. */
-    public static int getEndOfHTTPHeaders(byte[] buf) {
-        for(int i = 0; i <= (buf.length - 4); i++) {
-            if((buf[i] == '\r') && (buf[i+1] == '\n') && (buf[i+2] == '\r') && (buf[i+3] == '\n'))
-                return i+4;
+    /* Detects and returns the end of the HTTP request/response headers (\r\n\r\n) in buf[start:end].
+     * 0 is returned if not found.
+     * The search can be resumed when more data is available, by passing a start equal to the
+     * previous end minus 3, to handle a terminator split across the reads.
+     *
+     * This uses a Horspool-like skip search: only the last byte of the current window is checked
+     * and, unless it is a \r or \n, the window is advanced by 4 bytes. On text, this reads about
+     * one byte every four. */
+    public static int getEndOfHTTPHeaders(byte[] buf, int start, int end) {
+        int i = Math.max(start, 0);
+        end = Math.min(end, buf.length);
+
+        while(i <= end - 4) {
+            byte last = buf[i + 3];
+
+            if(last == '\n') {
+                if((buf[i + 2] == '\r') && (buf[i + 1] == '\n') && (buf[i] == '\r'))
+                    return i + 4;
+                i += 2;
+            } else if(last == '\r')
+                i += 1;
+            else
+                i += 4;
         }
+
         return 0;
     }
 
+    public static int getEndOfHTTPHeaders(byte[] buf) {
+        return getEndOfHTTPHeaders(buf, 0, buf.length);
+    }
+
     public static String genRandomString(int length) {
         String charset = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
         StringBuilder sb = new StringBuilder(length);
@@ -1143,6 +1190,124 @@ public class Utils {
     }
 
     public static boolean isPrintable(byte c) {
-        return ((c >= 32) && (c <= 126)) || (c == '\r') || (c == '\n') || (c == '\t');
+        return PRINTABLE_BYTES[c & 0xFF];
+    }
+
+    /* Returns the offset of the first non-printable byte (see isPrintable) in buf[start:end], or
+     * end if all the bytes are printable. The scan can be resumed from the returned offset + 1. */
+    public static int findNonPrintable(byte[] buf, int start, int end) {
+        end = Math.min(end, buf.length);
+
+        for(int i = Math.max(start, 0); i < end; i++) {
+            if(!PRINTABLE_BYTES[buf[i] & 0xFF])
+                return i;
+        }
+
+        return end;
+    }
+
+    public static boolean isPrintable(byte[] buf, int start, int end) {
+        return findNonPrintable(buf, start, end) >= Math.min(end, buf.length);
+    }
+
+    /* Composes the BPF used by pcapd in root mode, which is applied in the kernel before the packets
+     * are copied to the user space.
+     *  - protocols: comma separated list of tcp, udp, icmp. Empty to capture all the protocols
+     *  - subnets: comma separated list of IP or IP/prefix_len. Empty to capture all the hosts
+     *  - exclusions: a trusted BPF, e.g. the one from PcapDumper.getBpf
+     * Since the BPF is passed to pcapd via the command line, the user provided values are not
+     * copied as is: unknown protocols and invalid subnets are ignored. */
+    public static String buildCaptureBpf(String protocols, String subnets, String exclusions) {
+        ArrayList<String> clauses = new ArrayList<>();
+        ArrayList<String> parts = new ArrayList<>();
+
+        for(String proto: splitList(protocols)) {
+            switch(proto.toLowerCase(Locale.ROOT)) {
+                case "tcp":
+                case "udp":
+                    parts.add(proto.toLowerCase(Locale.ROOT));
+                    break;
+                case "icmp":
+                    parts.add("icmp or icmp6");
+                    break;
+            }
+        }
+        if(!parts.isEmpty())
+            clauses.add("(" + joinList(" or ", parts) + ")");
+
+        parts.clear();
+        for(String subnet: splitList(subnets)) {
+            String net = subnetToBpf(subnet);
+            if(net != null)
+                parts.add(net);
+        }
+        if(!parts.isEmpty())
+            clauses.add("(" + joinList(" or ", parts) + ")");
+
+        if((exclusions != null) && !exclusions.isEmpty())
+            clauses.add("(" + exclusions + ")");
+
+        return joinList(" and ", clauses);
+    }
+
+    private static List<String> splitList(String list) {
+        ArrayList<String> rv = new ArrayList<>();
+
+        if(list != null) {
+            for(String item: list.split(",")) {
+                item = item.trim();
+                if(!item.isEmpty())
+                    rv.add(item);
+            }
+        }
+
+        return rv;
+    }
+
+    // String.join requires API 26
+    private static String joinList(String sep, List<String> items) {
+        StringBuilder sb = new StringBuilder();
+
+        for(String item: items) {
+            if(sb.length() > 0)
+                sb.append(sep);
+            sb.append(item);
+        }
+
+        return sb.toString();
+    }
+
+    // Returns the BPF primitive matching the IP/prefix_len subnet, or null if it's not valid
+    private static String subnetToBpf(String subnet) {
+        int slash = subnet.indexOf('/');
+        String ip = (slash < 0) ? subnet : subnet.substring(0, slash);
+        int prefix = -1;
+
+        // only accept literals, to avoid DNS lookups in InetAddress.getByName
+        if(!IPV4_LITERAL.matcher(ip).matches() && !IPV6_LITERAL.matcher(ip).matches())
+            return null;
+
+        try {
+            if(slash >= 0)
+                prefix = Integer.parseInt(subnet.substring(slash + 1));
+
+            byte[] addr = InetAddress.getByName(ip).getAddress();
+            int max_prefix = addr.length * 8;
+
+            if((slash < 0) || (prefix == max_prefix))
+                return "host " + InetAddress.getByAddress(addr).getHostAddress();
+            if((prefix < 0) || (prefix > max_prefix))
+                return null;
+
+            // libpcap rejects networks with the host bits set
+            for(int i = 0; i < addr.length; i++) {
+                int bits = Math.min(Math.max(prefix - i * 8, 0), 8);
+                addr[i] &= (byte) (0xFF00 >> bits);
+            }
+
+            return "net " + InetAddress.getByAddress(addr).getHostAddress() + "/" + prefix;
+        } catch (NumberFormatException | UnknownHostException e) {
+            return null;
+        }
     }
 }
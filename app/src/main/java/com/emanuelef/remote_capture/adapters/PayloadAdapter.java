@@ -21,7 +21,10 @@ package com.emanuelef.remote_capture.adapters;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -32,29 +35,32 @@ import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.emanuelef.remote_capture.CaptureService;
-import com.emanuelef.remote_capture.HTTPReassembly;
 import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.Utils;
 import com.emanuelef.remote_capture.model.ConnectionDescriptor;
 import com.emanuelef.remote_capture.model.PayloadChunk;
 import com.emanuelef.remote_capture.model.PayloadChunk.ChunkType;
-import com.emanuelef.remote_capture.model.Prefs;
 
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /* An adapter to show PayloadChunk items.
  * Each item is wrapped into an AdapterChunk. An item can either be collapsed or expanded.
- * Since the text of a chunk can be very long (hundreds of KB) and rendering it would freeze the UI,
- * it is split into pages of VISUAL_PAGE_SIZE. */
-public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadViewHolder> implements HTTPReassembly.ReassemblyListener {
+ * Since the text of a chunk can be very long (tens of MB) and rendering it would freeze the UI,
+ * it is split into pages of VISUAL_PAGE_SIZE. The pages are computed on the payload bytes, and
+ * each page text is only rendered when the page is bound, on a worker thread. The rendered pages
+ * are kept in a LRU cache, so memory usage is bounded regardless of the payload size. */
+public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadViewHolder> {
     private static final String TAG = "PayloadAdapter";
     public static final int COLLAPSE_CHUNK_SIZE = 1500;
     public static final int VISUAL_PAGE_SIZE = 4020; // must be a multiple of 67 to avoid splitting the hexdump
+    private static final int HEXDUMP_PAGE_BYTES = (VISUAL_PAGE_SIZE / 67) * 16;
+    private static final int MAX_CACHED_CHARS = 1024 * 1024;
     private final LayoutInflater mLayoutInflater;
     private final ConnectionDescriptor mConn;
     private final Context mContext;
@@ -62,9 +68,15 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
     private int mHandledChunks;
     private AdapterChunk mUnrepliedHttpReq = null;
     private final ArrayList<AdapterChunk> mChunks = new ArrayList<>();
-    private final HTTPReassembly mHttpReq;
-    private final HTTPReassembly mHttpRes;
     private boolean mShowAsPrintable;
+    private ExecutorService mRenderExecutor; // only available while attached to the RecyclerView
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Long, String> mRenderedPages = new LruCache<Long, String>(MAX_CACHED_CHARS) {
+        @Override
+        protected int sizeOf(Long key, String text) {
+            return text.length();
+        }
+    };
 
     public PayloadAdapter(Context context, ConnectionDescriptor conn, ChunkType mode) {
         mLayoutInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
@@ -72,19 +84,11 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
         mContext = context;
         mMode = mode;
 
-        // Note: in minimal mode, only the first chunk is captured, so don't reassemble them
-        boolean reassemble = (CaptureService.getCurPayloadMode() == Prefs.PayloadMode.FULL);
-
-        // each direction must have its separate reassembly
-        mHttpReq = new HTTPReassembly(reassemble, this);
-        mHttpRes = new HTTPReassembly(reassemble, this);
-
         handleChunksAdded(mConn.getNumPayloadChunks());
     }
 
     private class AdapterChunk {
         private final PayloadChunk mChunk;
-        private String mTheText;
         private boolean mIsExpanded;
         private int mNumPages = 1;
         public final int incrId;
@@ -110,76 +114,94 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
             return mChunk;
         }
 
-        private void makeText() {
-            int dump_len = mIsExpanded ? mChunk.payload.length : Math.min(mChunk.payload.length, COLLAPSE_CHUNK_SIZE);
+        private int getDumpLength() {
+            return mIsExpanded ? mChunk.payload.length : Math.min(mChunk.payload.length, COLLAPSE_CHUNK_SIZE);
+        }
 
-            if(!mShowAsPrintable)
-                mTheText = Utils.hexdump(mChunk.payload, 0, dump_len);
-            else
-                mTheText = new String(mChunk.payload, 0, dump_len, StandardCharsets.UTF_8);
+        // The pages size, in bytes of payload
+        private int getPageBytes() {
+            return mShowAsPrintable ? VISUAL_PAGE_SIZE : HEXDUMP_PAGE_BYTES;
         }
 
         void expand() {
             mIsExpanded = true;
-            makeText();
 
-            // round up div
-            mNumPages = (mTheText.length() + VISUAL_PAGE_SIZE - 1) / VISUAL_PAGE_SIZE;
+            // round up div. The pages are computed on the payload bytes, so no text is generated here
+            mNumPages = (mChunk.payload.length + getPageBytes() - 1) / getPageBytes();
         }
 
         // collapses the item and returns the old number of pages
         void collapse() {
             mIsExpanded = false;
-            mTheText = null;
-
             mNumPages = 1;
         }
 
-        String getText(int start, int end) {
-            if(mTheText == null)
-                makeText();
+        // Returns the payload offset of the given page start
+        private int getPageOffset(int pageIdx) {
+            int offset = Math.min(pageIdx * getPageBytes(), getDumpLength());
+
+            // In printable mode, avoid splitting UTF-8 multi-byte sequences (max 3 continuation bytes)
+            if(mShowAsPrintable) {
+                byte[] payload = mChunk.payload;
+                int min_offset = Math.max(offset - 3, 0);
 
-            if((start == 0) && (end >= mTheText.length() - 1)) {
-                return mTheText;
+                while((offset > min_offset) && (offset < payload.length) && ((payload[offset] & 0xC0) == 0x80))
+                    offset--;
             }
 
-            return mTheText.substring(start, end);
+            return offset;
         }
 
         Page getPage(int pageIdx) {
             assert(pageIdx < mNumPages);
 
-            if(mTheText == null)
-                makeText();
-
             if(!mIsExpanded)
-                return new Page(this, 0, mTheText.length() - 1, true);
+                return new Page(this, 0, 0, getDumpLength(), true);
             else
-                return new Page(this, pageIdx * VISUAL_PAGE_SIZE,
-                        Math.min(((pageIdx + 1) * VISUAL_PAGE_SIZE) - 1, mTheText.length() - 1),
-                        pageIdx == (mNumPages - 1));
+                return new Page(this, pageIdx, getPageOffset(pageIdx),
+                        getPageOffset(pageIdx + 1), pageIdx == (mNumPages - 1));
         }
     }
 
-    private static class Page {
-        AdapterChunk adaptChunk;
-        int textStart;
-        int textEnd;
-        boolean isLast;
+    private class Page {
+        final AdapterChunk adaptChunk;
+        final int pageIdx;
+        final int payloadStart;
+        final int payloadEnd;
+        final boolean isLast;
 
-        Page(AdapterChunk _adaptChunk, int _textStart, int _textEnd, boolean _isLast) {
+        Page(AdapterChunk _adaptChunk, int _pageIdx, int _payloadStart, int _payloadEnd, boolean _isLast) {
             adaptChunk = _adaptChunk;
-            textStart = _textStart;
-            textEnd = _textEnd;
+            pageIdx = _pageIdx;
+            payloadStart = _payloadStart;
+            payloadEnd = _payloadEnd;
             isLast = _isLast;
         }
 
         boolean isFirst() {
-            return (textStart == 0);
+            return (pageIdx == 0);
+        }
+
+        // Uniquely identifies the rendered text of this page
+        long getKey() {
+            return ((long)adaptChunk.incrId << 32) | ((long)pageIdx << 2) |
+                    (adaptChunk.isExpanded() ? 0x2 : 0) | (mShowAsPrintable ? 0x1 : 0);
         }
 
-        String getText() {
-            return adaptChunk.getText(textStart, textEnd);
+        // NOTE: can be called from the render thread, so it must not access mutable adapter state
+        String render(boolean asPrintable) {
+            byte[] payload = adaptChunk.getPayloadChunk().payload;
+            String text;
+
+            if(!asPrintable)
+                text = Utils.hexdump(payload, payloadStart, payloadEnd - payloadStart);
+            else
+                text = new String(payload, payloadStart, payloadEnd - payloadStart, StandardCharsets.UTF_8);
+
+            // Each page is displayed in its own view, so the trailing newline would add a blank line
+            if(text.endsWith("\n"))
+                text = text.substring(0, text.length() - 1);
+            return text;
         }
     }
 
@@ -189,6 +211,7 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
         TextView dump;
         TextView contentType;
         ImageView expandButton;
+        volatile long pageKey = -1; // the key of the bound Page, read by the render thread
 
         public PayloadViewHolder(View view) {
             super(view);
@@ -259,7 +282,16 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
         } else
             holder.expandButton.setVisibility(View.GONE);
 
-        holder.dump.setText(page.getText());
+        holder.pageKey = page.getKey();
+        String text = mRenderedPages.get(holder.pageKey);
+
+        if(text != null)
+            holder.dump.setText(text);
+        else {
+            // The holder may be recycled, don't show the text of another page until rendered
+            holder.dump.setText(R.string.loading);
+            renderPage(page, holder);
+        }
 
         if(chunk.is_sent) {
             holder.dump.setBackgroundResource(R.color.sentPayloadBg);
@@ -270,6 +302,49 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
         }
     }
 
+    private void renderPage(Page page, PayloadViewHolder holder) {
+        final long key = page.getKey();
+        final boolean asPrintable = mShowAsPrintable;
+
+        if(mRenderExecutor == null)
+            return;
+
+        mRenderExecutor.execute(() -> {
+            // Skip the pages scrolled away before being rendered
+            if(holder.pageKey != key)
+                return;
+
+            String text = page.render(asPrintable);
+
+            mHandler.post(() -> {
+                mRenderedPages.put(key, text);
+
+                // The holder may have been bound to another page in the meanwhile
+                if(holder.pageKey == key)
+                    holder.dump.setText(text);
+            });
+        });
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+
+        if(mRenderExecutor == null)
+            mRenderExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+
+        if(mRenderExecutor != null) {
+            mRenderExecutor.shutdownNow();
+            mRenderExecutor = null;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
     @Override
     public int getItemCount() {
         int count = 0;
@@ -313,7 +388,8 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
             // Chunk pagination depends on the displayed data length, collapsing everything is simpler
             // than handling individual changes
             for(AdapterChunk chunk: mChunks)
-                chunk.collapse(); // resets the chunk text
+                chunk.collapse();
+            mRenderedPages.evictAll();
             notifyDataSetChanged();
         }
     }
@@ -333,21 +409,22 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
         return count;
     }
 
+    /* In HTTP mode, the chunks are taken from the ConnectionDescriptor HTTP reassembly cache, which
+     * must be populated via ConnectionDescriptor.reassembleHttp before calling this. */
     public void handleChunksAdded(int tot_chunks) {
-        for(int i = mHandledChunks; i<tot_chunks; i++) {
-            PayloadChunk chunk = mConn.getPayloadChunk(i);
-
-            // Exclude unrelated chunks
-            if((mMode != ChunkType.RAW) && (mMode != chunk.type))
-                continue;
-
-            if(mMode == ChunkType.HTTP) {
-                // will call onChunkReassembled
-                if(chunk.is_sent)
-                    mHttpReq.handleChunk(chunk);
-                else
-                    mHttpRes.handleChunk(chunk);
-            } else {
+        if(mMode == ChunkType.HTTP) {
+            tot_chunks = mConn.getNumHttpChunks();
+
+            for(int i = mHandledChunks; i<tot_chunks; i++)
+                onChunkReassembled(mConn.getHttpChunk(i));
+        } else {
+            for(int i = mHandledChunks; i<tot_chunks; i++) {
+                PayloadChunk chunk = mConn.getPayloadChunk(i);
+
+                // Exclude unrelated chunks
+                if((mMode != ChunkType.RAW) && (mMode != chunk.type))
+                    continue;
+
                 int insert_pos = getItemCount();
                 mChunks.add(new AdapterChunk(chunk, mChunks.size()));
                 notifyItemInserted(insert_pos);
@@ -372,8 +449,7 @@ public class PayloadAdapter extends RecyclerView.Adapter<PayloadAdapter.PayloadV
         mUnrepliedHttpReq = null;
     }
 
-    @Override
-    public void onChunkReassembled(PayloadChunk chunk) {
+    private void onChunkReassembled(PayloadChunk chunk) {
         AdapterChunk adapterChunk = new AdapterChunk(chunk, mChunks.size());
         int adapterPos = getItemCount();
         int insertPos = mChunks.size();
@@ -21,6 +21,8 @@ package com.emanuelef.remote_capture.fragments;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -41,10 +43,16 @@ import com.emanuelef.remote_capture.model.ConnectionDescriptor;
 import com.emanuelef.remote_capture.model.PayloadChunk;
 import com.emanuelef.remote_capture.views.EmptyRecyclerView;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class ConnectionPayload extends Fragment implements ConnectionDetailsActivity.ConnUpdateListener {
     private ConnectionDetailsActivity mActivity;
     private ConnectionDescriptor mConn;
     private PayloadAdapter mAdapter;
+    private PayloadChunk.ChunkType mMode;
+    private ExecutorService mExecutor;
+    private Handler mHandler;
     private TextView mTruncatedWarning;
     private int mCurChunks;
     private Menu mMenu;
@@ -84,11 +92,10 @@ public class ConnectionPayload extends Fragment implements ConnectionDetailsActi
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         Bundle args = getArguments();
-        PayloadChunk.ChunkType mode;
         if((args != null) && args.containsKey("mode"))
-            mode = (PayloadChunk.ChunkType) args.getSerializable("mode");
+            mMode = (PayloadChunk.ChunkType) args.getSerializable("mode");
         else
-            mode = PayloadChunk.ChunkType.RAW;
+            mMode = PayloadChunk.ChunkType.RAW;
 
         EmptyRecyclerView recyclerView = view.findViewById(R.id.payload);
         EmptyRecyclerView.MyLinearLayoutManager layoutMan = new EmptyRecyclerView.MyLinearLayoutManager(requireContext());
@@ -99,10 +106,39 @@ public class ConnectionPayload extends Fragment implements ConnectionDetailsActi
         if(mConn.isPayloadTruncated())
             mTruncatedWarning.setVisibility(View.VISIBLE);
 
-        mAdapter = new PayloadAdapter(requireContext(), mConn, mode);
+        mAdapter = new PayloadAdapter(requireContext(), mConn, mMode);
         mCurChunks = mConn.getNumPayloadChunks();
         recyclerView.setAdapter(mAdapter);
         mJustCreated = true;
+
+        if(mMode == PayloadChunk.ChunkType.HTTP) {
+            // HTTP reassembly and decoding can take a while on large responses, run it in background
+            mHandler = new Handler(Looper.getMainLooper());
+            mExecutor = Executors.newSingleThreadExecutor();
+            reassembleHttp();
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+
+        if(mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void reassembleHttp() {
+        mExecutor.execute(() -> {
+            // the result is cached into the ConnectionDescriptor
+            mConn.reassembleHttp();
+
+            mHandler.post(() -> {
+                if(mExecutor != null)
+                    mAdapter.handleChunksAdded(mCurChunks);
+            });
+        });
     }
 
     @Override
@@ -147,12 +183,7 @@ public class ConnectionPayload extends Fragment implements ConnectionDetailsActi
 
         // guess based on the actual data
         int maxLen = Math.min(firstChunk.payload.length, 16);
-        for(int i=0; i<maxLen; i++) {
-            if(!Utils.isPrintable(firstChunk.payload[i]))
-                return false;
-        }
-
-        return true;
+        return Utils.isPrintable(firstChunk.payload, 0, maxLen);
     }
 
     private void refreshDisplayMode() {
@@ -180,8 +211,12 @@ public class ConnectionPayload extends Fragment implements ConnectionDetailsActi
         }
 
         if(mConn.getNumPayloadChunks() > mCurChunks) {
-            mAdapter.handleChunksAdded(mConn.getNumPayloadChunks());
             mCurChunks = mConn.getNumPayloadChunks();
+
+            if(mExecutor != null)
+                reassembleHttp();
+            else
+                mAdapter.handleChunksAdded(mCurChunks);
         }
 
         if(mConn.isPayloadTruncated() && (mTruncatedWarning != null))
@@ -75,12 +75,15 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ConnectionsFragment extends Fragment implements ConnectionsListener, SearchView.OnQueryTextListener {
     private static final String TAG = "ConnectionsFragment";
     public static final String FILTER_EXTRA = "filter";
     public static final String QUERY_EXTRA = "query";
     private Handler mHandler;
+    private ExecutorService mHttpExecutor;
     private ConnectionsAdapter mAdapter;
     private FloatingActionButton mFabDown;
     private EmptyRecyclerView mRecyclerView;
@@ -170,6 +173,7 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         mHandler = new Handler(Looper.getMainLooper());
+        mHttpExecutor = Executors.newSingleThreadExecutor();
         mFabDown = view.findViewById(R.id.fabDown);
         mRecyclerView = view.findViewById(R.id.connections_view);
         mOldConnectionsText = view.findViewById(R.id.old_connections_notice);
@@ -284,6 +288,8 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
     public void onDestroyView() {
         super.onDestroyView();
 
+        mHttpExecutor.shutdownNow();
+
         if(mReceiver != null) {
             LocalBroadcastManager.getInstance(requireContext())
                     .unregisterReceiver(mReceiver);
@@ -398,6 +404,19 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
             menu.findItem(R.id.whitelist_menu).setVisible(false);
     }
 
+    // The HTTP reassembly may take a while on large responses, run it in background
+    private void copyHttpToClipboard(ConnectionDescriptor conn, boolean request) {
+        mHttpExecutor.execute(() -> {
+            String contents = request ? conn.getHttpRequest() : conn.getHttpResponse();
+
+            mHandler.post(() -> {
+                Context ctx = getContext();
+                if((ctx != null) && (contents != null))
+                    Utils.copyToClipboard(ctx, contents);
+            });
+        });
+    }
+
     @Override
     public boolean onContextItemSelected(@NonNull MenuItem item) {
         Context ctx = requireContext();
@@ -407,6 +426,8 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
         boolean mask_changed = false;
         boolean whitelist_changed = false;
         boolean blocklist_changed = false;
+        RuleType blocked_type = null;
+        String blocked_value = null;
 
         if(conn == null)
             return super.onContextItemSelected(item);
@@ -451,12 +472,18 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
             whitelist_changed = true;
         } else if(id == R.id.block_app) {
             blocklist.addApp(conn.uid);
+            blocked_type = RuleType.APP;
+            blocked_value = String.valueOf(conn.uid);
             blocklist_changed = true;
         } else if(id == R.id.block_ip) {
             blocklist.addIp(conn.dst_ip);
+            blocked_type = RuleType.IP;
+            blocked_value = conn.dst_ip;
             blocklist_changed = true;
         } else if(id == R.id.block_host) {
             blocklist.addHost(conn.info);
+            blocked_type = RuleType.HOST;
+            blocked_value = Utils.cleanDomain(conn.info);
             blocklist_changed = true;
         } else if(id == R.id.open_app_details) {
             Intent intent = new Intent(requireContext(), AppDetailsActivity.class);
@@ -469,9 +496,9 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
         else if(id == R.id.copy_url)
             Utils.copyToClipboard(ctx, conn.url);
         else if(id == R.id.copy_http_request)
-            Utils.copyToClipboard(ctx, conn.getHttpRequest());
+            copyHttpToClipboard(conn, true);
         else if(id == R.id.copy_http_response)
-            Utils.copyToClipboard(ctx, conn.getHttpResponse());
+            copyHttpToClipboard(conn, false);
         else
             return super.onContextItemSelected(item);
 
@@ -485,7 +512,7 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
         } else if(blocklist_changed) {
             blocklist.save();
             if(CaptureService.isServiceActive())
-                CaptureService.requireInstance().reloadBlocklist();
+                CaptureService.requireInstance().updateBlocklistRule(blocked_type, blocked_value, true);
         }
 
         return true;
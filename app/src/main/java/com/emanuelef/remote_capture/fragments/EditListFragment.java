@@ -114,7 +114,9 @@ public class EditListFragment extends Fragment {
                 int id = menuItem.getItemId();
 
                 if(id == R.id.delete_entry) {
-                    if(mSelected.size() >= mAdapter.getCount()) {
+                    boolean removedAll = (mSelected.size() >= mAdapter.getCount());
+
+                    if(removedAll) {
                         mAdapter.clear();
                         mList.clear();
                         mList.save();
@@ -127,8 +129,17 @@ public class EditListFragment extends Fragment {
                     if(mListInfo.getType() == ListInfo.Type.MALWARE_WHITELIST)
                         CaptureService.reloadMalwareWhitelist();
                     else if(mListInfo.getType() == ListInfo.Type.BLOCKLIST) {
-                        if(CaptureService.isServiceActive())
-                            CaptureService.requireInstance().reloadBlocklist();
+                        if(CaptureService.isServiceActive()) {
+                            CaptureService service = CaptureService.requireInstance();
+
+                            if(removedAll)
+                                service.reloadBlocklist();
+                            else {
+                                // Only apply the removed rules
+                                for(MatchList.Rule item : mSelected)
+                                    service.updateBlocklistRule(item.getType(), item.getValue().toString(), false);
+                            }
+                        }
                     }
 
                     mode.finish();
@@ -33,6 +33,8 @@ public class BlacklistDescriptor {
     long mLastUpdate = 0;
     boolean mUpToDate = false;
     boolean mUpdating = false;
+    String mEtag;           // HTTP validators of the last download, for conditional requests
+    String mLastModified;
     public boolean loaded = false;
     public int num_rules = 0;
 
@@ -76,6 +78,19 @@ public class BlacklistDescriptor {
         return mLastUpdate;
     }
 
+    public void setHttpValidators(String etag, String last_modified) {
+        mEtag = etag;
+        mLastModified = last_modified;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
     public boolean isUpToDate() {
         return mUpToDate;
     }
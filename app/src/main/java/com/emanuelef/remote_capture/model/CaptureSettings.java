@@ -25,6 +25,10 @@ public class CaptureSettings implements Serializable {
     public int snaplen = 0;
     public int max_pkts_per_flow = 0;
     public int max_dump_size = 0;
+    public int host_lru_size = 0;
+    public String capture_protocols = "";
+    public String capture_subnets = "";
+    public int dpi_workers = 0;
 
     public CaptureSettings(SharedPreferences prefs) {
         dump_mode = Prefs.getDumpMode(prefs);
@@ -61,6 +65,10 @@ public class CaptureSettings implements Serializable {
         snaplen = getInt(intent, Prefs.PREF_SNAPLEN, 0);
         max_pkts_per_flow = getInt(intent, Prefs.PREF_MAX_PKTS_PER_FLOW, 0);
         max_dump_size = getInt(intent, Prefs.PREF_MAX_DUMP_SIZE, 0);
+        host_lru_size = getInt(intent, Prefs.PREF_HOST_LRU_SIZE, 0);
+        capture_protocols = getString(intent, Prefs.PREF_CAPTURE_PROTOCOLS, "");
+        capture_subnets = getString(intent, Prefs.PREF_CAPTURE_SUBNETS, "");
+        dpi_workers = getInt(intent, Prefs.PREF_DPI_WORKERS, 0);
         tls_decryption = getBool(intent, Prefs.PREF_TLS_DECRYPTION_KEY, false);
         full_payload = false;
     }
@@ -27,12 +27,12 @@ import com.emanuelef.remote_capture.AppsResolver;
 import com.emanuelef.remote_capture.CaptureService;
 import com.emanuelef.remote_capture.HTTPReassembly;
 import com.emanuelef.remote_capture.R;
+import com.emanuelef.remote_capture.Utils;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicReference;
 
 /* Holds the information about a single connection.
  * Equivalent of zdtun_conn_t from zdtun and pd_conn_t from pcapdroid.c .
@@ -94,7 +94,7 @@ public class ConnectionDescriptor {
     public String url;
     public String l7proto;
     private ArrayList<PayloadChunk> payload_chunks;
-    public final int uid;
+    public volatile int uid; // may change from UID_UNKNOWN once resolved, see setUid
     public final int ifidx;
     public final int incr_id;
     private final boolean mitm_decrypt; // true if the connection is under mitm for TLS decryption
@@ -105,7 +105,7 @@ public class ConnectionDescriptor {
     public boolean is_blocked;
     private boolean payload_truncated;
     private boolean encrypted_l7;
-    public boolean encrypted_payload;
+    public volatile boolean encrypted_payload;
     public String decryption_error;
     public String country;
     public Geomodel.ASN asn;
@@ -113,6 +113,17 @@ public class ConnectionDescriptor {
     /* Internal */
     public boolean alerted;
 
+    /* HTTP reassembly cache. The reassembled chunks are computed lazily and incrementally, only
+     * processing the payload chunks added since the last reassembleHttp call. http_chunks and
+     * http_reset are guarded by this, along with payload_chunks. The reassembly state is guarded
+     * by http_lock, so that the decoding does not block the readers of the chunks. */
+    private final Object http_lock = new Object();
+    private ArrayList<PayloadChunk> http_chunks = new ArrayList<>();
+    private boolean http_reset;
+    private HTTPReassembly http_req_reassembly;
+    private HTTPReassembly http_res_reassembly;
+    private int http_processed_chunks;
+
     public ConnectionDescriptor(int _incr_id, int _ipver, int _ipproto, String _src_ip, String _dst_ip,
                                 int _src_port, int _dst_port, int _local_port, int _uid, int _ifidx,
                                 boolean _mitm_decrypt, long when) {
@@ -133,6 +144,12 @@ public class ConnectionDescriptor {
         mitm_decrypt = _mitm_decrypt;
     }
 
+    // Sets the uid resolved asynchronously (see ConnectionUpdate.uid) and the state derived from it
+    public synchronized void setUid(int _uid, AppDescriptor app) {
+        uid = _uid;
+        encrypted_payload = (app != null) && Utils.hasEncryptedPayload(app, this);
+    }
+
     public void processUpdate(ConnectionUpdate update) {
         // The "update_type" is used to limit the amount of data sent via the JNI
         if((update.update_type & ConnectionUpdate.UPDATE_STATS) != 0) {
@@ -166,7 +183,14 @@ public class ConnectionDescriptor {
             // Payload for decryptable connections should be received via the MitmReceiver
             assert(isNotDecryptable());
 
-            payload_chunks = update.payload_chunks;
+            // The native side always sends the same (growing) list, a different list invalidates the cache.
+            // Only lock on change, to avoid waiting for an in-progress reassembly
+            if(update.payload_chunks != payload_chunks) {
+                synchronized(this) {
+                    resetHttpReassembly();
+                    payload_chunks = update.payload_chunks;
+                }
+            }
             payload_truncated = update.payload_truncated;
         }
     }
@@ -282,13 +306,13 @@ public class ConnectionDescriptor {
 
     public int getNumPayloadChunks() { return (payload_chunks == null) ? 0 : payload_chunks.size(); }
 
-    public PayloadChunk getPayloadChunk(int idx) {
+    public synchronized PayloadChunk getPayloadChunk(int idx) {
         if(getNumPayloadChunks() <= idx)
             return null;
         return payload_chunks.get(idx);
     }
 
-    public void addPayloadChunk(PayloadChunk chunk) {
+    public synchronized void addPayloadChunk(PayloadChunk chunk) {
         if(payload_chunks == null)
             payload_chunks = new ArrayList<>();
         payload_chunks.add(chunk);
@@ -296,10 +320,12 @@ public class ConnectionDescriptor {
     }
 
     private boolean hasHttp(boolean is_sent) {
-        if(getNumPayloadChunks() == 0)
-            return false;
+        int num_chunks = getNumPayloadChunks();
+
+        // Only the first chunk of the given direction is checked
+        for(int i = 0; i < num_chunks; i++) {
+            PayloadChunk chunk = payload_chunks.get(i);
 
-        for(PayloadChunk chunk: payload_chunks) {
             if(chunk.is_sent == is_sent)
                 return (chunk.type == PayloadChunk.ChunkType.HTTP);
         }
@@ -309,27 +335,93 @@ public class ConnectionDescriptor {
     public boolean hasHttpRequest() { return hasHttp(true); }
     public boolean hasHttpResponse() { return hasHttp(false); }
 
-    private String getHttp(boolean is_sent) {
-        if(getNumPayloadChunks() == 0)
-            return "";
+    // The reassembly state is reset on the next reassembleHttp, as it may be in use
+    private synchronized void resetHttpReassembly() {
+        http_chunks = new ArrayList<>();
+        http_reset = true;
+    }
+
+    private HTTPReassembly newHttpReassembly(boolean reassemble, ArrayList<PayloadChunk> out) {
+        return new HTTPReassembly(reassemble, chunk -> {
+            synchronized(this) {
+                // the list is replaced on reset, so late chunks are discarded
+                out.add(chunk);
+            }
+        });
+    }
 
-        // Need to wrap the String to set it from the lambda
-        final AtomicReference<String> rv = new AtomicReference<>();
+    // Feeds the HTTP payload chunks in the [start, end) range to the reassemblies
+    private static void feedHttpChunks(ArrayList<PayloadChunk> chunks, int start, int end,
+                                       HTTPReassembly req, HTTPReassembly res) {
+        for(int i = start; i < end; i++) {
+            PayloadChunk chunk = chunks.get(i);
 
-        HTTPReassembly reassembly = new HTTPReassembly(CaptureService.getCurPayloadMode() == Prefs.PayloadMode.FULL, chunk ->
-                rv.set(new String(chunk.payload, StandardCharsets.UTF_8)));
+            if(chunk.type != PayloadChunk.ChunkType.HTTP)
+                continue;
 
-        // Possibly reassemble/decode the request
-        for(PayloadChunk chunk: payload_chunks) {
-            if(chunk.is_sent == is_sent)
-                reassembly.handleChunk(chunk);
+            if(chunk.is_sent)
+                req.handleChunk(chunk);
+            else
+                res.handleChunk(chunk);
+        }
+    }
+
+    /* Reassembles/decodes the HTTP payload chunks added since the last call. This can be expensive
+     * on large compressed responses, so it should be called from a worker thread. The decoding is
+     * performed without holding the connection lock, so the UI can keep reading the chunks.
+     * Returns the total number of reassembled chunks. */
+    public int reassembleHttp() {
+        synchronized(http_lock) {
+            ArrayList<PayloadChunk> new_chunks;
+
+            synchronized(this) {
+                int num_chunks = getNumPayloadChunks();
+
+                if(http_reset || (http_req_reassembly == null)) {
+                    // Note: in minimal mode, only the first chunk is captured, so don't reassemble them
+                    boolean reassemble = (CaptureService.getCurPayloadMode() == Prefs.PayloadMode.FULL);
+
+                    // each direction must have its separate reassembly
+                    http_req_reassembly = newHttpReassembly(reassemble, http_chunks);
+                    http_res_reassembly = newHttpReassembly(reassemble, http_chunks);
+                    http_processed_chunks = 0;
+                    http_reset = false;
+                }
+
+                if(http_processed_chunks >= num_chunks)
+                    return http_chunks.size();
+
+                new_chunks = new ArrayList<>(payload_chunks.subList(http_processed_chunks, num_chunks));
+                http_processed_chunks = num_chunks;
+            }
+
+            feedHttpChunks(new_chunks, 0, new_chunks.size(), http_req_reassembly, http_res_reassembly);
+            return getNumHttpChunks();
+        }
+    }
+
+    // Returns the number of HTTP chunks reassembled so far, without processing new payload chunks
+    public synchronized int getNumHttpChunks() { return http_chunks.size(); }
 
-            // Stop at the first reassembly/chunk
-            if(rv.get() != null)
-                break;
+    public synchronized PayloadChunk getHttpChunk(int idx) {
+        if(http_chunks.size() <= idx)
+            return null;
+        return http_chunks.get(idx);
+    }
+
+    /* Returns the first reassembled HTTP chunk of the given direction, or null if there is none.
+     * This may be expensive (see reassembleHttp), so it should be called from a worker thread. */
+    private String getHttp(boolean is_sent) {
+        reassembleHttp();
+
+        synchronized(this) {
+            for(PayloadChunk chunk: http_chunks) {
+                if(chunk.is_sent == is_sent)
+                    return new String(chunk.payload, StandardCharsets.UTF_8);
+            }
         }
 
-        return rv.get();
+        return null;
     }
     public String getHttpRequest() { return getHttp(true); }
     public String getHttpResponse() { return getHttp(false); }
@@ -21,6 +21,8 @@ package com.emanuelef.remote_capture.model;
 
 import android.util.Log;
 
+import com.emanuelef.remote_capture.Utils;
+
 import java.util.ArrayList;
 
 public class ConnectionUpdate {
@@ -47,6 +49,7 @@ public class ConnectionUpdate {
     public String info;
     public String url;
     public String l7proto;
+    public int uid = Utils.UID_UNKNOWN; // only set when the uid is resolved after the connection creation
 
     /* set if update_type & UPDATE_PAYLOAD */
     public ArrayList<PayloadChunk> payload_chunks;
@@ -81,6 +84,11 @@ public class ConnectionUpdate {
         info_flags = flags;
     }
 
+    public void setInfo(String _info, String _url, String _l7proto, int flags, int _uid) {
+        setInfo(_info, _url, _l7proto, flags);
+        uid = _uid;
+    }
+
     public void setPayload(ArrayList<PayloadChunk> _chunks, boolean _payload_truncated) {
         update_type |= UPDATE_PAYLOAD;
 
@@ -44,6 +44,8 @@ import com.google.gson.JsonSerializer;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -56,14 +58,18 @@ public class MatchList {
     private final String mPrefName;
     private final ArrayList<Rule> mRules = new ArrayList<>();
     private final ArrayMap<String, Rule> mMatches = new ArrayMap<>();
+    private volatile Matcher mMatcher; // compiled from mRules on demand, null if the rules changed
 
+    // NOTE: sync with matchlist_rule_t
     public enum RuleType {
         APP,
         IP,
         HOST,
         ROOT_DOMAIN,
         PROTOCOL,
-        COUNTRY
+        COUNTRY,
+        SUBNET,         // an IPv4/IPv6 network in CIDR notation, e.g. 10.0.0.0/8
+        WILDCARD_HOST   // a domain and all its subdomains, at any depth
     }
 
     public class Rule {
@@ -99,10 +105,381 @@ public class MatchList {
         }
     }
 
+    /* Matches a domain against a set of domains, starting from the domain end. Each node
+     * corresponds to a character of the reversed domains, so that the domains sharing a suffix
+     * (e.g. the same TLD) share the nodes. Lookups do not allocate. */
+    private static class DomainTrie {
+        private static class Node {
+            char[] keys = new char[0];
+            Node[] children = new Node[0];
+            boolean isHost;         // a HOST rule ends here
+            boolean isRootDomain;   // a ROOT_DOMAIN rule ends here
+            boolean isWildcard;     // a WILDCARD_HOST rule ends here
+
+            Node getChild(char c) {
+                for(int i = 0; i < keys.length; i++) {
+                    if(keys[i] == c)
+                        return children[i];
+                }
+                return null;
+            }
+
+            Node addChild(char c) {
+                Node child = getChild(c);
+                if(child != null)
+                    return child;
+
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+                return child;
+            }
+        }
+
+        private final Node mRoot = new Node();
+        private boolean mHasWildcards;
+
+        Node add(String domain) {
+            Node node = mRoot;
+
+            for(int i = domain.length() - 1; i >= 0; i--)
+                node = node.addChild(domain.charAt(i));
+            return node;
+        }
+
+        void addWildcard(String domain) {
+            add(domain).isWildcard = true;
+            mHasWildcards = true;
+        }
+
+        /* Walks the domain[start:] suffixes, from the end. Returns true if the suffix starting at
+         * host_start is a HOST rule, or the suffix starting at root_start is a ROOT_DOMAIN rule,
+         * or any suffix starting at a label boundary is a WILDCARD_HOST rule. */
+        boolean matches(String domain, int host_start, int root_start) {
+            Node node = mRoot;
+            int min_start = mHasWildcards ? 0 : Math.min(host_start, root_start);
+            int i = domain.length();
+
+            while(true) {
+                if(((i == host_start) && node.isHost) || ((i == root_start) && node.isRootDomain))
+                    return true;
+
+                if(node.isWildcard && (i < domain.length()) && ((i == 0) || (domain.charAt(i - 1) == '.')))
+                    return true;
+
+                if(--i < min_start)
+                    return false;
+
+                node = node.getChild(domain.charAt(i));
+                if(node == null)
+                    return false;
+            }
+        }
+    }
+
+    /* Matches an IP address against a set of networks. This is a binary trie on the address bits,
+     * so that a lookup takes at most one step per bit of the address, regardless of the number
+     * of networks. IPv4 and IPv6 networks are kept into separate trees. */
+    private static class PrefixTree {
+        private static class Node {
+            Node zero;
+            Node one;
+            boolean isNetwork;  // a network ends here
+        }
+
+        private final Node mRoot4 = new Node();
+        private final Node mRoot6 = new Node();
+        private boolean mEmpty = true;
+
+        // Per-thread buffer for the parsed addresses, to avoid allocating on every lookup
+        private static final ThreadLocal<byte[]> sAddrBuf = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[16];
+            }
+        };
+
+        private static boolean getBit(byte[] addr, int bit) {
+            return ((addr[bit >> 3] >> (7 - (bit & 7))) & 0x1) != 0;
+        }
+
+        /* Parses a network in CIDR notation into addr, clearing the host bits. A plain IP address is
+         * considered a single host network. Returns the prefix length, or -1 if the network is not valid. */
+        static int parseNetwork(String cidr, byte[] addr) {
+            int slash = cidr.indexOf('/');
+            int len = parseIp(slash >= 0 ? cidr.substring(0, slash) : cidr, addr);
+            if(len < 0)
+                return -1;
+
+            int bits = len * 8;
+            if(slash >= 0) {
+                try {
+                    bits = Integer.parseInt(cidr.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+                if((bits < 0) || (bits > len * 8))
+                    return -1;
+            }
+
+            for(int i = bits; i < len * 8; i++)
+                addr[i >> 3] &= ~(0x80 >> (i & 7));
+            return bits;
+        }
+
+        /* Returns a key which is the same for all the notations of a network (e.g. 1.2.3.4 and
+         * 1.2.3.4/32), or null if the network is not valid. */
+        static String networkKey(String cidr) {
+            byte[] addr = new byte[16];
+            int bits = parseNetwork(cidr, addr);
+            if(bits < 0)
+                return null;
+
+            int len = (cidr.indexOf(':') < 0) ? 4 : 16;
+            return Utils.byteArrayToHex(addr, len) + "/" + bits;
+        }
+
+        /* Adds a network in CIDR notation. Returns false if the network is not valid. */
+        boolean add(String cidr) {
+            byte[] addr = new byte[16];
+            int bits = parseNetwork(cidr, addr);
+            if(bits < 0)
+                return false;
+
+            int len = (cidr.indexOf(':') < 0) ? 4 : 16;
+            Node node = (len == 4) ? mRoot4 : mRoot6;
+            for(int i = 0; i < bits; i++) {
+                if(getBit(addr, i)) {
+                    if(node.one == null)
+                        node.one = new Node();
+                    node = node.one;
+                } else {
+                    if(node.zero == null)
+                        node.zero = new Node();
+                    node = node.zero;
+                }
+            }
+
+            node.isNetwork = true;
+            mEmpty = false;
+            return true;
+        }
+
+        boolean matches(String ip) {
+            if(mEmpty || (ip == null))
+                return false;
+
+            byte[] addr = sAddrBuf.get();
+            int len = parseIp(ip, addr);
+            if(len < 0)
+                return false;
+
+            Node node = (len == 4) ? mRoot4 : mRoot6;
+            for(int i = 0; node != null; i++) {
+                if(node.isNetwork)
+                    return true;
+                if(i == len * 8)
+                    return false;
+
+                node = getBit(addr, i) ? node.one : node.zero;
+            }
+            return false;
+        }
+
+        /* Parses a numeric IPv4 or IPv6 address into addr, without performing any DNS lookup.
+         * Returns the address length in bytes (4 or 16), or -1 if the address is not valid. */
+        static int parseIp(String ip, byte[] addr) {
+            if(ip.indexOf(':') < 0)
+                return parseIpv4(ip, 0, ip.length(), addr, 0) ? 4 : -1;
+
+            int len = ip.length();
+            int gap = -1;       // the output position of "::"
+            int pos = 0;        // the output position
+            int i = 0;
+
+            if(ip.startsWith("::")) {
+                gap = 0;
+                i = 2;
+            }
+
+            while(i < len) {
+                int end = ip.indexOf(':', i);
+                if(end < 0)
+                    end = len;
+
+                if(end == i) {
+                    // "::" in the middle or at the end
+                    if((gap >= 0) || (i == 0))
+                        return -1;
+                    gap = pos;
+                    i++;
+                    continue;
+                }
+
+                if((end == len) && (ip.indexOf('.', i) > 0)) {
+                    // embedded IPv4 address, e.g. ::ffff:1.2.3.4
+                    if((pos > 12) || !parseIpv4(ip, i, len, addr, pos))
+                        return -1;
+                    pos += 4;
+                    break;
+                }
+
+                if((end - i > 4) || (pos > 14))
+                    return -1;
+
+                int val = 0;
+                for(int k = i; k < end; k++) {
+                    int d = Character.digit(ip.charAt(k), 16);
+                    if(d < 0)
+                        return -1;
+                    val = (val << 4) | d;
+                }
+                addr[pos++] = (byte) (val >> 8);
+                addr[pos++] = (byte) val;
+
+                i = end + 1;
+                if((end < len) && (i == len))
+                    return -1; // trailing single ':'
+            }
+
+            if(gap >= 0) {
+                int tail = pos - gap;
+                System.arraycopy(addr, gap, addr, 16 - tail, tail);
+                Arrays.fill(addr, gap, 16 - tail, (byte) 0);
+            } else if(pos != 16)
+                return -1;
+
+            return 16;
+        }
+
+        private static boolean parseIpv4(String ip, int start, int end, byte[] addr, int pos) {
+            int num_parts = 0;
+            int val = -1;
+
+            for(int i = start; i <= end; i++) {
+                char c = (i < end) ? ip.charAt(i) : '.';
+
+                if(c == '.') {
+                    if((val < 0) || (num_parts == 4))
+                        return false;
+                    addr[pos + num_parts++] = (byte) val;
+                    val = -1;
+                } else if((c >= '0') && (c <= '9')) {
+                    val = ((val < 0) ? 0 : val * 10) + (c - '0');
+                    if(val > 255)
+                        return false;
+                } else
+                    return false;
+            }
+
+            return (num_parts == 4);
+        }
+    }
+
+    /* The rules, compiled into lookup structures for each rule type, so that the cost of matching a
+     * connection does not depend on the number of rules. */
+    private static class Matcher {
+        private final int[] mUids;
+        private final HashSet<String> mIps = new HashSet<>();
+        private final HashSet<String> mProtos = new HashSet<>();
+        private final HashSet<String> mCountries = new HashSet<>();
+        private final PrefixTree mSubnets = new PrefixTree();
+        private final DomainTrie mDomains = new DomainTrie();
+        private boolean mHasDomains;
+
+        Matcher(List<Rule> rules) {
+            int num_uids = 0;
+            int[] uids = new int[rules.size()];
+
+            for(Rule rule: rules) {
+                String val = rule.getValue().toString();
+
+                switch(rule.getType()) {
+                    case APP:
+                        try {
+                            uids[num_uids] = Integer.parseInt(val);
+                            num_uids++;
+                        } catch (NumberFormatException ignored) {}
+                        break;
+                    case IP:
+                        mIps.add(val);
+                        break;
+                    case HOST:
+                        mDomains.add(val).isHost = true;
+                        mHasDomains = true;
+                        break;
+                    case ROOT_DOMAIN:
+                        mDomains.add(val).isRootDomain = true;
+                        mHasDomains = true;
+                        break;
+                    case PROTOCOL:
+                        mProtos.add(val);
+                        break;
+                    case COUNTRY:
+                        mCountries.add(val);
+                        break;
+                    case SUBNET:
+                        if(!mSubnets.add(val))
+                            Log.w(TAG, "Invalid subnet: " + val);
+                        break;
+                    case WILDCARD_HOST:
+                        mDomains.addWildcard(val);
+                        mHasDomains = true;
+                        break;
+                }
+            }
+
+            mUids = Arrays.copyOf(uids, num_uids);
+            Arrays.sort(mUids);
+        }
+
+        boolean matchesApp(int uid)                 { return Arrays.binarySearch(mUids, uid) >= 0; }
+        boolean matchesIP(String ip)                { return mIps.contains(ip) || mSubnets.matches(ip); }
+        boolean matchesProto(String l7proto)        { return mProtos.contains(l7proto); }
+        boolean matchesCountry(String country_code) { return mCountries.contains(country_code); }
+
+        // see Utils.cleanDomain
+        static int getHostStart(String host) {
+            return host.startsWith("www.") ? 4 : 0;
+        }
+
+        // see Utils.getRootDomain
+        static int getRootDomainStart(String domain) {
+            int tldPos = domain.lastIndexOf('.');
+            if(tldPos <= 0)
+                return 0;
+
+            int rootPos = domain.lastIndexOf('.', tldPos - 1);
+            return (rootPos <= 0) ? 0 : rootPos + 1;
+        }
+
+        boolean matchesHost(String host) {
+            return mHasDomains && mDomains.matches(host, getHostStart(host), Integer.MAX_VALUE);
+        }
+
+        boolean matchesRootDomain(String root_domain) {
+            return mHasDomains && mDomains.matches(root_domain, Integer.MAX_VALUE, 0);
+        }
+
+        boolean matches(ConnectionDescriptor conn) {
+            boolean hasInfo = ((conn.info != null) && (!conn.info.isEmpty()));
+
+            return(matchesApp(conn.uid) ||
+                    matchesIP(conn.dst_ip) ||
+                    matchesProto(conn.l7proto) ||
+                    matchesCountry(conn.country) ||
+                    (hasInfo && mHasDomains && mDomains.matches(conn.info,
+                            getHostStart(conn.info), getRootDomainStart(conn.info))));
+        }
+    }
+
     public static class ListDescriptor {
         public final List<String> apps = new ArrayList<>();
         public final List<String> hosts = new ArrayList<>();
-        public final List<String> ips = new ArrayList<>();
+        public final List<String> ips = new ArrayList<>();          // IP addresses and subnets
+        public final List<String> wildcards = new ArrayList<>();    // domains matching their subdomains
     }
 
     public MatchList(Context ctx, String pref_name) {
@@ -138,6 +515,8 @@ public class MatchList {
             case HOST:          resid = R.string.host_val; break;
             case PROTOCOL:      resid = R.string.protocol_val; break;
             case COUNTRY:       resid = R.string.country_val; break;
+            case SUBNET:        resid = R.string.ip_address_val; break;
+            case WILDCARD_HOST: resid = R.string.host_val; value = "*." + value; break;
             default:
                 return "";
         }
@@ -205,73 +584,102 @@ public class MatchList {
     public void addProto(String proto) { addRule(new Rule(RuleType.PROTOCOL, proto)); }
     public void addRootDomain(String domain)    { addRule(new Rule(RuleType.ROOT_DOMAIN, domain)); }
     public void addCountry(String country_code) { addRule(new Rule(RuleType.COUNTRY, country_code)); }
+    public void addSubnet(String cidr)          { addRule(new Rule(RuleType.SUBNET, cidr)); }
+    public void addWildcardHost(String domain)  { addRule(new Rule(RuleType.WILDCARD_HOST, Utils.cleanDomain(domain))); }
 
     static private String matchKey(RuleType tp, Object val) {
+        // IP and SUBNET rules are loaded into the same native entries (see toListDescriptor), so the
+        // equivalent rules must share the key, to avoid removing an entry still used by another rule
+        if((tp == RuleType.IP) || (tp == RuleType.SUBNET)) {
+            String key = PrefixTree.networkKey(val.toString());
+            if(key != null)
+                return "NET@" + key;
+        }
+
         return tp + "@" + val;
     }
 
-    private void addRule(Rule rule) {
+    // NOTE: the rules mutations are synchronized with the matcher compilation, see getMatcher
+    private synchronized void addRule(Rule rule) {
         String key = matchKey(rule.getType(), rule.getValue().toString());
 
         if(!mMatches.containsKey(key)) {
             mRules.add(rule);
             mMatches.put(key, rule);
+            mMatcher = null;
         }
     }
 
-    public void removeRules(List<Rule> rules) {
-        mRules.removeAll(rules);
-
+    public synchronized void removeRules(List<Rule> rules) {
         for(Rule rule: rules) {
             String key = matchKey(rule.getType(), rule.getValue().toString());
-            mMatches.remove(key);
+            Rule existing = mMatches.remove(key);
+
+            if(existing != null)
+                mRules.remove(existing);
         }
+
+        mMatcher = null;
+    }
+
+    /* The matcher may be used by other threads (e.g. the capture threads) while the UI modifies the
+     * rules, so it is compiled under the lock and read only once by the callers. */
+    private Matcher getMatcher() {
+        Matcher matcher = mMatcher;
+
+        if(matcher == null) {
+            synchronized(this) {
+                matcher = mMatcher;
+
+                if(matcher == null) {
+                    matcher = new Matcher(mRules);
+                    mMatcher = matcher;
+                }
+            }
+        }
+
+        return matcher;
     }
 
     public boolean matchesApp(int uid) {
-        return mMatches.containsKey(matchKey(RuleType.APP, uid));
+        return getMatcher().matchesApp(uid);
     }
 
     public boolean matchesIP(String ip) {
-        return mMatches.containsKey(matchKey(RuleType.IP, ip));
+        return getMatcher().matchesIP(ip);
     }
 
     public boolean matchesProto(String l7proto) {
-        return mMatches.containsKey(matchKey(RuleType.PROTOCOL, l7proto));
+        return getMatcher().matchesProto(l7proto);
     }
 
     public boolean matchesHost(String host) {
-        return mMatches.containsKey(matchKey(RuleType.HOST, Utils.cleanDomain(host)));
+        return getMatcher().matchesHost(host);
     }
 
     public boolean matchesRootDomain(String root_domain) {
-        return mMatches.containsKey(matchKey(RuleType.ROOT_DOMAIN, root_domain));
+        return getMatcher().matchesRootDomain(root_domain);
     }
 
     public boolean matchesCountry(String country_code) {
-        return mMatches.containsKey(matchKey(RuleType.COUNTRY, country_code));
+        return getMatcher().matchesCountry(country_code);
     }
 
     public boolean matches(ConnectionDescriptor conn) {
         if(mMatches.isEmpty())
             return false;
 
-        boolean hasInfo = ((conn.info != null) && (!conn.info.isEmpty()));
-        return(matchesApp(conn.uid) ||
-                matchesIP(conn.dst_ip) ||
-                matchesProto(conn.l7proto) ||
-                matchesCountry(conn.country) ||
-                (hasInfo && matchesHost(conn.info))) ||
-                (hasInfo && matchesRootDomain(Utils.getRootDomain(conn.info)));
+        return getMatcher().matches(conn);
     }
 
     public Iterator<Rule> iterRules() {
         return mRules.iterator();
     }
 
-    public void clear() {
+    public synchronized void clear() {
         mRules.clear();
         mMatches.clear();
+        mMatcher = null;
     }
 
     public boolean isEmpty() {
@@ -294,7 +702,7 @@ public class MatchList {
     }
 
     /* Convert the MatchList into a ListDescriptor, which can be then loaded by JNI.
-     * Only the following RuleTypes are supported: APP, IP, HOST.
+     * Only the following RuleTypes are supported: APP, IP, HOST, SUBNET, WILDCARD_HOST.
      */
     public ListDescriptor toListDescriptor() {
         final ListDescriptor rv = new ListDescriptor();
@@ -309,8 +717,10 @@ public class MatchList {
                 rv.apps.add(val);
             else if(tp.equals(MatchList.RuleType.HOST))
                 rv.hosts.add(val);
-            else if(tp.equals(MatchList.RuleType.IP))
+            else if(tp.equals(MatchList.RuleType.IP) || tp.equals(MatchList.RuleType.SUBNET))
                 rv.ips.add(val);
+            else if(tp.equals(MatchList.RuleType.WILDCARD_HOST))
+                rv.wildcards.add(val);
             else
                 Log.w(TAG, "ListDescriptor does not support RuleType " + tp.name());
         }
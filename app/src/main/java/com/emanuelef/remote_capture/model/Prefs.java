@@ -60,6 +60,10 @@ public class Prefs {
     public static final String PREF_SNAPLEN = "snaplen";
     public static final String PREF_MAX_PKTS_PER_FLOW = "max_pkts_per_flow";
     public static final String PREF_MAX_DUMP_SIZE = "max_dump_size";
+    public static final String PREF_HOST_LRU_SIZE = "host_lru_size";
+    public static final String PREF_CAPTURE_PROTOCOLS = "capture_protocols";
+    public static final String PREF_CAPTURE_SUBNETS = "capture_subnets";
+    public static final String PREF_DPI_WORKERS = "dpi_workers";
     public static final String PREF_SOCKS5_ENABLED_KEY = "socks5_enabled";
     public static final String PREF_TLS_DECRYPTION_SETUP_DONE = "tls_decryption_setup_ok";
     public static final String PREF_FULL_PAYLOAD = "full_payload";
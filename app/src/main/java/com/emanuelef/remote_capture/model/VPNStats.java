@@ -34,12 +34,16 @@ public class VPNStats implements Serializable {
     public int active_conns;
     public int tot_conns;
     public int num_dns_queries;
+    public long host_lru_hits;
+    public long host_lru_misses;
+    public long host_lru_evictions;
 
     /* Invoked by native code */
     public void setData(String _alloc_summary,
                         long _bytes_sent,  long _bytes_rcvd, int _pkts_sent, int _pkts_rcvd,
                         int _pkts_dropped, int _num_dropped_conns, int _num_open_sockets,
-                        int _max_fd, int _active_conns, int _tot_conns, int _num_dns_queries) {
+                        int _max_fd, int _active_conns, int _tot_conns, int _num_dns_queries,
+                        long _host_lru_hits, long _host_lru_misses, long _host_lru_evictions) {
         alloc_summary = _alloc_summary;
         bytes_sent = _bytes_sent;
         bytes_rcvd = _bytes_rcvd;
@@ -52,5 +56,8 @@ public class VPNStats implements Serializable {
         active_conns = _active_conns;
         tot_conns = _tot_conns;
         num_dns_queries = _num_dns_queries;
+        host_lru_hits = _host_lru_hits;
+        host_lru_misses = _host_lru_misses;
+        host_lru_evictions = _host_lru_evictions;
     }
 }
@@ -147,8 +147,14 @@ public class HTTPServer implements PcapDumper, Runnable {
 
             try {
                 while(req_size <= 0) {
-                    sofar += mInputStream.read(buf, sofar, buf.length - sofar);
-                    req_size = Utils.getEndOfHTTPHeaders(buf);
+                    int prev = sofar;
+                    int rv = mInputStream.read(buf, sofar, buf.length - sofar);
+                    if(rv < 0)
+                        throw new IOException("Connection closed");
+                    sofar += rv;
+
+                    // Only scan the new data (plus a possibly split terminator)
+                    req_size = Utils.getEndOfHTTPHeaders(buf, prev - 3, sofar);
                 }
 
                 Log.d(TAG, "Request headers end at " + req_size);
@@ -101,6 +101,7 @@ static inline void pd_ndpi_free(void *ptr) {
 #define pd_strndup(str, n)      _pcapdroid_strndup(str, n, MEMTRACK_PCAPDROID)
 #define bl_malloc(str)          _pcapdroid_malloc(str, MEMTRACK_BLACKLIST)
 #define bl_calloc(num, size)    _pcapdroid_calloc(num, size, MEMTRACK_BLACKLIST)
+#define bl_realloc(ptr, size)   _pcapdroid_realloc(ptr, size, MEMTRACK_BLACKLIST)
 #define bl_free(ptr)            _pcapdroid_free(ptr, MEMTRACK_BLACKLIST)
 #define bl_strdup(str)          _pcapdroid_strdup(str, MEMTRACK_BLACKLIST)
 
@@ -121,6 +122,7 @@ static inline void pd_ndpi_free(void *ptr) {
 
 #define bl_malloc malloc
 #define bl_calloc calloc
+#define bl_realloc realloc
 #define bl_free free
 #define bl_strdup strdup
 
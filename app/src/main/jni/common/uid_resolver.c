@@ -19,149 +19,337 @@
 
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
+#include <stdbool.h>
 #include <errno.h>
+#include <time.h>
 #include <netinet/in.h>
 
 #include "uid_resolver.h"
 #include "utils.h"
+#include "third_party/uthash.h"
 
 /* ******************************************************* */
 
+// The /proc/net tables are cached, so that a burst of new connections only costs one scan.
+// On a miss, the table is reloaded unless it was loaded less than SOCK_TABLE_MIN_REFRESH_MS ago.
+// Since the local ports are reused, a table older than SOCK_TABLE_MAX_AGE_MS is always reloaded.
+#define SOCK_TABLE_MIN_REFRESH_MS 20
+#define SOCK_TABLE_MAX_AGE_MS 2000
+
+typedef struct {
+    zdtun_ip_t ip;      // IPv4-mapped IPv6 addresses are stored as IPv4
+    uint16_t port;      // HBO
+    uint8_t ipver;
+} sock_addr_t;
+
+typedef struct sock_entry {
+    sock_addr_t local;  // the hash key
+    sock_addr_t remote;
+    int uid;
+    struct sock_entry *next;    // other sockets with the same local address
+    UT_hash_handle hh;
+} sock_entry_t;
+
+typedef struct {
+    sock_entry_t *by_local;
+    sock_entry_t *entries;
+    int num_entries;
+    int size;
+    uint64_t last_load_ms;
+    bool loaded;
+} sock_table_t;
+
+enum {
+    SOCK_TABLE_TCP = 0,
+    SOCK_TABLE_UDP,
+    SOCK_TABLE_ICMP,
+    NUM_SOCK_TABLES,
+};
+
 struct uid_resolver {
 #ifdef ANDROID
     jint sdk;
     JNIEnv *env;
     jobject vpn_service;
     jmethodID getUidQ;
+    jmethodID requestUidQ;
 #endif
+    sock_table_t tables[NUM_SOCK_TABLES];
 };
 
 /* ******************************************************* */
 
-// src_port and dst_port are in HBO.
-static int get_uid_proc(int ipver, int ipproto, const char *conn_shex,
-                         const char *conn_dhex, u_int16_t src_port, u_int16_t dst_port) {
-    char *proc;
+static uint64_t monotonic_ms() {
+    struct timespec ts;
 
-    // Get proc file name
-    switch(ipproto) {
-        case IPPROTO_TCP:
-            proc = (ipver == 4) ? "/proc/net/tcp" : "/proc/net/tcp6";
-            break;
-        case IPPROTO_UDP:
-            proc = (ipver == 4) ? "/proc/net/udp" : "/proc/net/udp6";
-            break;
-        case IPPROTO_ICMP:
-        case IPPROTO_ICMPV6:
-            proc = (ipver == 4) ? "/proc/net/icmp" : "/proc/net/icmp6";
-            break;
-        default:
-            return UID_UNKNOWN;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return((uint64_t)ts.tv_sec * 1000 + ts.tv_nsec / 1000000);
+}
+
+/* ******************************************************* */
+
+// Parses an "address:port" field of /proc/net/{tcp,udp,icmp}{,6}.
+// The kernel prints each 32 bit word of the address as a native endian integer.
+static const char* parse_proc_addr(const char *p, int ipver, sock_addr_t *addr) {
+    uint32_t words[4] = {0};
+    int num_words = (ipver == 4) ? 1 : 4;
+    char *end;
+
+    memset(addr, 0, sizeof(*addr));
+
+    while(*p == ' ')
+        p++;
+
+    for(int i = 0; i < num_words; i++) {
+        for(int j = 0; j < 8; j++, p++) {
+            int c = *p;
+            int v;
+
+            if((c >= '0') && (c <= '9'))
+                v = c - '0';
+            else if((c >= 'A') && (c <= 'F'))
+                v = c - 'A' + 10;
+            else if((c >= 'a') && (c <= 'f'))
+                v = c - 'a' + 10;
+            else
+                return NULL;
+
+            words[i] = (words[i] << 4) | v;
+        }
     }
 
+    if(*p != ':')
+        return NULL;
+
+    unsigned long port = strtoul(p + 1, &end, 16);
+    if((end == p + 1) || (port > 65535))
+        return NULL;
+
+    addr->port = port;
+
+    if(ipver == 4) {
+        addr->ipver = 4;
+        addr->ip.ip4 = words[0];
+    } else {
+        struct in6_addr ip6;
+        memcpy(&ip6, words, sizeof(ip6));
+
+        if(IN6_IS_ADDR_V4MAPPED(&ip6)) {
+            addr->ipver = 4;
+            addr->ip.ip4 = words[3];
+        } else {
+            addr->ipver = 6;
+            addr->ip.ip6 = ip6;
+        }
+    }
+
+    return end;
+}
+
+/* ******************************************************* */
+
+static bool is_any_addr(const sock_addr_t *addr) {
+    static const zdtun_ip_t zero_ip = {0};
+
+    return(!memcmp(&addr->ip, &zero_ip, sizeof(zero_ip)));
+}
+
+/* ******************************************************* */
+
+static void sock_table_add(sock_table_t *table, const sock_addr_t *local,
+                           const sock_addr_t *remote, int uid) {
+    if(table->num_entries >= table->size) {
+        int new_size = table->size ? (table->size * 2) : 256;
+        sock_entry_t *entries = pd_realloc(table->entries, new_size * sizeof(sock_entry_t));
+
+        if(!entries) {
+            log_e("realloc(sock_entry_t) failed");
+            return;
+        }
+
+        table->entries = entries;
+        table->size = new_size;
+    }
+
+    sock_entry_t *entry = &table->entries[table->num_entries++];
+
+    // NOTE: memcpy to also copy the padding, as the local address is used as the hash key
+    memset(entry, 0, sizeof(*entry));
+    memcpy(&entry->local, local, sizeof(sock_addr_t));
+    memcpy(&entry->remote, remote, sizeof(sock_addr_t));
+    entry->uid = uid;
+}
+
+/* ******************************************************* */
+
+static void sock_table_load_proc(sock_table_t *table, const char *proc, int ipver) {
     FILE *fd = fopen(proc, "r");
 
     if (fd == NULL) {
         log_e("fopen(%s) failed[%d]: %s", proc, errno, strerror(errno));
-        return UID_UNKNOWN;
+        return;
     }
 
     // Parse proc file
     char line[256];
     int lines = 0;
-    int rv = UID_UNKNOWN;
-    int sport, dport, uid;
-    char shex[33], dhex[33];
-    const char *zero = (ipver == 4 ? "00000000" : "00000000000000000000000000000000");
-    const char *fmt = (ipver == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*X:%*X %*X:%*X %*X %d"
-                       : "%*d: %32s:%X %32s:%X %*X %*X:%*X %*X:%*X %*X %d");
 
     while(fgets(line, sizeof(line), fd) != NULL) {
+        sock_addr_t local, remote;
+        const char *p;
+        int uid;
+
         // skip header
         if(!lines++)
             continue;
 
-        //log_i("[try] %s", line);
-
-        if(sscanf(line, fmt, shex, &sport, dhex, &dport, &uid) == 5) {
-            //log_d("[try] %s:%d -> %s:%d [%d]", shex, sport, dhex, dport, uid);
+        if(!(p = strchr(line, ':')) ||
+                !(p = parse_proc_addr(p + 1, ipver, &local)) ||
+                !(p = parse_proc_addr(p, ipver, &remote)) ||
+                (sscanf(p, "%*X %*X:%*X %*X:%*X %*X %d", &uid) != 1))
+            continue;
 
-            if((sport == src_port)
-                    && ((dport == dst_port) || (dport == 0 /* ANY */))
-                    && (!strcmp(conn_dhex, dhex) || !strcmp(dhex, zero /* ANY */))
-                    && (!strcmp(conn_shex, shex) || !strcmp(shex, zero /* ANY */))) {
-                // found
-                rv = uid;
-                break;
-            }
-        }
+        sock_table_add(table, &local, &remote, uid);
     }
 
     fclose(fd);
-
-    return(rv);
 }
 
 /* ******************************************************* */
 
-#if 0
-static char* tohex(const uint8_t *src, int srcsize, char *dst, int dstsize) {
-    static const char *hex = "0123456789ABCDEF";
-    int j = 0;
+static void sock_table_load(sock_table_t *table, const char *proc4, const char *proc6, uint64_t now_ms) {
+    HASH_CLEAR(hh, table->by_local);
+    table->num_entries = 0;
+
+    sock_table_load_proc(table, proc4, 4);
+    sock_table_load_proc(table, proc6, 6);
+
+    // Index the entries only after loading them, as the array may be reallocated
+    for(int i = 0; i < table->num_entries; i++) {
+        sock_entry_t *entry = &table->entries[i];
+        sock_entry_t *head;
 
-    for(int i=0; (i < srcsize) && (j+2 < dstsize); i++) {
-        dst[j++] = hex[(src[i] >> 4)];
-        dst[j++] = hex[(src[i] & 0x0F)];
+        HASH_FIND(hh, table->by_local, &entry->local, sizeof(sock_addr_t), head);
+
+        if(head) {
+            // keep the file order, the first matching socket wins
+            sock_entry_t *last = head;
+            while(last->next)
+                last = last->next;
+            last->next = entry;
+        } else
+            HASH_ADD(hh, table->by_local, local, sizeof(sock_addr_t), entry);
     }
 
-    dst[j] = '\0';
+    table->last_load_ms = now_ms;
+    table->loaded = true;
+}
+
+/* ******************************************************* */
+
+static void sock_table_destroy(sock_table_t *table) {
+    HASH_CLEAR(hh, table->by_local);
 
-    return dst;
+    if(table->entries)
+        pd_free(table->entries);
 }
-#endif
 
 /* ******************************************************* */
 
-static int get_uid_slow(const zdtun_5tuple_t *conn_info) {
-    char shex[33], dhex[33];
+static int sock_table_match(sock_table_t *table, const sock_addr_t *local, const sock_addr_t *remote) {
+    sock_entry_t *entry;
+
+    HASH_FIND(hh, table->by_local, local, sizeof(sock_addr_t), entry);
+
+    for(; entry; entry = entry->next) {
+        if(((entry->remote.port == remote->port) || (entry->remote.port == 0 /* ANY */)) &&
+                (is_any_addr(&entry->remote) ||
+                    ((entry->remote.ipver == remote->ipver) &&
+                     !memcmp(&entry->remote.ip, &remote->ip, sizeof(zdtun_ip_t)))))
+            return entry->uid;
+    }
+
+    return UID_UNKNOWN;
+}
+
+/* ******************************************************* */
+
+static int sock_table_lookup(sock_table_t *table, const zdtun_5tuple_t *conn_info) {
+    sock_addr_t local, remote;
     int rv;
 
-    //clock_t start = clock();
+    memset(&local, 0, sizeof(local));
+    memset(&remote, 0, sizeof(remote));
 
-    u_int16_t sport = ntohs(conn_info->src_port);
-    u_int16_t dport = ntohs(conn_info->dst_port);
+    local.ipver = remote.ipver = conn_info->ipver;
+    local.port = ntohs(conn_info->src_port);
+    remote.port = ntohs(conn_info->dst_port);
 
     if(conn_info->ipver == 4) {
-        sprintf(shex, "%08X", conn_info->src_ip.ip4);
-        sprintf(dhex, "%08X", conn_info->dst_ip.ip4);
+        local.ip.ip4 = conn_info->src_ip.ip4;
+        remote.ip.ip4 = conn_info->dst_ip.ip4;
+    } else {
+        local.ip.ip6 = conn_info->src_ip.ip6;
+        remote.ip.ip6 = conn_info->dst_ip.ip6;
+    }
 
-        rv = get_uid_proc(4, conn_info->ipproto, shex, dhex, sport, dport);
+    // Exact local address
+    if((rv = sock_table_match(table, &local, &remote)) != UID_UNKNOWN)
+        return rv;
 
-        if (rv == UID_UNKNOWN) {
-            // Search for IPv4-mapped IPv6 addresses
-            // https://tools.ietf.org/html/rfc3493#section-3.7
-            sprintf(shex, "0000000000000000FFFF0000%08X", conn_info->src_ip.ip4);
-            sprintf(dhex, "0000000000000000FFFF0000%08X", conn_info->dst_ip.ip4);
+    // Socket bound to any address
+    memset(&local.ip, 0, sizeof(local.ip));
+    if((rv = sock_table_match(table, &local, &remote)) != UID_UNKNOWN)
+        return rv;
 
-            rv = get_uid_proc(6, conn_info->ipproto, shex, dhex, sport, dport);
-        }
-    } else {
-        struct in6_addr srcip6 = conn_info->src_ip.ip6;
-        struct in6_addr dstip6 = conn_info->dst_ip.ip6;
-        const uint32_t *src = srcip6.s6_addr32;
-        const uint32_t *dst = dstip6.s6_addr32;
+    if(conn_info->ipver == 4) {
+        // IPv4 connections can also belong to dual stack sockets bound to the IPv6 any address
+        // https://tools.ietf.org/html/rfc3493#section-3.7
+        local.ipver = 6;
+        rv = sock_table_match(table, &local, &remote);
+    }
 
-        sprintf(shex, "%08X%08X%08X%08X", src[0], src[1], src[2], src[3]);
-        sprintf(dhex, "%08X%08X%08X%08X", dst[0], dst[1], dst[2], dst[3]);
+    return rv;
+}
 
-        //log_i("HEX %s %s", shex, dhex);
+/* ******************************************************* */
 
-        rv = get_uid_proc(6, conn_info->ipproto, shex, dhex, sport, dport);
+static int get_uid_slow(uid_resolver_t *resolver, const zdtun_5tuple_t *conn_info) {
+    sock_table_t *table;
+    const char *proc4, *proc6;
+    int rv;
+
+    switch(conn_info->ipproto) {
+        case IPPROTO_TCP:
+            table = &resolver->tables[SOCK_TABLE_TCP];
+            proc4 = "/proc/net/tcp", proc6 = "/proc/net/tcp6";
+            break;
+        case IPPROTO_UDP:
+            table = &resolver->tables[SOCK_TABLE_UDP];
+            proc4 = "/proc/net/udp", proc6 = "/proc/net/udp6";
+            break;
+        case IPPROTO_ICMP:
+        case IPPROTO_ICMPV6:
+            table = &resolver->tables[SOCK_TABLE_ICMP];
+            proc4 = "/proc/net/icmp", proc6 = "/proc/net/icmp6";
+            break;
+        default:
+            return UID_UNKNOWN;
     }
 
-    //double cpu_time_used = ((double) (clock() - start)) / CLOCKS_PER_SEC;
-    //log_d("cpu_time_used %f", cpu_time_used);
+    uint64_t now_ms = monotonic_ms();
+
+    if(!table->loaded || ((now_ms - table->last_load_ms) >= SOCK_TABLE_MAX_AGE_MS))
+        sock_table_load(table, proc4, proc6, now_ms);
+
+    rv = sock_table_lookup(table, conn_info);
+
+    if((rv == UID_UNKNOWN) && ((now_ms - table->last_load_ms) >= SOCK_TABLE_MIN_REFRESH_MS)) {
+        // the socket may have been created after the last load
+        sock_table_load(table, proc4, proc6, now_ms);
+        rv = sock_table_lookup(table, conn_info);
+    }
 
     return rv;
 }
@@ -215,6 +403,49 @@ static int get_uid_q(uid_resolver_t *resolver,
     return juid;
 }
 
+// Asks CaptureService.requestUidQ to resolve the uid in a worker thread. The result is delivered
+// via CaptureService.setConnectionUid, along with the given request id. Returns false if the
+// request was not queued, in which case no result will be delivered.
+static bool get_uid_q_async(uid_resolver_t *resolver, const zdtun_5tuple_t *conn_info, int req_id) {
+    JNIEnv *env = resolver->env;
+    int version = conn_info->ipver;
+    int family = (version == 4) ? AF_INET : AF_INET6;
+    char srcip[INET6_ADDRSTRLEN];
+    char dstip[INET6_ADDRSTRLEN];
+    bool rv = false;
+
+    if(resolver->requestUidQ == NULL) {
+        // Resolve method
+        jclass vpn_service_cls = (*env)->GetObjectClass(env, resolver->vpn_service);
+        resolver->requestUidQ = jniGetMethodID(env, vpn_service_cls, "requestUidQ",
+                "(IIILjava/lang/String;ILjava/lang/String;I)Z");
+
+        if(!resolver->requestUidQ)
+            return false;
+    }
+
+    u_int16_t sport = ntohs(conn_info->src_port);
+    u_int16_t dport = ntohs(conn_info->dst_port);
+
+    inet_ntop(family, &conn_info->src_ip, srcip, sizeof(srcip));
+    inet_ntop(family, &conn_info->dst_ip, dstip, sizeof(dstip));
+
+    jstring jsource = (*env)->NewStringUTF(env, srcip);
+    jstring jdest = (*env)->NewStringUTF(env, dstip);
+
+    if((jsource != NULL) && (jdest != NULL)) {
+        jboolean queued = (*env)->CallBooleanMethod(
+            env, resolver->vpn_service, resolver->requestUidQ,
+            req_id, version, conn_info->ipproto, jsource, sport, jdest, dport);
+        rv = !jniCheckException(env) && queued;
+    }
+
+    (*env)->DeleteLocalRef(env, jsource);
+    (*env)->DeleteLocalRef(env, jdest);
+
+    return rv;
+}
+
 #endif
 
 /* ******************************************************* */
@@ -249,16 +480,45 @@ uid_resolver_t* init_uid_resolver_from_proc() {
 /* ******************************************************* */
 
 void destroy_uid_resolver(uid_resolver_t *resolver) {
+    for(int i = 0; i < NUM_SOCK_TABLES; i++)
+        sock_table_destroy(&resolver->tables[i]);
+
     pd_free(resolver);
 }
 
 /* ******************************************************* */
 
+// Returns true if the uids are resolved via get_uid_async
+bool uid_resolver_is_async(uid_resolver_t *resolver) {
+#ifdef ANDROID
+    return(resolver->sdk > 28); // Android 9 Pie
+#else
+    return false;
+#endif
+}
+
+/* ******************************************************* */
+
+// Requests an asynchronous uid resolution. Returns false if the request could not be made, e.g.
+// because the protocol is not supported, in which case the uid is unknown.
+bool get_uid_async(uid_resolver_t *resolver, const zdtun_5tuple_t *conn_info, int req_id) {
+#ifdef ANDROID
+    // getUidQ only works for TCP/UDP connections
+    if(uid_resolver_is_async(resolver) &&
+            ((conn_info->ipproto == IPPROTO_TCP) || (conn_info->ipproto == IPPROTO_UDP)))
+        return(get_uid_q_async(resolver, conn_info, req_id));
+#endif
+
+    return false;
+}
+
+/* ******************************************************* */
+
 int get_uid(uid_resolver_t *resolver, const zdtun_5tuple_t *conn_info) {
 #ifdef ANDROID
     if(resolver->sdk > 28) // Android 9 Pie
         return(get_uid_q(resolver, conn_info));
     else
 #endif
-        return(get_uid_slow(conn_info));
+        return(get_uid_slow(resolver, conn_info));
 }
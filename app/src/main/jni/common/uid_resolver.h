@@ -20,6 +20,7 @@
 #ifndef __UID_RESOLVER_H__
 #define __UID_RESOLVER_H__
 
+#include <stdbool.h>
 #include "jni_utils.h"
 #include "zdtun.h"
 
@@ -36,5 +37,7 @@ uid_resolver_t* init_uid_resolver(jint sdk_version, JNIEnv *env, jobject vpn);
 uid_resolver_t* init_uid_resolver_from_proc();
 void destroy_uid_resolver(uid_resolver_t *resolver);
 int get_uid(uid_resolver_t *resolver, const zdtun_5tuple_t *conn_info);
+bool uid_resolver_is_async(uid_resolver_t *resolver);
+bool get_uid_async(uid_resolver_t *resolver, const zdtun_5tuple_t *conn_info, int req_id);
 
 #endif // __UID_RESOLVER_H__
@@ -20,6 +20,7 @@
 #include <stdio.h>
 #include <errno.h>
 #include <unistd.h>
+#include <sys/uio.h>
 #include <stdarg.h>
 #include "utils.h"
 
@@ -108,6 +109,38 @@ ssize_t xwrite(int fd, const void *buf, size_t count) {
 
 /* ******************************************************* */
 
+// Like xwrite, but writes multiple buffers with a single syscall. NOTE: iov is modified.
+ssize_t xwritev(int fd, struct iovec *iov, int iovcnt) {
+    while(iovcnt > 0) {
+        ssize_t ret = writev(fd, iov, iovcnt);
+
+        if(ret < 0) {
+            if(errno == EINTR)
+                continue;
+
+            return ret;
+        } else if(ret == 0)
+            return -1;
+
+        // skip the fully written buffers
+        while((iovcnt > 0) && (ret >= (ssize_t) iov->iov_len)) {
+            ret -= (ssize_t) iov->iov_len;
+            iov++;
+            iovcnt--;
+        }
+
+        if(iovcnt > 0) {
+            // resume the partially written buffer
+            iov->iov_base = (char*)iov->iov_base + ret;
+            iov->iov_len -= ret;
+        }
+    }
+
+    return 0;
+}
+
+/* ******************************************************* */
+
 // returns < 0 on error, 0 if fd is closed
 ssize_t xread(int fd, void *buf, size_t count) {
     size_t sofar = 0;
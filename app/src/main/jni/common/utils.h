@@ -21,6 +21,7 @@
 #define __LOG_UTILS_H__
 
 #include <sys/types.h>
+#include <sys/uio.h>
 #include "zdtun.h"
 #include "memtrack.h"
 
@@ -56,6 +57,7 @@ extern void (*logcallback)(int lvl, const char *msg);
 
 void log_android(int lvl, const char *fmt, ...);
 ssize_t xwrite(int fd, const void *buf, size_t count);
+ssize_t xwritev(int fd, struct iovec *iov, int iovcnt);
 ssize_t xread(int fd, void *buf, size_t count);
 uint64_t timeval2ms(struct timeval *tv);
 void tupleSwapPeers(zdtun_5tuple_t *tuple);
@@ -17,26 +17,133 @@
  * Copyright 2020-21 - Emanuele Faranda
  */
 
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <limits.h>
 #include "pcapdroid.h"
 #include "common/utils.h"
 
+/* The uids are stored in a bitmap, split into pages which are only allocated when used. Android
+ * uids are user_id * 100000 + app_id, with the apps in the 10000-19999 range, so the uids of each
+ * user cluster into a few pages. */
+#define UID_PAGE_BITS       12      // 4096 uids (512 bytes) per page
+#define UID_PAGE_WORDS      ((1 << UID_PAGE_BITS) / 64)
+#define MAX_BITMAP_UID      (1 << 24)
+
+#define DOMAIN_EXACT        0x1     // matches the domain
+#define DOMAIN_SUBDOMAINS   0x2     // matches the domain and its subdomains
+
+// Returned by the domain table add/remove when an existing entry, with other flags, is updated
+#define DOMAIN_ENTRY_SHARED 1
+
+#define DOMAIN_HASH_INIT    2166136261u
+#define DOMAIN_HASH_STEP(h, c) (((h) ^ (uint8_t)(c)) * 16777619u)
+
+/* A slot of the domain_table_t. The domain string is stored in the table pool. */
 typedef struct {
-    char *key;
-    UT_hash_handle hh;
-} string_entry_t;
+    uint32_t hash;
+    uint32_t offset;
+    uint16_t len;
+    uint8_t flags;  // 0 for empty slots
+} domain_entry_t;
+
+/* An open addressing hash table of domains. The domains are hashed from the last character
+ * to the first, so that a lookup computes the hashes of the domain and all its parent domains
+ * in a single backward pass, and then performs one probe per label. */
+typedef struct {
+    domain_entry_t *slots;
+    uint32_t size;      // power of 2
+    uint32_t count;
+    char *pool;         // the domains, not NUL terminated
+    size_t pool_len;
+    size_t pool_size;
+    bool mapped;        // slots and pool point to a snapshot mapping
+} domain_table_t;
 
 typedef struct {
-    int key;
-    UT_hash_handle hh;
-} int_entry_t;
+    ndpi_ip_addr_t addr;
+    uint16_t bits;
+    uint16_t ipver;
+} ip_entry_t;
+
+/* A blocked bloom filter: each key only sets/checks bits of a single 512 bits block, which
+ * corresponds to a cache line. It is used as a prefilter for the lookups, since most of the
+ * lookups are negative. The block is selected by the high 32 bits of the hash, the bits in the
+ * block by disjoint 9 bits windows of a second, seeded hash of the key. */
+#define BLOOM_BITS_PER_KEY  10
+#define BLOOM_NUM_HASHES    7   // 7 * 9 bits windows fit in the 64 bits of the second hash
+#define BLOOM_MAX_PREFIXES  8   // max distinct IP prefix lengths to use the IP bloom filter
+
+typedef struct {
+    uint64_t bits[8];
+} bloom_block_t;
+
+typedef struct {
+    bloom_block_t *blocks;
+    uint32_t num_blocks;    // 0 if disabled
+} bloom_t;
 
 struct blacklist {
-    string_entry_t *domains;
-    int_entry_t *uids;
+    domain_table_t domains;
+    uint64_t **uid_pages;   // uid_pages[uid >> UID_PAGE_BITS], NULL if the page has no uids
+    uint32_t num_uid_pages;
     ndpi_ptree_t *ptree;
     blacklists_stats_t stats;
+
+    // the networks in ptree, which is not iterable, to save them into snapshots
+    ip_entry_t *ips;
+    uint32_t num_ips;
+    uint32_t ips_size;
+    bool ips_mapped;
+
+    void *mapping;      // the snapshot mapping, if loaded via blacklist_load_snapshot
+    size_t mapping_size;
+
+    // lookups prefilter, see blacklist_build_prefilter. Not used while dirty
+    bloom_t domains_bloom;
+    bloom_t ips_bloom;
+    bool bloom_dirty;
+    uint64_t ip4_prefixes;      // bitmap of the IPv4 prefix lengths in ptree
+    uint64_t ip6_prefixes[3];   // bitmap of the IPv6 prefix lengths in ptree
+    blacklist_lookup_stats_t domain_lookups;
+    blacklist_lookup_stats_t ip_lookups;
 };
 
+/* Snapshot file layout. All the sections start on 8 bytes boundaries:
+ *   snapshot_hdr_t
+ *   bl_snapshot_list_t lists[num_lists]
+ *   domain_entry_t slots[num_slots]
+ *   ip_entry_t ips[num_ips]
+ *   char pool[pool_len]
+ * Snapshots are only meant to be read on the device which wrote them, so the native byte order
+ * and structs layout are used.
+ *
+ * A snapshot is stale when any of its lists changed, namely its fname, type, mtime or size differ.
+ * The lists files are only replaced as a whole by the blacklists update, so a content change
+ * implies an mtime change, and the lists content is not hashed.
+ * The checksum only covers the header and the lists info. The data sections are not checksummed,
+ * since the snapshot is written atomically (see blacklist_save_snapshot), but they are validated
+ * on load: the number of used slots must match num_domains, so that the probing always finds an
+ * empty slot, and the pool offsets are bounds checked on access. */
+#define SNAPSHOT_MAGIC      "PDBLSNAP"
+#define SNAPSHOT_VERSION    3
+#define PAD8(x)             (((x) + 7) & ~((size_t)7))
+
+typedef struct {
+    char magic[8];
+    uint32_t version;
+    uint32_t num_lists;
+    uint32_t num_slots;
+    uint32_t num_domains;
+    uint32_t num_ips;
+    uint32_t reserved;
+    uint64_t pool_len;
+    blacklists_stats_t stats;
+    uint64_t checksum;
+} snapshot_hdr_t;
+
 /* ******************************************************* */
 
 blacklist_t* blacklist_init() {
@@ -50,76 +157,745 @@ blacklist_t* blacklist_init() {
         return NULL;
     }
 
+    bl->bloom_dirty = true;
     return bl;
 }
 
 /* ******************************************************* */
 
-int blacklist_add_domain(blacklist_t *bl, const char *domain) {
-    if(strncmp(domain, "www.", 4) == 0)
-        domain += 4;
+static inline uint64_t bloom_mix(uint64_t h) {
+    // murmur3 finalizer
+    h ^= h >> 33;
+    h *= 0xff51afd7ed558ccdULL;
+    h ^= h >> 33;
+    h *= 0xc4ceb9fe1a85ec53ULL;
+    h ^= h >> 33;
+    return h;
+}
+
+// seeds the second hash, from which the bit positions in the block are taken
+#define BLOOM_PROBES_SEED   0x9E3779B97F4A7C15ULL
+
+static inline bloom_block_t* bloom_get_block(const bloom_t *bloom, uint64_t h) {
+    return &bloom->blocks[((h >> 32) * bloom->num_blocks) >> 32];
+}
+
+static void bloom_add(bloom_t *bloom, uint64_t key) {
+    uint64_t h = bloom_mix(key);
+    bloom_block_t *block = bloom_get_block(bloom, h);
+    uint64_t probes = bloom_mix(key ^ BLOOM_PROBES_SEED);
+
+    for(int i = 0; i < BLOOM_NUM_HASHES; i++, probes >>= 9) {
+        uint32_t bit = probes & 0x1FF;
+
+        block->bits[bit >> 6] |= (1ULL << (bit & 0x3F));
+    }
+}
+
+// Returns false if the key is definitely not in the filter. A NULL bloom always passes
+static inline bool bloom_check(const bloom_t *bloom, uint64_t key) {
+    if(!bloom || !bloom->num_blocks)
+        return true;
+
+    uint64_t h = bloom_mix(key);
+    const bloom_block_t *block = bloom_get_block(bloom, h);
+    uint64_t probes = bloom_mix(key ^ BLOOM_PROBES_SEED);
+
+    for(int i = 0; i < BLOOM_NUM_HASHES; i++, probes >>= 9) {
+        uint32_t bit = probes & 0x1FF;
+
+        if(!(block->bits[bit >> 6] & (1ULL << (bit & 0x3F))))
+            return false;
+    }
+    return true;
+}
+
+static int bloom_init(bloom_t *bloom, uint32_t num_keys) {
+    if(bloom->blocks)
+        bl_free(bloom->blocks);
+
+    bloom->num_blocks = ((uint64_t) num_keys * BLOOM_BITS_PER_KEY + 511) / 512;
+    if(bloom->num_blocks == 0) {
+        bloom->blocks = NULL;
+        return 0;
+    }
+
+    bloom->blocks = bl_calloc(bloom->num_blocks, sizeof(bloom_block_t));
+    if(!bloom->blocks) {
+        bloom->num_blocks = 0;
+        return -ENOMEM;
+    }
+    return 0;
+}
+
+/* ******************************************************* */
+
+/* Adds a key to an already built filter, so that single rules changes do not require a rebuild.
+ * If the filter is not built or full, it is marked as dirty, see blacklist_build_prefilter. */
+static void bloom_add_key(blacklist_t *bl, bloom_t *bloom, uint32_t num_keys, uint64_t key) {
+    if(!bl->bloom_dirty && bloom->num_blocks &&
+            ((uint64_t) num_keys * BLOOM_BITS_PER_KEY <= (uint64_t) bloom->num_blocks * 512))
+        bloom_add(bloom, key);
+    else
+        bl->bloom_dirty = true;
+}
+
+/* ******************************************************* */
+
+// Hashes the network obtained by masking the address with the prefix length
+static uint64_t ip_prefix_key(const ndpi_ip_addr_t *addr, int ipver, uint32_t bits) {
+    const uint8_t *bytes = (ipver == 4) ? (const uint8_t*) &addr->ipv4 : (const uint8_t*) &addr->ipv6;
+    int len = (ipver == 4) ? 4 : 16;
+    uint64_t h = 0xcbf29ce484222325ULL ^ ((uint64_t) ipver << 8) ^ bits;
 
-    if(blacklist_match_domain(bl, domain))
-        return -EADDRINUSE; // duplicate domain
+    for(int i = 0; i < len; i++) {
+        int byte_bits = (int) bits - i * 8;
+        uint8_t mask = (byte_bits >= 8) ? 0xFF : ((byte_bits <= 0) ? 0 : (uint8_t)(0xFF << (8 - byte_bits)));
 
-    string_entry_t *entry = bl_malloc(sizeof(string_entry_t));
-    if(!entry)
+        h = (h ^ (bytes[i] & mask)) * 0x100000001b3ULL;
+    }
+    return h;
+}
+
+static int count_bits(const uint64_t *bitmap, int num_words) {
+    int count = 0;
+
+    for(int i = 0; i < num_words; i++)
+        count += __builtin_popcountll(bitmap[i]);
+    return count;
+}
+
+/* ******************************************************* */
+
+/* Builds the lookups prefilter, if the blacklist changed since the last build. This can take a while
+ * on big blacklists, so it should be called before handing the blacklist to the capture thread.
+ * Until then, the lookups do not use the prefilter. */
+void blacklist_build_prefilter(blacklist_t *bl) {
+    if(!bl->bloom_dirty)
+        return;
+    bl->bloom_dirty = false;
+
+    // Domains: use the hashes stored in the table
+    if(bloom_init(&bl->domains_bloom, bl->domains.count) == 0) {
+        for(uint32_t i = 0; i < bl->domains.size; i++) {
+            const domain_entry_t *entry = &bl->domains.slots[i];
+
+            if(entry->flags)
+                bloom_add(&bl->domains_bloom, entry->hash);
+        }
+    }
+
+    // IPs: each lookup must check all the prefix lengths, so only use the filter if there are few
+    int num_prefixes = count_bits(&bl->ip4_prefixes, 1) + count_bits(bl->ip6_prefixes, 3);
+
+    if((num_prefixes <= BLOOM_MAX_PREFIXES) && (bloom_init(&bl->ips_bloom, bl->num_ips) == 0)) {
+        for(uint32_t i = 0; i < bl->num_ips; i++) {
+            const ip_entry_t *entry = &bl->ips[i];
+
+            bloom_add(&bl->ips_bloom, ip_prefix_key(&entry->addr, entry->ipver, entry->bits));
+        }
+    } else {
+        if(bl->ips_bloom.blocks)
+            bl_free(bl->ips_bloom.blocks);
+        bl->ips_bloom.blocks = NULL;
+        bl->ips_bloom.num_blocks = 0;
+    }
+}
+
+/* ******************************************************* */
+
+static domain_entry_t* domain_table_find(const domain_table_t *table, const char *domain,
+                                         size_t len, uint32_t hash) {
+    if(table->count == 0)
+        return NULL;
+
+    uint32_t mask = table->size - 1;
+
+    for(uint32_t i = hash & mask;; i = (i + 1) & mask) {
+        domain_entry_t *entry = &table->slots[i];
+
+        if(!entry->flags)
+            return NULL;
+        // NOTE: the offset is checked since the entries of a snapshot are not checksummed
+        if((entry->hash == hash) && (entry->len == len) &&
+                (((size_t)entry->offset + len) <= table->pool_len) &&
+                (memcmp(table->pool + entry->offset, domain, len) == 0))
+            return entry;
+    }
+}
+
+/* ******************************************************* */
+
+/* Copies the table to the heap, so that it can be modified */
+static int domain_table_unshare(domain_table_t *table) {
+    if(!table->mapped)
+        return 0;
+
+    domain_entry_t *slots = bl_malloc(table->size * sizeof(domain_entry_t));
+    char *pool = bl_malloc(table->pool_len ? table->pool_len : 1);
+
+    if(!slots || !pool) {
+        if(slots)
+            bl_free(slots);
+        if(pool)
+            bl_free(pool);
         return -ENOMEM;
+    }
+
+    memcpy(slots, table->slots, table->size * sizeof(domain_entry_t));
+    memcpy(pool, table->pool, table->pool_len);
 
-    entry->key = bl_strdup(domain);
-    if(!entry->key) {
-        bl_free(entry);
+    table->slots = slots;
+    table->pool = pool;
+    table->pool_size = table->pool_len;
+    table->mapped = false;
+    return 0;
+}
+
+/* ******************************************************* */
+
+static int domain_table_grow(domain_table_t *table) {
+    uint32_t new_size = table->size ? (table->size * 2) : 1024;
+    domain_entry_t *slots = bl_calloc(new_size, sizeof(domain_entry_t));
+    if(!slots)
         return -ENOMEM;
+
+    // Rehash the entries by using the stored hashes
+    for(uint32_t i = 0; i < table->size; i++) {
+        domain_entry_t *entry = &table->slots[i];
+
+        if(entry->flags) {
+            uint32_t j = entry->hash & (new_size - 1);
+            while(slots[j].flags)
+                j = (j + 1) & (new_size - 1);
+            slots[j] = *entry;
+        }
     }
 
-    HASH_ADD_KEYPTR(hh, bl->domains, entry->key, strlen(entry->key), entry);
-    bl->stats.num_domains++;
+    if(table->slots)
+        bl_free(table->slots);
+    table->slots = slots;
+    table->size = new_size;
     return 0;
 }
 
 /* ******************************************************* */
 
-int blacklist_add_ip(blacklist_t *bl, const ndpi_ip_addr_t *addr, uint8_t bits) {
-    int rv = ndpi_ptree_insert(bl->ptree, addr, bits, PCAPDROID_NDPI_CATEGORY_MALWARE);
+/* Returns 0 if a new entry is added, DOMAIN_ENTRY_SHARED if the flags are added to an existing
+ * entry, or a negative error */
+static int domain_table_insert(domain_table_t *table, const char *domain, size_t len, uint32_t hash,
+                               uint8_t flags) {
+    domain_entry_t *entry = domain_table_find(table, domain, len, hash);
+    if(entry && ((entry->flags & flags) == flags))
+        return -EADDRINUSE;
+
+    int rv = domain_table_unshare(table);
+    if(rv != 0)
+        return rv;
+
+    if(entry) {
+        // the slots may have been moved
+        entry = domain_table_find(table, domain, len, hash);
+        entry->flags |= flags;
+        return DOMAIN_ENTRY_SHARED;
+    }
+
+    // Keep the load factor below 0.5
+    if((table->count + 1) * 2 > table->size) {
+        int rv = domain_table_grow(table);
+        if(rv != 0)
+            return rv;
+    }
+
+    if(table->pool_len + len > table->pool_size) {
+        size_t new_size = table->pool_size ? (table->pool_size * 2) : 16384;
+        while(table->pool_len + len > new_size)
+            new_size *= 2;
+        if(new_size > UINT32_MAX)
+            return -ENOMEM;
+
+        char *pool = bl_realloc(table->pool, new_size);
+        if(!pool)
+            return -ENOMEM;
+        table->pool = pool;
+        table->pool_size = new_size;
+    }
+
+    uint32_t i = hash & (table->size - 1);
+    while(table->slots[i].flags)
+        i = (i + 1) & (table->size - 1);
+
+    entry = &table->slots[i];
+    entry->hash = hash;
+    entry->offset = table->pool_len;
+    entry->len = len;
+    entry->flags = flags;
+
+    memcpy(table->pool + table->pool_len, domain, len);
+    table->pool_len += len;
+    table->count++;
+    return 0;
+}
+
+/* ******************************************************* */
+
+static uint32_t domain_hash(const char *domain, size_t len) {
+    uint32_t hash = DOMAIN_HASH_INIT;
+
+    for(size_t i = len; i > 0; i--)
+        hash = DOMAIN_HASH_STEP(hash, domain[i - 1]);
+    return hash;
+}
+
+/* ******************************************************* */
+
+static int domain_table_add(domain_table_t *table, const char *domain, uint8_t flags) {
+    size_t len = strlen(domain);
+    if((len == 0) || (len > UINT16_MAX))
+        return -EINVAL;
+
+    return domain_table_insert(table, domain, len, domain_hash(domain, len), flags);
+}
+
+/* ******************************************************* */
+
+/* Removes the flags from the domain, removing the domain when no flags are left. The domain
+ * string is kept in the pool until the table is destroyed. Returns DOMAIN_ENTRY_SHARED if the
+ * domain is kept, since it still has other flags. */
+static int domain_table_remove(domain_table_t *table, const char *domain, uint8_t flags) {
+    size_t len = strlen(domain);
+    uint32_t hash = domain_hash(domain, len);
+
+    domain_entry_t *entry = domain_table_find(table, domain, len, hash);
+    if(!entry || !(entry->flags & flags))
+        return -ENOENT;
+
+    int rv = domain_table_unshare(table);
+    if(rv != 0)
+        return rv;
+
+    entry = domain_table_find(table, domain, len, hash);
+    entry->flags &= ~flags;
+    if(entry->flags)
+        return DOMAIN_ENTRY_SHARED;
+
+    // Backward shift deletion: move back the following entries of the cluster, unless this would
+    // move them before their home slot
+    uint32_t mask = table->size - 1;
+    uint32_t i = entry - table->slots;
+
+    for(uint32_t j = (i + 1) & mask; table->slots[j].flags; j = (j + 1) & mask) {
+        uint32_t home = table->slots[j].hash & mask;
+
+        if(((j > i) && ((home <= i) || (home > j))) || ((j < i) && (home <= i) && (home > j))) {
+            table->slots[i] = table->slots[j];
+            i = j;
+        }
+    }
+
+    memset(&table->slots[i], 0, sizeof(domain_entry_t));
+    table->count--;
+    return 0;
+}
+
+/* ******************************************************* */
+
+/* Checks the domain and all its parent domains, from the TLD. The work is bounded by the domain
+ * length: one hashing step per character, and one bloom check per label. The table is only
+ * probed for the labels which pass the bloom filter. */
+static bool domain_table_match(const domain_table_t *table, const bloom_t *bloom, const char *domain,
+                               blacklist_lookup_stats_t *stats) {
+    if(table->count == 0)
+        return false;
+
+    size_t len = strlen(domain);
+    uint32_t hash = DOMAIN_HASH_INIT;
+    bool bloom_pass = false;
+
+    stats->num_lookups++;
+
+    for(size_t i = len; i > 0; i--) {
+        hash = DOMAIN_HASH_STEP(hash, domain[i - 1]);
+
+        if(((i == 1) || (domain[i - 2] == '.')) && bloom_check(bloom, hash)) {
+            // domain[i-1:] is the domain or one of its parent domains
+            domain_entry_t *entry = domain_table_find(table, domain + i - 1, len - i + 1, hash);
+
+            if(entry && ((entry->flags & DOMAIN_SUBDOMAINS) || (i == 1)))
+                return true;
+            bloom_pass = true;
+        }
+    }
+
+    if(bloom) {
+        if(bloom_pass)
+            stats->num_false_positives++;
+        else
+            stats->num_filtered++;
+    }
+    return false;
+}
+
+/* ******************************************************* */
+
+/* Adds a domain, which also matches its subdomains, at any depth */
+int blacklist_add_domain(blacklist_t *bl, const char *domain) {
+    if(strncmp(domain, "www.", 4) == 0)
+        domain += 4;
+
+    int rv = domain_table_add(&bl->domains, domain, DOMAIN_SUBDOMAINS);
+    if(rv == 0) {
+        bl->stats.num_domains++;
+        bloom_add_key(bl, &bl->domains_bloom, bl->domains.count, domain_hash(domain, strlen(domain)));
+    }
+    return (rv == DOMAIN_ENTRY_SHARED) ? 0 : rv;
+}
+
+/* ******************************************************* */
+
+/* Adds a domain which only matches itself (ignoring the "www." prefix), see MatchList HOST rules */
+int blacklist_add_host(blacklist_t *bl, const char *domain) {
+    if(strncmp(domain, "www.", 4) == 0)
+        domain += 4;
+
+    int rv = domain_table_add(&bl->domains, domain, DOMAIN_EXACT);
+    if(rv == 0) {
+        bl->stats.num_domains++;
+        bloom_add_key(bl, &bl->domains_bloom, bl->domains.count, domain_hash(domain, strlen(domain)));
+    }
+    return (rv == DOMAIN_ENTRY_SHARED) ? 0 : rv;
+}
+
+/* ******************************************************* */
+
+/* Same as blacklist_add_domain, ignoring the "*." prefix, if present */
+int blacklist_add_wildcard(blacklist_t *bl, const char *domain) {
+    if(strncmp(domain, "*.", 2) == 0)
+        domain += 2;
+
+    return blacklist_add_domain(bl, domain);
+}
+
+/* ******************************************************* */
+
+/* Removes a domain added via blacklist_add_domain or blacklist_add_wildcard. The prefilter is not
+ * updated, as the stale keys only cause false positives. */
+int blacklist_remove_domain(blacklist_t *bl, const char *domain) {
+    if(strncmp(domain, "*.", 2) == 0)
+        domain += 2;
+    else if(strncmp(domain, "www.", 4) == 0)
+        domain += 4;
+
+    int rv = domain_table_remove(&bl->domains, domain, DOMAIN_SUBDOMAINS);
+    if(rv == 0)
+        bl->stats.num_domains--;
+    return (rv == DOMAIN_ENTRY_SHARED) ? 0 : rv;
+}
+
+/* ******************************************************* */
+
+/* Removes a domain added via blacklist_add_host */
+int blacklist_remove_host(blacklist_t *bl, const char *domain) {
+    if(strncmp(domain, "www.", 4) == 0)
+        domain += 4;
+
+    int rv = domain_table_remove(&bl->domains, domain, DOMAIN_EXACT);
+    if(rv == 0)
+        bl->stats.num_domains--;
+    return (rv == DOMAIN_ENTRY_SHARED) ? 0 : rv;
+}
+
+/* ******************************************************* */
+
+static int ip_entry_cmp(const void *a, const void *b) {
+    const ip_entry_t *ea = (const ip_entry_t*) a;
+    const ip_entry_t *eb = (const ip_entry_t*) b;
+
+    if(ea->ipver != eb->ipver)
+        return (ea->ipver < eb->ipver) ? -1 : 1;
+    if(ea->bits != eb->bits)
+        return (ea->bits < eb->bits) ? -1 : 1;
+
+    return (ea->ipver == 4) ? memcmp(&ea->addr.ipv4, &eb->addr.ipv4, 4) :
+           memcmp(&ea->addr.ipv6, &eb->addr.ipv6, 16);
+}
+
+/* ******************************************************* */
+
+static void add_ip_prefix(blacklist_t *bl, int ipver, uint32_t bits) {
+    if(ipver == 4)
+        bl->ip4_prefixes |= (1ULL << bits);
+    else
+        bl->ip6_prefixes[bits >> 6] |= (1ULL << (bits & 0x3F));
+}
+
+/* ******************************************************* */
+
+// Clears the host bits, so that the notations of a network (e.g. 10.0.0.1/8 and 10.0.0.0/8) share the entry
+static void ip_network(ndpi_ip_addr_t *net, const ndpi_ip_addr_t *addr, uint8_t bits, int ipver) {
+    uint8_t *bytes = (ipver == 4) ? (uint8_t*) &net->ipv4 : (uint8_t*) &net->ipv6;
+    int len = (ipver == 4) ? 4 : 16;
+
+    *net = *addr;
+    for(int i = bits; i < len * 8; i++)
+        bytes[i >> 3] &= ~(0x80 >> (i & 7));
+}
+
+/* ******************************************************* */
+
+int blacklist_add_ip(blacklist_t *bl, const ndpi_ip_addr_t *addr, uint8_t bits, int ipver) {
+    ndpi_ip_addr_t net;
+
+    if(bits > ((ipver == 4) ? 32 : 128))
+        return -EINVAL;
+    ip_network(&net, addr, bits, ipver);
+
+    // Make room for the new entry first, as ptree entries cannot be removed
+    if(bl->ips_mapped || (bl->num_ips >= bl->ips_size)) {
+        uint32_t new_size = (bl->num_ips >= bl->ips_size) ?
+                (bl->ips_size ? (bl->ips_size * 2) : 256) : bl->ips_size;
+        ip_entry_t *ips;
+
+        if(bl->ips_mapped) {
+            ips = bl_malloc(new_size * sizeof(ip_entry_t));
+            if(ips)
+                memcpy(ips, bl->ips, bl->num_ips * sizeof(ip_entry_t));
+        } else
+            ips = bl_realloc(bl->ips, new_size * sizeof(ip_entry_t));
+
+        if(!ips)
+            return -ENOMEM;
+
+        bl->ips = ips;
+        bl->ips_size = new_size;
+        bl->ips_mapped = false;
+    }
+
+    int rv = ndpi_ptree_insert(bl->ptree, &net, bits, PCAPDROID_NDPI_CATEGORY_MALWARE);
     if(rv != 0)
         return (rv == -2) ? -EADDRINUSE : -EINVAL; // -2 means IP already in ptree
 
+    ip_entry_t *entry = &bl->ips[bl->num_ips++];
+    memset(entry, 0, sizeof(*entry));
+    entry->addr = net;
+    entry->bits = bits;
+    entry->ipver = ipver;
+
+    int num_prefixes = count_bits(&bl->ip4_prefixes, 1) + count_bits(bl->ip6_prefixes, 3);
+    add_ip_prefix(bl, ipver, bits);
     bl->stats.num_ips++;
+
+    if(count_bits(&bl->ip4_prefixes, 1) + count_bits(bl->ip6_prefixes, 3) != num_prefixes)
+        bl->bloom_dirty = true; // a new prefix length may disable the IP filter, see blacklist_build_prefilter
+    else if(num_prefixes <= BLOOM_MAX_PREFIXES)
+        bloom_add_key(bl, &bl->ips_bloom, bl->num_ips, ip_prefix_key(&net, ipver, bits));
     return 0;
 }
 
 /* ******************************************************* */
 
-int blacklist_add_ipstr(blacklist_t *bl, const char *ip) {
-    ndpi_ip_addr_t addr;
-    int ipver = ndpi_parse_ip_string(ip, &addr);
+/* Removes an IP address or subnet added via blacklist_add_ip. Since the ptree does not support
+ * removals, it is rebuilt from the remaining networks. */
+int blacklist_remove_ip(blacklist_t *bl, const ndpi_ip_addr_t *addr, uint8_t bits, int ipver) {
+    ip_entry_t key;
+    uint32_t i;
+
+    if(bits > ((ipver == 4) ? 32 : 128))
+        return -EINVAL;
+
+    memset(&key, 0, sizeof(key));
+    ip_network(&key.addr, addr, bits, ipver);
+    key.bits = bits;
+    key.ipver = ipver;
+
+    for(i = 0; i < bl->num_ips; i++) {
+        if(ip_entry_cmp(&bl->ips[i], &key) == 0)
+            break;
+    }
+    if(i == bl->num_ips)
+        return -ENOENT;
+
+    ndpi_ptree_t *ptree = ndpi_ptree_create();
+    if(!ptree)
+        return -ENOMEM;
+
+    if(bl->ips_mapped) {
+        ip_entry_t *ips = bl_malloc(bl->num_ips * sizeof(ip_entry_t));
+        if(!ips) {
+            ndpi_ptree_destroy(ptree);
+            return -ENOMEM;
+        }
+
+        memcpy(ips, bl->ips, bl->num_ips * sizeof(ip_entry_t));
+        bl->ips = ips;
+        bl->ips_size = bl->num_ips;
+        bl->ips_mapped = false;
+    }
+
+    bl->ips[i] = bl->ips[--bl->num_ips];
+    bl->ip4_prefixes = 0;
+    memset(bl->ip6_prefixes, 0, sizeof(bl->ip6_prefixes));
+
+    for(i = 0; i < bl->num_ips; i++) {
+        const ip_entry_t *entry = &bl->ips[i];
+
+        ndpi_ptree_insert(ptree, &entry->addr, entry->bits, PCAPDROID_NDPI_CATEGORY_MALWARE);
+        add_ip_prefix(bl, entry->ipver, entry->bits);
+    }
+
+    ndpi_ptree_destroy(bl->ptree);
+    bl->ptree = ptree;
+    bl->stats.num_ips--;
 
+    // The filter is still valid (the stale keys only cause false positives), but it may now be
+    // possible to use it
+    if(!bl->ips_bloom.num_blocks)
+        bl->bloom_dirty = true;
+    return 0;
+}
+
+/* ******************************************************* */
+
+/* Parses an IP address or a subnet in CIDR notation (e.g. 10.0.0.0/8). Returns the IP version. */
+static int parse_ipstr(const char *ip, ndpi_ip_addr_t *addr, int *out_bits) {
+    char buf[INET6_ADDRSTRLEN];
+    int bits = -1;
+
+    const char *slash = strchr(ip, '/');
+    if(slash) {
+        size_t len = slash - ip;
+        if(len >= sizeof(buf))
+            return -EINVAL;
+
+        memcpy(buf, ip, len);
+        buf[len] = '\0';
+        ip = buf;
+
+        char *end;
+        bits = (int) strtol(slash + 1, &end, 10);
+        if((end == slash + 1) || *end || (bits < 0))
+            return -EINVAL;
+    }
+
+    int ipver = ndpi_parse_ip_string(ip, addr);
     if((ipver != 4) && (ipver != 6))
         return -EINVAL;
 
-    int bits = (ipver == 4) ? 32 : 128;
-    return blacklist_add_ip(bl, &addr, bits);
+    int max_bits = (ipver == 4) ? 32 : 128;
+    if(bits < 0)
+        bits = max_bits;
+    else if(bits > max_bits)
+        return -EINVAL;
+
+    *out_bits = bits;
+    return ipver;
+}
+
+/* ******************************************************* */
+
+/* Adds an IP address or a subnet in CIDR notation (e.g. 10.0.0.0/8) */
+int blacklist_add_ipstr(blacklist_t *bl, const char *ip) {
+    ndpi_ip_addr_t addr;
+    int bits;
+
+    int ipver = parse_ipstr(ip, &addr, &bits);
+    if(ipver < 0)
+        return ipver;
+
+    return blacklist_add_ip(bl, &addr, bits, ipver);
+}
+
+/* ******************************************************* */
+
+int blacklist_remove_ipstr(blacklist_t *bl, const char *ip) {
+    ndpi_ip_addr_t addr;
+    int bits;
+
+    int ipver = parse_ipstr(ip, &addr, &bits);
+    if(ipver < 0)
+        return ipver;
+
+    return blacklist_remove_ip(bl, &addr, bits, ipver);
 }
 
 /* ******************************************************* */
 
 int blacklist_add_uid(blacklist_t *bl, int uid) {
-    if(blacklist_match_uid(bl, uid))
-        return -EADDRINUSE; // duplicate uid
+    if((uid < 0) || (uid >= MAX_BITMAP_UID))
+        return -EINVAL;
 
-    int_entry_t *entry = bl_malloc(sizeof(int_entry_t));
-    if(!entry)
-        return -ENOMEM;
+    uint32_t page_idx = uid >> UID_PAGE_BITS;
 
-    entry->key = uid;
-    HASH_ADD_INT(bl->uids, key, entry);
+    if(page_idx >= bl->num_uid_pages) {
+        uint64_t **pages = bl_realloc(bl->uid_pages, (page_idx + 1) * sizeof(uint64_t*));
+        if(!pages)
+            return -ENOMEM;
 
+        memset(pages + bl->num_uid_pages, 0, (page_idx + 1 - bl->num_uid_pages) * sizeof(uint64_t*));
+        bl->uid_pages = pages;
+        bl->num_uid_pages = page_idx + 1;
+    }
+
+    uint64_t *page = bl->uid_pages[page_idx];
+    if(!page) {
+        page = bl_calloc(UID_PAGE_WORDS, sizeof(uint64_t));
+        if(!page)
+            return -ENOMEM;
+        bl->uid_pages[page_idx] = page;
+    }
+
+    uint32_t bit = uid & ((1 << UID_PAGE_BITS) - 1);
+    uint64_t mask = 1ULL << (bit & 0x3F);
+
+    if(page[bit >> 6] & mask)
+        return -EADDRINUSE; // duplicate uid
+
+    page[bit >> 6] |= mask;
     bl->stats.num_apps++;
     return 0;
 }
 
 /* ******************************************************* */
 
+int blacklist_remove_uid(blacklist_t *bl, int uid) {
+    if(!blacklist_match_uid(bl, uid))
+        return -ENOENT;
+
+    uint32_t bit = uid & ((1 << UID_PAGE_BITS) - 1);
+    bl->uid_pages[uid >> UID_PAGE_BITS][bit >> 6] &= ~(1ULL << (bit & 0x3F));
+    bl->stats.num_apps--;
+    return 0;
+}
+
+/* ******************************************************* */
+
+// Returns the first uid in the blacklist which is >= uid, -1 if none
+static int next_uid(const blacklist_t *bl, int uid) {
+    if(uid < 0)
+        uid = 0;
+
+    for(uint32_t page_idx = uid >> UID_PAGE_BITS; page_idx < bl->num_uid_pages; page_idx++) {
+        const uint64_t *page = bl->uid_pages[page_idx];
+        uint32_t start = ((uint32_t) uid >> UID_PAGE_BITS == page_idx) ? (uid & ((1 << UID_PAGE_BITS) - 1)) : 0;
+
+        if(!page)
+            continue;
+
+        for(uint32_t w = start >> 6; w < UID_PAGE_WORDS; w++) {
+            uint64_t word = page[w];
+
+            if(w == (start >> 6))
+                word &= ~0ULL << (start & 0x3F);
+            if(word)
+                return (int) ((page_idx << UID_PAGE_BITS) | (w << 6) | __builtin_ctzll(word));
+        }
+    }
+
+    return -1;
+}
+
+/* ******************************************************* */
+
 int blacklist_load_file(blacklist_t *bl, const char *path, blacklist_type btype, blacklist_stats_t *bstats) {
     FILE *f;
     char buffer[256];
@@ -176,7 +952,7 @@ int blacklist_load_file(blacklist_t *bl, const char *path, blacklist_type btype,
 
             // TODO validate IPv6
 
-            int rv = blacklist_add_ip(bl, &ip_addr, bits);
+            int rv = blacklist_add_ip(bl, &ip_addr, bits, ipver);
             if(rv == 0)
                 num_ok++;
             else if(rv == -EADDRINUSE)
@@ -219,18 +995,27 @@ int blacklist_load_file(blacklist_t *bl, const char *path, blacklist_type btype,
 /* ******************************************************* */
 
 void blacklist_destroy(blacklist_t *bl) {
-    string_entry_t *entry, *tmp;
-    HASH_ITER(hh, bl->domains, entry, tmp) {
-        HASH_DELETE(hh, bl->domains, entry);
-        bl_free(entry->key);
-        bl_free(entry);
+    if(!bl->domains.mapped) {
+        if(bl->domains.slots)
+            bl_free(bl->domains.slots);
+        if(bl->domains.pool)
+            bl_free(bl->domains.pool);
     }
-
-    int_entry_t *entry_i, *tmp_i;
-    HASH_ITER(hh, bl->uids, entry_i, tmp_i) {
-        HASH_DELETE(hh, bl->uids, entry_i);
-        bl_free(entry_i);
+    if(!bl->ips_mapped && bl->ips)
+        bl_free(bl->ips);
+    if(bl->mapping)
+        munmap(bl->mapping, bl->mapping_size);
+    if(bl->domains_bloom.blocks)
+        bl_free(bl->domains_bloom.blocks);
+    if(bl->ips_bloom.blocks)
+        bl_free(bl->ips_bloom.blocks);
+
+    for(uint32_t i = 0; i < bl->num_uid_pages; i++) {
+        if(bl->uid_pages[i])
+            bl_free(bl->uid_pages[i]);
     }
+    if(bl->uid_pages)
+        bl_free(bl->uid_pages);
 
     ndpi_ptree_destroy(bl->ptree);
     bl_free(bl);
@@ -245,10 +1030,39 @@ bool blacklist_match_ip(blacklist_t *bl, const zdtun_ip_t *ip, int ipver) {
     else
         memcpy(&addr.ipv6, &ip->ip6, 16);
 
+    if(bl->num_ips == 0)
+        return false;
+
+    bl->ip_lookups.num_lookups++;
+    bool use_bloom = !bl->bloom_dirty && bl->ips_bloom.num_blocks;
+
+    if(use_bloom) {
+        // Check the networks of all the prefix lengths in the ptree
+        const uint64_t *prefixes = (ipver == 4) ? &bl->ip4_prefixes : bl->ip6_prefixes;
+        int max_bits = (ipver == 4) ? 32 : 128;
+        bool bloom_pass = false;
+
+        for(int bits = max_bits; bits >= 0; bits--) {
+            if((prefixes[bits >> 6] & (1ULL << (bits & 0x3F))) &&
+                    bloom_check(&bl->ips_bloom, ip_prefix_key(&addr, ipver, bits))) {
+                bloom_pass = true;
+                break;
+            }
+        }
+
+        if(!bloom_pass) {
+            bl->ip_lookups.num_filtered++;
+            return false;
+        }
+    }
+
     u_int64_t res = 0;
     ndpi_ptree_match_addr(bl->ptree, &addr, &res);
 
-    return(res == PCAPDROID_NDPI_CATEGORY_MALWARE);
+    bool matched = (res == PCAPDROID_NDPI_CATEGORY_MALWARE);
+    if(!matched && use_bloom)
+        bl->ip_lookups.num_false_positives++;
+    return matched;
 }
 
 /* ******************************************************* */
@@ -266,22 +1080,25 @@ bool blacklist_match_ipstr(blacklist_t *bl, const char *ip_str) {
 /* ******************************************************* */
 
 bool blacklist_match_domain(blacklist_t *bl, const char *domain) {
-    string_entry_t *entry = NULL;
-
     if(strncmp(domain, "www.", 4) == 0)
         domain += 4;
 
-    HASH_FIND_STR(bl->domains, domain, entry);
-    return(entry != NULL);
+    return domain_table_match(&bl->domains, bl->bloom_dirty ? NULL : &bl->domains_bloom,
+                              domain, &bl->domain_lookups);
 }
 
 /* ******************************************************* */
 
 bool blacklist_match_uid(blacklist_t *bl, int uid) {
-    int_entry_t *entry = NULL;
+    if(uid < 0)
+        return false;
+
+    uint32_t page_idx = uid >> UID_PAGE_BITS;
+    if((page_idx >= bl->num_uid_pages) || !bl->uid_pages[page_idx])
+        return false;
 
-    HASH_FIND_INT(bl->uids, &uid, entry);
-    return(entry != NULL);
+    uint32_t bit = uid & ((1 << UID_PAGE_BITS) - 1);
+    return((bl->uid_pages[page_idx][bit >> 6] >> (bit & 0x3F)) & 1);
 }
 
 /* ******************************************************* */
@@ -292,6 +1109,344 @@ void blacklist_get_stats(const blacklist_t *bl, blacklists_stats_t *stats) {
 
 /* ******************************************************* */
 
+void blacklist_get_lookup_stats(const blacklist_t *bl, blacklist_lookup_stats_t *ip_stats,
+                                blacklist_lookup_stats_t *domain_stats) {
+    *ip_stats = bl->ip_lookups;
+    *domain_stats = bl->domain_lookups;
+}
+
+/* ******************************************************* */
+
+/* Adds to delta the rules of bl which are not in other (which may be NULL) */
+static int diff_rules(blacklist_t *delta, const blacklist_t *bl, const blacklist_t *other) {
+    int rv = 0;
+
+    for(int uid = next_uid(bl, 0); uid >= 0; uid = next_uid(bl, uid + 1)) {
+        if((!other || !blacklist_match_uid((blacklist_t*) other, uid)) &&
+                ((rv = blacklist_add_uid(delta, uid)) != 0))
+            return rv;
+    }
+
+    for(uint32_t i = 0; i < bl->domains.size; i++) {
+        const domain_entry_t *entry = &bl->domains.slots[i];
+        if(!entry->flags)
+            continue;
+
+        const char *domain = bl->domains.pool + entry->offset;
+        const domain_entry_t *other_entry = other ?
+                domain_table_find(&other->domains, domain, entry->len, entry->hash) : NULL;
+
+        // Only keep the flags which changed, e.g. when a host rule becomes a domain rule
+        uint8_t flags = entry->flags & ~(other_entry ? other_entry->flags : 0);
+        if(!flags)
+            continue;
+
+        rv = domain_table_insert(&delta->domains, domain, entry->len, entry->hash, flags);
+        if(rv == 0)
+            delta->stats.num_domains++;
+        else if((rv != DOMAIN_ENTRY_SHARED) && (rv != -EADDRINUSE))
+            return rv;
+    }
+    delta->bloom_dirty = true;
+
+    // The ptree cannot be iterated nor looked up for exact matches, so use a sorted copy
+    uint32_t num_other = other ? other->num_ips : 0;
+    ip_entry_t *other_ips = NULL;
+
+    if(num_other > 0) {
+        other_ips = bl_malloc(num_other * sizeof(ip_entry_t));
+        if(!other_ips)
+            return -ENOMEM;
+
+        memcpy(other_ips, other->ips, num_other * sizeof(ip_entry_t));
+        qsort(other_ips, num_other, sizeof(ip_entry_t), ip_entry_cmp);
+    }
+
+    for(uint32_t i = 0; i < bl->num_ips; i++) {
+        const ip_entry_t *entry = &bl->ips[i];
+
+        if(other_ips && bsearch(entry, other_ips, num_other, sizeof(ip_entry_t), ip_entry_cmp))
+            continue;
+
+        rv = blacklist_add_ip(delta, &entry->addr, entry->bits, entry->ipver);
+        if(rv == -EADDRINUSE)
+            rv = 0;
+        else if(rv != 0)
+            break;
+    }
+
+    if(other_ips)
+        bl_free(other_ips);
+    return rv;
+}
+
+/* ******************************************************* */
+
+/* Returns a new blacklist with the rules which are only in one of old_bl and new_bl, that is the
+ * rules added or removed when replacing old_bl with new_bl. This allows to only re-check the
+ * items affected by the change. Any of old_bl and new_bl can be NULL, meaning an empty blacklist.
+ * Returns NULL on error. */
+blacklist_t* blacklist_diff(const blacklist_t *old_bl, const blacklist_t *new_bl) {
+    blacklist_t *delta = blacklist_init();
+    if(!delta)
+        return NULL;
+
+    if((old_bl && (diff_rules(delta, old_bl, new_bl) != 0)) ||
+            (new_bl && (diff_rules(delta, new_bl, old_bl) != 0))) {
+        blacklist_destroy(delta);
+        return NULL;
+    }
+
+    return delta;
+}
+
+/* ******************************************************* */
+
+// Fills the list info of the specified file, to be compared with the one stored in the snapshot
+int blacklist_snapshot_list_info(bl_snapshot_list_t *info, const char *path, const char *fname,
+                                 blacklist_type btype) {
+    struct stat st;
+
+    memset(info, 0, sizeof(*info));
+    strncpy(info->fname, fname, sizeof(info->fname) - 1);
+    info->type = btype;
+
+    if(stat(path, &st) != 0)
+        return -errno;
+
+    info->mtime = st.st_mtime;
+    info->size = st.st_size;
+    return 0;
+}
+
+/* ******************************************************* */
+
+// NOTE: the data length must be a multiple of 8, except for the last chunk
+static uint64_t snapshot_checksum(uint64_t csum, const void *data, size_t len) {
+    const uint8_t *p = data;
+    size_t i = 0;
+
+    for(; i + 8 <= len; i += 8) {
+        uint64_t word;
+
+        memcpy(&word, p + i, 8);
+        csum = (csum ^ word) * 0x100000001b3ULL;
+        csum ^= csum >> 29;
+    }
+    for(; i < len; i++)
+        csum = (csum ^ p[i]) * 0x100000001b3ULL;
+
+    return csum;
+}
+
+/* ******************************************************* */
+
+// csum can be NULL to skip the checksum of the section
+static int snapshot_write_section(FILE *f, const void *data, size_t len, uint64_t *csum) {
+    static const uint8_t zeros[8] = {0};
+    size_t padding = PAD8(len) - len;
+
+    if((len > 0) && (fwrite(data, len, 1, f) != 1))
+        return -1;
+    if((padding > 0) && (fwrite(zeros, padding, 1, f) != 1))
+        return -1;
+    if(!csum)
+        return 0;
+
+    // checksum the data in 8 bytes words, as in blacklist_load_snapshot
+    size_t aligned = len - (len % 8);
+    *csum = snapshot_checksum(*csum, data, aligned);
+
+    if(padding > 0) {
+        uint8_t last[8] = {0};
+
+        memcpy(last, (const uint8_t*)data + aligned, len - aligned);
+        *csum = snapshot_checksum(*csum, last, 8);
+    }
+    return 0;
+}
+
+/* ******************************************************* */
+
+/* Saves the domains and the IPs of the blacklist into a binary snapshot, which can be loaded
+ * with blacklist_load_snapshot. The lists info are used to check if the snapshot is stale.
+ * The file is written atomically. */
+int blacklist_save_snapshot(const blacklist_t *bl, const char *path,
+                            const bl_snapshot_list_t *lists, int num_lists) {
+    char tmp_path[PATH_MAX];
+    snapshot_hdr_t hdr;
+    uint64_t csum = 0xcbf29ce484222325ULL;
+
+    if(snprintf(tmp_path, sizeof(tmp_path), "%s.tmp", path) >= (int) sizeof(tmp_path))
+        return -ENAMETOOLONG;
+
+    FILE *f = fopen(tmp_path, "wb");
+    if(!f) {
+        log_e("Could not create blacklist snapshot \"%s\" [%d]: %s", tmp_path, errno, strerror(errno));
+        return -errno;
+    }
+
+    memset(&hdr, 0, sizeof(hdr)); // also zero the padding, which is checksummed
+    memcpy(hdr.magic, SNAPSHOT_MAGIC, sizeof(hdr.magic));
+    hdr.version = SNAPSHOT_VERSION;
+    hdr.num_lists = num_lists;
+    hdr.num_slots = bl->domains.size;
+    hdr.num_domains = bl->domains.count;
+    hdr.num_ips = bl->num_ips;
+    hdr.pool_len = bl->domains.pool_len;
+    hdr.stats = bl->stats;
+
+    // the header is rewritten with the checksum at the end
+    bool ok = (fwrite(&hdr, sizeof(hdr), 1, f) == 1) &&
+        (snapshot_write_section(f, lists, num_lists * sizeof(bl_snapshot_list_t), &csum) == 0) &&
+        (snapshot_write_section(f, bl->domains.slots, bl->domains.size * sizeof(domain_entry_t), NULL) == 0) &&
+        (snapshot_write_section(f, bl->ips, bl->num_ips * sizeof(ip_entry_t), NULL) == 0) &&
+        (snapshot_write_section(f, bl->domains.pool, bl->domains.pool_len, NULL) == 0);
+
+    if(ok) {
+        hdr.checksum = snapshot_checksum(csum, &hdr, sizeof(hdr));
+        ok = (fseek(f, 0, SEEK_SET) == 0) && (fwrite(&hdr, sizeof(hdr), 1, f) == 1);
+    }
+
+    if((fclose(f) != 0) || !ok || (rename(tmp_path, path) != 0)) {
+        log_e("Could not write blacklist snapshot \"%s\" [%d]: %s", path, errno, strerror(errno));
+        unlink(tmp_path);
+        return -1;
+    }
+
+    return 0;
+}
+
+/* ******************************************************* */
+
+/* Loads a blacklist from a snapshot saved with blacklist_save_snapshot. The domains table is
+ * mapped in memory, and only copied to the heap if the blacklist is modified.
+ * Returns NULL if the snapshot is not valid or stale, i.e. its lists info do not match the
+ * provided ones. On success, the num_rules of the lists are set from the snapshot. */
+blacklist_t* blacklist_load_snapshot(const char *path, bl_snapshot_list_t *lists, int num_lists) {
+    struct stat st;
+    blacklist_t *bl = NULL;
+    void *mapping = MAP_FAILED;
+
+    int fd = open(path, O_RDONLY);
+    if(fd < 0)
+        return NULL;
+
+    if((fstat(fd, &st) != 0) || (st.st_size < (off_t) sizeof(snapshot_hdr_t)))
+        goto invalid;
+
+    mapping = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    if(mapping == MAP_FAILED)
+        goto invalid;
+
+    const snapshot_hdr_t *hdr = mapping;
+    if((memcmp(hdr->magic, SNAPSHOT_MAGIC, sizeof(hdr->magic)) != 0) ||
+            (hdr->version != SNAPSHOT_VERSION) ||
+            (hdr->num_slots & (hdr->num_slots - 1)) || // must be a power of 2
+            (hdr->num_slots ? (hdr->num_domains >= hdr->num_slots) : (hdr->num_domains != 0)))
+        goto invalid;
+
+    size_t lists_off = PAD8(sizeof(snapshot_hdr_t));
+    size_t slots_off = lists_off + PAD8((size_t)hdr->num_lists * sizeof(bl_snapshot_list_t));
+    size_t ips_off = slots_off + PAD8((size_t)hdr->num_slots * sizeof(domain_entry_t));
+    size_t pool_off = ips_off + PAD8((size_t)hdr->num_ips * sizeof(ip_entry_t));
+    size_t total = pool_off + PAD8(hdr->pool_len);
+
+    if(total != (size_t) st.st_size)
+        goto invalid;
+
+    // Verify the header and the lists info, see blacklist_save_snapshot
+    snapshot_hdr_t hdr_copy;
+    memcpy(&hdr_copy, hdr, sizeof(hdr_copy));
+    hdr_copy.checksum = 0;
+
+    uint64_t csum = snapshot_checksum(0xcbf29ce484222325ULL, (char*)mapping + lists_off, slots_off - lists_off);
+    if(snapshot_checksum(csum, &hdr_copy, sizeof(hdr_copy)) != hdr->checksum)
+        goto invalid;
+
+    // Check if stale
+    const bl_snapshot_list_t *snap_lists = (const bl_snapshot_list_t*)((char*)mapping + lists_off);
+    if(hdr->num_lists != num_lists)
+        goto stale;
+
+    for(int i = 0; i < num_lists; i++) {
+        const bl_snapshot_list_t *a = &lists[i], *b = &snap_lists[i];
+
+        if((strcmp(a->fname, b->fname) != 0) || (a->type != b->type) ||
+                (a->mtime != b->mtime) || (a->size != b->size))
+            goto stale;
+    }
+
+    // The slots are read anyway to build the prefilter, see blacklist_build_prefilter
+    const domain_entry_t *slots = (const domain_entry_t*)((char*)mapping + slots_off);
+    uint32_t used_slots = 0;
+
+    for(uint32_t i = 0; i < hdr->num_slots; i++) {
+        if(slots[i].flags)
+            used_slots++;
+    }
+    if(used_slots != hdr->num_domains)
+        goto invalid;
+
+    bl = blacklist_init();
+    if(!bl)
+        goto invalid;
+
+    bl->mapping = mapping;
+    bl->mapping_size = st.st_size;
+    bl->stats = hdr->stats;
+
+    bl->domains.slots = (domain_entry_t*)((char*)mapping + slots_off);
+    bl->domains.size = hdr->num_slots;
+    bl->domains.count = hdr->num_domains;
+    bl->domains.pool = (char*)mapping + pool_off;
+    bl->domains.pool_len = hdr->pool_len;
+    bl->domains.pool_size = hdr->pool_len;
+    bl->domains.mapped = true;
+
+    // ptree is not serializable, rebuild it
+    bl->ips = (ip_entry_t*)((char*)mapping + ips_off);
+    bl->num_ips = hdr->num_ips;
+    bl->ips_size = hdr->num_ips;
+    bl->ips_mapped = true;
+
+    for(uint32_t i = 0; i < bl->num_ips; i++) {
+        ip_entry_t *entry = &bl->ips[i];
+
+        bool valid = ((entry->ipver == 4) && (entry->bits <= 32)) ||
+            ((entry->ipver == 6) && (entry->bits <= 128));
+
+        if(!valid || (ndpi_ptree_insert(bl->ptree, &entry->addr, entry->bits, PCAPDROID_NDPI_CATEGORY_MALWARE) != 0)) {
+            log_w("Invalid IP in blacklist snapshot");
+            blacklist_destroy(bl);
+            close(fd);
+            return NULL;
+        }
+        add_ip_prefix(bl, entry->ipver, entry->bits);
+    }
+
+    for(int i = 0; i < num_lists; i++)
+        lists[i].num_rules = snap_lists[i].num_rules;
+
+    close(fd);
+    return bl;
+
+stale:
+    log_d("Blacklist snapshot is stale");
+    munmap(mapping, st.st_size);
+    close(fd);
+    return NULL;
+
+invalid:
+    log_w("Invalid blacklist snapshot \"%s\"", path);
+    if(mapping != MAP_FAILED)
+        munmap(mapping, st.st_size);
+    close(fd);
+    return NULL;
+}
+
+/* ******************************************************* */
+
 #if ANDROID
 
 static int bl_load_list_of_type(blacklist_t *bl, JNIEnv *env, jobject list, blacklist_type tp) {
@@ -308,7 +1463,11 @@ static int bl_load_list_of_type(blacklist_t *bl, JNIEnv *env, jobject list, blac
                     rv = blacklist_add_ipstr(bl, val);
                     break;
                 case DOMAIN_BLACKLIST:
-                    rv = blacklist_add_domain(bl, val);
+                    // MatchList HOST rules only match the exact host
+                    rv = blacklist_add_host(bl, val);
+                    break;
+                case WILDCARD_BLACKLIST:
+                    rv = blacklist_add_wildcard(bl, val);
                     break;
                 case UID_BLACKLIST:
                     rv = blacklist_add_uid(bl, atoi(val));
@@ -316,13 +1475,15 @@ static int bl_load_list_of_type(blacklist_t *bl, JNIEnv *env, jobject list, blac
                 default:
                     rv = -1;
             }
-            (*env)->ReleaseStringUTFChars(env, obj, val);
-            (*env)->DeleteLocalRef(env, obj);
 
-            if(rv != 0) {
-                log_e("bl add %s failed: %d", val, rv);
-                return -1;
+            // Skip the invalid entries, as done by the MatchList
+            if((rv != 0) && (rv != -EADDRINUSE)) {
+                log_w("bl add %s failed: %d", val, rv);
+                bl->stats.num_failed++;
             }
+
+            (*env)->ReleaseStringUTFChars(env, obj, val);
+            (*env)->DeleteLocalRef(env, obj);
         }
     }
 
@@ -335,17 +1496,20 @@ int blacklist_load_list_descriptor(blacklist_t *bl, JNIEnv *env, jobject ld) {
     jobject apps = (*env)->GetObjectField(env, ld, fields.ld_apps);
     jobject hosts = (*env)->GetObjectField(env, ld, fields.ld_hosts);
     jobject ips = (*env)->GetObjectField(env, ld, fields.ld_ips);
+    jobject wildcards = (*env)->GetObjectField(env, ld, fields.ld_wildcards);
 
     int num_apps = bl_load_list_of_type(bl, env, apps, UID_BLACKLIST);
     int num_domains = bl_load_list_of_type(bl, env, hosts, DOMAIN_BLACKLIST);
     int num_ips = bl_load_list_of_type(bl, env, ips, IP_BLACKLIST);
+    int num_wildcards = bl_load_list_of_type(bl, env, wildcards, WILDCARD_BLACKLIST);
 
-    if((num_apps == -1) || (num_ips == -1) || (num_domains == -1))
+    if((num_apps == -1) || (num_ips == -1) || (num_domains == -1) || (num_wildcards == -1))
         return -1;
 
     (*env)->DeleteLocalRef(env, apps);
     (*env)->DeleteLocalRef(env, hosts);
     (*env)->DeleteLocalRef(env, ips);
+    (*env)->DeleteLocalRef(env, wildcards);
     return 0;
 }
 
@@ -43,10 +43,17 @@ typedef struct {
     int num_failed;
 } blacklists_stats_t;
 
+typedef struct {
+    uint64_t num_lookups;
+    uint64_t num_filtered;          // lookups answered by the prefilter (negative)
+    uint64_t num_false_positives;   // lookups which passed the prefilter, but did not match
+} blacklist_lookup_stats_t;
+
 typedef enum {
     DOMAIN_BLACKLIST,
     IP_BLACKLIST,
-    UID_BLACKLIST
+    UID_BLACKLIST,
+    WILDCARD_BLACKLIST, // domains matching their subdomains
 } blacklist_type;
 
 typedef struct {
@@ -59,6 +66,15 @@ typedef struct {
     int num_rules;
 } bl_status_t;
 
+// Identifies a blacklist file stored in a snapshot, see blacklist_save_snapshot
+typedef struct {
+    char fname[64];
+    int64_t mtime;
+    int64_t size;
+    int32_t type;
+    int32_t num_rules;
+} bl_snapshot_list_t;
+
 typedef struct {
     bl_status_t *items;
     int size;
@@ -68,9 +84,16 @@ typedef struct {
 blacklist_t* blacklist_init();
 void blacklist_destroy(blacklist_t *bl);
 int blacklist_add_domain(blacklist_t *bl, const char *domain);
-int blacklist_add_ip(blacklist_t *bl, const ndpi_ip_addr_t *addr, uint8_t ipver);
+int blacklist_add_host(blacklist_t *bl, const char *domain);
+int blacklist_add_wildcard(blacklist_t *bl, const char *domain);
+int blacklist_add_ip(blacklist_t *bl, const ndpi_ip_addr_t *addr, uint8_t bits, int ipver);
 int blacklist_add_ipstr(blacklist_t *bl, const char *ip);
 int blacklist_add_uid(blacklist_t *bl, int uid);
+int blacklist_remove_domain(blacklist_t *bl, const char *domain);
+int blacklist_remove_host(blacklist_t *bl, const char *domain);
+int blacklist_remove_ip(blacklist_t *bl, const ndpi_ip_addr_t *addr, uint8_t bits, int ipver);
+int blacklist_remove_ipstr(blacklist_t *bl, const char *ip);
+int blacklist_remove_uid(blacklist_t *bl, int uid);
 int blacklist_load_file(blacklist_t *bl, const char *path, blacklist_type btype, blacklist_stats_t *bstats);
 #ifdef ANDROID
 int blacklist_load_list_descriptor(blacklist_t *bl, JNIEnv *env, jobject ld);
@@ -80,5 +103,14 @@ bool blacklist_match_ipstr(blacklist_t *bl, const char *ip);
 bool blacklist_match_domain(blacklist_t *bl, const char *domain);
 bool blacklist_match_uid(blacklist_t *bl, int uid);
 void blacklist_get_stats(const blacklist_t *bl, blacklists_stats_t *stats);
+void blacklist_build_prefilter(blacklist_t *bl);
+void blacklist_get_lookup_stats(const blacklist_t *bl, blacklist_lookup_stats_t *ip_stats,
+                                blacklist_lookup_stats_t *domain_stats);
+blacklist_t* blacklist_diff(const blacklist_t *old_bl, const blacklist_t *new_bl);
+int blacklist_snapshot_list_info(bl_snapshot_list_t *info, const char *path, const char *fname,
+                                 blacklist_type btype);
+int blacklist_save_snapshot(const blacklist_t *bl, const char *path,
+                            const bl_snapshot_list_t *lists, int num_lists);
+blacklist_t* blacklist_load_snapshot(const char *path, bl_snapshot_list_t *lists, int num_lists);
 
 #endif //PCAPDROID_BLACKLIST_H
@@ -17,7 +17,12 @@
  * Copyright 2021 - Emanuele Faranda
  */
 
+#include <stddef.h>
 #include <sys/un.h>
+#include <sys/epoll.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#include <linux/memfd.h>
 #include <linux/limits.h>
 #include <sys/wait.h>
 #include <paths.h>
@@ -38,12 +43,21 @@ extern int nextPacket(pcapdroid_t *pd, pcapd_hdr_t *hdr, char *buf, size_t bufsi
 #define UDP_TIMEOUT_SEC 30
 #define TCP_CLOSED_TIMEOUT_SEC 60   // some servers keep sending FIN+ACK after close
 #define TCP_TIMEOUT_SEC 300         // needs to be large as TCP connections may stay active for a long time
+#define CONN_TIMER_TICK_MS 1000
+
+// pcapd sends multiple records per write, which are read into a single buffer. Must be able to
+// hold at least a full record.
+#define PCAPD_RECV_BUFSIZE (256 * 1024)
+
+// Size of the shared memory ring, see pcapd_ring_t
+#define PCAPD_RING_SIZE (4 * 1024 * 1024)
 
 /* ******************************************************* */
 
 typedef struct pcap_conn_t {
     zdtun_5tuple_t tuple;
     pd_conn_t *data;
+    twheel_entry_t timer;       // scheduled on the idle timeout, see conn_timeout_expired
 
     UT_hash_handle hh;
 } pcap_conn_t;
@@ -178,7 +192,69 @@ static bool valid_bpf(const char *bpf) {
 
 /* ******************************************************* */
 
-static int connectPcapd(pcapdroid_t *pd) {
+// Creates the shared memory ring to receive the packets from pcapd. On success, the ring memfd is
+// returned into ring_fd.
+static pcapd_ring_t* create_pcapd_ring(int *ring_fd) {
+#ifdef __NR_memfd_create
+    size_t maplen = PCAPD_RING_DATA_OFFSET + PCAPD_RING_SIZE;
+    int fd = syscall(__NR_memfd_create, "pcapd_ring", MFD_CLOEXEC);
+
+    if(fd < 0) {
+        log_w("memfd_create failed[%d]: %s", errno, strerror(errno));
+        return NULL;
+    }
+
+    if(ftruncate(fd, maplen) < 0) {
+        log_w("ring ftruncate failed[%d]: %s", errno, strerror(errno));
+        close(fd);
+        return NULL;
+    }
+
+    void *mem = mmap(NULL, maplen, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    if(mem == MAP_FAILED) {
+        log_w("ring mmap failed[%d]: %s", errno, strerror(errno));
+        close(fd);
+        return NULL;
+    }
+
+    // NOTE: the memory is zero-filled
+    pcapd_ring_t *ring = (pcapd_ring_t*) mem;
+    ring->magic = PCAPD_RING_MAGIC;
+    ring->size = PCAPD_RING_SIZE;
+
+    *ring_fd = fd;
+    return ring;
+#else
+    return NULL;
+#endif
+}
+
+/* ******************************************************* */
+
+static int send_ring_fd(int sock, int ring_fd) {
+    char data = 0;
+    char cmsgbuf[CMSG_SPACE(sizeof(int))];
+    struct iovec iov = {.iov_base = &data, .iov_len = 1};
+    struct msghdr msg = {
+        .msg_iov = &iov,
+        .msg_iovlen = 1,
+        .msg_control = cmsgbuf,
+        .msg_controllen = sizeof(cmsgbuf),
+    };
+
+    memset(cmsgbuf, 0, sizeof(cmsgbuf));
+    struct cmsghdr *cmsg = CMSG_FIRSTHDR(&msg);
+    cmsg->cmsg_level = SOL_SOCKET;
+    cmsg->cmsg_type = SCM_RIGHTS;
+    cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+    memcpy(CMSG_DATA(cmsg), &ring_fd, sizeof(int));
+
+    return (sendmsg(sock, &msg, 0) == 1) ? 0 : -1;
+}
+
+/* ******************************************************* */
+
+static int connectPcapd(pcapdroid_t *pd, int ring_fd) {
     int sock;
     int client = -1;
     char pcapd[PATH_MAX];
@@ -242,8 +318,9 @@ static int connectPcapd(pcapdroid_t *pd) {
 #endif
 
     // Start the daemon
-    char args[256];
-    snprintf(args, sizeof(args), "-l pcapd.log -i '%s' -d -u %d -t -b '%s'", pd->root.capture_interface, pd->app_filter, bpf);
+    char args[1024];
+    snprintf(args, sizeof(args), "-l pcapd.log -i '%s' -d -u %d -t -r -b '%s'%s", pd->root.capture_interface,
+             pd->app_filter, bpf, (ring_fd >= 0) ? " -m" : "");
     if(run_cmd(pcapd, args, pd->root.as_root, true) != 0)
         goto cleanup;
 
@@ -267,6 +344,12 @@ static int connectPcapd(pcapdroid_t *pd) {
 
     log_d("Connected to pcapd");
 
+    if((ring_fd >= 0) && (send_ring_fd(client, ring_fd) < 0)) {
+        log_f("could not send the ring to pcapd[%d]: %s", errno, strerror(errno));
+        close(client);
+        client = -1;
+    }
+
 cleanup:
     unlink(PCAPD_SOCKET_PATH);
     close(sock);
@@ -276,6 +359,30 @@ cleanup:
 
 /* ******************************************************* */
 
+static uint64_t get_idle_timeout_ms(pcap_conn_t *conn) {
+    switch(conn->tuple.ipproto) {
+        case IPPROTO_TCP:
+            return (conn->data->status >= CONN_STATUS_CLOSED) ? (TCP_CLOSED_TIMEOUT_SEC * 1000) : (TCP_TIMEOUT_SEC * 1000);
+        case IPPROTO_UDP:
+            return UDP_TIMEOUT_SEC * 1000;
+        case IPPROTO_ICMP:
+            return ICMP_TIMEOUT_SEC * 1000;
+        default:
+            return 0;
+    }
+}
+
+/* ******************************************************* */
+
+// The timer is not moved on each packet: the expiration is checked against the last_update_ms
+// when it fires (see conn_timeout_expired)
+static void schedule_idle_timeout(pcapdroid_t *pd, pcap_conn_t *conn) {
+    twheel_add(&pd->root.conn_timers, &conn->timer,
+               conn->data->root.last_update_ms + get_idle_timeout_ms(conn));
+}
+
+/* ******************************************************* */
+
 static void remove_connection(pcapdroid_t *pd, pcap_conn_t *conn) {
     switch (conn->tuple.ipproto) {
         case IPPROTO_TCP:
@@ -289,6 +396,7 @@ static void remove_connection(pcapdroid_t *pd, pcap_conn_t *conn) {
             break;
     }
 
+    twheel_remove(&pd->root.conn_timers, &conn->timer);
     HASH_DEL(pd->root.connections, conn);
     pd_free(conn);
 }
@@ -328,6 +436,10 @@ static void update_connection_status(pcapdroid_t *nc, pcap_conn_t *conn, zdtun_p
           else
               data->status = CONN_STATUS_CONNECTING;
       }
+
+      // use the shorter TCP_CLOSED_TIMEOUT_SEC
+      if(data->status >= CONN_STATUS_CLOSED)
+          schedule_idle_timeout(nc, conn);
   } else {
       if(data->status < CONN_STATUS_CONNECTED)
         data->status = CONN_STATUS_CONNECTED;
@@ -361,7 +473,7 @@ static void update_connection_status(pcapdroid_t *nc, pcap_conn_t *conn, zdtun_p
 
 /* ******************************************************* */
 
-static void handle_packet(pcapdroid_t *pd, pcapd_hdr_t *hdr, const char *buffer) {
+static void handle_packet(pcapdroid_t *pd, const pcapd_hdr_t *hdr, const char *buffer) {
     zdtun_pkt_t pkt;
     pcap_conn_t *conn = NULL;
     uint8_t is_tx = (hdr->flags & PCAPD_FLAG_TX); // NOTE: the direction uses an heuristic so it may be wrong
@@ -398,7 +510,7 @@ static void handle_packet(pcapdroid_t *pd, pcapd_hdr_t *hdr, const char *buffer)
     if((pkt.flags & ZDTUN_PKT_IS_FRAGMENT) &&
             (pkt.tuple.src_port == 0) && (pkt.tuple.dst_port == 0)) {
         // This fragment cannot be mapped to the original src/dst ports. This may happen if the first
-        // IP fragment is lost or was not captured (e.g. for packets matching the BPF of getPcapDumperBpf).
+        // IP fragment is lost or was not captured (e.g. for packets matching the BPF of getPcapdBpf).
         // In such a case, we can only ignore the packet as we cannot determine the connection it belongs to.
 
         //log_d("unmatched IP fragment (ID = 0x%04x)", pkt.ip4->id);
@@ -430,7 +542,7 @@ static void handle_packet(pcapdroid_t *pd, pcapd_hdr_t *hdr, const char *buffer)
             is_tx = !is_tx;
             tupleSwapPeers(&pkt.tuple);
 
-            conn = pd_malloc(sizeof(pcap_conn_t));
+            conn = pd_calloc(1, sizeof(pcap_conn_t));
             if(!conn) {
                 log_e("malloc(pcap_conn_t) failed with code %d/%s",
                       errno, strerror(errno));
@@ -470,6 +582,9 @@ static void handle_packet(pcapdroid_t *pd, pcapd_hdr_t *hdr, const char *buffer)
     // like last_seen but monotonic
     conn->data->root.last_update_ms = pd->now_ms;
 
+    if(!conn->timer.slot) // new connection
+        schedule_idle_timeout(pd, conn);
+
     // make a copy before passing it to pd_process_packet since conn may
     // be freed in update_connection_status, while the pkt_context_t is still
     // used in pd_account_stats
@@ -487,46 +602,53 @@ static void handle_packet(pcapdroid_t *pd, pcapd_hdr_t *hdr, const char *buffer)
 
 /* ******************************************************* */
 
-static void purge_expired_connections(pcapdroid_t *pd, uint8_t purge_all) {
-    pcap_conn_t *conn, *tmp;
+static void purge_connection(pcapdroid_t *pd, pcap_conn_t *conn) {
+    //log_d("IDLE (type=%d)", conn->tuple.ipproto);
 
-    HASH_ITER(hh, pd->root.connections, conn, tmp) {
-        uint64_t timeout = 0;
+    conn->data->to_purge = true;
 
-        switch(conn->tuple.ipproto) {
-            case IPPROTO_TCP:
-                timeout = (conn->data->status >= CONN_STATUS_CLOSED) ? (TCP_CLOSED_TIMEOUT_SEC * 1000) : (TCP_TIMEOUT_SEC * 1000);
-                break;
-            case IPPROTO_UDP:
-                timeout = UDP_TIMEOUT_SEC * 1000;
-                break;
-            case IPPROTO_ICMP:
-                timeout = ICMP_TIMEOUT_SEC + 1000;
-                break;
-        }
+    if(conn->data->status < CONN_STATUS_CLOSED) {
+        conn->data->status = CONN_STATUS_CLOSED;
+        conn->data->update_type |= CONN_UPDATE_STATS;
+    }
 
-        if(purge_all || (pd->now_ms >= (conn->data->root.last_update_ms + timeout))) {
-            //log_d("IDLE (type=%d)", conn->tuple.ipproto);
+    if((conn->data->update_type != 0) || (conn->data->dpi.pending_jobs > 0)) {
+        // The connection data cannot be free now as it is enqueued in a conn_array_t, or it is
+        // referenced by the DPI jobs. It will be free in sendConnectionsDump.
+        pd_notify_connection_update(pd, &conn->tuple, conn->data);
+    } else {
+        pd_purge_connection(pd, conn->data);
+        conn->data = NULL;
+    }
 
-            conn->data->to_purge = true;
+    remove_connection(pd, conn);
+}
 
-            if(conn->data->status < CONN_STATUS_CLOSED) {
-                conn->data->status = CONN_STATUS_CLOSED;
-                conn->data->update_type |= CONN_UPDATE_STATS;
-            }
+/* ******************************************************* */
 
-            if(conn->data->update_type != 0) {
-                // The connection data cannot be free now as it is enqueued in a conn_array_t.
-                // It will be free in sendConnectionsDump.
-                pd_notify_connection_update(pd, &conn->tuple, conn->data);
-            } else {
-                pd_purge_connection(pd, conn->data);
-                conn->data = NULL;
-            }
+static void conn_timeout_expired(twheel_t *tw, twheel_entry_t *entry, void *userdata) {
+    pcapdroid_t *pd = (pcapdroid_t*) userdata;
+    pcap_conn_t *conn = (pcap_conn_t*) ((char*)entry - offsetof(pcap_conn_t, timer));
 
-            remove_connection(pd, conn);
+    // the connection may have been active after the timer was scheduled
+    if(pd->now_ms < (conn->data->root.last_update_ms + get_idle_timeout_ms(conn)))
+        schedule_idle_timeout(pd, conn);
+    else
+        purge_connection(pd, conn);
+}
+
+/* ******************************************************* */
+
+// Only visits the connections whose idle timeout is due, see conn_timeout_expired
+static void purge_expired_connections(pcapdroid_t *pd, uint8_t purge_all) {
+    if(purge_all) {
+        pcap_conn_t *conn, *tmp;
+
+        HASH_ITER(hh, pd->root.connections, conn, tmp) {
+            purge_connection(pd, conn);
         }
-    }
+    } else
+        twheel_advance(&pd->root.conn_timers, pd->now_ms, conn_timeout_expired, pd);
 }
 
 /* ******************************************************* */
@@ -542,28 +664,94 @@ void root_iter_connections(pcapdroid_t *pd, conn_cb cb) {
 
 /* ******************************************************* */
 
+// Processes the records available in the ring. Returns -1 if the ring is corrupted.
+static int process_ring(pcapdroid_t *pd, pcapd_ring_t *ring) {
+    const char *data = (const char*)ring + PCAPD_RING_DATA_OFFSET;
+    uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_relaxed);
+    uint32_t head = atomic_load_explicit(&ring->head, memory_order_acquire);
+
+    while(running && (tail != head)) {
+        uint32_t ofs = tail & (PCAPD_RING_SIZE - 1);
+        uint32_t avail = PCAPD_RING_SIZE - ofs;
+
+        if(avail >= sizeof(pcapd_hdr_t)) {
+            const pcapd_hdr_t *hdr = (const pcapd_hdr_t*) (data + ofs);
+            uint32_t reclen = sizeof(pcapd_hdr_t) + hdr->len + PCAPD_RECORD_PADDING(hdr->len);
+
+            if((reclen > avail) || (reclen > (head - tail))) {
+                log_e("corrupted ring record (%u B)", reclen);
+                return -1;
+            }
+
+            if(!(hdr->flags & PCAPD_FLAG_SKIP)) {
+                pd->num_dropped_pkts = hdr->pkt_drops;
+                handle_packet(pd, hdr, data + ofs + sizeof(pcapd_hdr_t));
+            }
+
+            tail += reclen;
+        } else
+            // too small to contain a record, skip to the ring beginning
+            tail += avail;
+
+        // release the space to pcapd
+        atomic_store_explicit(&ring->tail, tail, memory_order_release);
+    }
+
+    return 0;
+}
+
+/* ******************************************************* */
+
 int run_root(pcapdroid_t *pd) {
     int sock = -1;
+    int epfd = -1;
+    bool sock_always_ready = false;
     int rv = -1;
+#ifndef FUZZING
+    char *rxbuf = NULL;
+    size_t rxbuf_len = 0;
+    pcapd_ring_t *ring = NULL;
+    int ring_fd = -1;
+#else
     char buffer[PCAPD_SNAPLEN];
+#endif
     u_int64_t next_purge_ms;
     zdtun_callbacks_t callbacks = {.send_client = (void*)1};
 
 #if ANDROID
     char capture_interface[16] = "@inet";
-    char bpf[256];
+    char bpf[512];
     bpf[0] = '\0';
 
     pd->root.as_root = true; // TODO support read from PCAP file
-    pd->root.bpf = getStringPref(pd, "getPcapDumperBpf", bpf, sizeof(bpf));
+    pd->root.bpf = getStringPref(pd, "getPcapdBpf", bpf, sizeof(bpf));
     pd->root.capture_interface = getStringPref(pd, "getCaptureInterface", capture_interface, sizeof(capture_interface));
+
+    if(strlen(bpf) >= (sizeof(bpf) - 1)) {
+        // getStringPref truncated it
+        log_f("The BPF is too long");
+        return(-1);
+    }
 #endif
 
     if((pd->zdt = zdtun_init(&callbacks, NULL)) == NULL)
         return(-1);
 
 #ifndef FUZZING
-    if((sock = connectPcapd(pd)) < 0) {
+    if((rxbuf = pd_malloc(PCAPD_RECV_BUFSIZE)) == NULL) {
+        log_f("malloc(%d) failed", PCAPD_RECV_BUFSIZE);
+        goto cleanup;
+    }
+
+    ring = create_pcapd_ring(&ring_fd);
+
+    sock = connectPcapd(pd, ring_fd);
+
+    if(ring_fd >= 0)
+        // not needed anymore, the mapping stays valid
+        close(ring_fd);
+
+    if(sock < 0) {
         rv = -1;
         goto cleanup;
     }
@@ -575,57 +763,110 @@ int run_root(pcapdroid_t *pd) {
     }
 #endif
 
+    if((epfd = epoll_create1(EPOLL_CLOEXEC)) < 0) {
+        log_e("epoll_create1 failed[%d]: %s", errno, strerror(errno));
+        goto cleanup;
+    }
+
+    // The socket is registered once, the epoll_wait cost does not depend on the fds number
+    struct epoll_event sock_ev = {.events = EPOLLIN, .data.fd = sock};
+
+    if(epoll_ctl(epfd, EPOLL_CTL_ADD, sock, &sock_ev) < 0) {
+        if(errno == EPERM) {
+            // regular files (e.g. a PCAP file) cannot be polled but they are always readable
+            sock_always_ready = true;
+        } else {
+            log_e("epoll_ctl failed[%d]: %s", errno, strerror(errno));
+            goto cleanup;
+        }
+    }
+
     pd_refresh_time(pd);
+    twheel_init(&pd->root.conn_timers, CONN_TIMER_TICK_MS, pd->now_ms);
     next_purge_ms = pd->now_ms + PERIODIC_PURGE_TIMEOUT_MS;
 
     log_d("Starting packet loop");
 
     while(running) {
-        pcapd_hdr_t hdr;
-        fd_set fdset = {0};
+        struct epoll_event ev;
+        int num_events = 1;
 
-        FD_SET(sock, &fdset);
+        if(!sock_always_ready) {
+            num_events = epoll_wait(epfd, &ev, 1, SELECT_TIMEOUT_MS);
 
-        struct timeval timeout = {.tv_sec = 0, .tv_usec = SELECT_TIMEOUT_MS * 1000};
-
-        if(select(sock + 1, &fdset, NULL, NULL, &timeout) < 0) {
-            log_e("select failed[%d]: %s", errno, strerror(errno));
-            goto cleanup;
+            if((num_events < 0) && (errno != EINTR)) {
+                log_e("epoll_wait failed[%d]: %s", errno, strerror(errno));
+                goto cleanup;
+            }
         }
 
         pd_refresh_time(pd);
 
-        if(!FD_ISSET(sock, &fdset))
+        if(num_events <= 0)
             goto housekeeping;
 
         if(!running)
             break;
 
 #ifndef FUZZING
-        ssize_t xrv = xread(sock, &hdr, sizeof(hdr));
-        if(xrv != sizeof(hdr)) {
+        ssize_t xrv = read(sock, rxbuf + rxbuf_len, PCAPD_RECV_BUFSIZE - rxbuf_len);
+        if(xrv <= 0) {
+            if((xrv < 0) && (errno == EINTR))
+                goto housekeeping;
             if(xrv < 0)
-                log_e("read hdr from pcapd failed[%d]: %s", errno, strerror(errno));
+                log_e("read from pcapd failed[%d]: %s", errno, strerror(errno));
             goto cleanup;
         }
-        if(hdr.len > sizeof(buffer)) {
-            log_e("packet too big (%d B)", hdr.len);
-            goto cleanup;
+        rxbuf_len += xrv;
+
+        if(ring) {
+            // NOTE: pcapd sets ready before writing to the socket
+            if(atomic_load_explicit(&ring->ready, memory_order_acquire)) {
+                // the socket only carries doorbells
+                rxbuf_len = 0;
+
+                if(process_ring(pd, ring) < 0)
+                    goto cleanup;
+                goto housekeeping;
+            }
+
+            log_w("pcapd is not using the shared memory ring, reading packets from the socket");
+            munmap(ring, PCAPD_RING_DATA_OFFSET + PCAPD_RING_SIZE);
+            ring = NULL;
         }
-        if(xread(sock, buffer, hdr.len) != hdr.len) {
-            log_e("read %d B packet from pcapd failed[%d]: %s", hdr.len, errno, strerror(errno));
-            goto cleanup;
+
+        // Process the complete records in place. The last record may be incomplete.
+        size_t ofs = 0;
+
+        while(running && ((rxbuf_len - ofs) >= sizeof(pcapd_hdr_t))) {
+            const pcapd_hdr_t *hdr = (const pcapd_hdr_t*) (rxbuf + ofs);
+            size_t reclen = sizeof(pcapd_hdr_t) + hdr->len + PCAPD_RECORD_PADDING(hdr->len);
+
+            if((rxbuf_len - ofs) < reclen)
+                break;
+
+            pd->num_dropped_pkts = hdr->pkt_drops;
+            handle_packet(pd, hdr, rxbuf + ofs + sizeof(pcapd_hdr_t));
+            ofs += reclen;
+        }
+
+        if(ofs > 0) {
+            // Move the incomplete record to the beginning of the buffer. Since the records are
+            // aligned, this preserves the alignment.
+            rxbuf_len -= ofs;
+            memmove(rxbuf, rxbuf + ofs, rxbuf_len);
         }
 #else
+        pcapd_hdr_t hdr;
         int xrv = nextPacket(pd, &hdr, buffer, sizeof(buffer));
         if(xrv < 0)
           goto cleanup;
         else if(xrv == 0)
           goto housekeeping;
-#endif
 
         pd->num_dropped_pkts = hdr.pkt_drops;
         handle_packet(pd, &hdr, buffer);
+#endif
 
     housekeeping:
         pd_housekeeping(pd);
@@ -639,10 +880,17 @@ int run_root(pcapdroid_t *pd) {
     rv = 0;
 
 cleanup:
+    // wait for the DPI workers, so that the connections can be freed
+    pd_merge_dpi_results(pd);
     purge_expired_connections(pd, 1 /* purge_all */);
 
     if(pd->zdt) zdtun_finalize(pd->zdt);
     if(sock > 0) close(sock);
+    if(epfd >= 0) close(epfd);
+#ifndef FUZZING
+    if(rxbuf) pd_free(rxbuf);
+    if(ring) munmap(ring, PCAPD_RING_DATA_OFFSET + PCAPD_RING_SIZE);
+#endif
 
     return rv;
 }
@@ -17,6 +17,7 @@
  * Copyright 2021 - Emanuele Faranda
  */
 
+#include <poll.h>
 #include "pcapdroid.h"
 #include "common/utils.h"
 
@@ -42,6 +43,73 @@ static int resolve_uid(pcapdroid_t *pd, const zdtun_5tuple_t *conn_info) {
     return(uid);
 }
 
+/* ******************************************************* */
+
+// Resolving the uid may require a Binder IPC. In such case, the uid is resolved in a separate
+// thread and the connection is updated later, see apply_async_uids
+static void request_async_uid(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
+    uid_request_t *req = pd_malloc(sizeof(uid_request_t));
+    if(!req)
+        return;
+
+    req->req_id = data->incr_id;
+    req->tuple = *tuple;
+
+    if(!get_uid_async(pd->vpn.resolver, tuple, req->req_id)) {
+        char buf[256];
+
+        log_w("%s => UID not found!", zdtun_5tuple2str(tuple, buf, sizeof(buf)));
+        pd_free(req);
+        return;
+    }
+
+    HASH_ADD_INT(pd->async_uid.pending, req_id, req);
+}
+
+/* ******************************************************* */
+
+static void apply_async_uids(pcapdroid_t *pd) {
+    pthread_mutex_lock(&pd->async_uid.lock);
+    uid_result_t *res = pd->async_uid.results;
+    pd->async_uid.results = NULL;
+    pthread_mutex_unlock(&pd->async_uid.lock);
+
+    while(res) {
+        uid_result_t *next = res->next;
+        uid_request_t *req;
+
+        HASH_FIND_INT(pd->async_uid.pending, &res->req_id, req);
+
+        if(req) {
+            zdtun_conn_t *conn = zdtun_lookup(pd->zdt, &req->tuple, 0);
+            pd_conn_t *data = conn ? zdtun_conn_get_userdata(conn) : NULL;
+
+            // the connection may have been closed in the meantime
+            if(data && (data->incr_id == req->req_id)) {
+                char buf[256];
+                char appbuf[64];
+
+                zdtun_5tuple2str(&req->tuple, buf, sizeof(buf));
+
+                if(res->uid >= 0) {
+                    get_appname_by_uid(pd, res->uid, appbuf, sizeof(appbuf));
+                    log_i("%s [%d/%s]", buf, res->uid, appbuf);
+                    pd_set_conn_uid(pd, &req->tuple, data, res->uid);
+                } else
+                    log_w("%s => UID not found!", buf);
+            }
+
+            HASH_DEL(pd->async_uid.pending, req);
+            pd_free(req);
+        }
+
+        pd_free(res);
+        res = next;
+    }
+}
+
+/* ******************************************************* */
+
 static void protectSocketCallback(zdtun_t *zdt, socket_t sock) {
 #if ANDROID
     pcapdroid_t *pd = ((pcapdroid_t*)zdtun_userdata(zdt));
@@ -90,6 +158,23 @@ static struct timeval* get_pkt_timestamp(pcapdroid_t *pd, struct timeval *tv) {
 
 /* ******************************************************* */
 
+/* The TUN fd is non-blocking (see run_vpn), but the packets cannot be dropped, as zdtun must
+ * deliver the data received from the TCP sockets. On EAGAIN, wait for the fd to become writable,
+ * as a blocking write would do. */
+static int tun_write(pcapdroid_t *pd, const char *buf, int len) {
+    while(true) {
+        int rv = write(pd->vpn.tunfd, buf, len);
+        if((rv >= 0) || ((errno != EAGAIN) && (errno != EWOULDBLOCK)) || !running)
+            return rv;
+
+        struct pollfd pfd = {.fd = pd->vpn.tunfd, .events = POLLOUT};
+        if((poll(&pfd, 1, SELECT_TIMEOUT_MS) < 0) && (errno != EINTR))
+            return -1;
+    }
+}
+
+/* ******************************************************* */
+
 static int remote2vpn(zdtun_t *zdt, zdtun_pkt_t *pkt, const zdtun_conn_t *conn_info) {
     if(!running)
         // e.g. during zdtun_finalize
@@ -121,7 +206,7 @@ static int remote2vpn(zdtun_t *zdt, zdtun_pkt_t *pkt, const zdtun_conn_t *conn_i
         return -1;
     }
 
-    int rv = write(pd->vpn.tunfd, pkt->buf, pkt->len);
+    int rv = tun_write(pd, pkt->buf, pkt->len);
     if(rv < 0) {
         if(errno == ENOBUFS) {
             char buf[256];
@@ -131,7 +216,8 @@ static int remote2vpn(zdtun_t *zdt, zdtun_pkt_t *pkt, const zdtun_conn_t *conn_i
         } else if(errno == EIO) {
             log_i("Got I/O error (terminating?)");
             running = false;
-        } else {
+        } else if(running) {
+            // NOTE: tun_write only fails with EAGAIN when the capture is stopped
             log_f("zdt write (%d) failed [%d]: %s", pkt->len, errno, strerror(errno));
             running = false;
         }
@@ -309,7 +395,7 @@ static bool spoof_dns_reply(pcapdroid_t *pd, zdtun_conn_t *conn, pkt_context_t *
     udp->uh_sum = zdtun_l3_checksum(pd->zdt, conn, buf, (char*)udp, len - iplen);
 
     //hexdump(buf, len);
-    write(pd->vpn.tunfd, buf, len);
+    tun_write(pd, buf, len);
 
     return true;
 }
@@ -320,7 +406,9 @@ static int handle_new_connection(zdtun_t *zdt, zdtun_conn_t *conn_info) {
     pcapdroid_t *pd = ((pcapdroid_t *) zdtun_userdata(zdt));
     const zdtun_5tuple_t *tuple = zdtun_conn_get_5tuple(conn_info);
 
-    pd_conn_t *data = pd_new_connection(pd, tuple, resolve_uid(pd, tuple));
+    bool async_uid = uid_resolver_is_async(pd->vpn.resolver);
+
+    pd_conn_t *data = pd_new_connection(pd, tuple, async_uid ? UID_UNKNOWN : resolve_uid(pd, tuple));
     if(!data) {
         /* reject connection */
         return (1);
@@ -328,6 +416,9 @@ static int handle_new_connection(zdtun_t *zdt, zdtun_conn_t *conn_info) {
 
     zdtun_conn_set_userdata(conn_info, data);
 
+    if(async_uid)
+        request_async_uid(pd, tuple, data);
+
     /* accept connection */
     return(0);
 }
@@ -379,14 +470,133 @@ static bool should_proxy(pcapdroid_t *pd, const zdtun_5tuple_t *tuple) {
 
 /* ******************************************************* */
 
+// Processes a packet read from the VPN
+static void handle_vpn_packet(pcapdroid_t *pd, zdtun_t *zdt, char *buffer, int size) {
+    zdtun_pkt_t pkt;
+
+    if(zdtun_parse_pkt(zdt, buffer, size, &pkt) != 0) {
+        log_d("zdtun_parse_pkt failed");
+        return;
+    }
+
+    if(pkt.flags & ZDTUN_PKT_IS_FRAGMENT) {
+        log_d("discarding IP fragment");
+        pd->num_discarded_fragments++;
+        return;
+    }
+
+    if((pkt.tuple.ipver == 6) && (!pd->ipv6.enabled)) {
+        char buf[512];
+
+        log_d("ignoring IPv6 packet: %s",
+                    zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
+        return;
+    }
+
+    // Skip established TCP connections
+    uint8_t is_tcp_established = ((pkt.tuple.ipproto == IPPROTO_TCP) &&
+                                  (!(pkt.tcp->th_flags & TH_SYN) || (pkt.tcp->th_flags & TH_ACK)));
+
+    zdtun_conn_t *conn = zdtun_lookup(zdt, &pkt.tuple, !is_tcp_established);
+    if (!conn) {
+        if(!is_tcp_established) {
+            char buf[512];
+
+            pd->num_dropped_connections++;
+            log_e("zdtun_lookup failed: %s",
+                        zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
+        } else {
+            char buf[512];
+
+            log_d("skipping established TCP: %s",
+                        zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
+        }
+        return;
+    }
+
+    // Process the packet
+    struct timeval tv;
+    const zdtun_5tuple_t *tuple = zdtun_conn_get_5tuple(conn);
+    pkt_context_t pctx;
+    pd_conn_t *data = zdtun_conn_get_userdata(conn);
+
+    // To be run before pd_process_packet/process_payload
+    if((data->sent_pkts == 0) && should_proxy(pd, tuple)) {
+        zdtun_conn_proxy(conn);
+        data->proxied = true;
+    }
+
+    pd_process_packet(pd, &pkt, true, tuple, data, get_pkt_timestamp(pd, &tv), &pctx);
+    if(data->sent_pkts == 0) {
+        // Newly created connections
+        data->blacklisted_internal = !check_dns_req_allowed(pd, conn, &pctx);
+        data->to_block |= data->blacklisted_internal;
+
+        if(data->to_block) {
+            // blocking a DNS query can cause multiple requests to be spammed. Better to
+            // spoof a reply with an invalid IP.
+            if((data->l7proto == NDPI_PROTOCOL_DNS) && (tuple->ipproto == IPPROTO_UDP)) {
+                spoof_dns_reply(pd, conn, &pctx);
+                zdtun_conn_close(zdt, conn, CONN_STATUS_CLOSED);
+            }
+        }
+    }
+
+    if(data->to_block) {
+        data->blocked_pkts++;
+        data->update_type |= CONN_UPDATE_STATS;
+        pd_notify_connection_update(pd, tuple, data);
+        return;
+    }
+
+    // NOTE: zdtun_forward will call remote2vpn
+    data->vpn.fw_pctx = &pctx;
+    if(zdtun_forward(zdt, &pkt, conn) != 0) {
+        char buf[512];
+
+        log_e("zdtun_forward failed: %s",
+                    zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
+
+        pd->num_dropped_connections++;
+        zdtun_conn_close(zdt, conn, CONN_STATUS_ERROR);
+    } else {
+        // zdtun_forward was successful
+        if(data->vpn.fw_pctx) {
+            // not accounted in remote2vpn, account here
+            pd_account_stats(pd, data->vpn.fw_pctx);
+            data->vpn.fw_pctx = NULL;
+        }
+
+        // First forwarded packet
+        if(data->sent_pkts == 1) {
+            // The socket is open only after zdtun_forward is called
+            socket_t sock = zdtun_conn_get_socket(conn);
+
+            // In SOCKS5 with the MitmReceiver, we need the local port to the SOCKS5 proxy
+            if((sock != INVALID_SOCKET) && (tuple->ipver == 4)) {
+                // NOTE: the zdtun SOCKS5 implementation only supports IPv4 right now.
+                // If it also supported IPv6, than we would need to expose "sock_ipver"
+                struct sockaddr_in local_addr;
+                socklen_t addrlen = sizeof(local_addr);
+
+                if(getsockname(sock, (struct sockaddr*) &local_addr, &addrlen) == 0)
+                    data->vpn.local_port = local_addr.sin_port;
+            }
+        }
+    }
+}
+
+/* ******************************************************* */
+
 int run_vpn(pcapdroid_t *pd) {
     zdtun_t *zdt;
     char buffer[VPN_BUFFER_SIZE];
     u_int64_t next_purge_ms;
 
+    // Non-blocking, to drain the pending packets after select
     int flags = fcntl(pd->vpn.tunfd, F_GETFL, 0);
-    if (flags < 0 || fcntl(pd->vpn.tunfd, F_SETFL, flags & ~O_NONBLOCK) < 0) {
-        log_f("fcntl ~O_NONBLOCK error [%d]: %s", errno,
+    if (flags < 0 || fcntl(pd->vpn.tunfd, F_SETFL, flags | O_NONBLOCK) < 0) {
+        log_f("fcntl O_NONBLOCK error [%d]: %s", errno,
                     strerror(errno));
         return (-1);
     }
@@ -466,135 +676,27 @@ int run_vpn(pcapdroid_t *pd) {
             break;
 
         if(FD_ISSET(pd->vpn.tunfd, &fdset)) {
-            /* Packet from VPN */
-            size = read(pd->vpn.tunfd, buffer, sizeof(buffer));
-            if(size > 0) {
-                zdtun_pkt_t pkt;
-                pd_refresh_time(pd);
-
-                if(zdtun_parse_pkt(zdt, buffer, size, &pkt) != 0) {
-                    log_d("zdtun_parse_pkt failed");
-                    goto housekeeping;
-                }
-
-                if(pkt.flags & ZDTUN_PKT_IS_FRAGMENT) {
-                    log_d("discarding IP fragment");
-                    pd->num_discarded_fragments++;
-                    goto housekeeping;
-                }
-
-                if((pkt.tuple.ipver == 6) && (!pd->ipv6.enabled)) {
-                    char buf[512];
-
-                    log_d("ignoring IPv6 packet: %s",
-                                zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
-                    goto housekeeping;
-                }
-
-                // Skip established TCP connections
-                uint8_t is_tcp_established = ((pkt.tuple.ipproto == IPPROTO_TCP) &&
-                                              (!(pkt.tcp->th_flags & TH_SYN) || (pkt.tcp->th_flags & TH_ACK)));
-
-                zdtun_conn_t *conn = zdtun_lookup(zdt, &pkt.tuple, !is_tcp_established);
-                if (!conn) {
-                    if(!is_tcp_established) {
-                        char buf[512];
-
-                        pd->num_dropped_connections++;
-                        log_e("zdtun_lookup failed: %s",
-                                    zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
-                    } else {
-                        char buf[512];
-
-                        log_d("skipping established TCP: %s",
-                                    zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
-                    }
-                    goto housekeeping;
-                }
-
-                // Process the packet
-                struct timeval tv;
-                const zdtun_5tuple_t *tuple = zdtun_conn_get_5tuple(conn);
-                pkt_context_t pctx;
-                pd_conn_t *data = zdtun_conn_get_userdata(conn);
-
-                // To be run before pd_process_packet/process_payload
-                if((data->sent_pkts == 0) && should_proxy(pd, tuple)) {
-                    zdtun_conn_proxy(conn);
-                    data->proxied = true;
-                }
-
-                pd_process_packet(pd, &pkt, true, tuple, data, get_pkt_timestamp(pd, &tv), &pctx);
-                if(data->sent_pkts == 0) {
-                    // Newly created connections
-                    data->blacklisted_internal = !check_dns_req_allowed(pd, conn, &pctx);
-                    data->to_block |= data->blacklisted_internal;
-
-                    if(data->to_block) {
-                        // blocking a DNS query can cause multiple requests to be spammed. Better to
-                        // spoof a reply with an invalid IP.
-                        if((data->l7proto == NDPI_PROTOCOL_DNS) && (tuple->ipproto == IPPROTO_UDP)) {
-                            spoof_dns_reply(pd, conn, &pctx);
-                            zdtun_conn_close(zdt, conn, CONN_STATUS_CLOSED);
-                        }
-                    }
-                }
+            /* Packets from VPN. Drain up to VPN_MAX_BATCH_PKTS packets before the housekeeping */
+            pd_refresh_time(pd);
 
-                if(data->to_block) {
-                    data->blocked_pkts++;
-                    data->update_type |= CONN_UPDATE_STATS;
-                    pd_notify_connection_update(pd, tuple, data);
-                    goto housekeeping;
+            for(int i = 0; (i < VPN_MAX_BATCH_PKTS) && running; i++) {
+                size = read(pd->vpn.tunfd, buffer, sizeof(buffer));
+                if(size <= 0) {
+                    if((size < 0) && (errno != EAGAIN) && (errno != EWOULDBLOCK) && (errno != EINTR))
+                        log_e("recv(tunfd) returned error [%d]: %s", errno,
+                              strerror(errno));
+                    break;
                 }
 
-                // NOTE: zdtun_forward will call remote2vpn
-                data->vpn.fw_pctx = &pctx;
-                if(zdtun_forward(zdt, &pkt, conn) != 0) {
-                    char buf[512];
-
-                    log_e("zdtun_forward failed: %s",
-                                zdtun_5tuple2str(&pkt.tuple, buf, sizeof(buf)));
-
-                    pd->num_dropped_connections++;
-                    zdtun_conn_close(zdt, conn, CONN_STATUS_ERROR);
-                    goto housekeeping;
-                } else {
-                    // zdtun_forward was successful
-                    if(data->vpn.fw_pctx) {
-                        // not accounted in remote2vpn, account here
-                        pd_account_stats(pd, data->vpn.fw_pctx);
-                        data->vpn.fw_pctx = NULL;
-                    }
-
-                    // First forwarded packet
-                    if(data->sent_pkts == 1) {
-                        // The socket is open only after zdtun_forward is called
-                        socket_t sock = zdtun_conn_get_socket(conn);
-
-                        // In SOCKS5 with the MitmReceiver, we need the local port to the SOCKS5 proxy
-                        if((sock != INVALID_SOCKET) && (tuple->ipver == 4)) {
-                            // NOTE: the zdtun SOCKS5 implementation only supports IPv4 right now.
-                            // If it also supported IPv6, than we would need to expose "sock_ipver"
-                            struct sockaddr_in local_addr;
-                            socklen_t addrlen = sizeof(local_addr);
-
-                            if(getsockname(sock, (struct sockaddr*) &local_addr, &addrlen) == 0)
-                                data->vpn.local_port = local_addr.sin_port;
-                        }
-                    }
-                }
-            } else {
                 pd_refresh_time(pd);
-                if(size < 0)
-                    log_e("recv(tunfd) returned error [%d]: %s", errno,
-                          strerror(errno));
+                handle_vpn_packet(pd, zdt, buffer, size);
             }
         } else {
             pd_refresh_time(pd);
             zdtun_handle_fd(zdt, &fdset, &wrfds);
         }
 
-        housekeeping:
+        apply_async_uids(pd);
         pd_housekeeping(pd);
 
         if(pd->now_ms >= next_purge_ms) {
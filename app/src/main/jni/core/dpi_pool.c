@@ -0,0 +1,407 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+#include <errno.h>
+#include <string.h>
+#include <pthread.h>
+#include "dpi_pool.h"
+#include "common/utils.h"
+
+// When reached, dpi_pool_submit waits for the worker
+#define DPI_MAX_QUEUED_JOBS 4096
+
+typedef struct dpi_job {
+    struct dpi_job *next;
+    zdtun_5tuple_t tuple;
+    pd_conn_t *data;
+    uint64_t ts_ms;
+    bool is_tx;
+    bool giveup;
+    uint16_t len;
+    uint16_t l7_ofs;
+    uint16_t l7_len;
+    char pkt[];             // a copy of the packet, starting with the IP header
+} dpi_job_t;
+
+typedef struct {
+    int ipver;
+    zdtun_ip_t ip;
+    char *host;
+} dpi_host_t;
+
+typedef struct {
+    pthread_t thread;
+    bool started;
+    struct ndpi_detection_module_struct *ndpi;
+
+    pthread_mutex_t lock;       // protects the fields below, up to stop
+    pthread_cond_t new_jobs;    // signaled when jobs are added and on stop
+    pthread_cond_t progress;    // signaled when jobs are taken and when the worker gets idle
+    dpi_job_t *head;
+    dpi_job_t *tail;
+    int num_jobs;
+    bool busy;
+    bool stop;
+
+    // only accessed by the worker, or by the capture thread during dpi_pool_merge
+    conn_array_t updates;
+    dpi_host_t *hosts;
+    int num_hosts;
+    int hosts_size;
+} dpi_worker_t;
+
+struct dpi_pool {
+    int num_workers;
+    bool idle;                  // no packets submitted since the last merge, capture thread only
+    dpi_worker_t workers[DPI_POOL_MAX_WORKERS];
+};
+
+/* ******************************************************* */
+
+static uint32_t hash_buf(uint32_t h, const void *buf, size_t len) {
+    const uint8_t *p = (const uint8_t*) buf;
+
+    // FNV-1a
+    for(size_t i=0; i<len; i++)
+        h = (h ^ p[i]) * 16777619;
+
+    return h;
+}
+
+// Only hashes the tuple fields, since the struct padding may not be copied
+static uint32_t tuple_hash(const zdtun_5tuple_t *tuple) {
+    size_t iplen = (tuple->ipver == 4) ? 4 : 16;
+    uint32_t h = 2166136261;
+
+    h = hash_buf(h, &tuple->src_ip, iplen);
+    h = hash_buf(h, &tuple->dst_ip, iplen);
+    h = hash_buf(h, &tuple->src_port, sizeof(tuple->src_port));
+    h = hash_buf(h, &tuple->dst_port, sizeof(tuple->dst_port));
+    h = hash_buf(h, &tuple->ipproto, sizeof(tuple->ipproto));
+
+    return h;
+}
+
+// Returns the worker which owns the connection
+static dpi_worker_t* get_worker(const dpi_pool_t *pool, const zdtun_5tuple_t *tuple) {
+    return (dpi_worker_t*) &pool->workers[tuple_hash(tuple) % pool->num_workers];
+}
+
+/* ******************************************************* */
+
+static void add_host(void *userdata, int ipver, const zdtun_ip_t *ip, const char *host) {
+    dpi_worker_t *w = (dpi_worker_t*) userdata;
+
+    if(w->num_hosts >= w->hosts_size) {
+        int new_size = (w->hosts_size == 0) ? 8 : (w->hosts_size * 2);
+        dpi_host_t *hosts = pd_realloc(w->hosts, new_size * sizeof(dpi_host_t));
+
+        if(!hosts) {
+            log_e("realloc(dpi_host_t) (%d items) failed", new_size);
+            return;
+        }
+        w->hosts = hosts;
+        w->hosts_size = new_size;
+    }
+
+    char *h = pd_strdup(host);
+    if(!h)
+        return;
+
+    dpi_host_t *slot = &w->hosts[w->num_hosts++];
+    slot->ipver = ipver;
+    slot->ip = *ip;
+    slot->host = h;
+}
+
+/* ******************************************************* */
+
+static void add_update(dpi_worker_t *w, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
+    conn_array_t *arr = &w->updates;
+
+    if(arr->cur_items >= arr->size) {
+        int new_size = (arr->size == 0) ? 8 : (arr->size * 2);
+        conn_and_tuple_t *items = pd_realloc(arr->items, new_size * sizeof(conn_and_tuple_t));
+
+        if(!items) {
+            log_e("realloc(conn_array_t) (%d items) failed", new_size);
+            return;
+        }
+        arr->items = items;
+        arr->size = new_size;
+    }
+
+    conn_and_tuple_t *slot = &arr->items[arr->cur_items++];
+    slot->tuple = *tuple;
+    slot->data = data;
+    data->dpi.updated = true;
+}
+
+/* ******************************************************* */
+
+static void process_job(dpi_worker_t *w, dpi_job_t *job) {
+    pd_conn_t *data = job->data;
+    zdtun_pkt_t pkt;
+
+    // always report the connection, as dpi_pool_merge clears its pending_jobs
+    if(!data->dpi.updated)
+        add_update(w, &job->tuple, data);
+
+    // the packets submitted before the merge are still processed after the detection is complete
+    if(data->dpi.done)
+        return;
+
+    memset(&pkt, 0, sizeof(pkt));
+    pkt.buf = job->pkt;
+    pkt.len = job->len;
+    pkt.l7 = job->pkt + job->l7_ofs;
+    pkt.l7_len = job->l7_len;
+    pkt.tuple = job->tuple;
+
+    pd_dpi_detect(w->ndpi, data, &pkt, job->is_tx, job->ts_ms, job->giveup, add_host, w);
+}
+
+/* ******************************************************* */
+
+static void* worker_thread(void *arg) {
+    dpi_worker_t *w = (dpi_worker_t*) arg;
+
+    pthread_mutex_lock(&w->lock);
+
+    while(1) {
+        while(!w->head && !w->stop)
+            pthread_cond_wait(&w->new_jobs, &w->lock);
+
+        if(w->stop)
+            break;
+
+        // take all the queued jobs, to only lock once
+        dpi_job_t *jobs = w->head;
+        w->head = w->tail = NULL;
+        w->num_jobs = 0;
+        w->busy = true;
+        pthread_cond_signal(&w->progress);
+        pthread_mutex_unlock(&w->lock);
+
+        while(jobs) {
+            dpi_job_t *next = jobs->next;
+
+            process_job(w, jobs);
+            pd_free(jobs);
+            jobs = next;
+        }
+
+        pthread_mutex_lock(&w->lock);
+        w->busy = false;
+        pthread_cond_signal(&w->progress);
+    }
+
+    pthread_mutex_unlock(&w->lock);
+    return NULL;
+}
+
+/* ******************************************************* */
+
+dpi_pool_t* dpi_pool_init(int num_workers) {
+    if((num_workers <= 0) || (num_workers > DPI_POOL_MAX_WORKERS))
+        return NULL;
+
+    dpi_pool_t *pool = pd_calloc(1, sizeof(dpi_pool_t));
+    if(!pool)
+        return NULL;
+
+    pool->idle = true;
+
+    // Initialize all the nDPI modules before starting the threads, as init_ndpi sets the
+    // masterProtos used by pd_dpi_detect
+    for(int i=0; i<num_workers; i++) {
+        dpi_worker_t *w = &pool->workers[i];
+
+        pthread_mutex_init(&w->lock, NULL);
+        pthread_cond_init(&w->new_jobs, NULL);
+        pthread_cond_init(&w->progress, NULL);
+        pool->num_workers++;
+
+        if((w->ndpi = init_ndpi()) == NULL) {
+            log_e("nDPI initialization failed (worker %d)", i);
+            dpi_pool_destroy(pool);
+            return NULL;
+        }
+    }
+
+    for(int i=0; i<num_workers; i++) {
+        dpi_worker_t *w = &pool->workers[i];
+        int rv = pthread_create(&w->thread, NULL, worker_thread, w);
+
+        if(rv != 0) {
+            log_e("pthread_create failed[%d]: %s", rv, strerror(rv));
+            dpi_pool_destroy(pool);
+            return NULL;
+        }
+        w->started = true;
+    }
+
+    log_d("DPI pool started with %d workers", num_workers);
+    return pool;
+}
+
+/* ******************************************************* */
+
+// The pending jobs are discarded. The caller should call dpi_pool_merge first.
+void dpi_pool_destroy(dpi_pool_t *pool) {
+    for(int i=0; i<pool->num_workers; i++) {
+        dpi_worker_t *w = &pool->workers[i];
+
+        if(w->started) {
+            pthread_mutex_lock(&w->lock);
+            w->stop = true;
+            pthread_cond_signal(&w->new_jobs);
+            pthread_mutex_unlock(&w->lock);
+
+            pthread_join(w->thread, NULL);
+        }
+
+        while(w->head) {
+            dpi_job_t *job = w->head;
+            w->head = job->next;
+            pd_free(job);
+        }
+
+        for(int j=0; j<w->num_hosts; j++)
+            pd_free(w->hosts[j].host);
+        if(w->hosts)
+            pd_free(w->hosts);
+        if(w->updates.items)
+            pd_free(w->updates.items);
+        if(w->ndpi)
+            ndpi_exit_detection_module(w->ndpi);
+
+        pthread_cond_destroy(&w->progress);
+        pthread_cond_destroy(&w->new_jobs);
+        pthread_mutex_destroy(&w->lock);
+    }
+
+    pd_free(pool);
+}
+
+/* ******************************************************* */
+
+/* Submits a connection packet for the DPI. The packet is copied, so it can be reused after this
+ * returns. Returns false if the packet could not be submitted. */
+bool dpi_pool_submit(dpi_pool_t *pool, const zdtun_5tuple_t *tuple, pd_conn_t *data,
+                     const zdtun_pkt_t *pkt, bool is_tx, uint64_t ts_ms, bool giveup) {
+    dpi_worker_t *w = get_worker(pool, tuple);
+    dpi_job_t *job = pd_malloc(sizeof(dpi_job_t) + pkt->len);
+
+    if(!job) {
+        log_e("malloc(dpi_job_t) failed with code %d/%s", errno, strerror(errno));
+        return false;
+    }
+
+    job->next = NULL;
+    job->tuple = *tuple;
+    job->data = data;
+    job->ts_ms = ts_ms;
+    job->is_tx = is_tx;
+    job->giveup = giveup;
+    job->len = pkt->len;
+    job->l7_ofs = (pkt->l7_len > 0) ? (pkt->l7 - pkt->buf) : 0;
+    job->l7_len = pkt->l7_len;
+    memcpy(job->pkt, pkt->buf, pkt->len);
+
+    pthread_mutex_lock(&w->lock);
+
+    // back pressure: the capture thread cannot go faster than the workers
+    while(w->num_jobs >= DPI_MAX_QUEUED_JOBS)
+        pthread_cond_wait(&w->progress, &w->lock);
+
+    if(w->tail)
+        w->tail->next = job;
+    else {
+        w->head = job;
+        pthread_cond_signal(&w->new_jobs);
+    }
+    w->tail = job;
+    w->num_jobs++;
+
+    pthread_mutex_unlock(&w->lock);
+
+    data->dpi.pending_jobs++;
+    pool->idle = false;
+    return true;
+}
+
+/* ******************************************************* */
+
+/* Waits for the workers to process the submitted packets, then reports the DNS replies hosts via
+ * the host_cb and the updated connections via the conn_cb. Until the next dpi_pool_submit, the
+ * capture thread can access the DPI state of all the connections. */
+void dpi_pool_merge(dpi_pool_t *pool, dns_host_cb host_cb, dpi_conn_cb conn_cb, void *userdata) {
+    for(int i=0; i<pool->num_workers; i++) {
+        dpi_worker_t *w = &pool->workers[i];
+
+        pthread_mutex_lock(&w->lock);
+        while(w->head || w->busy)
+            pthread_cond_wait(&w->progress, &w->lock);
+        pthread_mutex_unlock(&w->lock);
+    }
+
+    pool->idle = true;
+
+    // Apply the hosts first, to possibly resolve the updated connections
+    for(int i=0; i<pool->num_workers; i++) {
+        dpi_worker_t *w = &pool->workers[i];
+
+        for(int j=0; j<w->num_hosts; j++) {
+            dpi_host_t *h = &w->hosts[j];
+
+            host_cb(userdata, h->ipver, &h->ip, h->host);
+            pd_free(h->host);
+        }
+        w->num_hosts = 0;
+    }
+
+    for(int i=0; i<pool->num_workers; i++) {
+        conn_array_t *updates = &pool->workers[i].updates;
+
+        for(int j=0; j<updates->cur_items; j++) {
+            conn_and_tuple_t *conn = &updates->items[j];
+
+            conn->data->dpi.updated = false;
+            conn->data->dpi.pending_jobs = 0;
+            conn_cb(userdata, &conn->tuple, conn->data);
+        }
+        updates->cur_items = 0;
+    }
+}
+
+/* ******************************************************* */
+
+// Returns true if no packets were submitted since the last dpi_pool_merge
+bool dpi_pool_is_idle(const dpi_pool_t *pool) {
+    return pool->idle;
+}
+
+/* ******************************************************* */
+
+/* Returns the nDPI module of the worker which owns the connection ndpi_flow. It can only be used
+ * by the capture thread while the pool is idle, e.g. to give up the detection of a flow. */
+struct ndpi_detection_module_struct* dpi_pool_get_ndpi(const dpi_pool_t *pool, const zdtun_5tuple_t *tuple) {
+    return get_worker(pool, tuple)->ndpi;
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+#ifndef __DPI_POOL_H__
+#define __DPI_POOL_H__
+
+#include "pcapdroid.h"
+
+#define DPI_POOL_MAX_WORKERS 8
+
+/* A pool of threads performing the nDPI detection in root mode. The connections are sharded
+ * across the workers by the hash of their 5-tuple, each worker having its own nDPI module.
+ *
+ * After a connection packet is submitted, its ndpi_flow and dpi fields are owned by the worker.
+ * The capture thread gets them back in dpi_pool_merge, which waits for the workers to process
+ * the pending packets and then reports the updated connections. Until then, the connection
+ * data->dpi.pending_jobs is not zero and the connection data must not be freed. */
+typedef struct dpi_pool dpi_pool_t;
+
+typedef void (*dpi_conn_cb)(void *userdata, const zdtun_5tuple_t *tuple, pd_conn_t *data);
+
+dpi_pool_t* dpi_pool_init(int num_workers);
+void dpi_pool_destroy(dpi_pool_t *pool);
+bool dpi_pool_submit(dpi_pool_t *pool, const zdtun_5tuple_t *tuple, pd_conn_t *data,
+                     const zdtun_pkt_t *pkt, bool is_tx, uint64_t ts_ms, bool giveup);
+void dpi_pool_merge(dpi_pool_t *pool, dns_host_cb host_cb, dpi_conn_cb conn_cb, void *userdata);
+bool dpi_pool_is_idle(const dpi_pool_t *pool);
+struct ndpi_detection_module_struct* dpi_pool_get_ndpi(const dpi_pool_t *pool, const zdtun_5tuple_t *tuple);
+
+#endif // __DPI_POOL_H__
@@ -17,35 +17,75 @@
  * Copyright 2020-21 - Emanuele Faranda
  */
 
-// A simple LRU implementation based on uthash
-// Inspired by https://jehiah.cz/a/uthash
+// A fixed size LRU cache, mapping IP addresses to host names.
+// All the memory is allocated in ip_lru_init: the entries are kept in a preallocated array,
+// chained into a hash table for the lookups and into a doubly linked list for the recency
+// (most recent first). Host names are stored in an arena, which is compacted when full.
 
 #include <stdlib.h>
+#include <string.h>
 #include "common/utils.h"
 #include "ip_lru.h"
-#include "third_party/uthash.h"
 
-struct cache_entry {
+// Initial arena space reserved for each entry. The arena grows if the host names are longer.
+#define AVG_HOST_LEN 48
+
+typedef struct lru_entry {
     zdtun_ip_t key;
-    char *host;
-    UT_hash_handle hh;
-};
+    uint32_t host_off;
+    uint16_t host_len;
+    struct lru_entry *prev;
+    struct lru_entry *next;
+    struct lru_entry *next_in_bucket;
+} lru_entry_t;
 
 struct ip_lru {
     int max_size;
-    struct cache_entry *cache;
+    int size;
+    lru_entry_t *entries;
+    lru_entry_t *head;
+    lru_entry_t *tail;
+    lru_entry_t **buckets;
+    uint32_t bucket_mask;
+
+    // the arena also contains the host names of the replaced/evicted entries, until compacted
+    char *arena;
+    char *spare;
+    uint32_t arena_len;
+    uint32_t arena_size;
+    uint32_t spare_size;
+
+    ip_lru_stats_t stats;
 };
 
 /* ******************************************************* */
 
 ip_lru_t* ip_lru_init(int max_size) {
-    ip_lru_t *lru = (ip_lru_t*) pd_malloc(sizeof(ip_lru_t));
+    uint32_t num_buckets = 1;
+    size_t arena_size = (size_t) max_size * AVG_HOST_LEN;
+
+    // the arena offsets are 32 bits
+    if((max_size <= 0) || (arena_size > UINT32_MAX / 2))
+        return NULL;
 
+    while(num_buckets < (uint32_t) max_size)
+        num_buckets <<= 1;
+
+    ip_lru_t *lru = (ip_lru_t*) pd_calloc(1, sizeof(ip_lru_t));
     if(!lru)
         return NULL;
 
     lru->max_size = max_size;
-    lru->cache = NULL;
+    lru->bucket_mask = num_buckets - 1;
+    lru->arena_size = arena_size;
+    lru->entries = (lru_entry_t*) pd_calloc(max_size, sizeof(lru_entry_t));
+    lru->buckets = (lru_entry_t**) pd_calloc(num_buckets, sizeof(lru_entry_t*));
+    lru->arena = (char*) pd_malloc(lru->arena_size);
+
+    if(!lru->entries || !lru->buckets || !lru->arena) {
+        ip_lru_destroy(lru);
+        return NULL;
+    }
 
     return lru;
 }
@@ -53,89 +93,204 @@ ip_lru_t* ip_lru_init(int max_size) {
 /* ******************************************************* */
 
 void ip_lru_destroy(ip_lru_t *lru) {
-    struct cache_entry *entry, *tmp;
-
-    HASH_ITER(hh, lru->cache, entry, tmp) {
-        HASH_DELETE(hh, lru->cache, entry);
-        pd_free(entry->host);
-        pd_free(entry);
-    }
+    if(lru->entries)
+        pd_free(lru->entries);
+    if(lru->buckets)
+        pd_free(lru->buckets);
+    if(lru->arena)
+        pd_free(lru->arena);
+    if(lru->spare)
+        pd_free(lru->spare);
 
     pd_free(lru);
 }
 
 /* ******************************************************* */
 
-static struct cache_entry* ip_lru_find_entry(ip_lru_t *lru, const zdtun_ip_t *ip) {
-    struct cache_entry *entry;
+static uint32_t ip_hash(const zdtun_ip_t *ip) {
+    uint32_t words[4];
+    uint32_t h;
 
-    HASH_FIND(hh, lru->cache, ip, sizeof(zdtun_ip_t), entry);
+    memcpy(words, ip, sizeof(words));
+    h = words[0] ^ (words[1] * 0x9e3779b1) ^ (words[2] * 0x85ebca77) ^ (words[3] * 0xc2b2ae3d);
 
-    if(entry) {
-        // Bring the entry to the front of the list
-        HASH_DELETE(hh, lru->cache, entry);
-        HASH_ADD(hh, lru->cache, key, sizeof(zdtun_ip_t), entry);
+    // finalizer from murmur3
+    h ^= h >> 16;
+    h *= 0x85ebca6b;
+    h ^= h >> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >> 16;
+
+    return h;
+}
+
+/* ******************************************************* */
+
+static lru_entry_t** find_slot(ip_lru_t *lru, const zdtun_ip_t *ip) {
+    lru_entry_t **slot = &lru->buckets[ip_hash(ip) & lru->bucket_mask];
+
+    while(*slot && memcmp(&(*slot)->key, ip, sizeof(zdtun_ip_t)))
+        slot = &(*slot)->next_in_bucket;
+
+    return slot;
+}
+
+/* ******************************************************* */
+
+static void list_unlink(ip_lru_t *lru, lru_entry_t *entry) {
+    if(entry->prev)
+        entry->prev->next = entry->next;
+    else
+        lru->head = entry->next;
+
+    if(entry->next)
+        entry->next->prev = entry->prev;
+    else
+        lru->tail = entry->prev;
+}
+
+/* ******************************************************* */
+
+static void list_push_front(ip_lru_t *lru, lru_entry_t *entry) {
+    entry->prev = NULL;
+    entry->next = lru->head;
+
+    if(lru->head)
+        lru->head->prev = entry;
+    else
+        lru->tail = entry;
+
+    lru->head = entry;
+}
 
-        return(entry);
+/* ******************************************************* */
+
+// Copies the live host names into the spare buffer, which then becomes the arena.
+// Both the buffers are enlarged if, after the compaction, <needed> bytes would not fit.
+static bool arena_compact(ip_lru_t *lru, uint32_t needed) {
+    uint32_t live = 0;
+    uint32_t new_size = lru->arena_size;
+
+    for(lru_entry_t *entry = lru->head; entry; entry = entry->next)
+        live += entry->host_len + 1;
+
+    // keep some slack to avoid compacting on every add
+    while((uint64_t)(live + needed) * 4 > (uint64_t)new_size * 3) {
+        if(new_size > UINT32_MAX / 2)
+            return false;
+        new_size *= 2;
     }
 
-    return NULL;
+    if(!lru->spare || (lru->spare_size != new_size)) {
+        char *spare = pd_realloc(lru->spare, new_size);
+        if(!spare)
+            return false;
+
+        lru->spare = spare;
+        lru->spare_size = new_size;
+    }
+
+    uint32_t off = 0;
+
+    for(lru_entry_t *entry = lru->head; entry; entry = entry->next) {
+        memcpy(lru->spare + off, lru->arena + entry->host_off, entry->host_len + 1);
+        entry->host_off = off;
+        off += entry->host_len + 1;
+    }
+
+    char *arena = lru->arena;
+    uint32_t arena_size = lru->arena_size;
+
+    lru->arena = lru->spare;
+    lru->arena_size = lru->spare_size;
+    lru->arena_len = off;
+    lru->spare = arena;
+    lru->spare_size = arena_size;
+
+    return true;
 }
 
 /* ******************************************************* */
 
 void ip_lru_add(ip_lru_t *lru, const zdtun_ip_t *ip, const char *hostname) {
-    struct cache_entry *entry, *tmp;
-    char *host = pd_strdup(hostname);
+    size_t len = strlen(hostname);
 
-    if(!host)
+    if(len > UINT16_MAX)
         return;
 
-    // guarantee key uniqueness
-    entry = ip_lru_find_entry(lru, ip);
+    lru_entry_t **slot = find_slot(lru, ip);
+    lru_entry_t *entry = *slot;
 
-    if(entry != NULL) {
+    if(entry) {
         // update existing
-        pd_free(entry->host);
-        entry->host = host;
-        return;
+        list_unlink(lru, entry);
+        list_push_front(lru, entry);
+    } else {
+        if(lru->size < lru->max_size)
+            entry = &lru->entries[lru->size++];
+        else {
+            // evict the least recently used entry and reuse it
+            entry = lru->tail;
+            list_unlink(lru, entry);
+
+            lru_entry_t **old_slot = find_slot(lru, &entry->key);
+            *old_slot = entry->next_in_bucket;
+            lru->stats.evictions++;
+
+            // the eviction may have changed the bucket chain
+            slot = find_slot(lru, ip);
+        }
+
+        entry->key = *ip;
+        entry->next_in_bucket = NULL;
+        *slot = entry;
+        list_push_front(lru, entry);
     }
 
-    entry = pd_malloc(sizeof(struct cache_entry));
+    // the previous host name of the entry, if any, is now garbage
+    entry->host_off = 0;
+    entry->host_len = 0;
 
-    if(!entry) {
-        pd_free(host);
-        return;
+    if((lru->arena_size - lru->arena_len) < (len + 1)) {
+        // on failure, the entry is kept with an empty name, which is treated as a miss
+        if(!arena_compact(lru, len + 1))
+            return;
     }
 
-    entry->key = *ip;
-    entry->host = host;
+    memcpy(lru->arena + lru->arena_len, hostname, len + 1);
+    entry->host_off = lru->arena_len;
+    entry->host_len = len;
+    lru->arena_len += len + 1;
+}
 
-    HASH_ADD(hh, lru->cache, key, sizeof(zdtun_ip_t), entry);
+/* ******************************************************* */
 
-    if(HASH_COUNT(lru->cache) > lru->max_size) {
-        // uthash guarantees that iteration order is same as insertion order
-        // see https://troydhanson.github.io/uthash/userguide.html#_sorting
-        HASH_ITER(hh, lru->cache, entry, tmp) {
-            // delete the oldest entry
-            HASH_DELETE(hh, lru->cache, entry);
-            pd_free(entry->host);
-            pd_free(entry);
-            break;
-        }
+// NOTE: the returned string is only valid until the next ip_lru_add
+const char* ip_lru_find(ip_lru_t *lru, const zdtun_ip_t *ip) {
+    lru_entry_t *entry = *find_slot(lru, ip);
+
+    if(!entry || !entry->host_len) {
+        lru->stats.misses++;
+        return NULL;
     }
-}
 
-/* ******************************************************* */
+    lru->stats.hits++;
 
-char* ip_lru_find(ip_lru_t *lru, const zdtun_ip_t *ip) {
-    struct cache_entry *entry = ip_lru_find_entry(lru, ip);
+    // Bring the entry to the front of the list
+    list_unlink(lru, entry);
+    list_push_front(lru, entry);
 
-    return(entry ? pd_strdup(entry->host) : NULL);
+    return(lru->arena + entry->host_off);
 }
 
 /* ******************************************************* */
 
 int ip_lru_size(ip_lru_t *lru) {
-    return HASH_COUNT(lru->cache);
-}
\ No newline at end of file
+    return lru->size;
+}
+
+/* ******************************************************* */
+
+void ip_lru_get_stats(const ip_lru_t *lru, ip_lru_stats_t *stats) {
+    *stats = lru->stats;
+}
@@ -24,10 +24,17 @@
 
 typedef struct ip_lru ip_lru_t;
 
+typedef struct {
+    uint64_t hits;
+    uint64_t misses;
+    uint64_t evictions;
+} ip_lru_stats_t;
+
 ip_lru_t* ip_lru_init(int max_size);
 void ip_lru_destroy(ip_lru_t *lru);
 void ip_lru_add(ip_lru_t *lru, const zdtun_ip_t *ip, const char *hostname);
-char* ip_lru_find(ip_lru_t *lru, const zdtun_ip_t *ip);
+const char* ip_lru_find(ip_lru_t *lru, const zdtun_ip_t *ip);
 int ip_lru_size(ip_lru_t *lru);
+void ip_lru_get_stats(const ip_lru_t *lru, ip_lru_stats_t *stats);
 
 #endif // __IP_LRU_H__
@@ -28,6 +28,7 @@
 // Exported functions are defined in pcapdroid.h
 
 static pcapdroid_t *global_pd = NULL;
+static pthread_mutex_t global_pd_lock = PTHREAD_MUTEX_INITIALIZER; // see setAppNames
 
 jni_classes_t cls;
 jni_methods_t mids;
@@ -68,6 +69,9 @@ static void sendStatsDump(pcapdroid_t *pd) {
 
     int active_conns = (int)(stats->num_icmp_conn + stats->num_tcp_conn + stats->num_udp_conn);
     int tot_conns = (int)(stats->num_icmp_opened + stats->num_tcp_opened + stats->num_udp_opened);
+    ip_lru_stats_t lru_stats;
+
+    ip_lru_get_stats(pd->ip_to_host, &lru_stats);
 
     jobject stats_obj = (*env)->NewObject(env, cls.stats, mids.statsInit);
 
@@ -82,7 +86,8 @@ static void sendStatsDump(pcapdroid_t *pd) {
                            capstats->sent_pkts, capstats->rcvd_pkts,
                            min(pd->num_dropped_pkts, INT_MAX), pd->num_dropped_connections,
                            stats->num_open_sockets, stats->all_max_fd, active_conns, tot_conns,
-                           pd->num_dns_requests);
+                           pd->num_dns_requests, (jlong) lru_stats.hits, (jlong) lru_stats.misses,
+                           (jlong) lru_stats.evictions);
 
     if(!jniCheckException(env)) {
         (*env)->CallVoidMethod(env, pd->capture_service, mids.sendStatsDump, stats_obj);
@@ -163,7 +168,7 @@ static jobject getConnUpdate(pcapdroid_t *pd, const conn_and_tuple_t *conn) {
                                                                       conn->tuple.ipproto));
         int flags = data->encrypted_l7;
 
-        (*env)->CallVoidMethod(env, update, mids.connUpdateSetInfo, info, url, l7proto, flags);
+        (*env)->CallVoidMethod(env, update, mids.connUpdateSetInfo, info, url, l7proto, flags, data->uid);
 
         (*env)->DeleteLocalRef(env, info);
         (*env)->DeleteLocalRef(env, url);
@@ -497,7 +502,7 @@ Java_com_emanuelef_remote_1capture_CaptureService_runPacketLoop(JNIEnv *env, jcl
 
     /* Methods */
     mids.reportError = jniGetMethodID(env, vpn_class, "reportError", "(Ljava/lang/String;)V");
-    mids.getApplicationByUid = jniGetMethodID(env, vpn_class, "getApplicationByUid", "(I)Ljava/lang/String;"),
+    mids.requestAppName = jniGetMethodID(env, vpn_class, "requestAppName", "(I)V"),
             mids.protect = jniGetMethodID(env, vpn_class, "protect", "(I)Z");
     mids.dumpPcapData = jniGetMethodID(env, vpn_class, "dumpPcapData", "([B)V");
     mids.stopPcapDump = jniGetMethodID(env, vpn_class, "stopPcapDump", "()V");
@@ -511,10 +516,10 @@ Java_com_emanuelef_remote_1capture_CaptureService_runPacketLoop(JNIEnv *env, jcl
     mids.connProcessUpdate = jniGetMethodID(env, cls.conn, "processUpdate", "(Lcom/emanuelef/remote_capture/model/ConnectionUpdate;)V");
     mids.connUpdateInit = jniGetMethodID(env, cls.conn_update, "<init>", "(I)V");
     mids.connUpdateSetStats = jniGetMethodID(env, cls.conn_update, "setStats", "(JJJJIIIII)V");
-    mids.connUpdateSetInfo = jniGetMethodID(env, cls.conn_update, "setInfo", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)V");
+    mids.connUpdateSetInfo = jniGetMethodID(env, cls.conn_update, "setInfo", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;II)V");
     mids.connUpdateSetPayload = jniGetMethodID(env, cls.conn_update, "setPayload", "(Ljava/util/ArrayList;Z)V");
     mids.statsInit = jniGetMethodID(env, cls.stats, "<init>", "()V");
-    mids.statsSetData = jniGetMethodID(env, cls.stats, "setData", "(Ljava/lang/String;JJIIIIIIIII)V");
+    mids.statsSetData = jniGetMethodID(env, cls.stats, "setData", "(Ljava/lang/String;JJIIIIIIIIIJJJ)V");
     mids.blacklistStatusInit = jniGetMethodID(env, cls.blacklist_status, "<init>", "(Ljava/lang/String;I)V");
     mids.listSize = jniGetMethodID(env, cls.list, "size", "()I");
     mids.listGet = jniGetMethodID(env, cls.list, "get", "(I)Ljava/lang/Object;");
@@ -528,6 +533,7 @@ Java_com_emanuelef_remote_1capture_CaptureService_runPacketLoop(JNIEnv *env, jcl
     fields.ld_apps = jniFieldID(env, cls.matchlist_descriptor, "apps", "Ljava/util/List;");
     fields.ld_hosts = jniFieldID(env, cls.matchlist_descriptor, "hosts", "Ljava/util/List;");
     fields.ld_ips = jniFieldID(env, cls.matchlist_descriptor, "ips", "Ljava/util/List;");
+    fields.ld_wildcards = jniFieldID(env, cls.matchlist_descriptor, "wildcards", "Ljava/util/List;");
 
     /* Enums */
     enums.bltype_ip = jniEnumVal(env, "com/emanuelef/remote_capture/model/BlacklistDescriptor$Type", "IP_BLACKLIST");
@@ -553,6 +559,8 @@ Java_com_emanuelef_remote_1capture_CaptureService_runPacketLoop(JNIEnv *env, jcl
             .root_capture = (bool) getIntPref(env, vpn, "isRootCapture"),
             .tls_decryption_enabled = (bool) getIntPref(env, vpn, "isTlsDecryptionEnabled"),
             .payload_mode = (payload_mode_t) getIntPref(env, vpn, "getPayloadMode"),
+            .host_lru_size = getIntPref(env, vpn, "getHostLruSize"),
+            .dpi_workers = getIntPref(env, vpn, "getDpiWorkers"),
             .pcap_dump = {
                     .enabled = (bool) getIntPref(env, vpn, "pcapDumpEnabled"),
                     .snaplen = getIntPref(env, vpn, "getSnaplen"),
@@ -570,7 +578,16 @@ Java_com_emanuelef_remote_1capture_CaptureService_runPacketLoop(JNIEnv *env, jcl
             },
             .malware_detection = {
                     .enabled = (bool) getIntPref(env, vpn, "malwareDetectionEnabled"),
-            }
+            },
+            .firewall = {
+                    .lock = PTHREAD_MUTEX_INITIALIZER,
+            },
+            .app_names = {
+                    .lock = PTHREAD_MUTEX_INITIALIZER,
+            },
+            .async_uid = {
+                    .lock = PTHREAD_MUTEX_INITIALIZER,
+            },
     };
 
     if(pd.socks5.enabled)
@@ -590,14 +607,19 @@ Java_com_emanuelef_remote_1capture_CaptureService_runPacketLoop(JNIEnv *env, jcl
     strcat(pd.filesdir, "/");
     pd.filesdir_len = strlen(pd.filesdir);
 
+    pthread_mutex_lock(&global_pd_lock);
     global_pd = &pd;
+    pthread_mutex_unlock(&global_pd_lock);
     logcallback = log_callback;
     signal(SIGPIPE, SIG_IGN);
 
     // Run the capture
     pd_run(&pd);
 
+    // wait for any setAppNames in progress, as pd is about to go out of scope
+    pthread_mutex_lock(&global_pd_lock);
     global_pd = NULL;
+    pthread_mutex_unlock(&global_pd_lock);
     logcallback = NULL;
 
 #ifdef PCAPDROID_TRACK_ALLOCS
@@ -716,6 +738,7 @@ Java_com_emanuelef_remote_1capture_CaptureService_reloadBlocklist(JNIEnv *env, j
         blacklist_destroy(bl);
         return false;
     }
+    blacklist_build_prefilter(bl);
 
     blacklists_stats_t stats;
     blacklist_get_stats(bl, &stats);
@@ -727,6 +750,104 @@ Java_com_emanuelef_remote_1capture_CaptureService_reloadBlocklist(JNIEnv *env, j
 
 /* ******************************************************* */
 
+JNIEXPORT jboolean JNICALL
+Java_com_emanuelef_remote_1capture_CaptureService_updateBlocklistRule(JNIEnv *env, jclass clazz,
+        jint rule_type, jstring value, jboolean add) {
+    pcapdroid_t *pd = global_pd;
+    if(!pd) {
+        log_e("NULL pd instance");
+        return false;
+    }
+
+    if(pd->root_capture) {
+        log_e("firewall in root mode not implemented");
+        return false;
+    }
+
+    switch(rule_type) {
+        case RULE_APP:
+        case RULE_IP:
+        case RULE_HOST:
+        case RULE_SUBNET:
+        case RULE_WILDCARD_HOST:
+            break;
+        default:
+            log_e("unsupported rule type: %d", rule_type);
+            return false;
+    }
+
+    const char *val = (*env)->GetStringUTFChars(env, value, 0);
+    if(!val)
+        return false;
+
+    bool rv = pd_update_firewall_rule(pd, (matchlist_rule_t) rule_type, val, add);
+    (*env)->ReleaseStringUTFChars(env, value, val);
+
+    return rv;
+}
+
+/* ******************************************************* */
+
+JNIEXPORT void JNICALL
+Java_com_emanuelef_remote_1capture_CaptureService_setAppNames(JNIEnv *env, jclass clazz,
+        jintArray uids, jobjectArray names) {
+    jsize num_apps = (*env)->GetArrayLength(env, uids);
+    if(num_apps != (*env)->GetArrayLength(env, names)) {
+        log_e("uids and names length mismatch");
+        return;
+    }
+
+    // NOTE: this is called by the app names resolver thread, which may race with the capture teardown
+    pthread_mutex_lock(&global_pd_lock);
+
+    pcapdroid_t *pd = global_pd;
+    if(!pd) {
+        pthread_mutex_unlock(&global_pd_lock);
+        return;
+    }
+
+    jint *uids_arr = (*env)->GetIntArrayElements(env, uids, NULL);
+    if(!uids_arr) {
+        pthread_mutex_unlock(&global_pd_lock);
+        return;
+    }
+
+    for(jsize i = 0; i < num_apps; i++) {
+        jstring name = (*env)->GetObjectArrayElement(env, names, i);
+        if(!name)
+            continue;
+
+        const char *val = (*env)->GetStringUTFChars(env, name, 0);
+        if(val) {
+            pd_set_app_name(pd, uids_arr[i], val);
+            (*env)->ReleaseStringUTFChars(env, name, val);
+        }
+        (*env)->DeleteLocalRef(env, name);
+    }
+
+    pthread_mutex_unlock(&global_pd_lock);
+
+    (*env)->ReleaseIntArrayElements(env, uids, uids_arr, JNI_ABORT);
+    log_d("%d app names resolved", num_apps);
+}
+
+/* ******************************************************* */
+
+JNIEXPORT void JNICALL
+Java_com_emanuelef_remote_1capture_CaptureService_setConnectionUid(JNIEnv *env, jclass clazz,
+        jint req_id, jint uid) {
+    // NOTE: this is called by the uid resolver threads, which may race with the capture teardown
+    pthread_mutex_lock(&global_pd_lock);
+
+    pcapdroid_t *pd = global_pd;
+    if(pd)
+        pd_set_async_uid(pd, req_id, uid);
+
+    pthread_mutex_unlock(&global_pd_lock);
+}
+
+/* ******************************************************* */
+
 JNIEXPORT jboolean JNICALL
 Java_com_emanuelef_remote_1capture_CaptureService_reloadMalwareWhitelist(JNIEnv *env, jclass clazz,
                                                                          jobject whitelist) {
@@ -756,6 +877,7 @@ Java_com_emanuelef_remote_1capture_CaptureService_reloadMalwareWhitelist(JNIEnv
         blacklist_destroy(wl);
         return false;
     }
+    blacklist_build_prefilter(wl);
 
     blacklists_stats_t stats;
     blacklist_get_stats(wl, &stats);
@@ -857,26 +979,12 @@ int getIntPref(JNIEnv *env, jobject vpn_inst, const char *key) {
 
 /* ******************************************************* */
 
-void getApplicationByUid(pcapdroid_t *pd, jint uid, char *buf, int bufsize) {
+// Asks the Java side to resolve the app name of the given uid, see setAppNames
+void requestAppName(pcapdroid_t *pd, jint uid) {
     JNIEnv *env = pd->env;
-    const char *value = NULL;
 
-    jstring obj = (*env)->CallObjectMethod(env, pd->capture_service, mids.getApplicationByUid, uid);
+    (*env)->CallVoidMethod(env, pd->capture_service, mids.requestAppName, uid);
     jniCheckException(env);
-
-    if(obj)
-        value = (*env)->GetStringUTFChars(env, obj, 0);
-
-    if(!value) {
-        strncpy(buf, "???", bufsize);
-        buf[bufsize-1] = '\0';
-    } else {
-        strncpy(buf, value, bufsize);
-        buf[bufsize - 1] = '\0';
-    }
-
-    if(value) (*env)->ReleaseStringUTFChars(env, obj, value);
-    if(obj) (*env)->DeleteLocalRef(env, obj);
 }
 
 #endif // ANDROID
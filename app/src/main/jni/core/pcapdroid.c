@@ -22,6 +22,7 @@
 #include <pthread.h>
 #include "pcapdroid.h"
 #include "pcap_utils.h"
+#include "dpi_pool.h"
 #include "common/utils.h"
 #include "pcapd/pcapd.h"
 #include "ndpi_protocol_ids.h"
@@ -91,10 +92,132 @@ static bool is_encrypted_l7(struct ndpi_detection_module_struct *ndpi_str, uint1
 
 /* ******************************************************* */
 
+/* The connections index maps the uid, dst IP and domain of the active connections to the
+ * connections themselves. It allows to only re-check the connections affected by a rules change,
+ * see check_affected_connections. It is only maintained after the first rules change, i.e. while
+ * the firewall or the malware whitelist is in use. */
+static void conn_index_link(pcapdroid_t *pd, conn_index_node_t *node, conn_key_t k,
+                            const void *key, uint16_t keylen) {
+    conn_bucket_t *bucket;
+
+    HASH_FIND(hh, pd->conns_index[k], key, keylen, bucket);
+    if(!bucket) {
+        bucket = pd_malloc(sizeof(conn_bucket_t) + keylen + 1);
+        if(!bucket) {
+            log_e("malloc(conn_bucket_t) failed");
+            return;
+        }
+
+        bucket->conns = NULL;
+        bucket->keylen = keylen;
+        memcpy(bucket->key, key, keylen);
+        bucket->key[keylen] = '\0';
+        HASH_ADD_KEYPTR(hh, pd->conns_index[k], bucket->key, keylen, bucket);
+    }
+
+    node->buckets[k] = bucket;
+    node->prev[k] = NULL;
+    node->next[k] = bucket->conns;
+    if(bucket->conns)
+        bucket->conns->prev[k] = node;
+    bucket->conns = node;
+}
+
+/* ******************************************************* */
+
+static void conn_index_unlink(pcapdroid_t *pd, conn_index_node_t *node, conn_key_t k) {
+    conn_bucket_t *bucket = node->buckets[k];
+    if(!bucket)
+        return;
+
+    if(node->prev[k])
+        node->prev[k]->next[k] = node->next[k];
+    else
+        bucket->conns = node->next[k];
+    if(node->next[k])
+        node->next[k]->prev[k] = node->prev[k];
+    node->buckets[k] = NULL;
+
+    if(!bucket->conns) {
+        HASH_DELETE(hh, pd->conns_index[k], bucket);
+        pd_free(bucket);
+    }
+}
+
+/* ******************************************************* */
+
+// Call this when the key k of an indexed connection changes
+static void conn_index_update(pcapdroid_t *pd, pd_conn_t *data, conn_key_t k) {
+    conn_index_node_t *node = data->index_node;
+    if(!node)
+        return;
+
+    conn_index_unlink(pd, node, k);
+
+    switch(k) {
+        case CONN_KEY_UID:
+            conn_index_link(pd, node, k, &data->uid, sizeof(data->uid));
+            break;
+        case CONN_KEY_DST_IP:
+            conn_index_link(pd, node, k, &node->tuple.dst_ip, sizeof(zdtun_ip_t));
+            break;
+        case CONN_KEY_DOMAIN:
+            if(data->info && data->info[0])
+                conn_index_link(pd, node, k, data->info, strlen(data->info));
+            break;
+        default:
+            break;
+    }
+}
+
+/* ******************************************************* */
+
+static void conn_index_add(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
+    conn_index_node_t *node = pd_calloc(1, sizeof(conn_index_node_t));
+    if(!node) {
+        log_e("calloc(conn_index_node_t) failed");
+        return;
+    }
+
+    node->tuple = *tuple;
+    node->data = data;
+    data->index_node = node;
+
+    for(int k = 0; k < CONN_KEY_MAX; k++)
+        conn_index_update(pd, data, k);
+}
+
+/* ******************************************************* */
+
+static int conn_index_add_cb(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
+    if(!data->index_node)
+        conn_index_add(pd, tuple, data);
+
+    // continue
+    return 0;
+}
+
+/* ******************************************************* */
+
+static void conn_index_remove(pcapdroid_t *pd, pd_conn_t *data) {
+    conn_index_node_t *node = data->index_node;
+    if(!node)
+        return;
+
+    for(int k = 0; k < CONN_KEY_MAX; k++)
+        conn_index_unlink(pd, node, k);
+
+    data->index_node = NULL;
+    pd_free(node);
+}
+
+/* ******************************************************* */
+
 void pd_purge_connection(pcapdroid_t *pd, pd_conn_t *data) {
     if(!data)
         return;
 
+    conn_index_remove(pd, data);
     conn_free_ndpi(data);
 
     if(data->info)
@@ -165,22 +288,101 @@ static void conns_clear(pcapdroid_t *pd, conn_array_t *arr, bool free_all) {
 
 /* ******************************************************* */
 
+// Enqueues an app name, to be applied by the capture thread. Can be called from any thread.
+// The names received after the capture teardown started are dropped.
+bool pd_set_app_name(pcapdroid_t *pd, int uid, const char *appname) {
+    app_name_update_t *update = pd_malloc(sizeof(app_name_update_t));
+    if(!update)
+        return false;
+
+    update->uid = uid;
+    strncpy(update->appname, appname, sizeof(update->appname) - 1);
+    update->appname[sizeof(update->appname) - 1] = '\0';
+
+    pthread_mutex_lock(&pd->app_names.lock);
+    bool stopped = pd->app_names.stopped;
+    if(!stopped) {
+        update->next = pd->app_names.updates;
+        pd->app_names.updates = update;
+    }
+    pthread_mutex_unlock(&pd->app_names.lock);
+
+    if(stopped) {
+        pd_free(update);
+        return false;
+    }
+    return true;
+}
+
+/* ******************************************************* */
+
+// Adds an entry to uid2app. When full, the oldest entry is evicted, its name will be requested again if needed
+static uid_to_app_t* uid2app_add(pcapdroid_t *pd, int uid) {
+    uid_to_app_t *app_entry;
+
+    if(HASH_COUNT(pd->uid2app) >= MAX_APP_NAMES) {
+        // uthash iterates in insertion order
+        app_entry = pd->uid2app;
+        HASH_DEL(pd->uid2app, app_entry);
+    } else {
+        app_entry = (uid_to_app_t*) pd_malloc(sizeof(uid_to_app_t));
+        if(!app_entry)
+            return NULL;
+    }
+
+    app_entry->uid = uid;
+    app_entry->appname[0] = '\0';
+    HASH_ADD_INT(pd->uid2app, uid, app_entry);
+    return app_entry;
+}
+
+/* ******************************************************* */
+
+// Applies the app names enqueued via pd_set_app_name
+static void apply_app_name_updates(pcapdroid_t *pd) {
+    pthread_mutex_lock(&pd->app_names.lock);
+    app_name_update_t *update = pd->app_names.updates;
+    pd->app_names.updates = NULL;
+    pthread_mutex_unlock(&pd->app_names.lock);
+
+    while(update) {
+        app_name_update_t *next = update->next;
+        uid_to_app_t *app_entry;
+
+        HASH_FIND_INT(pd->uid2app, &update->uid, app_entry);
+        if(app_entry == NULL)
+            app_entry = uid2app_add(pd, update->uid);
+
+        if(app_entry)
+            memcpy(app_entry->appname, update->appname, sizeof(app_entry->appname));
+
+        pd_free(update);
+        update = next;
+    }
+}
+
+/* ******************************************************* */
+
 char* get_appname_by_uid(pcapdroid_t *pd, int uid, char *buf, int bufsize) {
 #ifdef ANDROID
     uid_to_app_t *app_entry;
 
     HASH_FIND_INT(pd->uid2app, &uid, app_entry);
     if(app_entry == NULL) {
-        app_entry = (uid_to_app_t*) pd_malloc(sizeof(uid_to_app_t));
+        // The name may have just been resolved
+        apply_app_name_updates(pd);
+        HASH_FIND_INT(pd->uid2app, &uid, app_entry);
+    }
 
-        if(app_entry) {
-            // Resolve the app name
-            getApplicationByUid(pd, uid, app_entry->appname, sizeof(app_entry->appname));
+    if(app_entry == NULL) {
+        app_entry = uid2app_add(pd, uid);
 
-            log_d("uid %d resolved to \"%s\"", uid, app_entry->appname);
+        if(app_entry) {
+            // Resolving the app name requires the PackageManager, which may be slow. Resolve it
+            // asynchronously and report an empty name until then.
+            requestAppName(pd, uid);
 
-            app_entry->uid = uid;
-            HASH_ADD_INT(pd->uid2app, uid, app_entry);
+            log_d("uid %d: app name requested", uid);
         }
     }
 #else
@@ -306,6 +508,81 @@ static void check_blacklisted_domain(pcapdroid_t *pd, pd_conn_t *data, const zdt
 
 /* ******************************************************* */
 
+/* When a DNS request is followed by a TLS connection or similar, mark the DNS request with the uid
+ * of this connection. This allows us to match netd requests to actual apps.
+ * Only change the uid of new connections (pd->new_conns) to avoid possible side effects */
+static void resolve_netd_uids(pcapdroid_t *pd, pd_conn_t *data) {
+    for(int i=0; i < pd->new_conns.cur_items; i++) {
+        conn_and_tuple_t *conn = &pd->new_conns.items[i];
+
+        if((conn->data->uid == UID_NETD)
+                && (conn->data->info != NULL)
+                && (strcmp(conn->data->info, data->info) == 0)) {
+            char buf[256];
+
+            conn->data->uid = data->uid;
+            conn_index_update(pd, conn->data, CONN_KEY_UID);
+
+            zdtun_5tuple2str(&conn->tuple, buf, sizeof(buf));
+            log_d("Resolved netd uid: %s : %d", buf, data->uid);
+
+            if(netd_resolve_waiting > 0) {
+                // If all the netd connections have been resolved, remove the dump delay
+                if((--netd_resolve_waiting) == 0) {
+                    log_d("Removing netd resolution delay");
+                    next_connections_dump -= NETD_RESOLVE_DELAY_MS;
+                }
+            }
+        }
+    }
+}
+
+/* ******************************************************* */
+
+// Called on a new netd DNS connection
+static void add_netd_resolve_delay(pcapdroid_t *pd) {
+    if((netd_resolve_waiting > 0) || ((next_connections_dump - NETD_RESOLVE_DELAY_MS) < pd->now_ms)) {
+        if(netd_resolve_waiting == 0) {
+            // Wait before sending the dump to possibly resolve netd DNS connections uid.
+            // Only delay for the first DNS request, to avoid excessive delay.
+            log_d("Adding netd resolution delay");
+            next_connections_dump += NETD_RESOLVE_DELAY_MS;
+        }
+        netd_resolve_waiting++;
+    }
+}
+
+/* ******************************************************* */
+
+// Sets the connection info from the host LRU cache, if the dst IP was resolved via DNS
+static void lookup_lru_host(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
+    const zdtun_ip_t dst_ip = tuple->dst_ip;
+    const char *lru_host = ip_lru_find(pd->ip_to_host, &dst_ip);
+
+    if(lru_host)
+        data->info = pd_strdup(lru_host);
+
+    if(data->info) {
+        char resip[INET6_ADDRSTRLEN];
+        int family = (tuple->ipver == 4) ? AF_INET : AF_INET6;
+
+        resip[0] = '\0';
+        inet_ntop(family, &dst_ip, resip, sizeof(resip));
+
+        log_d("Host LRU cache HIT: %s -> %s", resip, data->info);
+        data->info_from_lru = true;
+        conn_index_update(pd, data, CONN_KEY_DOMAIN);
+
+        // with an async uid resolution, this is done when the uid is known, see pd_set_conn_uid
+        if(data->uid != UID_UNKNOWN)
+            resolve_netd_uids(pd, data);
+
+        check_blacklisted_domain(pd, data, tuple);
+    }
+}
+
+/* ******************************************************* */
+
 pd_conn_t* pd_new_connection(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, int uid) {
     pd_conn_t *data = pd_calloc(1, sizeof(pd_conn_t));
     if(!data) {
@@ -322,6 +599,8 @@ pd_conn_t* pd_new_connection(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, int u
 
     data->uid = uid;
     data->incr_id = pd->new_conn_id++;
+    if(pd->conns_index_enabled)
+        conn_index_add(pd, tuple, data);
 
     if(pd->malware_detection.whitelist) {
         // NOTE: if app is whitelisted, no need to check for blacklisted IP/domains
@@ -337,49 +616,8 @@ pd_conn_t* pd_new_connection(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, int u
     }
 
     // Try to resolve host name via the LRU cache
+    lookup_lru_host(pd, tuple, data);
     const zdtun_ip_t dst_ip = tuple->dst_ip;
-    data->info = ip_lru_find(pd->ip_to_host, &dst_ip);
-
-    if(data->info) {
-        char resip[INET6_ADDRSTRLEN];
-        int family = (tuple->ipver == 4) ? AF_INET : AF_INET6;
-
-        resip[0] = '\0';
-        inet_ntop(family, &dst_ip, resip, sizeof(resip));
-
-        log_d("Host LRU cache HIT: %s -> %s", resip, data->info);
-        data->info_from_lru = true;
-
-        if(data->uid != UID_UNKNOWN) {
-            // When a DNS request is followed by a TLS connection or similar, mark the DNS request
-            // with the uid of this connection. This allows us to match netd requests to actual apps.
-            // Only change the uid of new connections (pd->new_conns) to avoid possible side effects
-            for(int i=0; i < pd->new_conns.cur_items; i++) {
-                conn_and_tuple_t *conn = &pd->new_conns.items[i];
-
-                if((conn->data->uid == UID_NETD)
-                        && (conn->data->info != NULL)
-                        && (strcmp(conn->data->info, data->info) == 0)) {
-                    char buf[256];
-
-                    conn->data->uid = data->uid;
-
-                    zdtun_5tuple2str(&conn->tuple, buf, sizeof(buf));
-                    log_d("Resolved netd uid: %s : %d", buf, data->uid);
-
-                    if(netd_resolve_waiting > 0) {
-                        // If all the netd connections have been resolved, remove the dump delay
-                        if((--netd_resolve_waiting) == 0) {
-                            log_d("Removing netd resolution delay");
-                            next_connections_dump -= NETD_RESOLVE_DELAY_MS;
-                        }
-                    }
-                }
-            }
-        }
-
-        check_blacklisted_domain(pd, data, tuple);
-    }
 
     if(pd->malware_detection.bl) {
         if(!data->whitelisted_app) {
@@ -492,6 +730,7 @@ static void process_ndpi_data(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_c
             pd_free(data->info);
         data->info = pd_strndup(found_info, 256);
         data->info_from_lru = false;
+        conn_index_update(pd, data, CONN_KEY_DOMAIN);
 
         check_blacklisted_domain(pd, data, tuple);
         data->update_type |= CONN_UPDATE_INFO;
@@ -500,17 +739,27 @@ static void process_ndpi_data(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_c
 
 /* ******************************************************* */
 
+// Returns the nDPI module which processes the connection ndpi_flow
+static struct ndpi_detection_module_struct* get_conn_ndpi(pcapdroid_t *pd, const zdtun_5tuple_t *tuple) {
+    return pd->dpi_pool ? dpi_pool_get_ndpi(pd->dpi_pool, tuple) : pd->ndpi;
+}
+
 /* Stop the DPI detection and determine the l7proto of the connection. */
 void pd_giveup_dpi(pcapdroid_t *pd, pd_conn_t *data, const zdtun_5tuple_t *tuple) {
     if(!data->ndpi_flow)
         return;
 
+    // The flow may be in use by a DPI worker. The closed connections are given up in pd_merge_dpi_results.
+    if(pd->dpi_pool && !dpi_pool_is_idle(pd->dpi_pool))
+        return;
+
     if(data->l7proto == NDPI_PROTOCOL_UNKNOWN) {
+        struct ndpi_detection_module_struct *ndpi = get_conn_ndpi(pd, tuple);
         uint8_t proto_guessed;
-        struct ndpi_proto n_proto = ndpi_detection_giveup(pd->ndpi, data->ndpi_flow, 1 /* Guess */,
+        struct ndpi_proto n_proto = ndpi_detection_giveup(ndpi, data->ndpi_flow, 1 /* Guess */,
                               &proto_guessed);
         data->l7proto = ndpi2proto(n_proto);
-        data->encrypted_l7 = is_encrypted_l7(pd->ndpi, data->l7proto);
+        data->encrypted_l7 = is_encrypted_l7(ndpi, data->l7proto);
     }
 
     log_d("nDPI completed[pkts=%d, ipver=%d, proto=%d] -> l7proto: %d",
@@ -560,7 +809,7 @@ static void process_payload(pcapdroid_t *pd, pkt_context_t *pctx) {
 
 /* ******************************************************* */
 
-static void process_dns_reply(pd_conn_t *data, pcapdroid_t *pd, const struct zdtun_pkt *pkt) {
+static void process_dns_reply(pd_conn_t *data, const struct zdtun_pkt *pkt, dns_host_cb host_cb, void *userdata) {
     const char *query = (const char*) data->ndpi_flow->host_server_name;
 
     if((!query[0]) || !strchr(query, '.') || (pkt->l7_len < sizeof(dns_packet_t)))
@@ -616,16 +865,8 @@ static void process_dns_reply(pd_conn_t *data, pcapdroid_t *pd, const struct zdt
                 memcpy(&rsp_addr.ip6, reply, 16);
             }
 
-            if(ipver != 0) {
-                char rspip[INET6_ADDRSTRLEN];
-                int family = (ipver == 4) ? AF_INET : AF_INET6;
-
-                rspip[0] = '\0';
-                inet_ntop(family, &rsp_addr, rspip, sizeof(rspip));
-
-                log_d("Host LRU cache ADD [v%d]: %s -> %s", ipver, rspip, query);
-                ip_lru_add(pd->ip_to_host, &rsp_addr, query);
-            }
+            if(ipver != 0)
+                host_cb(userdata, ipver, &rsp_addr, query);
 
             reply += addr_len; len -= addr_len;
         }
@@ -634,48 +875,57 @@ static void process_dns_reply(pd_conn_t *data, pcapdroid_t *pd, const struct zdt
 
 /* ******************************************************* */
 
-static void perform_dpi(pcapdroid_t *pd, pkt_context_t *pctx) {
-    pd_conn_t *data = pctx->data;
-    bool giveup = ((data->sent_pkts + data->rcvd_pkts + 1) >= MAX_DPI_PACKETS);
-    zdtun_pkt_t *pkt = pctx->pkt;
-    bool is_tx = pctx->is_tx;
+static void add_lru_host(void *userdata, int ipver, const zdtun_ip_t *ip, const char *host) {
+    pcapdroid_t *pd = (pcapdroid_t*) userdata;
+    char rspip[INET6_ADDRSTRLEN];
+    int family = (ipver == 4) ? AF_INET : AF_INET6;
 
-    uint16_t old_proto = data->l7proto;
-    struct ndpi_proto n_proto = ndpi_detection_process_packet(pd->ndpi, data->ndpi_flow, (const u_char *)pkt->buf,
-                                  pkt->len, data->last_seen);
-    data->l7proto = ndpi2proto(n_proto);
+    rspip[0] = '\0';
+    inet_ntop(family, ip, rspip, sizeof(rspip));
 
-    if(old_proto != data->l7proto) {
-        data->update_type |= CONN_UPDATE_INFO;
-        data->encrypted_l7 = is_encrypted_l7(pd->ndpi, data->l7proto);
-    }
+    log_d("Host LRU cache ADD [v%d]: %s -> %s", ipver, rspip, host);
+    ip_lru_add(pd->ip_to_host, ip, host);
+}
 
-    if(!is_tx && (data->l7proto == NDPI_PROTOCOL_DNS))
-        process_dns_reply(data, pd, pkt);
+/* ******************************************************* */
 
-    if(giveup || ((data->l7proto != NDPI_PROTOCOL_UNKNOWN) &&
-            !ndpi_extra_dissection_possible(pd->ndpi, data->ndpi_flow)))
-        pd_giveup_dpi(pd, data, &pkt->tuple); // calls process_ndpi_data
-    else
-        process_ndpi_data(pd, &pkt->tuple, data);
+/* Runs the nDPI detection on the packet. Only data->ndpi_flow and data->dpi are accessed, so that
+ * this can run on a DPI worker (see dpi_pool.h). The results are applied by apply_dpi_results. */
+void pd_dpi_detect(struct ndpi_detection_module_struct *ndpi, pd_conn_t *data, const zdtun_pkt_t *pkt,
+                   bool is_tx, uint64_t ts_ms, bool giveup, dns_host_cb host_cb, void *userdata) {
+    struct ndpi_proto n_proto = ndpi_detection_process_packet(ndpi, data->ndpi_flow, (const u_char *)pkt->buf,
+                                  pkt->len, ts_ms);
+    data->dpi.l7proto = ndpi2proto(n_proto);
 
-    if((data->l7proto == NDPI_PROTOCOL_DNS)
-       && (data->uid == UID_NETD)
-       && (data->sent_pkts + data->rcvd_pkts == 0)
-       && ((netd_resolve_waiting > 0) || ((next_connections_dump - NETD_RESOLVE_DELAY_MS) < pd->now_ms))) {
-        if(netd_resolve_waiting == 0) {
-            // Wait before sending the dump to possibly resolve netd DNS connections uid.
-            // Only delay for the first DNS request, to avoid excessive delay.
-            log_d("Adding netd resolution delay");
-            next_connections_dump += NETD_RESOLVE_DELAY_MS;
-        }
-        netd_resolve_waiting++;
+    if(!is_tx && (data->dpi.l7proto == NDPI_PROTOCOL_DNS))
+        process_dns_reply(data, pkt, host_cb, userdata);
+
+    if(giveup || ((data->dpi.l7proto != NDPI_PROTOCOL_UNKNOWN) &&
+            !ndpi_extra_dissection_possible(ndpi, data->ndpi_flow)))
+        data->dpi.done = true;
+}
+
+/* ******************************************************* */
+
+static void apply_dpi_results(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
+    if(!data->ndpi_flow)
+        return;
+
+    if(data->l7proto != data->dpi.l7proto) {
+        data->l7proto = data->dpi.l7proto;
+        data->update_type |= CONN_UPDATE_INFO;
+        data->encrypted_l7 = is_encrypted_l7(get_conn_ndpi(pd, tuple), data->l7proto);
     }
 
+    if(data->dpi.done)
+        pd_giveup_dpi(pd, data, tuple); // calls process_ndpi_data
+    else
+        process_ndpi_data(pd, tuple, data);
+
     if(!data->ndpi_flow) {
         // nDPI detection complete
         if((data->l7proto == NDPI_PROTOCOL_TLS) && (!data->alpn)) {
-            if(ntohs(pctx->tuple->dst_port) == 443)
+            if(ntohs(tuple->dst_port) == 443)
                 data->alpn = NDPI_PROTOCOL_HTTP; // assume HTTPS
             else if(data->info && !strncmp(data->info, "imap.", 5))
                 data->alpn = NDPI_PROTOCOL_MAIL_IMAP; // assume IMAPS
@@ -684,7 +934,7 @@ static void perform_dpi(pcapdroid_t *pd, pkt_context_t *pctx) {
 
             if(data->alpn) {
                 data->update_type |= CONN_UPDATE_INFO;
-                pd_notify_connection_update(pd, pctx->tuple, data);
+                pd_notify_connection_update(pd, tuple, data);
             }
         }
     }
@@ -692,6 +942,63 @@ static void perform_dpi(pcapdroid_t *pd, pkt_context_t *pctx) {
 
 /* ******************************************************* */
 
+static void perform_dpi(pcapdroid_t *pd, pkt_context_t *pctx) {
+    pd_conn_t *data = pctx->data;
+    bool giveup = ((data->sent_pkts + data->rcvd_pkts + 1) >= MAX_DPI_PACKETS);
+
+    pd_dpi_detect(pd->ndpi, data, pctx->pkt, pctx->is_tx, data->last_seen, giveup, add_lru_host, pd);
+    apply_dpi_results(pd, pctx->tuple, data);
+
+    // with an async uid resolution, this is done when the uid is known, see pd_set_conn_uid
+    if((data->l7proto == NDPI_PROTOCOL_DNS)
+       && (data->uid == UID_NETD)
+       && (data->sent_pkts + data->rcvd_pkts == 0))
+        add_netd_resolve_delay(pd);
+}
+
+/* ******************************************************* */
+
+static void merge_dpi_conn(void *userdata, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
+    pcapdroid_t *pd = (pcapdroid_t*) userdata;
+
+    apply_dpi_results(pd, tuple, data);
+
+    if(data->update_type != 0)
+        pd_notify_connection_update(pd, tuple, data);
+}
+
+/* Applies the results of the DPI workers to the connections. This runs before the connections
+ * dump, so the dumped connections have the latest DPI info, and before freeing the connections. */
+void pd_merge_dpi_results(pcapdroid_t *pd) {
+    if(!pd->dpi_pool)
+        return;
+
+    dpi_pool_merge(pd->dpi_pool, add_lru_host, merge_dpi_conn, pd);
+
+    // The DNS replies are only added to the LRU now, after the connections to the resolved
+    // hosts have possibly started
+    for(int i=0; i < pd->new_conns.cur_items; i++) {
+        conn_and_tuple_t *conn = &pd->new_conns.items[i];
+
+        if(!conn->data->info)
+            lookup_lru_host(pd, &conn->tuple, conn->data);
+    }
+
+    // End the detection of the closed connections, skipped by pd_giveup_dpi
+    conn_array_t *arrs[] = {&pd->new_conns, &pd->conns_updates};
+
+    for(int i=0; i < 2; i++) {
+        for(int j=0; j < arrs[i]->cur_items; j++) {
+            conn_and_tuple_t *conn = &arrs[i]->items[j];
+
+            if(conn->data->status >= CONN_STATUS_CLOSED)
+                pd_giveup_dpi(pd, conn->data, &conn->tuple);
+        }
+    }
+}
+
+/* ******************************************************* */
+
 #ifdef PCAPDROID_TRACK_ALLOCS
 
 static char allocs_buf[1024];
@@ -734,13 +1041,30 @@ const char* get_file_path(pcapdroid_t *pd, const char *subpath) {
 
 /* ******************************************************* */
 
+static void log_blacklist_lookups(const char *name, const blacklist_t *bl) {
+    blacklist_lookup_stats_t ips, domains;
+
+    if(!bl)
+        return;
+
+    blacklist_get_lookup_stats(bl, &ips, &domains);
+    log_d("%s lookups: IP %" PRIu64 " (%" PRIu64 " prefiltered, %" PRIu64 " false positives), "
+          "domain %" PRIu64 " (%" PRIu64 " prefiltered, %" PRIu64 " false positives)", name,
+          ips.num_lookups, ips.num_filtered, ips.num_false_positives,
+          domains.num_lookups, domains.num_filtered, domains.num_false_positives);
+}
+
+/* ******************************************************* */
+
 // called after load_new_blacklists
 static void use_new_blacklists(pcapdroid_t *pd) {
     if(!pd->malware_detection.new_bl)
         return;
 
-    if(pd->malware_detection.bl)
+    if(pd->malware_detection.bl) {
+        log_blacklist_lookups("Malware blacklist", pd->malware_detection.bl);
         blacklist_destroy(pd->malware_detection.bl);
+    }
     pd->malware_detection.bl = pd->malware_detection.new_bl;
     pd->malware_detection.new_bl = NULL;
 
@@ -768,8 +1092,34 @@ static void use_new_blacklists(pcapdroid_t *pd) {
 
 /* ******************************************************* */
 
+static void add_blacklist_status(bl_status_arr_t *status_arr, const char *fname, int num_rules) {
+    // NOTE: cannot invoke JNI from this thread, must use an intermediate storage
+    if(status_arr->size >= status_arr->cur_items) {
+        /* Extend array */
+        status_arr->size = (status_arr->size == 0) ? 8 : (status_arr->size * 2);
+        status_arr->items = pd_realloc(status_arr->items, status_arr->size * sizeof(bl_status_t));
+        if(!status_arr->items) {
+            log_e("realloc(bl_status_arr_t) (%d items) failed", status_arr->size);
+            status_arr->size = 0;
+            return;
+        }
+    }
+
+    char *dup = pd_strdup(fname);
+    if(!dup)
+        return;
+
+    bl_status_t *status = &status_arr->items[status_arr->cur_items++];
+    status->fname = dup;
+    status->num_rules = num_rules;
+}
+
+/* ******************************************************* */
+
 // Loads the blacklists data into new_bl and sets reload_done.
 // use_new_blacklists needs to be called to use it.
+// The blacklists are loaded from the binary snapshot, unless any of the files changed, in which
+// case the files are parsed and the snapshot is rebuilt.
 static void* load_new_blacklists(void *data) {
     pcapdroid_t *pd = (pcapdroid_t*) data;
     bl_status_arr_t *status_arr = pd_calloc(1, sizeof(bl_status_arr_t));
@@ -778,51 +1128,74 @@ static void* load_new_blacklists(void *data) {
         return NULL;
     }
 
-    blacklist_t *bl = blacklist_init();
-    if(!bl) {
+    int num_bls = pd->malware_detection.num_bls;
+    bl_snapshot_list_t *lists = pd_calloc(num_bls ? num_bls : 1, sizeof(bl_snapshot_list_t));
+    if(!lists) {
         pd_free(status_arr);
         pd->malware_detection.reload_done = true;
         return NULL;
     }
 
+    char snapshot_path[PATH_MAX];
+    strncpy(snapshot_path, get_file_path(pd, "malware_bl.snapshot"), sizeof(snapshot_path) - 1);
+    snapshot_path[sizeof(snapshot_path) - 1] = 0;
+
     clock_t start = clock();
 
-    // load files in the malware_bl directory
-    for(int i = 0; i < pd->malware_detection.num_bls; i++) {
+    // a missing file has a zero size and mtime, as stored in the snapshot
+    for(int i = 0; i < num_bls; i++) {
         bl_info_t *blinfo = &pd->malware_detection.bls_info[i];
         char subpath[256];
-        blacklist_stats_t stats;
 
         snprintf(subpath, sizeof(subpath), "malware_bl/%s", blinfo->fname);
+        blacklist_snapshot_list_info(&lists[i], get_file_path(pd, subpath), blinfo->fname, blinfo->type);
+    }
 
-        if(blacklist_load_file(bl, get_file_path(pd, subpath), blinfo->type, &stats) == 0) {
-            // NOTE: cannot invoke JNI from this thread, must use an intermediate storage
-            if(status_arr->size >= status_arr->cur_items) {
-                /* Extend array */
-                status_arr->size = (status_arr->size == 0) ? 8 : (status_arr->size * 2);
-                status_arr->items = pd_realloc(status_arr->items, status_arr->size * sizeof(bl_status_t));
-                if(!status_arr->items) {
-                    log_e("realloc(bl_status_arr_t) (%d items) failed", status_arr->size);
-                    status_arr->size = 0;
-                    continue;
-                }
-            }
+    blacklist_t *bl = blacklist_load_snapshot(snapshot_path, lists, num_bls);
+    if(bl) {
+        for(int i = 0; i < num_bls; i++) {
+            if(lists[i].num_rules >= 0)
+                add_blacklist_status(status_arr, lists[i].fname, lists[i].num_rules);
+        }
 
-            char *fname = pd_strdup(blinfo->fname);
-            if(!fname)
-                continue;
+        log_d("Blacklists snapshot loaded in %.3f sec", ((double) (clock() - start)) / CLOCKS_PER_SEC);
+    } else {
+        bl = blacklist_init();
+        if(!bl) {
+            pd_free(lists);
+            pd_free(status_arr);
+            pd->malware_detection.reload_done = true;
+            return NULL;
+        }
 
-            bl_status_t *status = &status_arr->items[status_arr->cur_items++];
-            status->fname = fname;
-            status->num_rules = stats.num_rules;
+        // load files in the malware_bl directory
+        for(int i = 0; i < num_bls; i++) {
+            bl_info_t *blinfo = &pd->malware_detection.bls_info[i];
+            char subpath[256];
+            blacklist_stats_t stats;
+
+            snprintf(subpath, sizeof(subpath), "malware_bl/%s", blinfo->fname);
+
+            if(blacklist_load_file(bl, get_file_path(pd, subpath), blinfo->type, &stats) == 0) {
+                add_blacklist_status(status_arr, blinfo->fname, stats.num_rules);
+                lists[i].num_rules = stats.num_rules;
+            } else
+                lists[i].num_rules = -1; // not loaded
         }
+
+        // Test domain/IP to test blacklist match
+        blacklist_add_domain(bl, "internetbadguys.com");
+        blacklist_add_ipstr(bl, "0.0.0.1");
+
+        log_d("Blacklists loaded in %.3f sec", ((double) (clock() - start)) / CLOCKS_PER_SEC);
+
+        blacklist_save_snapshot(bl, snapshot_path, lists, num_bls);
     }
 
-    // Test domain/IP to test blacklist match
-    blacklist_add_domain(bl, "internetbadguys.com");
-    blacklist_add_ipstr(bl, "0.0.0.1");
+    pd_free(lists);
 
-    log_d("Blacklists loaded in %.3f sec", ((double) (clock() - start)) / CLOCKS_PER_SEC);
+    // build it here, as it is expensive on big blacklists
+    blacklist_build_prefilter(bl);
 
     pd->malware_detection.new_bl = bl;
     pd->malware_detection.status_arr = status_arr;
@@ -880,6 +1253,32 @@ static int check_blocked_conn_cb(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, p
 
 /* ******************************************************* */
 
+// Enqueues the uid of a connection, resolved asynchronously. Can be called from any thread.
+bool pd_set_async_uid(pcapdroid_t *pd, jint req_id, int uid) {
+    uid_result_t *res = pd_malloc(sizeof(uid_result_t));
+    if(!res)
+        return false;
+
+    res->req_id = req_id;
+    res->uid = uid;
+
+    pthread_mutex_lock(&pd->async_uid.lock);
+    bool stopped = pd->async_uid.stopped;
+    if(!stopped) {
+        res->next = pd->async_uid.results;
+        pd->async_uid.results = res;
+    }
+    pthread_mutex_unlock(&pd->async_uid.lock);
+
+    if(stopped) {
+        pd_free(res);
+        return false;
+    }
+    return true;
+}
+
+/* ******************************************************* */
+
 // Check if a previously blacklisted connection is now whitelisted
 static int check_blacklisted_conn_cb(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data) {
     blacklist_t *whitelist = pd->malware_detection.whitelist;
@@ -916,6 +1315,55 @@ static int check_blacklisted_conn_cb(pcapdroid_t *pd, const zdtun_5tuple_t *tupl
 
 /* ******************************************************* */
 
+// True if the connection was not sent to Java yet
+static bool is_new_connection(pcapdroid_t *pd, const pd_conn_t *data) {
+    for(int i=0; i < pd->new_conns.cur_items; i++) {
+        if(pd->new_conns.items[i].data == data)
+            return true;
+    }
+    return false;
+}
+
+/* Sets the uid of a connection created with an unknown uid, re-evaluating the uid based rules and
+ * the netd DNS handling, which are skipped on the connection creation (see lookup_lru_host and
+ * perform_dpi). */
+void pd_set_conn_uid(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data, int uid) {
+    if(data->uid == uid)
+        return;
+
+    bool was_blocked = data->to_block;
+
+    data->uid = uid;
+    conn_index_update(pd, data, CONN_KEY_UID);
+
+    // Possibly clear the blacklist flags, if the app is whitelisted, then re-evaluate to_block
+    if(pd->malware_detection.whitelist)
+        check_blacklisted_conn_cb(pd, tuple, data);
+    if(pd->firewall.bl)
+        check_blocked_conn_cb(pd, tuple, data);
+    else
+        data->to_block = data->blacklisted_internal || data->blacklisted_ip || data->blacklisted_domain;
+
+    if(data->to_block && !was_blocked) {
+        char appbuf[64];
+        char buf[256];
+
+        get_appname_by_uid(pd, uid, appbuf, sizeof(appbuf));
+        log_w("Blocked app: %s [%s]", zdtun_5tuple2str(tuple, buf, sizeof(buf)), appbuf);
+    }
+
+    if(uid == UID_NETD) {
+        if((data->l7proto == NDPI_PROTOCOL_DNS) && is_new_connection(pd, data))
+            add_netd_resolve_delay(pd);
+    } else if(data->info_from_lru)
+        resolve_netd_uids(pd, data);
+
+    data->update_type |= CONN_UPDATE_INFO;
+    pd_notify_connection_update(pd, tuple, data);
+}
+
+/* ******************************************************* */
+
 static void sendPcapDump(pcapdroid_t *pd) {
     if(pd->pcap_dump.buffer_idx == 0)
         return;
@@ -927,6 +1375,179 @@ static void sendPcapDump(pcapdroid_t *pd) {
     pd->pcap_dump.last_dump_ms = pd->now_ms;
 }
 
+/* Re-checks, via cb, the active connections affected by a rules change. delta contains the added
+ * and removed rules (see blacklist_diff) and is destroyed afterwards. Rather than all the active connections, the rules are
+ * matched against the distinct keys of the connections index, and only the connections of the
+ * matching keys are checked. If delta is NULL, all the active connections are checked. */
+static void check_affected_connections(pcapdroid_t *pd, blacklist_t *delta, conn_cb cb) {
+    if(!pd->conns_index_enabled) {
+        // First rules change (the firewall or the malware whitelist is now in use): index the active connections
+        iter_active_connections(pd, conn_index_add_cb);
+        pd->conns_index_enabled = true;
+    }
+
+    if(!delta) {
+        iter_active_connections(pd, cb);
+        return;
+    }
+
+    conn_index_node_t *affected = NULL;
+    uint32_t visit_id = ++pd->conns_index_visit;
+    int num_keys = 0, num_affected = 0;
+    blacklists_stats_t stats;
+
+    blacklist_get_stats(delta, &stats);
+
+    for(int k = 0; k < CONN_KEY_MAX; k++) {
+        int num_rules = (k == CONN_KEY_UID) ? stats.num_apps :
+                        (k == CONN_KEY_DST_IP) ? stats.num_ips : stats.num_domains;
+        conn_bucket_t *bucket, *tmp;
+
+        if(num_rules == 0)
+            continue;
+
+        HASH_ITER(hh, pd->conns_index[k], bucket, tmp) {
+            bool matches;
+            num_keys++;
+
+            if(k == CONN_KEY_UID) {
+                int uid;
+                memcpy(&uid, bucket->key, sizeof(uid));
+                matches = blacklist_match_uid(delta, uid);
+            } else if(k == CONN_KEY_DST_IP) {
+                zdtun_ip_t ip;
+                memcpy(&ip, bucket->key, sizeof(ip));
+                matches = blacklist_match_ip(delta, &ip, bucket->conns->tuple.ipver);
+            } else
+                matches = blacklist_match_domain(delta, bucket->key);
+
+            if(!matches)
+                continue;
+
+            for(conn_index_node_t *node = bucket->conns; node; node = node->next[k]) {
+                if((node->visit_id != visit_id) && !node->data->to_purge) {
+                    node->visit_id = visit_id;
+                    node->next_affected = affected;
+                    affected = node;
+                }
+            }
+        }
+    }
+
+    // NOTE: the callback may modify the index (e.g. when the DPI is given up), so it is only
+    // called after the index walk
+    for(conn_index_node_t *node = affected; node; node = node->next_affected) {
+        cb(pd, &node->tuple, node->data);
+        num_affected++;
+    }
+
+    log_d("Rules change: %d checked keys, %d affected connections", num_keys, num_affected);
+    blacklist_destroy(delta);
+}
+
+/* ******************************************************* */
+
+/* Enqueues a change of a single firewall rule, which will be applied by the capture thread during
+ * the next pd_housekeeping. This avoids reloading the whole blocklist. Can be called from any
+ * thread. */
+bool pd_update_firewall_rule(pcapdroid_t *pd, matchlist_rule_t type, const char *value, bool add) {
+    size_t len = strlen(value);
+    fw_rule_update_t *update = pd_malloc(sizeof(fw_rule_update_t) + len + 1);
+    if(!update)
+        return false;
+
+    update->type = type;
+    update->add = add;
+    memcpy(update->value, value, len + 1);
+
+    pthread_mutex_lock(&pd->firewall.lock);
+    update->next = pd->firewall.rule_updates;
+    pd->firewall.rule_updates = update;
+    pthread_mutex_unlock(&pd->firewall.lock);
+
+    return true;
+}
+
+/* ******************************************************* */
+
+static int update_rule(blacklist_t *bl, matchlist_rule_t type, const char *value, bool add) {
+    switch(type) {
+        case RULE_APP: {
+            char *end;
+            long uid = strtol(value, &end, 10);
+            if((end == value) || *end || (uid < 0) || (uid > INT32_MAX))
+                return -EINVAL;
+
+            return add ? blacklist_add_uid(bl, (int) uid) : blacklist_remove_uid(bl, (int) uid);
+        }
+        case RULE_IP:
+        case RULE_SUBNET:
+            return add ? blacklist_add_ipstr(bl, value) : blacklist_remove_ipstr(bl, value);
+        case RULE_HOST:
+            return add ? blacklist_add_host(bl, value) : blacklist_remove_host(bl, value);
+        case RULE_WILDCARD_HOST:
+            return add ? blacklist_add_wildcard(bl, value) : blacklist_remove_domain(bl, value);
+        default:
+            return -EINVAL;
+    }
+}
+
+/* ******************************************************* */
+
+// Applies the changes enqueued via pd_update_firewall_rule
+static void apply_firewall_rule_updates(pcapdroid_t *pd) {
+    pthread_mutex_lock(&pd->firewall.lock);
+    fw_rule_update_t *updates = pd->firewall.rule_updates;
+    pd->firewall.rule_updates = NULL;
+    pthread_mutex_unlock(&pd->firewall.lock);
+
+    if(!updates)
+        return;
+
+    // Restore the insertion order
+    fw_rule_update_t *ordered = NULL;
+    while(updates) {
+        fw_rule_update_t *next = updates->next;
+        updates->next = ordered;
+        ordered = updates;
+        updates = next;
+    }
+
+    if(!pd->firewall.bl)
+        pd->firewall.bl = blacklist_init();
+
+    // The changed rules, to only re-check the affected connections
+    blacklist_t *delta = blacklist_init();
+
+    while(ordered) {
+        fw_rule_update_t *update = ordered;
+        ordered = update->next;
+
+        int rv = pd->firewall.bl ? update_rule(pd->firewall.bl, update->type, update->value, update->add) : -ENOMEM;
+        if(rv == 0) {
+            log_d("Firewall rule %s: %s", update->add ? "added" : "removed", update->value);
+
+            if(delta) {
+                rv = update_rule(delta, update->type, update->value, true);
+                if((rv != 0) && (rv != -EADDRINUSE)) {
+                    blacklist_destroy(delta);
+                    delta = NULL;
+                }
+            }
+        } else if((rv != -EADDRINUSE) && (rv != -ENOENT))
+            log_w("Could not %s firewall rule \"%s\" [%d]", update->add ? "add" : "remove", update->value, rv);
+
+        pd_free(update);
+    }
+
+    if(pd->firewall.bl) {
+        // the user rules are few, rebuilding the prefilter here is cheap
+        blacklist_build_prefilter(pd->firewall.bl);
+        check_affected_connections(pd, delta, check_blocked_conn_cb);
+    } else if(delta)
+        blacklist_destroy(delta);
+}
+
 /* ******************************************************* */
 
 static void stop_pcap_dump(pcapdroid_t *pd){
@@ -961,6 +1582,8 @@ void pd_housekeeping(pcapdroid_t *pd) {
               pd->now_ms - last_connections_dump,
               pd->new_conns.cur_items, pd->conns_updates.cur_items);*/
 
+        pd_merge_dpi_results(pd);
+
         if((pd->new_conns.cur_items != 0) || (pd->conns_updates.cur_items != 0)) {
             if(pd->cb.send_connections_dump)
                 pd->cb.send_connections_dump(pd);
@@ -995,23 +1618,30 @@ void pd_housekeeping(pcapdroid_t *pd) {
 
     if(pd->malware_detection.new_wl) {
         // Load new whitelist
+        blacklist_t *delta = blacklist_diff(pd->malware_detection.whitelist, pd->malware_detection.new_wl);
+
         if(pd->malware_detection.whitelist)
             blacklist_destroy(pd->malware_detection.whitelist);
         pd->malware_detection.whitelist = pd->malware_detection.new_wl;
         pd->malware_detection.new_wl = NULL;
 
-        // Check the active (blacklisted) connections to possibly whitelist (and unblock) them
-        iter_active_connections(pd, check_blacklisted_conn_cb);
+        // Check the (blacklisted) connections affected by the change to possibly whitelist (and unblock) them
+        check_affected_connections(pd, delta, check_blacklisted_conn_cb);
     }
 
     if(pd->firewall.new_bl) {
         // Load new blocklist
+        blacklist_t *delta = blacklist_diff(pd->firewall.bl, pd->firewall.new_bl);
+
         if(pd->firewall.bl)
             blacklist_destroy(pd->firewall.bl);
         pd->firewall.bl = pd->firewall.new_bl;
         pd->firewall.new_bl = NULL;
-        iter_active_connections(pd, check_blocked_conn_cb);
+        check_affected_connections(pd, delta, check_blocked_conn_cb);
     }
+
+    apply_firewall_rule_updates(pd);
+    apply_app_name_updates(pd);
 }
 
 /* ******************************************************* */
@@ -1058,7 +1688,14 @@ void pd_process_packet(pcapdroid_t *pd, zdtun_pkt_t *pkt, bool is_tx, const zdtu
     if(data->ndpi_flow &&
        (!(pkt->flags & ZDTUN_PKT_IS_FRAGMENT) || (pkt->flags & ZDTUN_PKT_IS_FIRST_FRAGMENT))) {
         // nDPI cannot handle fragments, since they miss the L4 layer (see ndpi_iph_is_valid_and_not_fragmented)
-        perform_dpi(pd, pctx);
+        if(!pd->dpi_pool)
+            perform_dpi(pd, pctx);
+        else if((data->sent_pkts + data->rcvd_pkts) < MAX_DPI_PACKETS) {
+            // the flow is freed in pd_merge_dpi_results, stop submitting after the giveup
+            bool giveup = ((data->sent_pkts + data->rcvd_pkts + 1) >= MAX_DPI_PACKETS);
+
+            dpi_pool_submit(pd->dpi_pool, tuple, data, pkt, is_tx, data->last_seen, giveup);
+        }
     }
 
     process_payload(pd, pctx);
@@ -1132,7 +1769,19 @@ int pd_run(pcapdroid_t *pd) {
         return(-1);
     }
 
-    pd->ip_to_host = ip_lru_init(MAX_HOST_LRU_SIZE);
+    pd->ip_to_host = ip_lru_init((pd->host_lru_size > 0) ? min(pd->host_lru_size, HOST_LRU_SIZE_LIMIT) : MAX_HOST_LRU_SIZE);
+    if(pd->ip_to_host == NULL) {
+        log_f("Host LRU cache initialization failed");
+        ndpi_exit_detection_module(pd->ndpi);
+        return(-1);
+    }
+
+    pd->dpi_pool = NULL;
+    if(pd->root_capture && (pd->dpi_workers > 0)) {
+        pd->dpi_pool = dpi_pool_init(min(pd->dpi_workers, DPI_POOL_MAX_WORKERS));
+        if(!pd->dpi_pool)
+            log_e("DPI pool initialization failed, the DPI will run on the capture thread");
+    }
 
     if(pd->malware_detection.enabled && pd->cb.load_blacklists_info)
         pd->cb.load_blacklists_info(pd);
@@ -1175,18 +1824,35 @@ int pd_run(pcapdroid_t *pd) {
     log_d("Stopped packet loop");
 
     // send last dump
+    pd_merge_dpi_results(pd);
     if(pd->cb.send_connections_dump)
         pd->cb.send_connections_dump(pd);
 
     conns_clear(pd, &pd->new_conns, true);
     conns_clear(pd, &pd->conns_updates, true);
 
-    if(pd->firewall.bl)
+    if(pd->dpi_pool) {
+        dpi_pool_destroy(pd->dpi_pool);
+        pd->dpi_pool = NULL;
+    }
+
+    if(pd->firewall.bl) {
+        log_blacklist_lookups("Firewall", pd->firewall.bl);
         blacklist_destroy(pd->firewall.bl);
+    }
     if(pd->firewall.new_bl)
         blacklist_destroy(pd->firewall.new_bl);
+    while(pd->firewall.rule_updates) {
+        fw_rule_update_t *update = pd->firewall.rule_updates;
+        pd->firewall.rule_updates = update->next;
+        pd_free(update);
+    }
 
     if(pd->malware_detection.enabled) {
+        log_d("Malware detection: %d checked connections", bl_num_checked_connections);
+        log_blacklist_lookups("Malware blacklist", pd->malware_detection.bl);
+        log_blacklist_lookups("Malware whitelist", pd->malware_detection.whitelist);
+
         if(pd->malware_detection.reload_in_progress) {
             log_d("Joining blacklists reload_worker");
             pthread_join(pd->malware_detection.reload_worker, NULL);
@@ -1216,8 +1882,42 @@ int pd_run(pcapdroid_t *pd) {
         HASH_DEL(pd->uid2app, e);
         pd_free(e);
     }
+    pthread_mutex_lock(&pd->app_names.lock);
+    pd->app_names.stopped = true;
+    app_name_update_t *update = pd->app_names.updates;
+    pd->app_names.updates = NULL;
+    pthread_mutex_unlock(&pd->app_names.lock);
+
+    while(update) {
+        app_name_update_t *next = update->next;
+        pd_free(update);
+        update = next;
+    }
+
+    pthread_mutex_lock(&pd->async_uid.lock);
+    pd->async_uid.stopped = true;
+    uid_result_t *res = pd->async_uid.results;
+    pd->async_uid.results = NULL;
+    pthread_mutex_unlock(&pd->async_uid.lock);
+
+    while(res) {
+        uid_result_t *next = res->next;
+        pd_free(res);
+        res = next;
+    }
+
+    uid_request_t *req, *req_tmp;
+    HASH_ITER(hh, pd->async_uid.pending, req, req_tmp) {
+        HASH_DEL(pd->async_uid.pending, req);
+        pd_free(req);
+    }
+
+    ip_lru_stats_t lru_stats;
+    ip_lru_get_stats(pd->ip_to_host, &lru_stats);
 
     log_d("Host LRU cache size: %d", ip_lru_size(pd->ip_to_host));
+    log_d("Host LRU cache: %" PRIu64 " hits, %" PRIu64 " misses, %" PRIu64 " evictions",
+          lru_stats.hits, lru_stats.misses, lru_stats.evictions);
     log_d("Discarded fragments: %ld", pd->num_discarded_fragments);
     ip_lru_destroy(pd->ip_to_host);
 
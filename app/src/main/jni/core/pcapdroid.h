@@ -21,8 +21,10 @@
 #define __PCAPDROID_H__
 
 #include <stdbool.h>
+#include <pthread.h>
 #include "zdtun.h"
 #include "ip_lru.h"
+#include "timer_wheel.h"
 #include "blacklist.h"
 #include "ndpi_api.h"
 #include "common/jni_utils.h"
@@ -36,7 +38,10 @@
 #define SELECT_TIMEOUT_MS 250
 #define MAX_DPI_PACKETS 12
 #define VPN_BUFFER_SIZE 32768
+#define VPN_MAX_BATCH_PKTS 64
 #define MAX_HOST_LRU_SIZE 256
+#define HOST_LRU_SIZE_LIMIT 65536 // max configurable host_lru_size
+#define MAX_APP_NAMES 1024 // max uid2app entries
 #define JAVA_PCAP_BUFFER_SIZE (512*1024) // 512K
 #define PERIODIC_PURGE_TIMEOUT_MS 5000
 #define MINIMAL_PAYLOAD_MAX_DIRECTION_SIZE 512
@@ -49,6 +54,26 @@
 #define CONN_UPDATE_INFO    0x2
 #define CONN_UPDATE_PAYLOAD 0x4
 
+// NOTE: sync with MatchList.RuleType
+typedef enum {
+    RULE_APP = 0,
+    RULE_IP,
+    RULE_HOST,
+    RULE_ROOT_DOMAIN,
+    RULE_PROTOCOL,
+    RULE_COUNTRY,
+    RULE_SUBNET,
+    RULE_WILDCARD_HOST,
+} matchlist_rule_t;
+
+// A pending firewall rule change, see pd_update_firewall_rule
+typedef struct fw_rule_update {
+    matchlist_rule_t type;
+    bool add;
+    struct fw_rule_update *next;
+    char value[];
+} fw_rule_update_t;
+
 typedef struct {
     jlong sent_bytes;
     jlong rcvd_bytes;
@@ -66,6 +91,8 @@ typedef enum {
     PAYLOAD_MODE_FULL
 } payload_mode_t;
 
+struct conn_index_node;
+
 typedef struct {
     jint incr_id; // an incremental number which identifies a specific connection
 
@@ -118,6 +145,16 @@ typedef struct {
     bool has_payload[2]; // [0]: rx, [1] tx
     char *url;
     uint8_t update_type;
+    struct conn_index_node *index_node; // see pcapdroid_t.conns_index
+
+    // Results of pd_dpi_detect. With the DPI pool, only accessed by the worker which owns the
+    // connection, until merged by the capture thread (see dpi_pool.h)
+    struct {
+        uint16_t l7proto;
+        bool done;          // the detection is complete, the ndpi_flow can be freed
+        bool updated;       // already in the worker updates
+        int pending_jobs;   // submitted and not merged yet, only accessed by the capture thread
+    } dpi;
 } pd_conn_t;
 
 typedef struct {
@@ -137,6 +174,53 @@ typedef struct {
     UT_hash_handle hh;
 } uid_to_app_t;
 
+// A connection uid resolved asynchronously by the Java side, see pd_set_async_uid
+typedef struct uid_result {
+    jint req_id;
+    int uid;
+    struct uid_result *next;
+} uid_result_t;
+
+// A pending asynchronous uid resolution. The request id is the connection incr_id.
+typedef struct {
+    jint req_id;
+    zdtun_5tuple_t tuple;
+    UT_hash_handle hh;
+} uid_request_t;
+
+// An app name resolved by the Java side, see pd_set_app_name
+typedef struct app_name_update {
+    int uid;
+    struct app_name_update *next;
+    char appname[64];
+} app_name_update_t;
+
+// The keys of the active connections index, see pcapdroid_t.conns_index
+typedef enum {
+    CONN_KEY_UID = 0,
+    CONN_KEY_DST_IP,
+    CONN_KEY_DOMAIN,    // the connection info
+    CONN_KEY_MAX
+} conn_key_t;
+
+// A key of the connections index, with the active connections having that key
+typedef struct conn_bucket {
+    struct conn_index_node *conns;
+    UT_hash_handle hh;
+    uint16_t keylen;
+    char key[];         // NUL terminated for CONN_KEY_DOMAIN
+} conn_bucket_t;
+
+typedef struct conn_index_node {
+    zdtun_5tuple_t tuple;
+    pd_conn_t *data;
+    uint32_t visit_id;  // to only visit a connection once per index walk
+    struct conn_index_node *next_affected;
+    conn_bucket_t *buckets[CONN_KEY_MAX];
+    struct conn_index_node *next[CONN_KEY_MAX];
+    struct conn_index_node *prev[CONN_KEY_MAX];
+} conn_index_node_t;
+
 typedef struct pkt_context {
     zdtun_pkt_t *pkt;
     struct timeval tv; // Packet timestamp, need by pcap_dump_rec
@@ -149,6 +233,7 @@ typedef struct pkt_context {
 /* ******************************************************* */
 
 struct pcapdroid;
+struct dpi_pool;
 
 // Used to decouple pcapdroid.c from the JNI calls
 typedef struct {
@@ -178,8 +263,24 @@ typedef struct pcapdroid {
     ip_lru_t *ip_to_host;
     conn_array_t new_conns;
     conn_array_t conns_updates;
+    conn_bucket_t *conns_index[CONN_KEY_MAX]; // reverse index, from the keys to the active connections
+    uint32_t conns_index_visit;
+    bool conns_index_enabled;   // only maintained while the firewall or the malware whitelist is in use
     pd_callbacks_t cb;
     uid_to_app_t *uid2app;
+
+    struct {
+        pthread_mutex_t lock;           // protects updates and stopped
+        app_name_update_t *updates;     // resolved app names, to be applied to uid2app
+        bool stopped;                   // the capture is terminating, updates are dropped
+    } app_names;
+
+    struct {
+        pthread_mutex_t lock;           // protects results and stopped
+        uid_result_t *results;          // resolved uids, to be applied to the connections
+        bool stopped;                   // the capture is terminating, results are dropped
+        uid_request_t *pending;         // only accessed by the capture thread
+    } async_uid;
     char cachedir[PATH_MAX];
     char filesdir[PATH_MAX];
     int cachedir_len;
@@ -190,6 +291,9 @@ typedef struct pcapdroid {
     bool root_capture;
     bool tls_decryption_enabled;
     payload_mode_t payload_mode;
+    int host_lru_size;
+    int dpi_workers;            // root mode only, 0 to perform the DPI on the capture thread
+    struct dpi_pool *dpi_pool;
 
     // stats
     u_int num_dropped_pkts;
@@ -210,6 +314,7 @@ typedef struct pcapdroid {
         } vpn;
         struct {
             struct pcap_conn_t *connections;
+            twheel_t conn_timers;
             bool as_root;
             char *bpf;
             char *capture_interface;
@@ -259,12 +364,17 @@ typedef struct pcapdroid {
     struct {
         blacklist_t *bl;
         blacklist_t *new_bl;
+        pthread_mutex_t lock;           // protects rule_updates
+        fw_rule_update_t *rule_updates; // pending rule changes, most recent first
     } firewall;
 } pcapdroid_t;
 
 // return 0 to continue, anything else to break
 typedef int (*conn_cb)(pcapdroid_t*, const zdtun_5tuple_t*, pd_conn_t*);
 
+// Invoked for each A/AAAA record of a DNS reply
+typedef void (*dns_host_cb)(void *userdata, int ipver, const zdtun_ip_t *ip, const char *host);
+
 /* ******************************************************* */
 
 typedef struct {
@@ -283,7 +393,7 @@ typedef struct {
 
 typedef struct {
     jmethodID reportError;
-    jmethodID getApplicationByUid;
+    jmethodID requestAppName;
     jmethodID protect;
     jmethodID dumpPcapData;
     jmethodID stopPcapDump;
@@ -328,6 +438,7 @@ typedef struct {
     jfieldID ld_apps;
     jfieldID ld_hosts;
     jfieldID ld_ips;
+    jfieldID ld_wildcards;
 } jni_fields_t;
 
 typedef struct {
@@ -363,6 +474,13 @@ pd_conn_t* pd_new_connection(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, int u
 void pd_purge_connection(pcapdroid_t *pd, pd_conn_t *data);
 void pd_notify_connection_update(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data);
 void pd_giveup_dpi(pcapdroid_t *pd, pd_conn_t *data, const zdtun_5tuple_t *tuple);
+void pd_merge_dpi_results(pcapdroid_t *pd);
+void pd_dpi_detect(struct ndpi_detection_module_struct *ndpi, pd_conn_t *data, const zdtun_pkt_t *pkt,
+                   bool is_tx, uint64_t ts_ms, bool giveup, dns_host_cb host_cb, void *userdata);
+bool pd_update_firewall_rule(pcapdroid_t *pd, matchlist_rule_t type, const char *value, bool add);
+bool pd_set_app_name(pcapdroid_t *pd, int uid, const char *appname);
+bool pd_set_async_uid(pcapdroid_t *pd, jint req_id, int uid);
+void pd_set_conn_uid(pcapdroid_t *pd, const zdtun_5tuple_t *tuple, pd_conn_t *data, int uid);
 const char* pd_get_proto_name(pcapdroid_t *pd, uint16_t proto, uint16_t alpn, int ipproto);
 
 // Utility
@@ -378,7 +496,7 @@ char* getStringPref(pcapdroid_t *pd, const char *key, char *buf, int bufsize);
 int getIntPref(JNIEnv *env, jobject vpn_inst, const char *key);
 uint32_t getIPv4Pref(JNIEnv *env, jobject vpn_inst, const char *key);
 struct in6_addr getIPv6Pref(JNIEnv *env, jobject vpn_inst, const char *key);
-void getApplicationByUid(pcapdroid_t *pd, jint uid, char *buf, int bufsize);
+void requestAppName(pcapdroid_t *pd, jint uid);
 
 #endif // ANDROID
 
@@ -386,6 +504,7 @@ void getApplicationByUid(pcapdroid_t *pd, jint uid, char *buf, int bufsize);
 struct pcapdroid_trailer;
 void fill_custom_data(struct pcapdroid_trailer *cdata, pcapdroid_t *pd, pd_conn_t *conn);
 void init_ndpi_protocols_bitmask(ndpi_protocol_bitmask_struct_t *b);
+struct ndpi_detection_module_struct* init_ndpi();
 void load_ndpi_hosts(struct ndpi_detection_module_struct *ndpi);
 uint32_t crc32(u_char *buf, size_t len, uint32_t crc);
 
@@ -0,0 +1,160 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+// A hierarchical timer wheel. Level 0 has one slot per tick, each slot of level N spans
+// TWHEEL_SLOTS slots of level N-1. When level 0 wraps, the due slot of the upper level is cascaded,
+// namely its entries are re-added into the lower levels. Adding, removing and expiring an entry
+// is O(1), so the cost of twheel_advance is proportional to the expired entries rather than to
+// the total entries.
+
+#include <string.h>
+#include "timer_wheel.h"
+
+#define TWHEEL_MASK (TWHEEL_SLOTS - 1)
+
+void twheel_init(twheel_t *tw, uint32_t tick_ms, uint64_t now_ms) {
+    memset(tw, 0, sizeof(*tw));
+    tw->tick_ms = tick_ms;
+    tw->cur_tick = now_ms / tick_ms;
+}
+
+/* ******************************************************* */
+
+static void link_entry(twheel_t *tw, twheel_entry_t *entry) {
+    // round up, to never expire an entry early
+    uint64_t expire_tick = (entry->expire_ms + tw->tick_ms - 1) / tw->tick_ms;
+    int level;
+
+    if(expire_tick < tw->cur_tick)
+        expire_tick = tw->cur_tick;
+
+    for(level = 0; level < TWHEEL_LEVELS; level++) {
+        if((expire_tick - tw->cur_tick) < (1ULL << ((level + 1) * TWHEEL_BITS)))
+            break;
+    }
+
+    if(level == TWHEEL_LEVELS) {
+        // too far in the future, it will be re-added when cascaded
+        level = TWHEEL_LEVELS - 1;
+        expire_tick = tw->cur_tick + (1ULL << (TWHEEL_LEVELS * TWHEEL_BITS)) - 1;
+    }
+
+    twheel_entry_t **slot = &tw->slots[level][(expire_tick >> (level * TWHEEL_BITS)) & TWHEEL_MASK];
+
+    entry->prev = NULL;
+    entry->next = *slot;
+    if(*slot)
+        (*slot)->prev = entry;
+    *slot = entry;
+    entry->slot = slot;
+}
+
+/* ******************************************************* */
+
+static void unlink_entry(twheel_entry_t *entry) {
+    if(entry->prev)
+        entry->prev->next = entry->next;
+    else
+        *entry->slot = entry->next;
+    if(entry->next)
+        entry->next->prev = entry->prev;
+
+    entry->prev = entry->next = NULL;
+    entry->slot = NULL;
+}
+
+/* ******************************************************* */
+
+// Moves the entries of the slot into a local list, so that they can be safely re-added into the
+// same slot (or removed) while iterating
+static twheel_entry_t* detach_slot(twheel_entry_t **slot, twheel_entry_t **list) {
+    *list = *slot;
+    *slot = NULL;
+
+    for(twheel_entry_t *e = *list; e; e = e->next)
+        e->slot = list;
+
+    return *list;
+}
+
+/* ******************************************************* */
+
+void twheel_add(twheel_t *tw, twheel_entry_t *entry, uint64_t expire_ms) {
+    if(entry->slot)
+        unlink_entry(entry);
+    else
+        tw->num_entries++;
+
+    entry->expire_ms = expire_ms;
+    link_entry(tw, entry);
+}
+
+/* ******************************************************* */
+
+void twheel_remove(twheel_t *tw, twheel_entry_t *entry) {
+    if(!entry->slot)
+        return;
+
+    unlink_entry(entry);
+    tw->num_entries--;
+}
+
+/* ******************************************************* */
+
+// Processes all the ticks up to now_ms, invoking the cb on the expired entries
+void twheel_advance(twheel_t *tw, uint64_t now_ms, twheel_cb cb, void *userdata) {
+    uint64_t now_tick = now_ms / tw->tick_ms;
+    twheel_entry_t *list, *entry;
+
+    while(tw->cur_tick <= now_tick) {
+        uint64_t tick = tw->cur_tick;
+
+        if(tw->num_entries == 0) {
+            // nothing to expire or cascade
+            tw->cur_tick = now_tick + 1;
+            break;
+        }
+
+        // Cascade the upper levels, starting from the highest one
+        int level = 0;
+        while((level < (TWHEEL_LEVELS - 1)) &&
+                ((tick & ((1ULL << ((level + 1) * TWHEEL_BITS)) - 1)) == 0))
+            level++;
+
+        for(; level > 0; level--) {
+            detach_slot(&tw->slots[level][(tick >> (level * TWHEEL_BITS)) & TWHEEL_MASK], &list);
+
+            while((entry = list)) {
+                unlink_entry(entry);
+                link_entry(tw, entry);
+            }
+        }
+
+        // The entries of the level 0 slot are due. An entry re-added by the cb with a 1-cycle
+        // expiration goes into the same slot, so the slot is detached before invoking the cb.
+        tw->cur_tick = tick + 1;
+        detach_slot(&tw->slots[0][tick & TWHEEL_MASK], &list);
+
+        while((entry = list)) {
+            unlink_entry(entry);
+            tw->num_entries--;
+            cb(tw, entry, userdata);
+        }
+    }
+}
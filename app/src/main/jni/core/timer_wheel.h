@@ -0,0 +1,52 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+#ifndef __TIMER_WHEEL_H__
+#define __TIMER_WHEEL_H__
+
+#include <stdint.h>
+
+#define TWHEEL_BITS   6
+#define TWHEEL_SLOTS  (1 << TWHEEL_BITS)
+#define TWHEEL_LEVELS 3
+
+// An entry of the timer wheel, to be embedded into the timed object
+typedef struct twheel_entry {
+    struct twheel_entry *prev;
+    struct twheel_entry *next;
+    struct twheel_entry **slot; // NULL if not in the wheel
+    uint64_t expire_ms;
+} twheel_entry_t;
+
+typedef struct twheel {
+    uint32_t tick_ms;
+    uint64_t cur_tick;          // the next tick to process
+    uint32_t num_entries;
+    twheel_entry_t *slots[TWHEEL_LEVELS][TWHEEL_SLOTS];
+} twheel_t;
+
+// Invoked on an expired entry, which is already removed from the wheel. The entry can be re-added.
+typedef void (*twheel_cb)(twheel_t *tw, twheel_entry_t *entry, void *userdata);
+
+void twheel_init(twheel_t *tw, uint32_t tick_ms, uint64_t now_ms);
+void twheel_add(twheel_t *tw, twheel_entry_t *entry, uint64_t expire_ms);
+void twheel_remove(twheel_t *tw, twheel_entry_t *entry);
+void twheel_advance(twheel_t *tw, uint64_t now_ms, twheel_cb cb, void *userdata);
+
+#endif // __TIMER_WHEEL_H__
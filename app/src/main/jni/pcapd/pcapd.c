@@ -40,6 +40,8 @@
 #include <sys/socket.h>
 #include <sys/stat.h>
 #include <sys/un.h>
+#include <sys/uio.h>
+#include <sys/mman.h>
 #include <signal.h>
 #include <linux/if_ether.h>
 #include <time.h>
@@ -57,6 +59,7 @@ static void close_interface(pcapd_runtime_t *rt, pcapd_iface_t *iface);
 /* ******************************************************* */
 
 static char errbuf[PCAP_ERRBUF_SIZE];
+static const uint8_t zero_padding[PCAPD_RECORD_ALIGN];
 static FILE *logf = NULL;
 static sig_atomic_t running;
 
@@ -235,6 +238,10 @@ static void finish_pcapd_capture(pcapd_runtime_t *rt) {
     uid_lru_destroy(rt->lru);
   if(rt->resolver)
     destroy_uid_resolver(rt->resolver);
+  if(rt->sendbuf)
+    free(rt->sendbuf);
+  if(rt->ring)
+    munmap(rt->ring, rt->ring_maplen);
 
   for(int i=0; i<rt->conf->num_interfaces; i++)
     close_interface(rt, &rt->ifaces[i]);
@@ -244,6 +251,72 @@ static void finish_pcapd_capture(pcapd_runtime_t *rt) {
 
 /* ******************************************************* */
 
+// Receives the shared memory ring from the client, see pcapd_ring_t. On failure, the records are
+// sent on the socket.
+static void init_ring(pcapd_runtime_t *rt) {
+  char data;
+  char cmsgbuf[CMSG_SPACE(sizeof(int))];
+  struct iovec iov = {.iov_base = &data, .iov_len = 1};
+  struct msghdr msg = {
+    .msg_iov = &iov,
+    .msg_iovlen = 1,
+    .msg_control = cmsgbuf,
+    .msg_controllen = sizeof(cmsgbuf),
+  };
+  struct cmsghdr *cmsg;
+  struct stat st;
+  int fd = -1;
+
+  if(recvmsg(rt->client, &msg, 0) != 1) {
+    log_w("could not receive the ring[%d]: %s", errno, strerror(errno));
+    return;
+  }
+
+  cmsg = CMSG_FIRSTHDR(&msg);
+  if(cmsg && (cmsg->cmsg_level == SOL_SOCKET) && (cmsg->cmsg_type == SCM_RIGHTS))
+    memcpy(&fd, CMSG_DATA(cmsg), sizeof(int));
+
+  if(fd < 0) {
+    log_w("ring fd not received");
+    return;
+  }
+
+  if((fstat(fd, &st) < 0) || (st.st_size <= PCAPD_RING_DATA_OFFSET)) {
+    log_w("invalid ring fd");
+    close(fd);
+    return;
+  }
+
+  void *mem = mmap(NULL, st.st_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+  close(fd);
+
+  if(mem == MAP_FAILED) {
+    log_w("ring mmap failed[%d]: %s", errno, strerror(errno));
+    return;
+  }
+
+  pcapd_ring_t *ring = (pcapd_ring_t*) mem;
+  uint32_t size = ring->size;
+
+  if((ring->magic != PCAPD_RING_MAGIC) || (size == 0) || ((size & (size - 1)) != 0) ||
+     (size != (st.st_size - PCAPD_RING_DATA_OFFSET))) {
+    log_w("invalid ring header");
+    munmap(mem, st.st_size);
+    return;
+  }
+
+  rt->ring = ring;
+  rt->ring_maplen = st.st_size;
+  rt->ring_notified = atomic_load_explicit(&ring->head, memory_order_relaxed);
+
+  // Tell the client to read the records from the ring
+  atomic_store_explicit(&ring->ready, 1, memory_order_release);
+
+  log_i("Using the shared memory ring (%u B)", size);
+}
+
+/* ******************************************************* */
+
 static int init_pcapd_capture(pcapd_runtime_t *rt, pcapd_conf_t *conf) {
   if(conf->daemonize) {
     pid_t pid = fork();
@@ -305,6 +378,11 @@ static int init_pcapd_capture(pcapd_runtime_t *rt, pcapd_conf_t *conf) {
   signal(SIGHUP, &sighandler);
 
   if(!rt->conf->no_client) {
+    if(!(rt->sendbuf = malloc(PCAPD_SENDBUF_SIZE))) {
+      log_e("malloc(%d) failed", PCAPD_SENDBUF_SIZE);
+      goto err;
+    }
+
     rt->client = socket(AF_UNIX, SOCK_STREAM, 0);
     if(rt->client < 0) {
       log_e("socket creation failed[%d]: %s", errno, strerror(errno));
@@ -326,6 +404,9 @@ static int init_pcapd_capture(pcapd_runtime_t *rt, pcapd_conf_t *conf) {
 
     log_i("Connected to client");
     unlink(PCAPD_SOCKET_PATH);
+
+    if(rt->conf->shm_ring)
+      init_ring(rt);
   }
 
   return 0;
@@ -340,17 +421,30 @@ static void init_interface(pcapd_iface_t *iface) {
   memset(iface, 0, sizeof(pcapd_iface_t));
   iface->pf = -1;
   iface->ifidx = -1;
+  tpacket_init(&iface->tp);
 }
 
 /* ******************************************************* */
 
-static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char *ifname, int ifid) {
+static int open_interface_ex(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char *ifname,
+                             int ifid, uint8_t use_tpacket) {
 #ifndef READ_FROM_PCAP
   int is_file = 0;
   pcap_t *pd;
 
-  pd = pcap_create(ifname, errbuf);
-  if(pd) {
+  if(use_tpacket) {
+    int dlt = tpacket_get_dlt(ifname);
+    if(dlt < 0)
+      return -1;
+
+    // The packets are read from the tpacket ring, libpcap is only used to compile the BPF
+    pd = pcap_open_dead(dlt, PCAPD_SNAPLEN);
+    if(!pd)
+      return -1;
+  } else
+    pd = pcap_create(ifname, errbuf);
+
+  if(pd && !use_tpacket) {
     // NOTE: setting immediate mode greatly increases the chance to resolve UIDs of short-lived
     // connections. But it has a big performance impact due to the increased context switches.
     // The performance cost is not acceptable.
@@ -376,7 +470,8 @@ static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char
 
   // Fixes pcap_next_ex sometimes hanging on interface down
   // https://github.com/the-tcpdump-group/libpcap/issues/899
-  pcap_setnonblock(pd, 1, errbuf);
+  if(!use_tpacket)
+    pcap_setnonblock(pd, 1, errbuf);
 #else
   int is_file = 1;
   pcap_t *pd = pcap_open_offline(READ_FROM_PCAP, errbuf);
@@ -431,6 +526,16 @@ static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char
     return -1;
   }
 
+#ifndef READ_FROM_PCAP
+  if(use_tpacket) {
+    if(tpacket_open(&iface->tp, if_nametoindex(ifname), &fcode) < 0) {
+      log_i("[%s] TPACKET_V3 ring failed[%d]: %s", ifname, errno, strerror(errno));
+      pcap_freecode(&fcode);
+      pcap_close(pd);
+      return -1;
+    }
+  } else
+#endif
   if(pcap_setfilter(pd, &fcode) < 0) {
     log_e("[%s] pcap_setfilter failed: %s", ifname, pcap_geterr(pd));
     pcap_freecode(&fcode);
@@ -462,27 +567,50 @@ static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char
 
   iface->dlink = dlink;
   iface->ipoffset = ipoffset;
-  iface->pf = pcap_get_selectable_fd(pd);
+  iface->pf = iface->tp.map ? iface->tp.sock : pcap_get_selectable_fd(pd);
   rt->maxfd = max(rt->maxfd, iface->pf);
   strncpy(iface->name, ifname, IFNAMSIZ);
   iface->name[IFNAMSIZ - 1] = '\0';
 
-  log_d("%s(%d): datalink=%s(%d)", iface->name, iface->ifidx, dlink_s, dlink);
+  log_d("%s(%d): datalink=%s(%d)%s", iface->name, iface->ifidx, dlink_s, dlink,
+        iface->tp.map ? " [TPACKET_V3]" : "");
 
   return 0;
 }
 
 /* ******************************************************* */
 
+static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char *ifname, int ifid) {
+#ifndef READ_FROM_PCAP
+  // Use the tpacket ring when possible, falling back to libpcap for files and unsupported links
+  if(rt->conf->tpacket && (open_interface_ex(iface, rt, ifname, ifid, 1) == 0))
+    return 0;
+#endif
+
+  return open_interface_ex(iface, rt, ifname, ifid, 0);
+}
+
+/* ******************************************************* */
+
+static void update_iface_stats(pcapd_iface_t *iface) {
+  if(iface->tp.map)
+    tpacket_get_stats(&iface->tp, &iface->stats);
+  else
+    pcap_stats(iface->pd, &iface->stats);
+}
+
+/* ******************************************************* */
+
 static void close_interface(pcapd_runtime_t *rt, pcapd_iface_t *iface) {
   if(!iface->pd)
     return;
 
   // Account the stats
-  pcap_stats(iface->pd, &iface->stats);
+  update_iface_stats(iface);
   sum_stats(&rt->stats, &iface->stats);
 
   FD_CLR(iface->pf, &rt->sel_fds);
+  tpacket_close(&iface->tp);
   pcap_close(iface->pd);
   iface->pd = NULL;
   iface->pf = -1;
@@ -512,18 +640,15 @@ static void check_inet_interface(pcapd_runtime_t *rt) {
 
   log_i("Internet interface changed [%d -> %d], (re)starting capture", rt->inet_iface->ifidx, ri.ifidx);
 
-  pcap_t *old_pd = rt->inet_iface->pd;
+  pcapd_iface_t new_iface;
+  init_interface(&new_iface);
 
-  if(open_interface(rt->inet_iface, rt, ifname, rt->conf->inet_ifid) < 0)
+  if(open_interface(&new_iface, rt, ifname, rt->conf->inet_ifid) < 0)
     return;
 
-  // Success
-  if(old_pd) {
-    // Account the stats before closing the interface
-    pcap_stats(old_pd, &rt->inet_iface->stats);
-    sum_stats(&rt->stats, &rt->inet_iface->stats);
-    pcap_close(old_pd);
-  }
+  // Success. Account the stats and close the old interface
+  close_interface(rt, rt->inet_iface);
+  *rt->inet_iface = new_iface;
 
   log_i("\"%s\" is the new internet interface", ifname);
 }
@@ -700,35 +825,121 @@ static void get_selectable_fds(pcapd_runtime_t *rt, fd_set *fds) {
 
 /* ******************************************************* */
 
-static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
-  struct pcap_pkthdr *hdr;
-  const u_char *pkt;
-  int to_skip = iface->ipoffset;
-  int rv = pcap_next_ex(iface->pd, &hdr, &pkt);
+// Returns the amount of data waiting to be sent or notified to the client
+static size_t pending_bytes(pcapd_runtime_t *rt) {
+  if(rt->ring)
+    return atomic_load_explicit(&rt->ring->head, memory_order_relaxed) - rt->ring_notified;
+
+  return rt->sendbuf_len;
+}
 
-  if(rv != 1) {
-    if(rv == PCAP_ERROR) {
-      log_i("pcap_next_ex failed: %s", pcap_geterr(iface->pd));
-      close_interface(rt, iface);
+/* ******************************************************* */
 
-      if(iface == rt->inet_iface)
-        // Do not abort, just wait for route/interface changes
-        return 0;
+// Sends the buffered records to the client. When using the ring, sends the doorbell instead.
+static int flush_records(pcapd_runtime_t *rt) {
+  size_t len = rt->sendbuf_len;
 
-      // abort, resuming other interfaces is not supported yet
-      return -1;
-    } else if(rv == PCAP_ERROR_BREAK)
-      // TODO handle EOF without error
-#ifndef READ_FROM_PCAP
-      return -1;
-#else
-      return 0;
-#endif
+  if(rt->ring) {
+    const char doorbell = 0;
+
+    rt->ring_notified = atomic_load_explicit(&rt->ring->head, memory_order_relaxed);
+    rt->pending_since_ms = 0;
+    return xwrite(rt->client, &doorbell, 1);
+  }
 
-    // can be reached when the packet buffer timeout expires
+  rt->sendbuf_len = 0;
+  rt->pending_since_ms = 0;
+
+  if(len == 0)
     return 0;
+
+  return xwrite(rt->client, rt->sendbuf, len);
+}
+
+/* ******************************************************* */
+
+// Writes a record into the shared memory ring. Returns -1 if the ring is full.
+static int ring_put(pcapd_runtime_t *rt, pcapd_hdr_t *phdr, const u_char *pkt) {
+  pcapd_ring_t *ring = rt->ring;
+  char *data = (char*)ring + PCAPD_RING_DATA_OFFSET;
+  uint32_t head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+  uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_acquire);
+  uint32_t padding = PCAPD_RECORD_PADDING(phdr->len);
+  uint32_t reclen = sizeof(pcapd_hdr_t) + phdr->len + padding;
+  uint32_t ofs = head & (ring->size - 1);
+  uint32_t avail = ring->size - ofs;
+  uint32_t skip = (avail < reclen) ? avail : 0;
+
+  if((skip + reclen) > (ring->size - (head - tail)))
+    return -1;
+
+  if(skip > 0) {
+    // the record does not fit the ring end, continue from the beginning
+    if(skip >= sizeof(pcapd_hdr_t)) {
+      pcapd_hdr_t skip_hdr = {
+        .len = skip - sizeof(pcapd_hdr_t),
+        .flags = PCAPD_FLAG_SKIP,
+      };
+      memcpy(data + ofs, &skip_hdr, sizeof(pcapd_hdr_t));
+    }
+    ofs = 0;
   }
 
+  memcpy(data + ofs, phdr, sizeof(pcapd_hdr_t));
+  memcpy(data + ofs + sizeof(pcapd_hdr_t), pkt, phdr->len);
+  memset(data + ofs + sizeof(pcapd_hdr_t) + phdr->len, 0, padding);
+
+  // publish the record
+  atomic_store_explicit(&ring->head, head + skip + reclen, memory_order_release);
+
+  return 0;
+}
+
+/* ******************************************************* */
+
+// Appends a record to the send buffer. If the record does not fit, it's sent along with the
+// buffered records via writev, which also avoids copying large packets.
+static int queue_record(pcapd_runtime_t *rt, pcapd_hdr_t *phdr, const u_char *pkt) {
+  if(rt->ring) {
+    if(ring_put(rt, phdr, pkt) < 0)
+      // the client is too slow, reported via pkt_drops
+      rt->ring_drops++;
+    return 0;
+  }
+
+  size_t padding = PCAPD_RECORD_PADDING(phdr->len);
+  size_t reclen = sizeof(pcapd_hdr_t) + phdr->len + padding;
+
+  if((rt->sendbuf_len + reclen) > PCAPD_SENDBUF_SIZE) {
+    struct iovec iov[] = {
+      {.iov_base = rt->sendbuf, .iov_len = rt->sendbuf_len},
+      {.iov_base = phdr, .iov_len = sizeof(pcapd_hdr_t)},
+      {.iov_base = (void*) pkt, .iov_len = phdr->len},
+      {.iov_base = (void*) zero_padding, .iov_len = padding},
+    };
+
+    rt->sendbuf_len = 0;
+    rt->pending_since_ms = 0;
+    return xwritev(rt->client, iov, sizeof(iov) / sizeof(iov[0]));
+  }
+
+  char *rec = rt->sendbuf + rt->sendbuf_len;
+
+  memcpy(rec, phdr, sizeof(pcapd_hdr_t));
+  memcpy(rec + sizeof(pcapd_hdr_t), pkt, phdr->len);
+  memset(rec + sizeof(pcapd_hdr_t) + phdr->len, 0, padding);
+  rt->sendbuf_len += reclen;
+
+  return 0;
+}
+
+/* ******************************************************* */
+
+// Processes a captured packet, which starts with the datalink header. Returns -1 on error.
+static int process_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, const struct pcap_pkthdr *hdr,
+                       const u_char *pkt) {
+  int to_skip = iface->ipoffset;
+
   if(hdr->caplen >= to_skip) {
     pcapd_hdr_t phdr;
     zdtun_pkt_t zpkt;
@@ -775,7 +986,7 @@ static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
 
         phdr.ts = hdr->ts;
         phdr.len = len;
-        phdr.pkt_drops = iface->stats.ps_drop;
+        phdr.pkt_drops = iface->stats.ps_drop + rt->ring_drops;
         phdr.uid = uid;
         phdr.flags = is_tx ? PCAPD_FLAG_TX : 0;
         phdr.ifid = iface->ifid;
@@ -783,8 +994,7 @@ static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
         if(!rt->conf->no_client) {
           // Send the pcapd_hdr_t first, then the packet data. The packet data always starts with
           // the IP header.
-          if((xwrite(rt->client, &phdr, sizeof(phdr)) < 0) ||
-             (xwrite(rt->client, pkt, phdr.len) < 0)) {
+          if(queue_record(rt, &phdr, pkt) < 0) {
             log_e("write failed[%d]: %s", errno, strerror(errno));
             return -1;
           }
@@ -806,13 +1016,91 @@ static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
     }
   }
 
+  return 0;
+}
+
+/* ******************************************************* */
+
+static int handle_iface_error(pcapd_runtime_t *rt, pcapd_iface_t *iface) {
+  close_interface(rt, iface);
+
+  if(iface == rt->inet_iface)
+    // Do not abort, just wait for route/interface changes
+    return 0;
+
+  // abort, resuming other interfaces is not supported yet
+  return -1;
+}
+
+/* ******************************************************* */
+
+typedef struct {
+  pcapd_runtime_t *rt;
+  pcapd_iface_t *iface;
+} tpacket_ctx_t;
+
+static int tpacket_pkt(void *userdata, const struct pcap_pkthdr *hdr, const u_char *pkt) {
+  tpacket_ctx_t *ctx = (tpacket_ctx_t*) userdata;
+
+  return process_pkt(ctx->rt, ctx->iface, hdr, pkt);
+}
+
+/* ******************************************************* */
+
+// Returns 1 if a packet (or a block of packets, with tpacket) was read, 0 if no packet is
+// available, -1 on error
+static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
+  int rv;
+
+  if(iface->tp.map) {
+    tpacket_ctx_t ctx = {.rt = rt, .iface = iface};
+
+    if((rv = tpacket_read_block(&iface->tp, tpacket_pkt, &ctx)) < 0)
+      return -1;
+
+    if(rv == 0) {
+      // the socket is also readable on errors, e.g. when the interface goes down
+      int err = tpacket_get_error(&iface->tp);
+      if(err == 0)
+        return 0;
+
+      log_i("[%s] tpacket error[%d]: %s", iface->name, err, strerror(err));
+      return handle_iface_error(rt, iface);
+    }
+  } else {
+    struct pcap_pkthdr *hdr;
+    const u_char *pkt;
+
+    rv = pcap_next_ex(iface->pd, &hdr, &pkt);
+
+    if(rv != 1) {
+      if(rv == PCAP_ERROR) {
+        log_i("pcap_next_ex failed: %s", pcap_geterr(iface->pd));
+        return handle_iface_error(rt, iface);
+      } else if(rv == PCAP_ERROR_BREAK)
+        // TODO handle EOF without error
+#ifndef READ_FROM_PCAP
+        return -1;
+#else
+        return 0;
+#endif
+
+      // can be reached when the packet buffer timeout expires or when no packets are available,
+      // as the pcap handle is in non-blocking mode
+      return 0;
+    }
+
+    if(process_pkt(rt, iface, hdr, pkt) < 0)
+      return -1;
+  }
+
   if(now >= iface->next_stats_update) {
     // TODO stats for all the interfaces
-    pcap_stats(iface->pd, &iface->stats);
+    update_iface_stats(iface);
     iface->next_stats_update = now + 3;
   }
 
-  return 0;
+  return 1;
 }
 
 /* ******************************************************* */
@@ -835,8 +1123,12 @@ int run_pcap_dump(pcapd_conf_t *conf) {
 
   int l = snprintf(rt.bpf, sizeof(rt.bpf), "ip or ip6");
 
-  if(conf->bpf && conf->bpf[0])
-    snprintf(rt.bpf + l, sizeof(rt.bpf) - l, " and (%s)", conf->bpf);
+  if(conf->bpf && conf->bpf[0]) {
+    if(snprintf(rt.bpf + l, sizeof(rt.bpf) - l, " and (%s)", conf->bpf) >= (int)(sizeof(rt.bpf) - l)) {
+      log_e("BPF too long");
+      goto cleanup;
+    }
+  }
 
   log_d("Using BPF: %s", rt.bpf);
 
@@ -856,6 +1148,16 @@ int run_pcap_dump(pcapd_conf_t *conf) {
     struct timeval timeout = {.tv_sec = 1, .tv_usec = 0};
     fd_set fds = rt.sel_fds;
 
+    if(pending_bytes(&rt) > 0) {
+      // wake up in time to flush the buffered records
+      clock_gettime(CLOCK_MONOTONIC, &ts);
+      uint64_t now_ms = (uint64_t)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+      uint64_t flush_ms = rt.pending_since_ms + PCAPD_FLUSH_MS;
+
+      timeout.tv_sec = 0;
+      timeout.tv_usec = (flush_ms > now_ms) ? (flush_ms - now_ms) * 1000 : 0;
+    }
+
     if(select(rt.maxfd + 1, &fds, NULL, NULL, &timeout) < 0) {
       if(errno != EINTR) {
         log_e("select failed[%d]: %s", errno, strerror(errno));
@@ -864,8 +1166,9 @@ int run_pcap_dump(pcapd_conf_t *conf) {
       break;
     }
 
-    clock_gettime(CLOCK_MONOTONIC_COARSE, &ts);
+    clock_gettime(CLOCK_MONOTONIC, &ts);
     time_t now = ts.tv_sec;
+    uint64_t now_ms = (uint64_t)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
 
     if((rt.client > 0) && FD_ISSET(rt.client, &fds)) {
       log_i("Client closed");
@@ -881,7 +1184,13 @@ int run_pcap_dump(pcapd_conf_t *conf) {
     } else {
       for(int i=0; i<rt.conf->num_interfaces; i++) {
         if((rt.ifaces[i].pf != -1) && FD_ISSET(rt.ifaces[i].pf, &fds)) {
-          if(read_pkt(&rt, &rt.ifaces[i], now) < 0) {
+          int num_pkts = 0;
+          int pkt_rv;
+
+          // Drain the available packets, so that they can be sent to the client in a batch
+          while(((pkt_rv = read_pkt(&rt, &rt.ifaces[i], now)) > 0) && (++num_pkts < PCAPD_MAX_BATCH_PKTS));
+
+          if(pkt_rv < 0) {
             rv = -1;
             running = 0;
             break;
@@ -890,6 +1199,20 @@ int run_pcap_dump(pcapd_conf_t *conf) {
       }
     }
 
+    size_t pending = pending_bytes(&rt);
+
+    if(pending > 0) {
+      if(rt.pending_since_ms == 0)
+        rt.pending_since_ms = now_ms;
+
+      if(((pending >= PCAPD_FLUSH_THRESHOLD) || (now_ms >= (rt.pending_since_ms + PCAPD_FLUSH_MS)))
+          && (flush_records(&rt) < 0)) {
+        log_e("write failed[%d]: %s", errno, strerror(errno));
+        rv = -1;
+        break;
+      }
+    }
+
     if(rt.inet_iface && (rt.inet_iface->pd == NULL) && (now >= next_interface_recheck)) {
       check_inet_interface(&rt);
       next_interface_recheck = now + 2;
@@ -938,6 +1261,8 @@ static void usage() {
     " -b [bpf]       filter packets by BPF filter\n"
     " -l [file]      log output to the specified file\n"
     " -n             do not connect to the UNIX socket, log to stdout instead\n"
+    " -m             receive the packets ring from the UNIX socket client, see pcapd_ring_t\n"
+    " -r             capture via a TPACKET_V3 ring when supported, instead of libpcap\n"
     " -q             suppress non-error output\n"
   );
 
@@ -960,7 +1285,7 @@ static void parse_args(pcapd_conf_t *conf, int argc, char **argv) {
   init_conf(conf);
   opterr = 0;
 
-  while ((c = getopt (argc, argv, "hdtni:u:b:l:")) != -1) {
+  while ((c = getopt (argc, argv, "hdtnmri:u:b:l:")) != -1) {
     switch(c) {
       case 'i':
         if(conf->num_interfaces >= PCAPD_MAX_INTERFACES) {
@@ -985,6 +1310,12 @@ static void parse_args(pcapd_conf_t *conf, int argc, char **argv) {
       case 'n':
         conf->no_client = 1;
         break;
+      case 'm':
+        conf->shm_ring = 1;
+        break;
+      case 'r':
+        conf->tpacket = 1;
+        break;
       case 'u':
         conf->uid_filter = atoi(optarg);
         if(conf->uid_filter < -1) {
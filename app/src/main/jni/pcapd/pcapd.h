@@ -14,14 +14,21 @@
 #define PCAPD_PID          "pcapd.pid"
 
 #define PCAPD_FLAG_TX      (1 << 0)
+#define PCAPD_FLAG_SKIP    (1 << 1)   // ring only, skip the record as it only fills the ring end
 
 #include <time.h>
 #include <stdint.h>
+#include <stdatomic.h>
 
 // Using a snaplen large enough to avoid truncating packets even with TSO/GRO. Size is currently
 // limited to 16 bits by pcapd_hdr_t.len
 #define PCAPD_SNAPLEN 65535
 
+// Each record (pcapd_hdr_t + packet) is padded to a multiple of PCAPD_RECORD_ALIGN bytes, so that
+// the records can be parsed in place from a buffer containing multiple records
+#define PCAPD_RECORD_ALIGN 8
+#define PCAPD_RECORD_PADDING(len) ((PCAPD_RECORD_ALIGN - ((len) % PCAPD_RECORD_ALIGN)) % PCAPD_RECORD_ALIGN)
+
 // pcap/dlt.h
 #define PCAPD_DLT_ETHERNET    1
 #define PCAPD_DLT_RAW         12
@@ -39,4 +46,24 @@ typedef struct {
   uint8_t pad[2];           // padding for 64bit alignment of the payload
 } __attribute__((packed)) pcapd_hdr_t;
 
+// Shared memory ring, used when pcapd is run with the -m option. The client creates a memfd of
+// PCAPD_RING_DATA_OFFSET + size bytes, initializes the pcapd_ring_t and sends the fd to pcapd via
+// SCM_RIGHTS right after accepting its connection. pcapd writes the records into the ring and sends
+// a doorbell byte on the socket when new records are available. If pcapd cannot use the ring,
+// ready is not set and the records are sent on the socket as usual.
+#define PCAPD_RING_MAGIC        0x72696e67 // "ring"
+#define PCAPD_RING_DATA_OFFSET  4096
+
+typedef struct {
+  uint32_t magic;                       // PCAPD_RING_MAGIC
+  uint32_t size;                        // size of the data area, must be a power of 2
+  _Atomic uint32_t ready;               // set by pcapd before sending the first doorbell
+  _Alignas(64) _Atomic uint32_t head;   // write position, only updated by pcapd
+  _Alignas(64) _Atomic uint32_t tail;   // read position, only updated by the client
+} pcapd_ring_t;
+
+// head and tail are free-running, the data offset of a position is (pos & (size - 1)).
+// The records are never split at the ring end. When the space left at the end of the ring cannot
+// hold a pcapd_hdr_t, the reader must skip it, otherwise it will contain a PCAPD_FLAG_SKIP record.
+
 #endif
@@ -24,6 +24,8 @@
 #include <net/if.h>
 #include <pcap.h>
 #include "nl_utils.h"
+#include "pcapd.h"
+#include "tpacket.h"
 #include "common/uid_lru.h"
 #include "common/uid_resolver.h"
 #include "common/utils.h"
@@ -31,6 +33,12 @@
 
 #define PCAPD_MAX_INTERFACES 16
 
+// The records are buffered and sent to the client with a single write, see queue_record
+#define PCAPD_SENDBUF_SIZE (256 * 1024)
+#define PCAPD_FLUSH_THRESHOLD (64 * 1024)   // flush as soon as this amount of data is buffered
+#define PCAPD_FLUSH_MS 5                    // max time a record is kept in the buffer
+#define PCAPD_MAX_BATCH_PKTS 64             // max packets read from an interface per wakeup
+
 typedef struct {
   char *ifnames[PCAPD_MAX_INTERFACES];
   char *bpf;
@@ -41,6 +49,8 @@ typedef struct {
   uint8_t dump_datalink;
   uint8_t daemonize;
   uint8_t no_client;
+  uint8_t shm_ring;
+  uint8_t tpacket;
   uint8_t quiet;
 } pcapd_conf_t;
 
@@ -49,7 +59,8 @@ typedef struct {
   int ifidx;
   uint8_t ifid;       // positional interface index
   uint8_t is_file;
-  pcap_t *pd;
+  pcap_t *pd;         // when using the tpacket ring, this is only used to compile the BPF
+  tpacket_ring_t tp;  // TPACKET_V3 ring, used in place of libpcap if tp.map is set
   int pf;
   int dlink;
   int ipoffset;
@@ -61,13 +72,22 @@ typedef struct {
 } pcapd_iface_t;
 
 typedef struct {
-  char bpf[512];
+  char bpf[1024];
   char nlbuf[NL_BUFFER_SIZE];
 
   int nlroute_sock;
   int nldiag_sock;
   int client;
 
+  char *sendbuf;
+  size_t sendbuf_len;
+  uint64_t pending_since_ms;  // when the first pending record was queued, 0 if none
+
+  pcapd_ring_t *ring;         // shared memory ring, NULL if the records are sent on the socket
+  size_t ring_maplen;
+  uint32_t ring_notified;     // ring head at the last doorbell
+  u_int ring_drops;           // packets dropped because the ring was full
+
   zdtun_t *tun;
   uid_lru_t *lru;
   uid_resolver_t *resolver;
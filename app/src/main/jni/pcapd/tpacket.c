@@ -0,0 +1,216 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+#include <string.h>
+#include <unistd.h>
+#include <errno.h>
+#include <sys/socket.h>
+#include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <net/if.h>
+#include <net/if_arp.h>
+#include <arpa/inet.h>
+#include <linux/if_ether.h>
+#include <linux/if_packet.h>
+#include <linux/filter.h>
+#include "tpacket.h"
+#include "pcapd.h"
+
+#ifndef ARPHRD_RAWIP
+#define ARPHRD_RAWIP 519
+#endif
+
+#define TPACKET_FRAME_SIZE 2048
+
+void tpacket_init(tpacket_ring_t *ring) {
+  memset(ring, 0, sizeof(tpacket_ring_t));
+  ring->sock = -1;
+}
+
+/* ******************************************************* */
+
+// Returns the DLT of the interface, or -1 if the interface is not supported by the ring
+int tpacket_get_dlt(const char *ifname) {
+  struct ifreq ifr;
+  int sock = socket(AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+  int rv;
+
+  if(sock < 0)
+    return -1;
+
+  memset(&ifr, 0, sizeof(ifr));
+  strncpy(ifr.ifr_name, ifname, IFNAMSIZ - 1);
+  rv = ioctl(sock, SIOCGIFHWADDR, &ifr);
+  close(sock);
+
+  if(rv < 0)
+    return -1;
+
+  switch(ifr.ifr_hwaddr.sa_family) {
+    case ARPHRD_ETHER:
+      return PCAPD_DLT_ETHERNET;
+    case ARPHRD_NONE:
+    case ARPHRD_RAWIP:
+      // the packets start with the IP header
+      return PCAPD_DLT_RAW;
+    default:
+      // e.g. ARPHRD_PPP requires the cooked mode, which is left to libpcap
+      return -1;
+  }
+}
+
+/* ******************************************************* */
+
+// Opens the ring on the specified interface. The fcode is applied in the kernel, before copying
+// the packets into the ring.
+int tpacket_open(tpacket_ring_t *ring, int ifidx, const struct bpf_program *fcode) {
+  int version = TPACKET_V3;
+  struct tpacket_req3 req = {
+    .tp_block_size = TPACKET_BLOCK_SIZE,
+    .tp_block_nr = TPACKET_NUM_BLOCKS,
+    .tp_frame_size = TPACKET_FRAME_SIZE,
+    .tp_frame_nr = (TPACKET_BLOCK_SIZE / TPACKET_FRAME_SIZE) * TPACKET_NUM_BLOCKS,
+    .tp_retire_blk_tov = TPACKET_RETIRE_MS,
+  };
+  struct sock_fprog fprog = {
+    .len = fcode->bf_len,
+    .filter = (struct sock_filter*) fcode->bf_insns,
+  };
+  struct sockaddr_ll sll = {
+    .sll_family = AF_PACKET,
+    .sll_protocol = htons(ETH_P_ALL),
+    .sll_ifindex = ifidx,
+  };
+  size_t map_len = (size_t)TPACKET_BLOCK_SIZE * TPACKET_NUM_BLOCKS;
+  void *map;
+
+  tpacket_init(ring);
+
+  if(ifidx <= 0)
+    return -1;
+
+  // protocol 0: no packets are received until bind is called, after the filter is set
+  int sock = socket(AF_PACKET, SOCK_RAW | SOCK_CLOEXEC, 0);
+  if(sock < 0)
+    return -1;
+
+  if((setsockopt(sock, SOL_PACKET, PACKET_VERSION, &version, sizeof(version)) < 0) ||
+     (setsockopt(sock, SOL_SOCKET, SO_ATTACH_FILTER, &fprog, sizeof(fprog)) < 0) ||
+     (setsockopt(sock, SOL_PACKET, PACKET_RX_RING, &req, sizeof(req)) < 0))
+    goto err;
+
+  map = mmap(NULL, map_len, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_LOCKED, sock, 0);
+  if(map == MAP_FAILED) {
+    // MAP_LOCKED may fail due to RLIMIT_MEMLOCK
+    map = mmap(NULL, map_len, PROT_READ | PROT_WRITE, MAP_SHARED, sock, 0);
+    if(map == MAP_FAILED)
+      goto err;
+  }
+
+  if(bind(sock, (struct sockaddr*) &sll, sizeof(sll)) < 0) {
+    munmap(map, map_len);
+    goto err;
+  }
+
+  ring->sock = sock;
+  ring->map = map;
+  ring->map_len = map_len;
+  return 0;
+
+err:
+  close(sock);
+  return -1;
+}
+
+/* ******************************************************* */
+
+// Invokes the cb on the packets of the next block, then returns the block to the kernel.
+// Returns 1 if a block was read, 0 if no block is ready, -1 if the cb failed.
+int tpacket_read_block(tpacket_ring_t *ring, tpacket_pkt_cb cb, void *userdata) {
+  struct tpacket_block_desc *pbd = (struct tpacket_block_desc*)
+      (ring->map + (size_t)ring->cur_block * TPACKET_BLOCK_SIZE);
+
+  if(!(__atomic_load_n(&pbd->hdr.bh1.block_status, __ATOMIC_ACQUIRE) & TP_STATUS_USER))
+    return 0;
+
+  uint32_t num_pkts = pbd->hdr.bh1.num_pkts;
+  const uint8_t *ppd = (const uint8_t*)pbd + pbd->hdr.bh1.offset_to_first_pkt;
+
+  for(uint32_t i=0; i<num_pkts; i++) {
+    const struct tpacket3_hdr *tph = (const struct tpacket3_hdr*) ppd;
+    struct pcap_pkthdr hdr = {
+      .ts = {.tv_sec = tph->tp_sec, .tv_usec = tph->tp_nsec / 1000},
+      // the ring has no snaplen, see PCAPD_SNAPLEN
+      .caplen = (tph->tp_snaplen > PCAPD_SNAPLEN) ? PCAPD_SNAPLEN : tph->tp_snaplen,
+      .len = tph->tp_len,
+    };
+
+    if(cb(userdata, &hdr, ppd + tph->tp_mac) < 0)
+      return -1;
+
+    ppd += tph->tp_next_offset;
+  }
+
+  // Return the block to the kernel
+  __atomic_store_n(&pbd->hdr.bh1.block_status, TP_STATUS_KERNEL, __ATOMIC_RELEASE);
+  ring->cur_block = (ring->cur_block + 1) % TPACKET_NUM_BLOCKS;
+
+  return 1;
+}
+
+/* ******************************************************* */
+
+// Adds the packets received and dropped since the last call to stats
+int tpacket_get_stats(tpacket_ring_t *ring, struct pcap_stat *stats) {
+  struct tpacket_stats_v3 st;
+  socklen_t len = sizeof(st);
+
+  // NOTE: the kernel resets the counters on read
+  if(getsockopt(ring->sock, SOL_PACKET, PACKET_STATISTICS, &st, &len) < 0)
+    return -1;
+
+  stats->ps_recv += st.tp_packets;
+  stats->ps_drop += st.tp_drops;
+
+  return 0;
+}
+
+/* ******************************************************* */
+
+// Returns (and clears) the pending socket error, 0 if none
+int tpacket_get_error(tpacket_ring_t *ring) {
+  int err = 0;
+  socklen_t len = sizeof(err);
+
+  if(getsockopt(ring->sock, SOL_SOCKET, SO_ERROR, &err, &len) < 0)
+    return errno;
+
+  return err;
+}
+
+/* ******************************************************* */
+
+void tpacket_close(tpacket_ring_t *ring) {
+  if(ring->map)
+    munmap(ring->map, ring->map_len);
+  if(ring->sock >= 0)
+    close(ring->sock);
+
+  tpacket_init(ring);
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+#ifndef __TPACKET_H__
+#define __TPACKET_H__
+
+#include <stdint.h>
+#include <pcap.h>
+
+#define TPACKET_BLOCK_SIZE    (256 * 1024)  // must be a multiple of the page size
+#define TPACKET_NUM_BLOCKS    16
+#define TPACKET_RETIRE_MS     1             // same as the libpcap buffer timeout
+
+// An AF_PACKET TPACKET_V3 ring. The kernel fills a block with multiple packets, which is then
+// handed to the user space either when full or when TPACKET_RETIRE_MS expire.
+typedef struct {
+  int sock;
+  uint8_t *map;
+  size_t map_len;
+  uint32_t cur_block;
+} tpacket_ring_t;
+
+// Invoked for each packet in a block. The packet starts with the datalink header.
+typedef int (*tpacket_pkt_cb)(void *userdata, const struct pcap_pkthdr *hdr, const u_char *pkt);
+
+void tpacket_init(tpacket_ring_t *ring);
+int tpacket_get_dlt(const char *ifname);
+int tpacket_open(tpacket_ring_t *ring, int ifidx, const struct bpf_program *fcode);
+int tpacket_read_block(tpacket_ring_t *ring, tpacket_pkt_cb cb, void *userdata);
+int tpacket_get_stats(tpacket_ring_t *ring, struct pcap_stat *stats);
+int tpacket_get_error(tpacket_ring_t *ring);
+void tpacket_close(tpacket_ring_t *ring);
+
+#endif
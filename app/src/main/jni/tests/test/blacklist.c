@@ -18,6 +18,9 @@
  */
 
 #include "test_utils.h"
+#include <time.h>
+#include <unistd.h>
+#include <inttypes.h>
 
 /* ******************************************************* */
 
@@ -34,7 +37,9 @@ static void test_match() {
 
   // Use blacklist
   assert1(blacklist_match_domain(bl, "www.example.org"));
-  //assert1(blacklist_match_domain(bl, "some.example.org")); // TODO support subdomains matching
+  assert1(blacklist_match_domain(bl, "some.example.org"));
+  assert0(blacklist_match_domain(bl, "someexample.org"));
+  assert0(blacklist_match_domain(bl, "org"));
 
   assert0(blacklist_match_ipstr(bl, "1.2.3.0"));
   assert1(blacklist_match_ipstr(bl, "1.2.3.4"));
@@ -51,6 +56,216 @@ static void test_match() {
 
 /* ******************************************************* */
 
+static void test_hosts() {
+  blacklist_t *bl = blacklist_init();
+  assert(bl != NULL);
+
+  // hosts only match the exact domain, ignoring the "www." prefix
+  assert0(blacklist_add_host(bl, "www.example.org"));
+  assert(blacklist_add_host(bl, "example.org") == -EADDRINUSE);
+
+  assert1(blacklist_match_domain(bl, "example.org"));
+  assert1(blacklist_match_domain(bl, "www.example.org"));
+  assert0(blacklist_match_domain(bl, "some.example.org"));
+
+  // a domain on the same name extends the match to the subdomains
+  assert0(blacklist_add_domain(bl, "example.org"));
+  assert1(blacklist_match_domain(bl, "some.example.org"));
+
+  // ... without counting the domain twice
+  blacklists_stats_t stats;
+  blacklist_get_stats(bl, &stats);
+  assert(stats.num_domains == 1);
+
+  assert0(blacklist_remove_host(bl, "example.org"));
+  blacklist_get_stats(bl, &stats);
+  assert(stats.num_domains == 1);
+  assert1(blacklist_match_domain(bl, "some.example.org"));
+
+  blacklist_destroy(bl);
+}
+
+/* ******************************************************* */
+
+static void test_prefilter() {
+  blacklist_lookup_stats_t ip_stats, domain_stats;
+  blacklist_t *bl = blacklist_init();
+  assert(bl != NULL);
+
+  assert0(blacklist_add_domain(bl, "example.org"));
+  assert0(blacklist_add_ipstr(bl, "1.2.3.4"));
+  assert0(blacklist_add_ipstr(bl, "10.0.0.0/8"));
+  assert0(blacklist_add_ipstr(bl, "2001:db8::/32"));
+
+  // the prefilter is not used until built
+  assert1(blacklist_match_domain(bl, "a.example.org"));
+  blacklist_build_prefilter(bl);
+
+  // the prefilter must not cause false negatives
+  assert1(blacklist_match_domain(bl, "a.example.org"));
+  assert1(blacklist_match_ipstr(bl, "1.2.3.4"));
+  assert1(blacklist_match_ipstr(bl, "10.20.30.40"));
+  assert1(blacklist_match_ipstr(bl, "2001:db8::1"));
+
+  assert0(blacklist_match_domain(bl, "example.net"));
+  assert0(blacklist_match_ipstr(bl, "8.8.8.8"));
+
+  // the prefilter is updated on single changes
+  assert0(blacklist_add_domain(bl, "example.net"));
+  assert0(blacklist_add_ipstr(bl, "8.8.8.8"));
+  assert1(blacklist_match_domain(bl, "example.net"));
+  assert1(blacklist_match_ipstr(bl, "8.8.8.8"));
+
+  blacklist_get_lookup_stats(bl, &ip_stats, &domain_stats);
+  assert(ip_stats.num_lookups == 5);
+  assert(domain_stats.num_lookups == 4);
+  assert(ip_stats.num_filtered + ip_stats.num_false_positives == 1);
+  assert(domain_stats.num_filtered + domain_stats.num_false_positives == 1);
+
+  blacklist_destroy(bl);
+}
+
+/* ******************************************************* */
+
+static void test_wildcards_and_subnets() {
+  blacklist_t *bl = blacklist_init();
+  assert(bl != NULL);
+
+  assert0(blacklist_add_wildcard(bl, "*.example.org"));
+  assert0(blacklist_add_wildcard(bl, "corp.net"));
+  assert(blacklist_add_wildcard(bl, "example.org") == -EADDRINUSE);
+  assert0(blacklist_add_ipstr(bl, "10.0.0.0/8"));
+  assert0(blacklist_add_ipstr(bl, "2001:db8::/32"));
+  assert(blacklist_add_ipstr(bl, "1.2.3.0/33") == -EINVAL);
+  assert(blacklist_add_ipstr(bl, "1.2.3.0/") == -EINVAL);
+
+  assert1(blacklist_match_domain(bl, "example.org"));
+  assert1(blacklist_match_domain(bl, "www.example.org"));
+  assert1(blacklist_match_domain(bl, "a.b.c.example.org"));
+  assert1(blacklist_match_domain(bl, "vpn.eu.corp.net"));
+  assert0(blacklist_match_domain(bl, "badexample.org"));
+  assert0(blacklist_match_domain(bl, "org"));
+
+  assert1(blacklist_match_ipstr(bl, "10.1.2.3"));
+  assert0(blacklist_match_ipstr(bl, "11.0.0.1"));
+  assert1(blacklist_match_ipstr(bl, "2001:db8:1::1"));
+  assert0(blacklist_match_ipstr(bl, "2001:db9::1"));
+
+  blacklist_destroy(bl);
+}
+
+/* ******************************************************* */
+
+static void test_remove() {
+  blacklist_t *bl = blacklist_init();
+  assert(bl != NULL);
+
+  // uids of different users
+  assert0(blacklist_add_uid(bl, 10100));
+  assert0(blacklist_add_uid(bl, 1010100));
+  assert(blacklist_add_uid(bl, 10100) == -EADDRINUSE);
+  assert(blacklist_add_uid(bl, -1) == -EINVAL);
+  assert1(blacklist_match_uid(bl, 1010100));
+  assert0(blacklist_match_uid(bl, 10101));
+  assert0(blacklist_remove_uid(bl, 10100));
+  assert0(blacklist_match_uid(bl, 10100));
+  assert(blacklist_remove_uid(bl, 10100) == -ENOENT);
+
+  assert0(blacklist_add_ipstr(bl, "1.2.3.4"));
+  assert0(blacklist_add_ipstr(bl, "10.0.0.0/8"));
+  assert0(blacklist_remove_ipstr(bl, "10.0.0.0/8"));
+  assert0(blacklist_match_ipstr(bl, "10.1.2.3"));
+  assert1(blacklist_match_ipstr(bl, "1.2.3.4"));
+  assert(blacklist_remove_ipstr(bl, "10.0.0.0/8") == -ENOENT);
+
+  // the notations of a network map to the same entry
+  assert0(blacklist_add_ipstr(bl, "10.0.0.1/8"));
+  assert(blacklist_add_ipstr(bl, "10.0.0.0/8") == -EADDRINUSE);
+  assert(blacklist_add_ipstr(bl, "1.2.3.4/32") == -EADDRINUSE);
+  assert0(blacklist_remove_ipstr(bl, "10.0.0.0/8"));
+  assert0(blacklist_match_ipstr(bl, "10.1.2.3"));
+
+  // removing the domain rule keeps the host rule
+  assert0(blacklist_add_host(bl, "example.org"));
+  assert0(blacklist_add_domain(bl, "example.org"));
+  assert0(blacklist_remove_domain(bl, "example.org"));
+  assert1(blacklist_match_domain(bl, "example.org"));
+  assert0(blacklist_match_domain(bl, "a.example.org"));
+  assert0(blacklist_remove_host(bl, "www.example.org"));
+  assert0(blacklist_match_domain(bl, "example.org"));
+
+  // removals must preserve the other domains in the table
+  char domain[64];
+  for(int i = 0; i < 5000; i++) {
+    snprintf(domain, sizeof(domain), "d%d.example.net", i);
+    assert0(blacklist_add_domain(bl, domain));
+  }
+  for(int i = 0; i < 5000; i += 2) {
+    snprintf(domain, sizeof(domain), "d%d.example.net", i);
+    assert0(blacklist_remove_domain(bl, domain));
+  }
+  for(int i = 0; i < 5000; i++) {
+    snprintf(domain, sizeof(domain), "a.d%d.example.net", i);
+    assert(blacklist_match_domain(bl, domain) == (i % 2));
+  }
+
+  blacklist_destroy(bl);
+}
+
+/* ******************************************************* */
+
+static void test_diff() {
+  blacklists_stats_t stats;
+  blacklist_t *old_bl = blacklist_init();
+  blacklist_t *new_bl = blacklist_init();
+  assert((old_bl != NULL) && (new_bl != NULL));
+
+  assert0(blacklist_add_uid(old_bl, 10100));
+  assert0(blacklist_add_uid(old_bl, 10200));
+  assert0(blacklist_add_uid(new_bl, 10200));
+  assert0(blacklist_add_domain(old_bl, "example.org"));
+  assert0(blacklist_add_domain(new_bl, "example.org"));
+  assert0(blacklist_add_host(old_bl, "example.net"));
+  assert0(blacklist_add_domain(new_bl, "example.net"));
+  assert0(blacklist_add_host(new_bl, "example.com"));
+  assert0(blacklist_add_ipstr(old_bl, "1.2.3.4"));
+  assert0(blacklist_add_ipstr(new_bl, "1.2.3.4"));
+  assert0(blacklist_add_ipstr(new_bl, "10.0.0.0/8"));
+
+  // only contains the added/removed rules
+  blacklist_t *delta = blacklist_diff(old_bl, new_bl);
+  assert(delta != NULL);
+
+  assert1(blacklist_match_uid(delta, 10100));
+  assert0(blacklist_match_uid(delta, 10200));
+  assert0(blacklist_match_domain(delta, "a.example.org"));
+  assert1(blacklist_match_domain(delta, "a.example.net"));
+  assert1(blacklist_match_domain(delta, "example.com"));
+  assert0(blacklist_match_domain(delta, "a.example.com"));
+  assert0(blacklist_match_ipstr(delta, "1.2.3.4"));
+  assert1(blacklist_match_ipstr(delta, "10.1.2.3"));
+  blacklist_destroy(delta);
+
+  // no changes
+  delta = blacklist_diff(new_bl, new_bl);
+  assert(delta != NULL);
+  blacklist_get_stats(delta, &stats);
+  assert((stats.num_apps == 0) && (stats.num_domains == 0) && (stats.num_ips == 0));
+  blacklist_destroy(delta);
+
+  // NULL is an empty blacklist
+  delta = blacklist_diff(NULL, new_bl);
+  assert(delta != NULL);
+  blacklist_get_stats(delta, &stats);
+  assert((stats.num_apps == 1) && (stats.num_ips == 2));
+  blacklist_destroy(delta);
+
+  blacklist_destroy(old_bl);
+  blacklist_destroy(new_bl);
+}
+
+/* ******************************************************* */
+
 static void detection_cb(pcapdroid_t *pd) {
   conn_and_tuple_t *conn;
 
@@ -114,9 +329,157 @@ static void test_detection() {
 
 /* ******************************************************* */
 
+#define SNAPSHOT_PATH "/tmp/pcapdroid_test_bl.snapshot"
+#define SNAPSHOT_LIST_PATH "/tmp/pcapdroid_test_bl.txt"
+
+static void test_snapshot() {
+  bl_snapshot_list_t lists[1];
+  blacklists_stats_t stats;
+  blacklist_t *bl = blacklist_init();
+  assert(bl != NULL);
+
+  FILE *f = fopen(SNAPSHOT_LIST_PATH, "w");
+  assert(f != NULL);
+  fputs("example.org\n", f);
+  fclose(f);
+
+  assert0(blacklist_add_domain(bl, "example.org"));
+  assert0(blacklist_add_host(bl, "host.net"));
+  assert0(blacklist_add_ipstr(bl, "1.2.3.4"));
+  assert0(blacklist_add_ipstr(bl, "10.0.0.0/8"));
+
+  assert0(blacklist_snapshot_list_info(lists, SNAPSHOT_LIST_PATH, "bl.txt", DOMAIN_BLACKLIST));
+  lists[0].num_rules = 1;
+  assert0(blacklist_save_snapshot(bl, SNAPSHOT_PATH, lists, 1));
+  blacklist_destroy(bl);
+
+  // Load
+  lists[0].num_rules = 0;
+  bl = blacklist_load_snapshot(SNAPSHOT_PATH, lists, 1);
+  assert(bl != NULL);
+  assert(lists[0].num_rules == 1);
+
+  blacklist_get_stats(bl, &stats);
+  assert(stats.num_domains == 2);
+  assert(stats.num_ips == 2);
+
+  assert1(blacklist_match_domain(bl, "www.example.org"));
+  assert1(blacklist_match_domain(bl, "some.example.org"));
+  assert1(blacklist_match_domain(bl, "host.net"));
+  assert0(blacklist_match_domain(bl, "some.host.net"));
+  assert1(blacklist_match_ipstr(bl, "1.2.3.4"));
+  assert1(blacklist_match_ipstr(bl, "10.1.1.1"));
+  assert0(blacklist_match_ipstr(bl, "1.2.3.5"));
+
+  // The mapped blacklist is copied on modification
+  assert0(blacklist_add_domain(bl, "example.net"));
+  assert1(blacklist_match_domain(bl, "example.net"));
+  assert1(blacklist_match_domain(bl, "example.org"));
+  blacklist_destroy(bl);
+
+  // Stale snapshot
+  lists[0].size++;
+  assert(blacklist_load_snapshot(SNAPSHOT_PATH, lists, 1) == NULL);
+  lists[0].size--;
+  assert(blacklist_load_snapshot(SNAPSHOT_PATH, lists, 0) == NULL);
+
+  // Corrupted snapshot header (the reserved field is only verified by the checksum)
+  f = fopen(SNAPSHOT_PATH, "r+b");
+  assert(f != NULL);
+  fseek(f, 28, SEEK_SET);
+  fputc(0xFF, f);
+  fclose(f);
+  assert(blacklist_load_snapshot(SNAPSHOT_PATH, lists, 1) == NULL);
+
+  // Corrupted slots, all used (the lookups would never find an empty slot)
+  bl = blacklist_init();
+  assert(bl != NULL);
+  assert0(blacklist_add_domain(bl, "example.org"));
+  assert0(blacklist_save_snapshot(bl, SNAPSHOT_PATH, lists, 1));
+  blacklist_destroy(bl);
+
+  f = fopen(SNAPSHOT_PATH, "r+b");
+  assert(f != NULL);
+  fseek(f, 0, SEEK_END);
+  long snapshot_size = ftell(f);
+  long slots_off = 72 /* header */ + ((sizeof(bl_snapshot_list_t) + 7) & ~7);
+  fseek(f, slots_off, SEEK_SET);
+  for(long i = slots_off; i < snapshot_size; i++)
+    fputc(0xFF, f);
+  fclose(f);
+  assert(blacklist_load_snapshot(SNAPSHOT_PATH, lists, 1) == NULL);
+
+  unlink(SNAPSHOT_PATH);
+  unlink(SNAPSHOT_LIST_PATH);
+}
+
+/* ******************************************************* */
+
+static double elapsed_ms(const struct timespec *start) {
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+
+  return (now.tv_sec - start->tv_sec) * 1e3 + (now.tv_nsec - start->tv_nsec) / 1e6;
+}
+
+/* Loads a domain blacklist of the maximum size allowed by blacklist_load_file, then matches
+ * a mix of subdomains of the listed domains and unlisted domains. */
+static void test_benchmark() {
+  const int num_domains = 500000;
+  const int num_lookups = 1000000;
+  struct timespec start;
+  char buf[64];
+  int num_matches = 0;
+
+  blacklist_t *bl = blacklist_init();
+  assert(bl != NULL);
+
+  clock_gettime(CLOCK_MONOTONIC, &start);
+  for(int i = 0; i < num_domains; i++) {
+    snprintf(buf, sizeof(buf), "host%d.example%d.com", i, i % 1000);
+    assert0(blacklist_add_domain(bl, buf));
+  }
+  blacklist_build_prefilter(bl);
+  double load_ms = elapsed_ms(&start);
+
+  clock_gettime(CLOCK_MONOTONIC, &start);
+  for(int i = 0; i < num_lookups; i++) {
+    int k = i % num_domains;
+
+    if(i & 1)
+      snprintf(buf, sizeof(buf), "cdn.host%d.example%d.com", k, k % 1000);
+    else
+      snprintf(buf, sizeof(buf), "host%d.example%d.net", k, k % 1000);
+    num_matches += blacklist_match_domain(bl, buf);
+  }
+  double match_ms = elapsed_ms(&start);
+
+  assert(num_matches == num_lookups / 2);
+  printf("%d domains: load %.1f ms, %d lookups %.1f ms\n", num_domains, load_ms, num_lookups, match_ms);
+
+  blacklist_lookup_stats_t ip_stats, domain_stats;
+  blacklist_get_lookup_stats(bl, &ip_stats, &domain_stats);
+  printf("prefilter: %" PRIu64 " negative lookups, %" PRIu64 " filtered, %" PRIu64 " false positives\n",
+         num_lookups - (uint64_t) num_matches, domain_stats.num_filtered, domain_stats.num_false_positives);
+
+  // at most one false positive out of 20 negatives
+  assert(domain_stats.num_false_positives * 20 < (uint64_t)(num_lookups - num_matches));
+
+  blacklist_destroy(bl);
+}
+
+/* ******************************************************* */
+
 int main(int argc, char **argv) {
   add_test("match", test_match);
+  add_test("hosts", test_hosts);
+  add_test("prefilter", test_prefilter);
+  add_test("wildcards_and_subnets", test_wildcards_and_subnets);
+  add_test("remove", test_remove);
+  add_test("diff", test_diff);
   add_test("detection", test_detection);
+  add_test("snapshot", test_snapshot);
+  add_test("benchmark", test_benchmark);
 
   run_test(argc, argv);
   return 0;
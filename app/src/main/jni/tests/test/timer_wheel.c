@@ -0,0 +1,175 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+#include "test_utils.h"
+#include "core/timer_wheel.h"
+
+#define TICK_MS 1000
+#define NUM_TIMERS 20000
+
+typedef struct {
+  twheel_entry_t entry; // must be the first
+  uint64_t deadline_ms;
+  uint64_t fired_ms;
+  int num_fired;
+} test_timer_t;
+
+typedef struct {
+  uint64_t now_ms;
+  int num_fired;
+  uint64_t reschedule_ms;
+} test_ctx_t;
+
+static void on_expired(twheel_t *tw, twheel_entry_t *entry, void *userdata) {
+  test_ctx_t *ctx = (test_ctx_t*) userdata;
+  test_timer_t *timer = (test_timer_t*) entry;
+
+  // never early
+  assert(ctx->now_ms >= timer->deadline_ms);
+
+  timer->fired_ms = ctx->now_ms;
+  timer->num_fired++;
+  ctx->num_fired++;
+
+  if(ctx->reschedule_ms && (timer->num_fired == 1)) {
+    timer->deadline_ms = ctx->now_ms + ctx->reschedule_ms;
+    twheel_add(tw, entry, timer->deadline_ms);
+  }
+}
+
+/* ******************************************************* */
+
+// Advances the time in steps of step_ms, up to end_ms
+static void run_wheel(twheel_t *tw, test_ctx_t *ctx, uint64_t step_ms, uint64_t end_ms) {
+  while(ctx->now_ms < end_ms) {
+    ctx->now_ms += step_ms;
+    twheel_advance(tw, ctx->now_ms, on_expired, ctx);
+  }
+}
+
+/* ******************************************************* */
+
+// Timers on all the levels expire once, not later than a tick after the deadline
+static void test_expire() {
+  static test_timer_t timers[NUM_TIMERS];
+  test_ctx_t ctx = {.now_ms = 123456};
+  twheel_t tw;
+
+  twheel_init(&tw, TICK_MS, ctx.now_ms);
+  srand(1);
+
+  for(int i=0; i<NUM_TIMERS; i++) {
+    test_timer_t *timer = &timers[i];
+
+    memset(timer, 0, sizeof(*timer));
+
+    // up to ~3 days, beyond the wheel span
+    timer->deadline_ms = ctx.now_ms + ((uint64_t)rand() % (300000000ULL));
+    twheel_add(&tw, &timer->entry, timer->deadline_ms);
+  }
+  assert(tw.num_entries == NUM_TIMERS);
+
+  run_wheel(&tw, &ctx, 5000, 123456 + 300000000ULL + 5000);
+
+  assert(ctx.num_fired == NUM_TIMERS);
+  assert(tw.num_entries == 0);
+
+  for(int i=0; i<NUM_TIMERS; i++) {
+    assert(timers[i].num_fired == 1);
+    assert(timers[i].fired_ms < (timers[i].deadline_ms + TICK_MS + 5000));
+  }
+}
+
+/* ******************************************************* */
+
+// Timers re-added from the callback, including into the slot being processed
+static void test_reschedule() {
+  static test_timer_t timers[NUM_TIMERS];
+  test_ctx_t ctx = {.now_ms = 0, .reschedule_ms = TWHEEL_SLOTS * TICK_MS};
+  twheel_t tw;
+
+  twheel_init(&tw, TICK_MS, ctx.now_ms);
+
+  for(int i=0; i<NUM_TIMERS; i++) {
+    memset(&timers[i], 0, sizeof(timers[i]));
+    timers[i].deadline_ms = ((i % 300) + 1) * TICK_MS;
+    twheel_add(&tw, &timers[i].entry, timers[i].deadline_ms);
+  }
+
+  run_wheel(&tw, &ctx, TICK_MS, 400 * TICK_MS);
+
+  assert(ctx.num_fired == (2 * NUM_TIMERS));
+  assert(tw.num_entries == 0);
+
+  for(int i=0; i<NUM_TIMERS; i++) {
+    assert(timers[i].num_fired == 2);
+    assert(timers[i].fired_ms == timers[i].deadline_ms);
+  }
+}
+
+/* ******************************************************* */
+
+static void test_remove() {
+  static test_timer_t timers[NUM_TIMERS];
+  test_ctx_t ctx = {.now_ms = 0};
+  twheel_t tw;
+
+  twheel_init(&tw, TICK_MS, ctx.now_ms);
+
+  for(int i=0; i<NUM_TIMERS; i++) {
+    memset(&timers[i], 0, sizeof(timers[i]));
+    timers[i].deadline_ms = ((i % 5000) + 1) * TICK_MS;
+    twheel_add(&tw, &timers[i].entry, timers[i].deadline_ms);
+  }
+
+  // remove the odd timers. Removing twice is a no-op
+  for(int i=1; i<NUM_TIMERS; i+=2) {
+    twheel_remove(&tw, &timers[i].entry);
+    twheel_remove(&tw, &timers[i].entry);
+  }
+  assert(tw.num_entries == (NUM_TIMERS / 2));
+
+  // move the timers multiple of 4 forward
+  for(int i=0; i<NUM_TIMERS; i+=4) {
+    timers[i].deadline_ms += 7000 * TICK_MS;
+    twheel_add(&tw, &timers[i].entry, timers[i].deadline_ms);
+  }
+  assert(tw.num_entries == (NUM_TIMERS / 2));
+
+  run_wheel(&tw, &ctx, TICK_MS, 12000 * TICK_MS);
+
+  assert(ctx.num_fired == (NUM_TIMERS / 2));
+
+  for(int i=0; i<NUM_TIMERS; i++) {
+    assert(timers[i].num_fired == ((i % 2) ? 0 : 1));
+    if(timers[i].num_fired)
+      assert(timers[i].fired_ms == timers[i].deadline_ms);
+  }
+}
+
+/* ******************************************************* */
+
+int main(int argc, char **argv) {
+  add_test("expire", test_expire);
+  add_test("reschedule", test_reschedule);
+  add_test("remove", test_remove);
+
+  run_test(argc, argv);
+  return 0;
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture;
+
+import static org.junit.Assert.assertEquals;
+
+import com.emanuelef.remote_capture.model.BlacklistDescriptor;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+@RunWith(RobolectricTestRunner.class)
+/* Tests the conditional download of the blacklists against a local HTTP server, which stands in
+ * for the blacklists hosts. */
+public class BlacklistsTest {
+    HttpServer server;
+    File outFile;
+    String etag = "\"v1\"";
+    String contents = "1.2.3.4\n";
+    int numDownloads;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/list.txt", exchange -> {
+            if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = contents.getBytes(StandardCharsets.US_ASCII);
+            exchange.getResponseHeaders().add("ETag", etag);
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+            numDownloads++;
+        });
+        server.createContext("/missing.txt", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+
+        outFile = File.createTempFile("blacklist", ".txt");
+        //noinspection ResultOfMethodCallIgnored
+        outFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        //noinspection ResultOfMethodCallIgnored
+        outFile.delete();
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    public void conditionalDownload() throws IOException {
+        BlacklistDescriptor bl = new BlacklistDescriptor("test", BlacklistDescriptor.Type.IP_BLACKLIST,
+                "list.txt", getUrl("/list.txt"));
+
+        assertEquals(Blacklists.DownloadResult.UPDATED, Blacklists.downloadIfModified(bl, outFile.getPath()));
+        assertEquals(etag, bl.getEtag());
+        assertEquals(contents, new String(Files.readAllBytes(outFile.toPath()), StandardCharsets.US_ASCII));
+
+        // Not modified
+        assertEquals(Blacklists.DownloadResult.NOT_MODIFIED, Blacklists.downloadIfModified(bl, outFile.getPath()));
+        assertEquals(1, numDownloads);
+
+        // Modified
+        etag = "\"v2\"";
+        contents = "5.6.7.8\n";
+        assertEquals(Blacklists.DownloadResult.UPDATED, Blacklists.downloadIfModified(bl, outFile.getPath()));
+        assertEquals(etag, bl.getEtag());
+        assertEquals(contents, new String(Files.readAllBytes(outFile.toPath()), StandardCharsets.US_ASCII));
+
+        // The file must be downloaded again if it does not exist
+        //noinspection ResultOfMethodCallIgnored
+        outFile.delete();
+        assertEquals(Blacklists.DownloadResult.UPDATED, Blacklists.downloadIfModified(bl, outFile.getPath()));
+        assertEquals(3, numDownloads);
+    }
+
+    @Test
+    public void failedDownload() throws IOException {
+        Files.write(outFile.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+
+        BlacklistDescriptor bl = new BlacklistDescriptor("test", BlacklistDescriptor.Type.IP_BLACKLIST,
+                "missing.txt", getUrl("/missing.txt"));
+
+        // The existing file must be preserved
+        assertEquals(Blacklists.DownloadResult.FAILED, Blacklists.downloadIfModified(bl, outFile.getPath()));
+        assertEquals(contents, new String(Files.readAllBytes(outFile.toPath()), StandardCharsets.US_ASCII));
+    }
+}
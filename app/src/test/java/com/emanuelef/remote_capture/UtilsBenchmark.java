@@ -0,0 +1,136 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/* Compares the payload scanning utilities of Utils with the straightforward versions they replaced
+ * (see UtilsTest) on large payloads. It only prints the timings, so it is not run with the unit
+ * tests. To run it, remove the @Ignore and run:
+ *   ./gradlew testDebugUnitTest --tests '*UtilsBenchmark' -i */
+@Ignore("manual benchmark")
+public class UtilsBenchmark {
+    static final int BENCH_SIZE = 16 * 1024 * 1024;
+    static final int BENCH_ROUNDS = 5;
+    static final int SEGMENT_SIZE = 1460;
+
+    // Returns a payload without any CRLF, to force a full scan
+    static byte[] payloadWithoutTerminators(int size) {
+        byte[] buf = UtilsTest.randomPayload(new Random(4), size);
+
+        for(int i = 1; i < buf.length; i++) {
+            if((buf[i] == '\n') && (buf[i - 1] == '\r'))
+                buf[i] = ' ';
+        }
+        return buf;
+    }
+
+    @Test
+    public void endOfHTTPHeaders() {
+        byte[] buf = payloadWithoutTerminators(BENCH_SIZE);
+        long naive = Long.MAX_VALUE, fast = Long.MAX_VALUE;
+
+        for(int i = 0; i < BENCH_ROUNDS; i++) {
+            long start = System.nanoTime();
+            assertEquals(0, UtilsTest.naiveEndOfHTTPHeaders(buf, 0, buf.length));
+            naive = Math.min(naive, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(0, Utils.getEndOfHTTPHeaders(buf, 0, buf.length));
+            fast = Math.min(fast, System.nanoTime() - start);
+        }
+
+        System.out.printf("getEndOfHTTPHeaders (%d MB): byte-by-byte %d ms, skip search %d ms%n",
+                BENCH_SIZE >> 20, naive / 1000000, fast / 1000000);
+    }
+
+    // Simulates the HTTPServer request loop, which scans the headers as the segments are received
+    @Test
+    public void incrementalEndOfHTTPHeaders() {
+        byte[] buf = payloadWithoutTerminators(256 * 1024);
+        long naive = Long.MAX_VALUE, fast = Long.MAX_VALUE;
+
+        for(int i = 0; i < BENCH_ROUNDS; i++) {
+            long start = System.nanoTime();
+            for(int sofar = SEGMENT_SIZE; sofar <= buf.length; sofar += SEGMENT_SIZE)
+                assertEquals(0, UtilsTest.naiveEndOfHTTPHeaders(buf, 0, sofar));
+            naive = Math.min(naive, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for(int sofar = SEGMENT_SIZE; sofar <= buf.length; sofar += SEGMENT_SIZE)
+                assertEquals(0, Utils.getEndOfHTTPHeaders(buf, sofar - SEGMENT_SIZE - 3, sofar));
+            fast = Math.min(fast, System.nanoTime() - start);
+        }
+
+        System.out.printf("getEndOfHTTPHeaders (%d KB in %d B segments): rescan %d ms, resumed %d ms%n",
+                buf.length >> 10, SEGMENT_SIZE, naive / 1000000, fast / 1000000);
+    }
+
+    @Test
+    public void findNonPrintable() {
+        // mostly printable payload
+        byte[] buf = new byte[BENCH_SIZE];
+        Arrays.fill(buf, (byte) 'a');
+        buf[buf.length - 1] = 0;
+
+        long naive = Long.MAX_VALUE, fast = Long.MAX_VALUE;
+
+        for(int i = 0; i < BENCH_ROUNDS; i++) {
+            long start = System.nanoTime();
+            assertEquals(buf.length - 1, UtilsTest.naiveFindNonPrintable(buf, 0, buf.length));
+            naive = Math.min(naive, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(buf.length - 1, Utils.findNonPrintable(buf, 0, buf.length));
+            fast = Math.min(fast, System.nanoTime() - start);
+        }
+
+        System.out.printf("findNonPrintable (%d MB): comparisons %d ms, lookup table %d ms%n",
+                BENCH_SIZE >> 20, naive / 1000000, fast / 1000000);
+    }
+
+    @Test
+    public void hexdump() {
+        // hexdump of single visual pages (see PayloadAdapter.VISUAL_PAGE_SIZE)
+        byte[] buf = UtilsTest.randomPayload(new Random(4), 1000 * 960);
+        long naive = Long.MAX_VALUE, fast = Long.MAX_VALUE;
+
+        for(int i = 0; i < BENCH_ROUNDS; i++) {
+            long start = System.nanoTime();
+            for(int j = 0; j < 1000; j++)
+                UtilsTest.naiveHexdump(buf, j * 960, 960);
+            naive = Math.min(naive, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for(int j = 0; j < 1000; j++)
+                Utils.hexdump(buf, j * 960, 960);
+            fast = Math.min(fast, System.nanoTime() - start);
+        }
+
+        System.out.printf("hexdump (1000 pages): String.format %d ms, lookup table %d ms%n",
+                naive / 1000000, fast / 1000000);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+// Tests the payload scanning utilities of Utils against the straightforward versions they replaced
+public class UtilsTest {
+    static int naiveEndOfHTTPHeaders(byte[] buf, int start, int end) {
+        for(int i = Math.max(start, 0); i <= (end - 4); i++) {
+            if((buf[i] == '\r') && (buf[i+1] == '\n') && (buf[i+2] == '\r') && (buf[i+3] == '\n'))
+                return i+4;
+        }
+        return 0;
+    }
+
+    static int naiveFindNonPrintable(byte[] buf, int start, int end) {
+        for(int i = start; i < end; i++) {
+            byte c = buf[i];
+
+            if(!(((c >= 32) && (c <= 126)) || (c == '\r') || (c == '\n') || (c == '\t')))
+                return i;
+        }
+        return end;
+    }
+
+    static String naiveHexdump(byte[] array, int offset, int length) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int rowOffset = offset; rowOffset < offset + length; rowOffset += 16) {
+            for (int index = 0; index < 16; index++) {
+                if(index == 8)
+                    builder.append(" ");
+
+                if (rowOffset + index < array.length)
+                    builder.append(String.format("%02x ", array[rowOffset + index]));
+                else
+                    builder.append("   ");
+            }
+
+            if (rowOffset < array.length) {
+                int asciiWidth = Math.min(16, array.length - rowOffset);
+                builder.append(" ");
+                builder.append(new String(array, rowOffset, asciiWidth,
+                        StandardCharsets.US_ASCII).replaceAll("[^ -~]", "."));
+            }
+
+            builder.append("\n");
+        }
+
+        return builder.toString();
+    }
+
+    // Generates some text with occasional line breaks and control characters
+    static byte[] randomPayload(Random rnd, int size) {
+        byte[] buf = new byte[size];
+
+        for(int i = 0; i < size; i++) {
+            int k = rnd.nextInt(100);
+
+            if(k < 3)
+                buf[i] = '\r';
+            else if(k < 6)
+                buf[i] = '\n';
+            else if(k < 8)
+                buf[i] = (byte) rnd.nextInt(256);
+            else
+                buf[i] = (byte) (' ' + rnd.nextInt(95));
+        }
+
+        return buf;
+    }
+
+    @Test
+    public void endOfHeaders() {
+        byte[] req = "GET / HTTP/1.1\r\nHost: example.org\r\n\r\nbody\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        int expected = req.length - 8; // "body\r\n\r\n"
+
+        assertEquals(expected, Utils.getEndOfHTTPHeaders(req));
+        assertEquals(0, Utils.getEndOfHTTPHeaders(req, 0, expected - 1));
+        assertEquals(0, Utils.getEndOfHTTPHeaders(new byte[0]));
+
+        // Resume the search as the data arrives, one byte at a time
+        int found = 0;
+        for(int end = 1; (end <= req.length) && (found == 0); end++)
+            found = Utils.getEndOfHTTPHeaders(req, end - 1 - 3, end);
+        assertEquals(expected, found);
+
+        Random rnd = new Random(1);
+        for(int i = 0; i < 20000; i++) {
+            byte[] buf = randomPayload(rnd, rnd.nextInt(100));
+            int start = rnd.nextInt(buf.length + 1);
+            int end = start + rnd.nextInt(buf.length - start + 1);
+
+            assertEquals(naiveEndOfHTTPHeaders(buf, start, end), Utils.getEndOfHTTPHeaders(buf, start, end));
+        }
+    }
+
+    @Test
+    public void printableScan() {
+        byte[] text = "Hello\tworld\r\n".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(Utils.isPrintable(text, 0, text.length));
+
+        byte[] bin = Arrays.copyOf(text, 32);
+        assertFalse(Utils.isPrintable(bin, 0, bin.length));
+        assertEquals(text.length, Utils.findNonPrintable(bin, 0, bin.length));
+
+        Random rnd = new Random(2);
+        for(int i = 0; i < 20000; i++) {
+            byte[] buf = randomPayload(rnd, rnd.nextInt(100));
+            int start = rnd.nextInt(buf.length + 1);
+            int end = start + rnd.nextInt(buf.length - start + 1);
+
+            assertEquals(naiveFindNonPrintable(buf, start, end), Utils.findNonPrintable(buf, start, end));
+        }
+    }
+
+    @Test
+    public void hexdump() {
+        Random rnd = new Random(3);
+
+        for(int i = 0; i < 2000; i++) {
+            byte[] buf = randomPayload(rnd, rnd.nextInt(100));
+            int offset = rnd.nextInt(buf.length + 1);
+            int length = rnd.nextInt(buf.length - offset + 1);
+
+            assertEquals(naiveHexdump(buf, offset, length), Utils.hexdump(buf, offset, length));
+        }
+    }
+
+    @Test
+    public void captureBpf() {
+        assertEquals("", Utils.buildCaptureBpf("", "", ""));
+        assertEquals("(not (host 10.0.0.1 and tcp port 8080))",
+                Utils.buildCaptureBpf(null, null, "not (host 10.0.0.1 and tcp port 8080)"));
+        assertEquals("(tcp or icmp or icmp6)", Utils.buildCaptureBpf(" tcp, ICMP", "", ""));
+
+        // the host bits are cleared
+        assertEquals("(udp) and (net 10.0.0.0/8 or host 192.168.1.1 or net 192.168.1.64/26)",
+                Utils.buildCaptureBpf("udp", "10.1.2.3/8, 192.168.1.1/32,192.168.1.77/26", ""));
+        assertEquals("(net fd00:0:0:0:0:0:0:0/8 or host 0:0:0:0:0:0:0:1)",
+                Utils.buildCaptureBpf("", "fd00::1/8,::1", ""));
+
+        // invalid values are ignored
+        assertEquals("(tcp) and (host 1.2.3.4)",
+                Utils.buildCaptureBpf("tcp,ip or 1=1", "1.2.3.4,1.2.3.4/33,example.com,1.2.3.4' x,1.2.3.4/ab", ""));
+    }
+}
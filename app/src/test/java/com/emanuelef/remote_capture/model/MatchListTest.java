@@ -0,0 +1,170 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2022 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.model;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+@RunWith(RobolectricTestRunner.class)
+/* Tests the MatchList rules matching, which is performed on the rules compiled into the
+ * MatchList.Matcher. */
+public class MatchListTest {
+    MatchList list;
+
+    @Before
+    public void setup() {
+        Context context = ApplicationProvider.getApplicationContext();
+        list = new MatchList(context, "test_list");
+        list.clear();
+    }
+
+    ConnectionDescriptor newConn(int uid, String dst_ip, String info) {
+        ConnectionDescriptor conn = new ConnectionDescriptor(0, 4, 6, "10.0.0.1", dst_ip,
+                12345, 443, 12345, uid, -1, false, 0);
+        conn.info = info;
+        return conn;
+    }
+
+    @Test
+    public void emptyList() {
+        assertFalse(list.matches(newConn(10100, "1.2.3.4", "example.org")));
+    }
+
+    @Test
+    public void appAndIp() {
+        list.addApp(10100);
+        list.addIp("1.2.3.4");
+
+        assertTrue(list.matches(newConn(10100, "8.8.8.8", null)));
+        assertTrue(list.matches(newConn(10200, "1.2.3.4", null)));
+        assertFalse(list.matches(newConn(10200, "1.2.3.5", null)));
+    }
+
+    @Test
+    public void hosts() {
+        list.addHost("www.example.org");
+        list.addRootDomain("example.net");
+
+        // HOST rules match the exact domain, ignoring the "www." prefix
+        assertTrue(list.matches(newConn(0, "1.1.1.1", "example.org")));
+        assertTrue(list.matches(newConn(0, "1.1.1.1", "www.example.org")));
+        assertFalse(list.matches(newConn(0, "1.1.1.1", "a.example.org")));
+        assertFalse(list.matches(newConn(0, "1.1.1.1", "xexample.org")));
+
+        // ROOT_DOMAIN rules match the domain and its subdomains
+        assertTrue(list.matches(newConn(0, "1.1.1.1", "example.net")));
+        assertTrue(list.matches(newConn(0, "1.1.1.1", "a.b.example.net")));
+        assertFalse(list.matches(newConn(0, "1.1.1.1", "xexample.net")));
+        assertFalse(list.matches(newConn(0, "1.1.1.1", "example.com")));
+
+        assertTrue(list.matchesHost("www.example.org"));
+        assertTrue(list.matchesRootDomain("example.net"));
+        assertFalse(list.matchesRootDomain("a.example.net"));
+    }
+
+    @Test
+    public void subnets() {
+        list.addSubnet("10.0.0.0/8");
+        list.addSubnet("2001:db8::/32");
+        list.addSubnet("192.168.1.0/33"); // invalid, ignored
+
+        assertTrue(list.matches(newConn(0, "10.20.30.40", null)));
+        assertFalse(list.matches(newConn(0, "11.0.0.1", null)));
+        assertTrue(list.matches(newConn(0, "2001:db8:abcd::1", null)));
+        assertFalse(list.matches(newConn(0, "2001:db9::1", null)));
+        assertFalse(list.matches(newConn(0, "192.168.1.1", null)));
+
+        MatchList.ListDescriptor ld = list.toListDescriptor();
+        assertTrue(ld.ips.contains("10.0.0.0/8"));
+    }
+
+    @Test
+    public void equivalentNetworks() {
+        // the equivalent IP and SUBNET rules map to a single native entry, so only the first is added
+        list.addIp("1.2.3.4");
+        list.addSubnet("1.2.3.4/32");
+        list.addSubnet("10.0.0.1/8");
+        list.addSubnet("10.0.0.0/8");
+
+        MatchList.ListDescriptor ld = list.toListDescriptor();
+        assertEquals(2, ld.ips.size());
+        assertTrue(ld.ips.contains("1.2.3.4"));
+        assertTrue(ld.ips.contains("10.0.0.1/8"));
+        assertTrue(list.matches(newConn(0, "10.20.30.40", null)));
+
+        ArrayList<MatchList.Rule> rules = new ArrayList<>();
+        Iterator<MatchList.Rule> it = list.iterRules();
+        while(it.hasNext())
+            rules.add(it.next());
+        list.removeRules(rules);
+        assertTrue(list.isEmpty());
+        assertFalse(list.matches(newConn(0, "1.2.3.4", null)));
+    }
+
+    @Test
+    public void wildcardHosts() {
+        list.addWildcardHost("example.org");
+
+        // WILDCARD_HOST rules match the domain and its subdomains, at any depth
+        assertTrue(list.matches(newConn(0, "1.1.1.1", "example.org")));
+        assertTrue(list.matches(newConn(0, "1.1.1.1", "a.b.c.example.org")));
+        assertFalse(list.matches(newConn(0, "1.1.1.1", "xexample.org")));
+        assertFalse(list.matches(newConn(0, "1.1.1.1", "org")));
+        assertTrue(list.matchesHost("cdn.example.org"));
+
+        MatchList.ListDescriptor ld = list.toListDescriptor();
+        assertTrue(ld.wildcards.contains("example.org"));
+        assertTrue(ld.hosts.isEmpty());
+    }
+
+    @Test
+    public void rulesChange() {
+        list.addProto("DNS");
+        ConnectionDescriptor conn = newConn(0, "1.1.1.1", "example.org");
+        conn.l7proto = "DNS";
+
+        assertTrue(list.matches(conn));
+
+        // the matcher must be rebuilt after the rules are removed
+        ArrayList<MatchList.Rule> rules = new ArrayList<>();
+        Iterator<MatchList.Rule> it = list.iterRules();
+        while(it.hasNext())
+            rules.add(it.next());
+        list.removeRules(rules);
+        assertFalse(list.matches(conn));
+
+        list.addCountry("IT");
+        conn.country = "IT";
+        assertTrue(list.matches(conn));
+    }
+}